@@ -16,6 +16,8 @@ import com.lealone.storage.StorageEventListener;
 import com.lealone.storage.StorageMap;
 import com.lealone.storage.StorageSetting;
 import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.BTreePageCache;
+import com.lealone.storage.aose.btree.BTreeStorage;
 import com.lealone.storage.fs.FilePath;
 import com.lealone.storage.fs.FileUtils;
 import com.lealone.storage.type.StorageDataType;
@@ -28,8 +30,12 @@ public class AOStorage extends StorageBase {
     public static final String SUFFIX_AO_FILE = ".db";
     public static final int SUFFIX_AO_FILE_LENGTH = SUFFIX_AO_FILE.length();
 
+    private final BTreePageCache pageCache;
+
     AOStorage(Map<String, Object> config) {
         super(config);
+        pageCache = new BTreePageCache(
+                BTreeStorage.parseSize(config.get(StorageSetting.PAGE_CACHE_SIZE.name()), 0));
         if (config.containsKey(StorageSetting.IN_MEMORY.name()))
             return;
         String storagePath = getStoragePath();
@@ -50,6 +56,10 @@ public class AOStorage extends StorageBase {
         return openBTreeMap(mapName).getBTreeStorage().getChunkManager().getChunkInputStream(file);
     }
 
+    public BTreePageCache getPageCache() {
+        return pageCache;
+    }
+
     @Override
     public String getStorageName() {
         return AOStorageEngine.NAME;
@@ -5,6 +5,8 @@
  */
 package com.lealone.storage.aose.btree;
 
+import java.util.function.BiConsumer;
+
 import com.lealone.storage.CursorParameters;
 import com.lealone.storage.StorageMapCursor;
 import com.lealone.storage.aose.btree.page.Page;
@@ -22,14 +24,24 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
 
     private final BTreeMap<K, ?> map;
     private final CursorParameters<K> parameters;
+    private final K to; // 包含to，为null时表示没有上界
     private CursorPos pos;
 
     private K key;
     private V value;
 
+    // 以下字段用于顺序扫描时预读leaf page
+    private final BTreeReadAhead readAhead;
+    private Page readAheadNode; // 正在预读的leaf page的父节点
+    private int readAheadIndex; // 已经发出预读请求的最大下标(不包含)
+    private int siblingCount; // 连续切换到兄弟leaf page的次数
+
     public BTreeCursor(BTreeMap<K, ?> map, CursorParameters<K> parameters) {
         this.map = map;
         this.parameters = parameters;
+        this.to = parameters.to;
+        BTreeReadAhead readAhead = map.getBTreeStorage().getReadAhead();
+        this.readAhead = readAhead.isEnabled() ? readAhead : null;
         // 定位到>=from的第一个leaf page
         min(map.getRootPage(), parameters.from);
     }
@@ -59,22 +71,73 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
         return false;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public int next(int maxRows, BiConsumer<? super K, ? super V> action) {
+        if (maxRows <= 0 || !hasNext())
+            return 0;
+        // 一次只拷贝当前leaf page中的记录，避免在多个page之间来回切换
+        Page p = pos.page;
+        int start = pos.index;
+        int end = Math.min(pos.limit, start + maxRows);
+        boolean allColumns = parameters.allColumns;
+        int[] columnIndexes = parameters.columnIndexes;
+        for (int i = start; i < end; i++) {
+            key = (K) p.getKey(i);
+            if (allColumns)
+                value = (V) p.getValue(i, true);
+            else
+                value = (V) p.getValue(i, columnIndexes);
+            action.accept(key, value);
+        }
+        pos.index = end;
+        return end - start;
+    }
+
     private boolean hasNext() {
         while (pos != null) {
-            if (pos.index < pos.page.getKeyCount()) {
+            if (pos.index < pos.limit) {
                 return true;
             }
+            if (pos.limit < pos.page.getKeyCount()) {
+                pos = null; // 已经超过上界了
+                return false;
+            }
             pos = pos.parent;
             if (pos == null) {
                 return false;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
+                // 第index个子page中的key都大于node page的第index-1个key，超过上界了就不用再读这个子page
+                if (to != null && pos.index > 0
+                        && map.getKeyType().compare(to, pos.page.getKey(pos.index - 1)) < 0) {
+                    pos = null;
+                    return false;
+                }
+                if (readAhead != null)
+                    readAhead(pos.page, pos.index);
                 min(pos.page.getChildPage(pos.index++), null);
             }
         }
         return false;
     }
 
+    // 至少连续切换两次兄弟leaf page才认为是顺序扫描，然后在后台预读后续的leaf page
+    private void readAhead(Page node, int index) {
+        if (++siblingCount < 2)
+            return;
+        if (readAheadNode != node) {
+            readAheadNode = node;
+            readAheadIndex = index;
+        }
+        int windowSize = readAhead.getWindowSize();
+        // 剩余的预读page少于窗口大小的一半时再发出下一批预读请求
+        if (readAheadIndex - index <= windowSize / 2) {
+            int start = Math.max(index + 1, readAheadIndex);
+            readAheadIndex = readAhead.readAhead(node, start, index + 1 + windowSize);
+        }
+    }
+
     /**
      * Fetch the next entry that is equal or larger than the given key, starting
      * from the given page. This method retains the stack.
@@ -90,6 +153,7 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
                     x = -x - 1;
                 }
                 pos = new CursorPos(p, x, pos);
+                pos.limit = getLimit(p);
                 break;
             }
             int x = from == null ? 0 : p.getPageIndex(from);
@@ -98,6 +162,16 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
         }
     }
 
+    // 返回leaf page中第一个大于to的key的下标，所有key都不大于to时返回keyCount
+    private int getLimit(Page leaf) {
+        int keyCount = leaf.getKeyCount();
+        if (to == null || keyCount == 0
+                || map.getKeyType().compare(to, leaf.getKey(keyCount - 1)) >= 0)
+            return keyCount;
+        int x = leaf.binarySearch(to);
+        return x >= 0 ? x + 1 : -x - 1;
+    }
+
     private static class CursorPos {
         /**
          * The current page.
@@ -109,6 +183,11 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
          */
         int index;
 
+        /**
+         * The end index (exclusive), for a leaf page the keys after it are larger than to.
+         */
+        int limit;
+
         /**
          * The position in the parent page, if any.
          */
@@ -118,6 +197,7 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
             this.page = page;
             this.index = index;
             this.parent = parent;
+            this.limit = page.getKeyCount();
         }
     }
 }
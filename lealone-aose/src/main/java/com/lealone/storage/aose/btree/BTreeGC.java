@@ -5,32 +5,56 @@
  */
 package com.lealone.storage.aose.btree;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.lealone.common.util.SystemPropertyUtils;
 import com.lealone.db.MemoryManager;
 import com.lealone.storage.aose.btree.page.Page;
+import com.lealone.storage.aose.btree.page.PageClock;
 import com.lealone.storage.aose.btree.page.PageInfo;
 import com.lealone.storage.aose.btree.page.PageReference;
 
+/**
+ * BTreeMap的内存回收器。
+ *
+ * <p>
+ * 普通的gc是增量的，用CLOCK算法从PageClock中选出最近没有被访问过的page，
+ * 只回收降到阈值以下所需的内存，并且每次执行的时间不超过maxPauseMillis，没回收完的下次再继续。
+ * fullGc会遍历整棵树，回收所有能回收的page。
+ */
 public class BTreeGC {
 
+    private static final long MAX_PAUSE_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(SystemPropertyUtils.getLong("lealone.btree.gc.maxPauseMillis", 10));
+
+    private static final int CHECK_TIME_INTERVAL = 64; // 每访问这么多个page检查一次是否超时
+
     private static MemoryManager GMM() {
         return MemoryManager.getGlobalMemoryManager();
     }
 
     private final BTreeMap<?, ?> map;
     private final MemoryManager memoryManager;
+    private final PageClock pageClock;
+    // 保证只有一个GC线程，PageClock只能有一个消费者
+    private final ReentrantLock gcLock = new ReentrantLock();
+
+    // 以下字段只在持有gcLock时修改
+    private volatile long gcCount;
+    private volatile long lastPauseNanos;
+    private volatile long maxPauseNanos;
+    private volatile long totalPauseNanos;
+    private volatile long lastReclaimedBytes;
+    private volatile long totalReclaimedBytes;
 
-    public BTreeGC(BTreeMap<?, ?> map, long maxMemory) {
-        this.map = map;
+    public BTreeGC(BTreeStorage bs, long maxMemory) {
+        this.map = bs.getMap();
         if (maxMemory <= 0)
             maxMemory = GMM().getMaxMemory();
         memoryManager = new MemoryManager(maxMemory);
+        pageClock = new PageClock(bs);
     }
 
     public long getMaxMemory() {
@@ -50,205 +74,185 @@ public class BTreeGC {
         GMM().addUsedMemory(delta);
     }
 
-    public void close() {
-        addUsedMemory(-memoryManager.getUsedMemory());
+    public PageClock getPageClock() {
+        return pageClock;
     }
 
-    public void gc() {
-        collect(false);
+    public long getGcCount() {
+        return gcCount;
     }
 
-    public void fullGc() {
-        collect(true);
+    public long getLastPauseNanos() {
+        return lastPauseNanos;
     }
 
-    private boolean needGc() {
-        return memoryManager.needGc();
+    public long getMaxPauseNanos() {
+        return maxPauseNanos;
     }
 
-    private void collect(boolean fullGc) {
-        if (fullGc || needGc())
-            new Collector().collect(fullGc);
+    public long getTotalPauseNanos() {
+        return totalPauseNanos;
     }
 
-    public long collectDirtyMemory() {
-        PageReference ref = map.getRootPageRef();
-        if (!ref.getPageInfo().isDirty())
-            return 0;
-        AtomicLong dirtyMemory = new AtomicLong();
-        collectDirtyMemory(ref, dirtyMemory);
-        return dirtyMemory.get();
+    public long getLastReclaimedBytes() {
+        return lastReclaimedBytes;
     }
 
-    private void collectDirtyMemory(PageReference ref, AtomicLong dirtyMemory) {
-        PageInfo pInfo = ref.getPageInfo();
-        Page p = pInfo.page;
-        if (p != null && p.isNode()) {
-            forEachPage(p, true, childRef -> {
-                collectDirtyMemory(childRef, dirtyMemory);
-            });
+    public long getTotalReclaimedBytes() {
+        return totalReclaimedBytes;
+    }
+
+    public void close() {
+        gcLock.lock();
+        try {
+            pageClock.clear();
+            addUsedMemory(-memoryManager.getUsedMemory());
+        } finally {
+            gcLock.unlock();
         }
-        dirtyMemory.addAndGet(pInfo.getPageMemory());
     }
 
-    private void forEachPage(Page p, boolean collectDirtyPage, Consumer<PageReference> action) {
-        PageReference[] children = p.getChildren();
-        for (int i = 0, len = children.length; i < len; i++) {
-            PageReference childRef = children[i];
-            if (childRef != null) {
-                if (collectDirtyPage) {
-                    if (childRef.getPageInfo().isDirty())
-                        action.accept(childRef);
-                } else if (childRef.getPageInfo().isOnline()) { // 离线page不用GC
-                    action.accept(childRef);
-                }
-            }
+    public boolean needGc() {
+        return memoryManager.needGc();
+    }
+
+    public void gc() {
+        if (!needGc() || !gcLock.tryLock()) // 已经有其他线程在执行GC了
+            return;
+        try {
+            long target = getGcTarget();
+            if (target > 0)
+                collect(target);
+        } finally {
+            gcLock.unlock();
         }
     }
 
-    private class Collector {
-        // 按层级收集node page，单独收集leaf page
-        private final ArrayList<GcingPage> leafPages = new ArrayList<>();
-        private final HashMap<Integer, ArrayList<GcingPage>> nodePageMap = new HashMap<>();
-        private final long now = System.currentTimeMillis();
-        private boolean fullGc;
-
-        private void collect(boolean fullGc) {
-            this.fullGc = fullGc;
-            collect(map.getRootPageRef(), 1, new AtomicBoolean(true));
-            // 在collect内部也会快速收集掉一些特殊的page，如果不需要进一步收集了就直接返回
-            if (fullGc || !needGc())
-                return;
-            // 接下来按LRU算法释放leaf page和node page
-            // leaf page按LastTime从小到大释放
-            releaseLeafPages(leafPages);
-            // 从最下层的node page开始释放
-            releaseNodePages(nodePageMap);
+    public void fullGc() {
+        gcLock.lock();
+        try {
+            long start = System.nanoTime();
+            AtomicLong reclaimed = new AtomicLong();
+            fullGc(map.getRootPageRef(), reclaimed);
+            record(start, reclaimed.get());
+        } finally {
+            gcLock.unlock();
         }
+    }
 
-        private void collect(PageReference ref, int level, AtomicBoolean gcParentNodePage) {
-            PageInfo pInfo = ref.getPageInfo();
-            Page p = pInfo.page;
-            if (p != null && p.isNode()) {
-                final AtomicBoolean gcNodePage = new AtomicBoolean(true);
-                forEachPage(p, false, childRef -> {
-                    collect(childRef, level + 1, gcNodePage);
-                });
-                if (ref.canGc() && gcNodePage.get()) {
-                    gcPage(ref, level, gcParentNodePage, gcNodePage, pInfo, false);
-                } else {
-                    gcParentNodePage.set(false);
-                }
-            } else { // 也可能是buff字段不为null的NodePage
-                if (ref.canGc()) {
-                    gcPage(ref, level, gcParentNodePage, null, pInfo, ref.isLeafPage());
-                } else {
-                    gcParentNodePage.set(false);
-                }
-            }
+    // 降到阈值以下需要回收的内存，如果全局内存紧张，最多把当前map的内存全部回收
+    private long getGcTarget() {
+        long used = memoryManager.getUsedMemory();
+        long target = used - memoryManager.getMaxMemory() / 2;
+        MemoryManager gmm = GMM();
+        if (gmm.needGc()) {
+            long globalTarget = gmm.getUsedMemory() - gmm.getMaxMemory() / 2;
+            target = Math.max(target, Math.min(globalTarget, used));
+        }
+        return target;
+    }
+
+    private void collect(long target) {
+        long start = System.nanoTime();
+        long deadline = start + MAX_PAUSE_NANOS;
+        long now = System.currentTimeMillis();
+        long reclaimed = 0;
+        // 每个page最多给一次机会，所以最多访问两轮
+        long maxVisits = pageClock.size() * 2L + 1;
+        long visits = 0;
+        PageReference ref;
+        while (reclaimed < target && visits < maxVisits && (ref = pageClock.poll()) != null) {
+            reclaimed += collect(ref, now);
+            if (++visits % CHECK_TIME_INTERVAL == 0 && System.nanoTime() > deadline)
+                break;
         }
+        record(start, reclaimed);
+    }
 
-        private void gcPage(PageReference ref, int level, AtomicBoolean gcParentNodePage,
-                AtomicBoolean gcNodePage, PageInfo pInfo, boolean isLeaf) {
-            if (fullGc) {
-                if (ref.gcPage(pInfo, 0) == null)
-                    gcParentNodePage.set(false);
-            } else {
-                long interval = now - pInfo.getLastTime();
-                if (interval > 300000 // 超过5分钟(5 * 60 * 1000)都没再访问过
-                        || pInfo.getHits() < 2 && interval > 1000) { // 全表扫描的场景
-                    if (ref.gcPage(pInfo, 0) == null)
-                        gcParentNodePage.set(false);
-                } else {
-                    if (isLeaf) {
-                        leafPages.add(new GcingPage(ref, pInfo, null, gcParentNodePage));
-                    } else {
-                        ArrayList<GcingPage> nodePages = nodePageMap.get(level);
-                        if (nodePages == null) {
-                            nodePages = new ArrayList<>();
-                            nodePageMap.put(level, nodePages);
-                        }
-                        nodePages.add(new GcingPage(ref, pInfo, gcNodePage, gcParentNodePage));
-                    }
-                }
-            }
+    private long collect(PageReference ref, long now) {
+        PageInfo pInfo = ref.getPageInfo();
+        // 离线、被修改过或者被切割过的page不需要留在队列中，变成可回收的状态时会重新入队
+        if (!pInfo.isOnline() || pInfo.isDirty() || pInfo.isDataStructureChanged()) {
+            pageClock.leave(ref);
+            return 0;
+        }
+        // 全表扫描时只访问过一次的page不再给机会
+        boolean scanned = pInfo.getHits() < 2 && now - pInfo.getLastTime() > 1000;
+        if (!scanned && pageClock.secondChance(ref, pInfo) || !ref.canGc()
+                || hasOnlinePage(pInfo.page)) {
+            pageClock.requeue(ref);
+            return 0;
         }
+        long memory = pInfo.getTotalMemory();
+        if (ref.gcPage(pInfo, 0) == null)
+            memory = 0; // 被其他线程修改了
+        pageClock.leave(ref);
+        return memory;
+    }
 
-        private void releaseLeafPages(ArrayList<GcingPage> leafPages) {
-            int size = leafPages.size();
-            if (size == 0)
-                return;
-            Collections.sort(leafPages);
-
-            int index = size / 2 + 1;
-            // 先释放前一半的page字段和buff字段
-            release(leafPages, 0, index, 0);
-            // 再释放后一半
-            if (needGc()) {
-                release(leafPages, index, size, 1); // 先释放page字段
-                if (needGc())
-                    release(leafPages, index, size, 2); // 如果内存依然紧张再释放buff字段
+    // 子page回收完之后才能回收node page
+    private static boolean hasOnlinePage(Page p) {
+        if (p != null && p.isNode()) {
+            for (PageReference childRef : p.getChildren()) {
+                if (childRef != null && childRef.getPageInfo().isOnline())
+                    return true;
             }
         }
+        return false;
+    }
 
-        private void releaseNodePages(HashMap<Integer, ArrayList<GcingPage>> nodePageMap) {
-            if (!nodePageMap.isEmpty() && needGc()) {
-                ArrayList<Integer> levelList = new ArrayList<>(nodePageMap.keySet());
-                Collections.sort(levelList);
-                for (int i = levelList.size() - 1; i >= 0; i--) {
-                    ArrayList<GcingPage> nodePages = nodePageMap.get(levelList.get(i));
-                    int size = nodePages.size();
-                    if (size > 0) {
-                        release(nodePages, 0, size, 1); // 先释放page字段
-                        if (needGc())
-                            release(nodePages, 0, size, 2); // 如果内存依然紧张再释放buff字段
-                    }
-                    if (!needGc())
-                        break;
-                }
+    // 只要有一个子page回收失败，它的父node page就不能回收
+    private boolean fullGc(PageReference ref, AtomicLong reclaimed) {
+        PageInfo pInfo = ref.getPageInfo();
+        Page p = pInfo.page;
+        boolean gcNodePage = true;
+        if (p != null && p.isNode()) {
+            for (PageReference childRef : p.getChildren()) {
+                // 离线page不用GC
+                if (childRef != null && childRef.getPageInfo().isOnline()
+                        && !fullGc(childRef, reclaimed))
+                    gcNodePage = false;
             }
         }
-
-        private void release(ArrayList<GcingPage> list, int startIndex, int endIndex, int gcType) {
-            for (int i = startIndex; i < endIndex; i++) {
-                GcingPage gp = list.get(i);
-                // 只要有一个子leaf page或子node page垃圾收集失败，它的父node page就不再需要垃圾收集了
-                if (gp.ref.isNodePage() && (gp.gcNodePage != null && !gp.gcNodePage.get())) {
-                    gp.gcParentNodePage.set(false);
-                    continue;
-                }
-                PageInfo pInfoOld = gp.pInfo;
-                PageInfo pInfoNew = gp.ref.gcPage(pInfoOld, gcType);
-                if (pInfoNew != null) {
-                    if (pInfoOld != pInfoNew)
-                        gp.pInfo = pInfoNew;
-                } else {
-                    gp.gcParentNodePage.set(false);
-                }
+        if (gcNodePage && ref.canGc()) {
+            long memory = pInfo.getTotalMemory();
+            if (ref.gcPage(pInfo, 0) != null) {
+                reclaimed.addAndGet(memory);
+                return true;
             }
         }
+        return false;
     }
 
-    private static class GcingPage implements Comparable<GcingPage> {
-        final PageReference ref;
-        PageInfo pInfo; // 会被修改
-        final AtomicBoolean gcNodePage;
-        final AtomicBoolean gcParentNodePage;
-        final long lastTime;
-
-        GcingPage(PageReference ref, PageInfo pInfo, AtomicBoolean gcNodePage,
-                AtomicBoolean gcParentNodePage) {
-            this.ref = ref;
-            this.pInfo = pInfo;
-            this.gcNodePage = gcNodePage;
-            this.gcParentNodePage = gcParentNodePage;
-            this.lastTime = pInfo.getLastTime();
-        }
+    private void record(long start, long reclaimed) {
+        long pause = System.nanoTime() - start;
+        gcCount++;
+        lastPauseNanos = pause;
+        totalPauseNanos += pause;
+        if (pause > maxPauseNanos)
+            maxPauseNanos = pause;
+        lastReclaimedBytes = reclaimed;
+        totalReclaimedBytes += reclaimed;
+    }
+
+    public long collectDirtyMemory() {
+        PageReference ref = map.getRootPageRef();
+        if (!ref.getPageInfo().isDirty())
+            return 0;
+        AtomicLong dirtyMemory = new AtomicLong();
+        collectDirtyMemory(ref, dirtyMemory);
+        return dirtyMemory.get();
+    }
 
-        @Override
-        public int compareTo(GcingPage o) {
-            // 不能用pInfo.getLastTime()，否则可能抛异常: Comparison method violates its general contract!
-            return Long.compare(lastTime, o.lastTime);
+    private void collectDirtyMemory(PageReference ref, AtomicLong dirtyMemory) {
+        PageInfo pInfo = ref.getPageInfo();
+        Page p = pInfo.page;
+        if (p != null && p.isNode()) {
+            for (PageReference childRef : p.getChildren()) {
+                if (childRef != null && childRef.getPageInfo().isDirty())
+                    collectDirtyMemory(childRef, dirtyMemory);
+            }
         }
+        dirtyMemory.addAndGet(pInfo.getPageMemory());
     }
 }
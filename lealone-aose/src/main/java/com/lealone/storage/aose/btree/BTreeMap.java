@@ -8,8 +8,10 @@ package com.lealone.storage.aose.btree;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.lealone.common.util.DataUtils;
@@ -29,11 +31,13 @@ import com.lealone.storage.aose.btree.chunk.Chunk;
 import com.lealone.storage.aose.btree.chunk.ChunkManager;
 import com.lealone.storage.aose.btree.page.LeafPage;
 import com.lealone.storage.aose.btree.page.Page;
+import com.lealone.storage.aose.btree.page.PageBuilder;
 import com.lealone.storage.aose.btree.page.PageOperations.Append;
 import com.lealone.storage.aose.btree.page.PageOperations.Put;
+import com.lealone.storage.aose.btree.page.PageOperations.PutBatch;
 import com.lealone.storage.aose.btree.page.PageOperations.PutIfAbsent;
 import com.lealone.storage.aose.btree.page.PageOperations.Remove;
-import com.lealone.storage.aose.btree.page.PageOperations.WriteOperation;
+import com.lealone.storage.aose.btree.page.PageOperations.WriteOperationBase;
 import com.lealone.storage.aose.btree.page.PageReference;
 import com.lealone.storage.aose.btree.page.PageStorageMode;
 import com.lealone.storage.aose.btree.page.PageUtils;
@@ -95,6 +99,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     // btree的root page引用，最开始是一个leaf page，随时都会指向新的page
     private final RootPageReference rootRef;
+
+    // 最右边的leaf page，key单调递增时写操作都集中在这里，不用每次都从root开始定位
+    private volatile PageReference lastLeafRef;
+    private final LongAdder writeRetryCount = new LongAdder();
+    private final LongAdder writeRelocateCount = new LongAdder();
     private final SchedulerFactory schedulerFactory;
 
     public BTreeMap(String name, StorageDataType keyType, StorageDataType valueType,
@@ -152,6 +161,8 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         // 变更PageLock，让老的记录重新定位
         rootRef.setNewPageLock();
         rootRef.replacePage(newRoot);
+        // 老的leaf page已经不在新的btree中了
+        lastLeafRef = null;
     }
 
     public Map<String, Object> getConfig() {
@@ -166,6 +177,10 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return btreeStorage;
     }
 
+    public AOStorage getAOStorage() {
+        return (AOStorage) storage;
+    }
+
     public PageStorageMode getPageStorageMode() {
         return pageStorageMode;
     }
@@ -190,7 +205,9 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     @Override
     @SuppressWarnings("unchecked")
     public V get(K key, int[] columnIndexes) {
-        Page p = getRootPage().gotoLeafPage(key);
+        Page p = getRootPage().findLeafPage(key);
+        if (p == null)
+            return null;
         int index = p.binarySearch(key);
         Object v = index >= 0 ? p.getValue(index, columnIndexes) : null;
         return (V) v;
@@ -198,14 +215,18 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @SuppressWarnings("unchecked")
     private V binarySearch(Object key, boolean allColumns) {
-        Page p = getRootPage().gotoLeafPage(key);
+        Page p = getRootPage().findLeafPage(key);
+        if (p == null)
+            return null;
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, allColumns) : null;
     }
 
     @SuppressWarnings("unchecked")
     private V binarySearch(Object key, int[] columnIndexes) {
-        Page p = getRootPage().gotoLeafPage(key);
+        Page p = getRootPage().findLeafPage(key);
+        if (p == null)
+            return null;
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, columnIndexes) : null;
     }
@@ -346,6 +367,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             btreeStorage.clear();
             size.set(0);
             maxKey.set(0);
+            lastLeafRef = null;
             newRoot(createEmptyPage());
         } finally {
             exclusiveLock.unlock();
@@ -420,6 +442,20 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    @Override
+    public void compact() {
+        // 压缩会生成新的chunk，还没有执行的redo log在下次打开时就读不到了
+        if (recovering)
+            return;
+        if (!inMemory && sharedLock.tryLock()) { // 如果加锁失败可以直接返回
+            try {
+                btreeStorage.compact();
+            } finally {
+                sharedLock.unlock();
+            }
+        }
+    }
+
     @Override
     public void fullGc() {
         if (!inMemory && sharedLock.tryLock()) { // 如果加锁失败可以直接返回
@@ -489,6 +525,21 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return btreeStorage.getMemorySpaceUsed();
     }
 
+    @Override
+    public long getSavedPages() {
+        return btreeStorage.getSavedPages();
+    }
+
+    @Override
+    public long getSavedBytes() {
+        return btreeStorage.getSavedBytes();
+    }
+
+    @Override
+    public long getLastSaveTime() {
+        return btreeStorage.getLastSaveTime();
+    }
+
     @Override
     public boolean hasUnsavedChanges() {
         return getRootPage().getPos() == 0;
@@ -498,6 +549,87 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return getRootPage().gotoLeafPage(key);
     }
 
+    // key不小于最右边leaf page的第一个key时，直接返回这个leaf page
+    public Page gotoLeafPageForWrite(Object key) {
+        Page p = getLastLeafPage();
+        if (p != null && p.getKeyCount() > 0 && keyType.compare(key, p.getKey(0)) >= 0)
+            return p;
+        p = getRootPage();
+        boolean last = true;
+        while (p.isNode()) {
+            int index = p.getPageIndex(key);
+            if (index < p.getKeyCount())
+                last = false;
+            p = p.getChildPage(index);
+        }
+        if (last)
+            lastLeafRef = p.getRef();
+        return p;
+    }
+
+    public Page gotoLastLeafPage() {
+        Page p = getLastLeafPage();
+        if (p != null)
+            return p;
+        p = gotoLastLeafPage(getRootPage());
+        lastLeafRef = p.getRef();
+        return p;
+    }
+
+    public Page gotoLastLeafPage(Page p) {
+        while (p.isNode()) {
+            p = p.getChildPage(getChildPageCount(p) - 1);
+        }
+        return p;
+    }
+
+    // 只有被切割或删除后才会有新的leaf page出现在它的右边
+    private Page getLastLeafPage() {
+        PageReference ref = lastLeafRef;
+        if (ref == null || ref.isDataStructureChanged() || !isLastChild(ref))
+            return null;
+        Page p = ref.getPage();
+        return p != null && p.isLeaf() ? p : null;
+    }
+
+    // 从leaf page沿着parent往上找，每一层都必须是父page的最后一个子page，并且最后能回到当前的root，
+    // 否则它已经被切割、删除或者因为clear和换root从btree中脱离了
+    private boolean isLastChild(PageReference ref) {
+        while (!ref.isRoot()) {
+            if (ref.isDataStructureChanged())
+                return false;
+            PageReference parentRef = ref.getParentRef();
+            if (parentRef == null)
+                return false;
+            Page parent = parentRef.getPage();
+            if (parent == null || !parent.isNode())
+                return false;
+            PageReference[] children = parent.getChildren();
+            if (children[children.length - 1] != ref)
+                return false;
+            ref = parentRef;
+        }
+        return ref == rootRef;
+    }
+
+    // 写操作因为page被切割、删除或回收而重新从root定位leaf page的次数
+    public long getWriteRetryCount() {
+        return writeRetryCount.sum();
+    }
+
+    public void incrementWriteRetryCount() {
+        writeRetryCount.increment();
+    }
+
+    // 写操作顺着被切割或删除的page留下的引用重新定位leaf page的次数
+    public long getWriteRelocateCount() {
+        return writeRelocateCount.sum();
+    }
+
+    public void incrementWriteRelocateCount() {
+        writeRelocateCount.increment();
+    }
+
     // 如果map是只读的或者已经关闭了就不能再写了，并且不允许值为null
     private void checkWrite(V value) {
         DataUtils.checkNotNull(value, "value");
@@ -615,6 +747,64 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return runPageOperation(session, append);
     }
 
+    // 空map可以按key的顺序自底向上直接构建page，不需要一条条put，也不会切割page
+    // 调用者需要保证导入过程中没有其他线程写这个map
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, boolean sorted) {
+        checkWrite();
+        if (!isEmpty()) {
+            PutBatch<K, V> batch = new PutBatch<>(this, null);
+            while (entries.hasNext()) {
+                Map.Entry<K, V> e = entries.next();
+                batch.add(e.getKey(), e.getValue(), null);
+                if (batch.size() >= 1024) {
+                    put(batch);
+                    batch = new PutBatch<>(this, null);
+                }
+            }
+            put(batch);
+            return;
+        }
+        ExternalSorter<K, V> sorter = null;
+        try {
+            if (!sorted) {
+                sorter = new ExternalSorter<>(keyType, valueType, getCacheSize() / 2);
+                sorter.add(entries);
+                entries = sorter;
+            }
+            PageBuilder builder = new PageBuilder(this);
+            K lastKey = null;
+            while (entries.hasNext()) {
+                Map.Entry<K, V> e = entries.next();
+                DataUtils.checkNotNull(e.getValue(), "value");
+                builder.add(e.getKey(), e.getValue());
+                lastKey = e.getKey();
+            }
+            builder.finish();
+            if (lastKey != null)
+                setMaxKey(lastKey);
+        } finally {
+            if (sorter != null)
+                sorter.close();
+        }
+    }
+
+    // 批量写多个key，返回新增key的个数
+    public Integer put(PutBatch<K, V> batch) {
+        return put(null, batch);
+    }
+
+    public Integer put(InternalSession session, PutBatch<K, V> batch) {
+        checkWrite();
+        if (batch.size() == 0) {
+            AsyncResultHandler<Integer> handler = batch.getResultHandler();
+            if (handler != null)
+                handler.handleResult(0);
+            return 0;
+        }
+        return runPageOperation(session, batch);
+    }
+
     @SuppressWarnings("unchecked")
     public void remove(PageReference ref, Object key) {
         if (ref.isDataStructureChanged()) {
@@ -648,7 +838,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return runPageOperation(session, remove);
     }
 
-    private <R> R runPageOperation(InternalSession session, WriteOperation<?, ?, R> po) {
+    private <R> R runPageOperation(InternalSession session, WriteOperationBase<?, ?, R> po) {
         InternalScheduler scheduler;
         if (session != null && session.getScheduler() != null) {
             po.setSession(session);
@@ -678,7 +868,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return handlePageOperation(scheduler, po);
     }
 
-    private <R> R handlePageOperation(InternalScheduler scheduler, WriteOperation<?, ?, R> po) {
+    private <R> R handlePageOperation(InternalScheduler scheduler, WriteOperationBase<?, ?, R> po) {
         if (po.getResultHandler() == null) { // 同步
             SchedulerListener<R> listener = SchedulerListener.createSchedulerListener();
             po.setResultHandler(listener);
@@ -762,4 +952,16 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     public boolean validateRedoLog(long lastTransactionId) {
         return btreeStorage.validateRedoLog(lastTransactionId);
     }
+
+    private volatile boolean recovering;
+
+    @Override
+    public boolean isRecovering() {
+        return recovering;
+    }
+
+    @Override
+    public void setRecovering(boolean recovering) {
+        this.recovering = recovering;
+    }
 }
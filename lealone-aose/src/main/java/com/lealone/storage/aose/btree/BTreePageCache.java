@@ -0,0 +1,324 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.lealone.storage.aose.btree.chunk.Chunk;
+
+/**
+ * 同一个storage中所有BTreeMap共享的page缓存，缓存的是序列化后的page，放在堆外的direct ByteBuffer中。
+ *
+ * <p>
+ * 所有map共用一个内存预算，淘汰策略是W-TinyLFU的简化版:
+ * 用CLOCK算法选出候选的淘汰者，新page的访问频率大于淘汰者时才允许进入缓存，
+ * 访问频率用Count-Min Sketch统计，所以全表扫描时只访问一次的page不会把热点page挤出去。
+ *
+ * <p>
+ * chunk id会被复用，所以缓存的key除了pos还包含page所在的Chunk对象，
+ * 这样chunk被删除后，就算有读操作跟删除并发，晚放入缓存的旧page也不会被同一个pos的新page用到。
+ */
+public class BTreePageCache {
+
+    private final long maxMemory;
+    private final AtomicLong usedMemory = new AtomicLong();
+    private final ConcurrentHashMap<PageKey, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+
+    // 以下字段只在持有lock时读写
+    private final ReentrantLock lock = new ReentrantLock();
+    private Entry hand; // CLOCK的指针，所有Entry组成一个环
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    public BTreePageCache(long maxMemory) {
+        this.maxMemory = maxMemory < 0 ? 0 : maxMemory;
+        // 按平均每个page 1K来估算page个数
+        sketch = this.maxMemory > 0 ? new FrequencySketch(this.maxMemory / 1024) : null;
+    }
+
+    public boolean isEnabled() {
+        return maxMemory > 0;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * 返回缓存的page，没有时返回null
+     */
+    public ByteBuffer get(BTreeStorage bs, Chunk chunk, long pos) {
+        PageKey key = new PageKey(bs, chunk, pos);
+        sketch.increment(key.hashCode());
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        e.referenced = true;
+        hits.incrementAndGet();
+        return e.buff.duplicate();
+    }
+
+    /**
+     * 把从文件中读到的page放入缓存
+     *
+     * @return 缓存中的只读direct ByteBuffer，如果没有放入缓存返回null
+     */
+    public ByteBuffer put(BTreeStorage bs, Chunk chunk, long pos, ByteBuffer buff) {
+        int len = buff.limit();
+        // 已经在堆外的buff(比如mmap得到的)不需要再缓存，太大的page也不缓存
+        if (buff.isDirect() || len <= 0 || len > maxMemory / 8)
+            return null;
+        PageKey key = new PageKey(bs, chunk, pos);
+        Entry e = entries.get(key);
+        if (e != null)
+            return e.buff.duplicate();
+        int frequency = sketch.frequency(key.hashCode());
+        lock.lock();
+        try {
+            e = entries.get(key);
+            if (e != null)
+                return e.buff.duplicate();
+            while (usedMemory.get() + len > maxMemory && hand != null) {
+                Entry victim = nextVictim();
+                // 访问频率不高于淘汰者的page不放入缓存
+                if (frequency <= sketch.frequency(victim.key.hashCode())) {
+                    rejections.incrementAndGet();
+                    return null;
+                }
+                removeEntry(victim);
+                evictions.incrementAndGet();
+            }
+            ByteBuffer direct = ByteBuffer.allocateDirect(len);
+            direct.put(buff.duplicate().position(0).limit(len));
+            direct.flip();
+            e = new Entry(key, direct.asReadOnlyBuffer());
+            addEntry(e);
+            return e.buff.duplicate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(BTreeStorage bs, Chunk chunk, Collection<Long> positions) {
+        if (entries.isEmpty())
+            return;
+        lock.lock();
+        try {
+            for (Long pos : positions) {
+                Entry e = entries.get(new PageKey(bs, chunk, pos));
+                if (e != null)
+                    removeEntry(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // map被clear、remove或close时调用，chunk id会被复用，所以page的pos可能会重复
+    public void removeAll(BTreeStorage bs) {
+        if (entries.isEmpty())
+            return;
+        lock.lock();
+        try {
+            for (Entry e : entries.values()) {
+                if (e.key.bs == bs)
+                    removeEntry(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最近被访问过的page再给一次机会
+    private Entry nextVictim() {
+        while (hand.referenced) {
+            hand.referenced = false;
+            hand = hand.next;
+        }
+        return hand;
+    }
+
+    // 加到hand的前面，也就是最后才会被检查
+    private void addEntry(Entry e) {
+        if (hand == null) {
+            e.prev = e.next = e;
+            hand = e;
+        } else {
+            e.next = hand;
+            e.prev = hand.prev;
+            hand.prev.next = e;
+            hand.prev = e;
+        }
+        entries.put(e.key, e);
+        usedMemory.addAndGet(e.buff.capacity());
+    }
+
+    private void removeEntry(Entry e) {
+        if (entries.remove(e.key, e)) {
+            if (e.next == e) {
+                hand = null;
+            } else {
+                if (hand == e)
+                    hand = e.next;
+                e.prev.next = e.next;
+                e.next.prev = e.prev;
+            }
+            e.prev = e.next = null;
+            // direct ByteBuffer的内存在不再被引用后由JVM回收，page可能还在使用它的duplicate
+            usedMemory.addAndGet(-e.buff.capacity());
+        }
+    }
+
+    private static class PageKey {
+
+        final BTreeStorage bs;
+        final Chunk chunk;
+        final long pos;
+
+        PageKey(BTreeStorage bs, Chunk chunk, long pos) {
+            this.bs = bs;
+            this.chunk = chunk;
+            this.pos = pos;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(bs) * 31 + Long.hashCode(pos);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof PageKey) {
+                PageKey k = (PageKey) obj;
+                return k.bs == bs && k.chunk == chunk && k.pos == pos;
+            }
+            return false;
+        }
+    }
+
+    private static class Entry {
+
+        final PageKey key;
+        final ByteBuffer buff;
+        volatile boolean referenced;
+        Entry prev;
+        Entry next;
+
+        Entry(PageKey key, ByteBuffer buff) {
+            this.key = key;
+            this.buff = buff;
+        }
+    }
+
+    // 每个计数器占4个bit，最大值是15，计数的总次数达到sampleSize后所有计数器减半，这样老的热点会慢慢冷却
+    static class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final AtomicLongArray table;
+        private final int tableMask;
+        private final int sampleSize;
+        private final AtomicInteger size = new AtomicInteger();
+
+        FrequencySketch(long expectedEntries) {
+            int len = (int) Math.min(1 << 24, Math.max(16, expectedEntries));
+            len = Integer.highestOneBit(len - 1) << 1; // 2的幂
+            table = new AtomicLongArray(len);
+            tableMask = len - 1;
+            sampleSize = len * 10;
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int shift = counterShift(hash, i);
+                frequency = Math.min(frequency, (int) ((table.get(index) >>> shift) & 0xF));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), counterShift(hash, i));
+            }
+            if (added && size.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int shift) {
+            long mask = 0xFL << shift;
+            while (true) {
+                long v = table.get(index);
+                if ((v & mask) == mask) // 已经是15了
+                    return false;
+                if (table.compareAndSet(index, v, v + (1L << shift)))
+                    return true;
+            }
+        }
+
+        private void reset() {
+            size.set(0);
+            for (int i = 0, len = table.length(); i < len; i++) {
+                long v;
+                do {
+                    v = table.get(i);
+                } while (!table.compareAndSet(i, v, (v >>> 1) & RESET_MASK));
+            }
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        // 每个long有16个计数器，第i个hash函数只用其中的4个
+        private static int counterShift(int hash, int i) {
+            return (((hash >>> (i << 3)) & 3) + (i << 2)) << 2;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lealone.storage.aose.btree.page.Page;
+import com.lealone.storage.aose.btree.page.PageInfo;
+import com.lealone.storage.aose.btree.page.PageReference;
+import com.lealone.storage.aose.btree.page.PageUtils;
+
+/**
+ * 顺序扫描时在后台预读当前node page中后续的leaf page，读到的ByteBuffer放在PageInfo.buff中。
+ *
+ * <p>
+ * 预读的page数会根据命中率在1到maxPages之间自动调整。
+ */
+public class BTreeReadAhead {
+
+    private static final int ADJUST_INTERVAL = 64; // 每预读这么多个page后调整一次窗口大小
+
+    private static volatile ExecutorService executor;
+
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (BTreeReadAhead.class) {
+                if (executor == null) {
+                    int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+                    AtomicInteger index = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(threads, r -> {
+                        Thread t = new Thread(r, "ReadAheadThread-" + index.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    private final BTreeStorage btreeStorage;
+    private final int maxPages;
+    private volatile int windowSize;
+
+    private final AtomicLong readAheadPages = new AtomicLong();
+    private final AtomicLong readAheadBytes = new AtomicLong();
+    private final AtomicLong readAheadHits = new AtomicLong();
+
+    // 上一次调整窗口大小时的计数
+    private long lastPages;
+    private long lastHits;
+
+    BTreeReadAhead(BTreeStorage btreeStorage, int maxPages) {
+        this.btreeStorage = btreeStorage;
+        this.maxPages = maxPages < 0 ? 0 : maxPages;
+        windowSize = this.maxPages;
+    }
+
+    public boolean isEnabled() {
+        return maxPages > 0 && !btreeStorage.getMap().isInMemory();
+    }
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getReadAheadPages() {
+        return readAheadPages.get();
+    }
+
+    public long getReadAheadBytes() {
+        return readAheadBytes.get();
+    }
+
+    public long getReadAheadHits() {
+        return readAheadHits.get();
+    }
+
+    /**
+     * 预读node page中从startIndex开始(包含)到endIndex(不包含)之间的leaf page
+     *
+     * @return 实际发出预读请求的最大下标(不包含)
+     */
+    public int readAhead(Page node, int startIndex, int endIndex) {
+        if (btreeStorage.getBTreeGC().needGc()) // 内存紧张时不预读
+            return endIndex;
+        int count = node.getRawChildPageCount();
+        if (endIndex > count)
+            endIndex = count;
+        for (int i = startIndex; i < endIndex; i++) {
+            PageReference ref = node.getChildPageReference(i);
+            PageInfo pInfo = ref.getPageInfo();
+            if (pInfo.page != null || pInfo.buff != null || pInfo.pos == 0
+                    || pInfo.isDataStructureChanged() || !PageUtils.isLeafPage(pInfo.pos))
+                continue;
+            try {
+                getExecutor().execute(() -> readPage(ref, pInfo));
+            } catch (RejectedExecutionException e) {
+                return i;
+            }
+        }
+        return endIndex;
+    }
+
+    private void readPage(PageReference ref, PageInfo pInfo) {
+        if (btreeStorage.isClosed() || ref.getPageInfo() != pInfo)
+            return;
+        ByteBuffer buff;
+        try {
+            buff = btreeStorage.readPageBuffer(pInfo.pos);
+        } catch (Throwable t) {
+            // 执行Compact时chunk文件可能已经被删除了，预读失败不影响正常读取
+            return;
+        }
+        if (ref.setReadAheadBuff(pInfo, buff)) {
+            readAheadBytes.addAndGet(buff.limit());
+            if (readAheadPages.incrementAndGet() % ADJUST_INTERVAL == 0)
+                adjustWindowSize();
+        }
+    }
+
+    // 由PageReference在读取预读的page时调用
+    public void hit() {
+        readAheadHits.incrementAndGet();
+    }
+
+    // 命中率高就加大窗口，命中率低就缩小窗口
+    private synchronized void adjustWindowSize() {
+        long pages = readAheadPages.get();
+        long hits = readAheadHits.get();
+        long deltaPages = pages - lastPages;
+        long deltaHits = hits - lastHits;
+        lastPages = pages;
+        lastHits = hits;
+        if (deltaPages <= 0)
+            return;
+        double hitRate = (double) deltaHits / deltaPages;
+        int size = windowSize;
+        if (hitRate >= 0.75)
+            size = Math.min(maxPages, size * 2);
+        else if (hitRate < 0.25)
+            size = Math.max(1, size / 2);
+        windowSize = size;
+    }
+}
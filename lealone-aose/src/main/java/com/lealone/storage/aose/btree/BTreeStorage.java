@@ -7,14 +7,16 @@ package com.lealone.storage.aose.btree;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
-import com.lealone.common.compress.CompressDeflate;
-import com.lealone.common.compress.CompressLZF;
+import com.lealone.common.compress.CompressTool;
 import com.lealone.common.compress.Compressor;
 import com.lealone.common.exceptions.DbException;
 import com.lealone.common.util.DataUtils;
+import com.lealone.common.util.Utils;
 import com.lealone.db.Constants;
 import com.lealone.db.DataBuffer;
 import com.lealone.db.DbSetting;
@@ -45,16 +47,26 @@ public class BTreeStorage {
     private final int cacheSize;
     private final int minFillRate;
     private final int maxChunkSize;
+    private final int bloomFilterBitsPerKey;
 
     private final BTreeGC bgc;
+    private final BTreeReadAhead readAhead;
+    private final BTreePageCache pageCache;
+    private final AtomicLong pageCacheHits = new AtomicLong();
+    private final AtomicLong pageCacheMisses = new AtomicLong();
+
+    // 刷脏页的统计信息，只在save方法中修改
+    private volatile long saveCount;
+    private volatile long savedPages;
+    private volatile long savedBytes;
+    private volatile long lastSaveTime; // 毫秒
 
     /**
      * The compression level for new pages (0 for disabled, 1 for fast, 2 for high).
      * Even if disabled, the storage may contain (old) compressed pages.
      */
     private final int compressionLevel;
-    private Compressor compressorFast;
-    private Compressor compressorHigh;
+    private final Compressor[] compressors = new Compressor[Compressor.LZH + 1];
 
     private boolean closed;
 
@@ -75,16 +87,22 @@ public class BTreeStorage {
 
         // 32M (32 * 1024 * 1024)，到达一半时就启用GC
         cacheSize = getIntValue(DbSetting.CACHE_SIZE, Constants.DEFAULT_CACHE_SIZE * 1024 * 1024);
-        bgc = new BTreeGC(map, cacheSize);
+        bgc = new BTreeGC(this, cacheSize);
+        readAhead = new BTreeReadAhead(this, getIntValue(StorageSetting.READ_AHEAD_PAGES, 0));
+        pageCache = map.getAOStorage().getPageCache();
 
         // 默认256M
         int maxChunkSize = getIntValue(StorageSetting.MAX_CHUNK_SIZE, 256 * 1024 * 1024);
         if (maxChunkSize > Chunk.MAX_SIZE)
             maxChunkSize = Chunk.MAX_SIZE;
         this.maxChunkSize = maxChunkSize;
+        bloomFilterBitsPerKey = getIntValue(StorageSetting.BLOOM_FILTER_BITS_PER_KEY, 0);
 
-        chunkManager = new ChunkManager(this);
-        chunkCompactor = new ChunkCompactor(this, chunkManager);
+        Object mmapRead = map.getConfig(StorageSetting.MMAP_READ.name());
+        chunkManager = new ChunkManager(this,
+                mmapRead != null && Utils.toBoolean(mmapRead.toString(), false));
+        chunkCompactor = new ChunkCompactor(this, chunkManager,
+                parseSize(map.getConfig(StorageSetting.COMPACT_RATE.name()), 0));
         if (map.isInMemory()) {
             mapBaseDir = null;
             return;
@@ -98,19 +116,23 @@ public class BTreeStorage {
     }
 
     private int getIntValue(Enum<?> key, int defaultValue) {
-        Object value = map.getConfig(key.name());
-        if (value instanceof Integer) {
-            return (Integer) value;
+        return (int) parseSize(map.getConfig(key.name()), defaultValue);
+    }
+
+    // 支持k和m后缀，比如32m
+    public static long parseSize(Object value, long defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
         } else if (value != null) {
             String str = value.toString().trim().toLowerCase();
             if (str.endsWith("k")) {
                 str = str.substring(0, str.length() - 1).trim();
-                return Integer.parseInt(str) * 1024;
+                return Long.parseLong(str) * 1024;
             } else if (str.endsWith("m")) {
                 str = str.substring(0, str.length() - 1).trim();
-                return Integer.parseInt(str) * 1024 * 1024;
+                return Long.parseLong(str) * 1024 * 1024;
             } else {
-                return Integer.parseInt(str);
+                return Long.parseLong(str);
             }
         } else {
             return defaultValue;
@@ -122,15 +144,11 @@ public class BTreeStorage {
         if (value == null)
             return Compressor.NO;
         else {
-            String str = value.toString().trim().toUpperCase();
-            if (str.equals("NO"))
-                return Compressor.NO;
-            else if (str.equals("LZF"))
-                return Compressor.LZF;
-            else if (str.equals("DEFLATE"))
-                return Compressor.DEFLATE;
+            String str = value.toString().trim();
+            if (Character.isDigit(str.charAt(0))) // 不支持的算法会抛异常
+                return CompressTool.getCompressor(Integer.parseInt(str)).getAlgorithm();
             else
-                return Integer.parseInt(str);
+                return CompressTool.getCompressAlgorithm(str);
         }
     }
 
@@ -150,22 +168,22 @@ public class BTreeStorage {
         return bgc;
     }
 
-    public int getCompressionLevel() {
-        return compressionLevel;
+    public BTreeReadAhead getReadAhead() {
+        return readAhead;
     }
 
-    public Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
-        }
-        return compressorFast;
+    public int getCompressionLevel() {
+        return compressionLevel;
     }
 
-    public Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+    // 压缩只在刷脏页的线程中进行，解压时Compressor是无状态的，所以可以共用
+    public Compressor getCompressor(int algorithm) {
+        Compressor compressor = compressors[algorithm];
+        if (compressor == null) {
+            compressor = CompressTool.getCompressor(algorithm);
+            compressors[algorithm] = compressor;
         }
-        return compressorHigh;
+        return compressor;
     }
 
     public int getPageSize() {
@@ -180,6 +198,10 @@ public class BTreeStorage {
         return minFillRate;
     }
 
+    public int getBloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
     public long getDiskSpaceUsed() {
         return FileUtils.folderSize(new File(mapBaseDir));
     }
@@ -213,7 +235,65 @@ public class BTreeStorage {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1} ", pageLength, filePos);
         }
-        return c.fileStorage.readFully(filePos, pageLength);
+        if (!pageCache.isEnabled())
+            return chunkManager.readPageBuffer(c, filePos, pageLength);
+        ByteBuffer buff = pageCache.get(this, c, pos);
+        if (buff != null) {
+            pageCacheHits.incrementAndGet();
+            return buff;
+        }
+        pageCacheMisses.incrementAndGet();
+        buff = chunkManager.readPageBuffer(c, filePos, pageLength);
+        ByteBuffer cached = putPageBuffer(c, pos, buff);
+        return cached != null ? cached : buff;
+    }
+
+    // 释放PageInfo.buff前调用，如果buff还在堆中就尝试放入page缓存
+    public void cachePageBuffer(long pos, ByteBuffer buff) {
+        if (pageCache.isEnabled() && pos != 0 && buff != null && !buff.isDirect()) {
+            Chunk c = chunkManager.getChunkIfLoaded(pos);
+            if (c != null)
+                putPageBuffer(c, pos, buff);
+        }
+    }
+
+    // 放入缓存时chunk可能已经被删除了，它的page已经从缓存中清除，晚放进去的要马上删掉，
+    // 它们不会被读到，但是会一直占用内存
+    private ByteBuffer putPageBuffer(Chunk c, long pos, ByteBuffer buff) {
+        ByteBuffer cached = pageCache.put(this, c, pos, buff);
+        if (cached != null && !chunkManager.isLive(c)) {
+            pageCache.remove(this, c, Collections.singletonList(pos));
+            return null;
+        }
+        return cached;
+    }
+
+    public BTreePageCache getPageCache() {
+        return pageCache;
+    }
+
+    public long getPageCacheHits() {
+        return pageCacheHits.get();
+    }
+
+    public long getPageCacheMisses() {
+        return pageCacheMisses.get();
+    }
+
+    public long getSaveCount() {
+        return saveCount;
+    }
+
+    public long getSavedPages() {
+        return savedPages;
+    }
+
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public long getLastSaveTime() {
+        return lastSaveTime;
     }
 
     public PageInfo readPage(PageReference ref, long pos) {
@@ -245,6 +325,7 @@ public class BTreeStorage {
             return;
         bgc.close();
         chunkManager.clear();
+        pageCache.removeAll(this);
     }
 
     synchronized void remove() {
@@ -288,6 +369,7 @@ public class BTreeStorage {
             closed = true;
         } finally {
             bgc.close();
+            pageCache.removeAll(this);
         }
     }
 
@@ -308,15 +390,67 @@ public class BTreeStorage {
                     "This storage is read-only");
         }
         try {
+            long t1 = System.currentTimeMillis();
             if (compact)
                 chunkCompactor.executeCompact();
-            executeSave(appendModeEnabled, dirtyMemory);
+            executeSave(appendModeEnabled, dirtyMemory, map.getLastTransactionId());
+            lastSaveTime = System.currentTimeMillis() - t1;
+            saveCount++;
         } catch (IllegalStateException e) {
             throw panic(e);
         }
     }
 
-    private void executeSave(boolean appendModeEnabled, long dirtyMemory) {
+    /**
+     * Re-write the chunks with a low fill rate and remove the unused chunks, even if
+     * there are no unsaved changes.
+     */
+    synchronized void compact() {
+        if (closed || map.isInMemory() || map.isReadOnly())
+            return;
+        try {
+            if (!chunkCompactor.executeCompact())
+                return;
+            long t1 = System.currentTimeMillis();
+            // 根page要重写，这样子page的新位置才能保存下来
+            map.getRootPage();
+            map.getRootPageRef().markDirtyPage();
+            // 重写page不会增加新的数据，所以沿用上一个chunk的lastTransactionId，
+            // 否则它变成最后一个chunk时，恢复时验证redo log会丢弃其他map中涉及多个map的事务
+            Chunk lastChunk = chunkManager.getLastChunk();
+            long lastTransactionId = lastChunk != null ? lastChunk.getLastTransactionId() : -1;
+            executeSave(false, pageSize, lastTransactionId);
+            lastSaveTime = System.currentTimeMillis() - t1;
+            saveCount++;
+        } catch (IllegalStateException e) {
+            throw panic(e);
+        }
+    }
+
+    public long getCompactedBytes() {
+        return chunkCompactor.getRewrittenBytes();
+    }
+
+    public long getReclaimedBytes() {
+        return chunkCompactor.getReclaimedBytes();
+    }
+
+    // 写到硬盘的所有page的长度除以不包括重写的page的长度
+    public double getWriteAmplification() {
+        long bytes = savedBytes;
+        long rewrittenBytes = chunkCompactor.getRewrittenBytes();
+        if (bytes <= rewrittenBytes)
+            return 1;
+        return (double) bytes / (bytes - rewrittenBytes);
+    }
+
+    public synchronized double getSpaceAmplification() {
+        if (map.isInMemory())
+            return 1;
+        return chunkCompactor.getSpaceAmplification();
+    }
+
+    private void executeSave(boolean appendModeEnabled, long dirtyMemory, long lastTransactionId) {
         DataBuffer chunkBody = DataBuffer.createDirect((int) dirtyMemory);
         boolean appendMode = false;
         Chunk c;
@@ -352,6 +486,8 @@ public class BTreeStorage {
         c.mapSize = map.size();
         c.mapMaxKey = map.getMaxKey();
 
+        int pageCount = c.pageCount; // append模式时chunk中已经有page了
+        long pageLength = c.sumOfPageLength;
         PageInfo pInfo = map.getRootPageRef().getPageInfo();
         long pos = pInfo.page.write(pInfo, c, chunkBody, new AtomicBoolean(false));
         c.rootPagePos = pos;
@@ -359,11 +495,13 @@ public class BTreeStorage {
         // 提前清理UnusedChunks中的pages，这样在RemovedPages中不会保留它们，也不会写到最新的chunk中
         chunkCompactor.clearUnusedChunkPages();
 
-        c.setLastTransactionId(map.getLastTransactionId());
+        c.setLastTransactionId(lastTransactionId);
         c.setLastRedoLogPos(lastRedoLogPos);
         c.setLastUnusedChunk(lastUnusedChunk);
 
         c.write(chunkBody, chunkManager, appendMode);
+        savedPages += c.pageCount - pageCount;
+        savedBytes += c.sumOfPageLength - pageLength;
 
         // 最新的chunk写成功后再删除UnusedChunks，不能提前删除，因为UnusedChunks也包含被重写的chunk
         // 若最新的chunk写失败了，被重写的chunk文件也提前删除就会丢失数据
@@ -0,0 +1,210 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.db.DataBuffer;
+import com.lealone.storage.FormatVersion;
+import com.lealone.storage.fs.FileUtils;
+import com.lealone.storage.type.StorageDataType;
+
+/**
+ * 给bulk load用的外部排序。
+ *
+ * <p>
+ * 先把记录放到内存中，超过内存限制后排好序写到一个临时文件，最后对所有临时文件做多路归并。
+ * key相同时，后加入的记录排在后面，由调用者决定保留哪一条。
+ */
+class ExternalSorter<K, V> implements Iterator<Map.Entry<K, V>> {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final StorageDataType keyType;
+    private final StorageDataType valueType;
+    private final boolean keyOnly;
+    private final long maxMemory;
+    private final ArrayList<Map.Entry<K, V>> buffer = new ArrayList<>();
+    private final ArrayList<Run> runs = new ArrayList<>();
+    private long memory;
+
+    private Iterator<Map.Entry<K, V>> bufferIterator; // 没有写临时文件时直接在内存中排序
+    private PriorityQueue<Run> queue;
+
+    ExternalSorter(StorageDataType keyType, StorageDataType valueType, long maxMemory) {
+        this.keyType = keyType;
+        this.valueType = valueType;
+        this.keyOnly = keyType.isKeyOnly();
+        this.maxMemory = maxMemory;
+    }
+
+    void add(Iterator<? extends Map.Entry<K, V>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            buffer.add(e);
+            memory += keyType.getMemory(e.getKey());
+            if (!keyOnly)
+                memory += valueType.getMemory(e.getValue());
+            if (memory > maxMemory) {
+                writeRun();
+            }
+        }
+        if (runs.isEmpty()) {
+            sortBuffer();
+            bufferIterator = buffer.iterator();
+        } else {
+            if (!buffer.isEmpty())
+                writeRun();
+            queue = new PriorityQueue<>(runs.size(), (r1, r2) -> {
+                int result = keyType.compare(r1.current.getKey(), r2.current.getKey());
+                return result != 0 ? result : Integer.compare(r1.index, r2.index);
+            });
+            for (Run run : runs) {
+                if (run.next())
+                    queue.add(run);
+            }
+        }
+    }
+
+    // List.sort是稳定排序，相同的key保持加入的顺序
+    private void sortBuffer() {
+        buffer.sort((e1, e2) -> keyType.compare(e1.getKey(), e2.getKey()));
+    }
+
+    private void writeRun() {
+        sortBuffer();
+        Run run = new Run(runs.size());
+        runs.add(run);
+        run.write(buffer);
+        buffer.clear();
+        memory = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (bufferIterator != null)
+            return bufferIterator.hasNext();
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+        if (bufferIterator != null)
+            return bufferIterator.next();
+        Run run = queue.poll();
+        if (run == null)
+            throw new NoSuchElementException();
+        Map.Entry<K, V> e = run.current;
+        if (run.next())
+            queue.add(run);
+        return e;
+    }
+
+    void close() {
+        for (Run run : runs) {
+            run.close();
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    // 一个排好序的临时文件，每条记录的格式: length(int) + key + value
+    private class Run {
+
+        private final int index;
+        private String fileName;
+        private FileChannel channel;
+        private ByteBuffer readBuffer;
+        private Map.Entry<K, V> current;
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        void write(ArrayList<Map.Entry<K, V>> entries) {
+            try {
+                fileName = FileUtils.createTempFile("lealone_bulk_load", ".sort", true, true);
+                channel = FileUtils.open(fileName, "rw");
+                DataBuffer buff = DataBuffer.create(null, READ_BUFFER_SIZE, false);
+                for (Map.Entry<K, V> e : entries) {
+                    int start = buff.position();
+                    buff.putInt(0);
+                    keyType.write(buff, e.getKey(), FormatVersion.FORMAT_VERSION);
+                    if (!keyOnly)
+                        valueType.write(buff, e.getValue(), FormatVersion.FORMAT_VERSION);
+                    buff.putInt(start, buff.position() - start - 4);
+                    if (buff.position() >= READ_BUFFER_SIZE) {
+                        FileUtils.writeFully(channel, buff.getAndFlipBuffer());
+                        buff.clear();
+                    }
+                }
+                if (buff.position() > 0)
+                    FileUtils.writeFully(channel, buff.getAndFlipBuffer());
+                channel.position(0);
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                readBuffer.flip();
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, fileName);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean next() {
+            try {
+                if (!fill(4)) {
+                    current = null;
+                    return false;
+                }
+                int length = readBuffer.getInt();
+                if (!fill(length))
+                    throw DbException.getInternalError("Unexpected end of file " + fileName);
+                ByteBuffer buff = readBuffer.slice();
+                buff.limit(length);
+                readBuffer.position(readBuffer.position() + length);
+                K key = (K) keyType.read(buff, FormatVersion.FORMAT_VERSION);
+                V value = keyOnly ? (V) key : (V) valueType.read(buff, FormatVersion.FORMAT_VERSION);
+                current = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                return true;
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, fileName);
+            }
+        }
+
+        // 确保readBuffer中至少还有len个字节，返回false表示文件已经读完
+        private boolean fill(int len) throws IOException {
+            if (readBuffer.remaining() >= len)
+                return true;
+            if (readBuffer.capacity() < len) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(len);
+                newBuffer.put(readBuffer);
+                readBuffer = newBuffer;
+            } else {
+                readBuffer.compact();
+            }
+            while (readBuffer.position() < len) {
+                if (channel.read(readBuffer) < 0)
+                    break;
+            }
+            readBuffer.flip();
+            return readBuffer.remaining() >= len;
+        }
+
+        void close() {
+            FileUtils.closeQuietly(channel);
+            if (fileName != null)
+                FileUtils.tryDelete(fileName);
+        }
+    }
+}
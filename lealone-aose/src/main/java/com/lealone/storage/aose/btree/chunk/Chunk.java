@@ -338,6 +338,11 @@ public class Chunk {
         return fileStorage.size();
     }
 
+    // 所有page都在pagePositionAndLengthOffset之前
+    public long getPagesEndPos() {
+        return getFilePos(pagePositionAndLengthOffset);
+    }
+
     public void removeRedoLogAndRemovedPages(BTreeMap<?, ?> map) {
         long pos = getFilePos(removedPageOffset);
         // 只有redo log的chunk可以直接删除
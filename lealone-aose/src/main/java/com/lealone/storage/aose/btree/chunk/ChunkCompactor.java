@@ -9,10 +9,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 
 import com.lealone.storage.aose.btree.BTreeStorage;
+import com.lealone.storage.aose.btree.page.Page;
+import com.lealone.storage.aose.btree.page.PageReference;
 import com.lealone.storage.aose.btree.page.PageUtils;
 
 /**
@@ -20,6 +23,9 @@ import com.lealone.storage.aose.btree.page.PageUtils;
  * Chunks with a low number of live items are re-written.
  * <p>
  * If the current fill rate is higher than the minimum fill rate, nothing is done.
+ * <p>
+ * The number of live bytes re-written per second can be limited, chunks with the lowest
+ * fill rate are re-written first, and older chunks first if the fill rate is the same.
  */
 public class ChunkCompactor {
 
@@ -28,10 +34,33 @@ public class ChunkCompactor {
 
     private List<Chunk> unusedChunks;
     private HashSet<Long> rewritePages;
+    private HashSet<Long> rewrittenPages;
+
+    // 每秒最多重写多少字节的live page，0表示不限制，预算可以透支，透支完要等预算变回正数才能再重写
+    private final long compactRate;
+    private long compactBudget;
+    private long lastBudgetTime = System.currentTimeMillis();
+
+    // 以下是统计信息
+    private volatile long rewrittenBytes;
+    private volatile long reclaimedBytes;
 
-    public ChunkCompactor(BTreeStorage btreeStorage, ChunkManager chunkManager) {
+    public ChunkCompactor(BTreeStorage btreeStorage, ChunkManager chunkManager, long compactRate) {
         this.btreeStorage = btreeStorage;
         this.chunkManager = chunkManager;
+        this.compactRate = compactRate;
+    }
+
+    public long getCompactRate() {
+        return compactRate;
+    }
+
+    public long getRewrittenBytes() {
+        return rewrittenBytes;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
     }
 
     public boolean isUnusedChunk(Chunk c) {
@@ -42,9 +71,17 @@ public class ChunkCompactor {
         return rewritePages != null && rewritePages.contains(pos);
     }
 
+    public void pageRewritten(long pos) {
+        if (rewritePages.remove(pos)) {
+            rewrittenPages.add(pos);
+            rewrittenBytes += chunkManager.getChunk(pos).getPageLength(pos);
+        }
+    }
+
     // UnusedChunk中的page不需要继续放在RemovedPages中
     public void clearUnusedChunkPages() {
         if (unusedChunks != null) {
+            keepUnfinishedChunks();
             for (Chunk c : unusedChunks) {
                 Collection<Long> keys = c.pagePositionToLengthMap.keySet();
                 chunkManager.getRemovedPages().removeAll(keys);
@@ -56,6 +93,30 @@ public class ChunkCompactor {
         }
     }
 
+    // 如果还有page没有被重写(比如刷脏页前page的结构又变了)，它们所在的chunk还不能删除，
+    // 这样的chunk中已经重写过的page就变成被删除的page了
+    private void keepUnfinishedChunks() {
+        if (rewritePages == null || rewritePages.isEmpty())
+            return;
+        for (Iterator<Chunk> it = unusedChunks.iterator(); it.hasNext();) {
+            Chunk c = it.next();
+            boolean finished = true;
+            for (Long pos : c.pagePositionToLengthMap.keySet()) {
+                if (rewritePages.contains(pos)) {
+                    finished = false;
+                    break;
+                }
+            }
+            if (!finished) {
+                it.remove();
+                for (Long pos : c.pagePositionToLengthMap.keySet()) {
+                    if (rewrittenPages.contains(pos))
+                        chunkManager.addRemovedPage(pos);
+                }
+            }
+        }
+    }
+
     public void removeUnusedChunks() {
         if (unusedChunks != null) {
             Chunk lastChunk = chunkManager.getLastChunk();
@@ -63,16 +124,23 @@ public class ChunkCompactor {
                 if (c == lastChunk) // 保留lastChunk，可能还有RedoLog，留到下一次再删除
                     continue;
                 chunkManager.removeUnusedChunk(c);
+                reclaimedBytes += c.sumOfPageLength;
             }
             unusedChunks = null;
         }
         rewritePages = null;
+        rewrittenPages = null;
     }
 
-    public void executeCompact() {
+    /**
+     * Find the chunks that can be removed or re-written.
+     *
+     * @return true if the next save will remove or re-write some chunks
+     */
+    public boolean executeCompact() {
         HashSet<Long> removedPages = chunkManager.getAllRemovedPages();
         if (removedPages.isEmpty())
-            return;
+            return false;
 
         // 读取被删除了至少一个page的chunk的元数据
         List<Chunk> chunks = readChunks(removedPages);
@@ -87,6 +155,30 @@ public class ChunkCompactor {
 
         // 看看哪些chunk中未被删除的page占比<=MinFillRate，然后重写它们到一个新的chunk中
         prepareRewrite(chunks, removedPages);
+        return this.unusedChunks != null;
+    }
+
+    /**
+     * Get the total length of all pages divided by the total length of the live pages.
+     *
+     * @return the space amplification
+     */
+    public double getSpaceAmplification() {
+        long total = 0;
+        for (int id : chunkManager.getAllChunkIds()) {
+            total += chunkManager.getChunk(id).sumOfPageLength;
+        }
+        if (total == 0)
+            return 1;
+        long removed = 0;
+        HashSet<Long> removedPages = chunkManager.getAllRemovedPages();
+        for (Chunk c : readChunks(removedPages)) {
+            for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
+                if (removedPages.contains(e.getKey()))
+                    removed += e.getValue();
+            }
+        }
+        return total <= removed ? total : (double) total / (total - removed);
     }
 
     private List<Chunk> readChunks(HashSet<Long> removedPages) {
@@ -127,6 +219,7 @@ public class ChunkCompactor {
         else
             unusedChunks.addAll(old);
         rewritePages = new HashSet<>();
+        rewrittenPages = new HashSet<>();
         for (Chunk c : old) {
             for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
                 Long pos = e.getKey();
@@ -135,10 +228,47 @@ public class ChunkCompactor {
                 }
             }
         }
+        Page root = btreeStorage.getMap().getRootPage();
+        if (rewritePages.contains(root.getRef().getPageInfo().pos))
+            markDirty(root);
+        markParentsDirty(root);
     }
 
-    // 按chunk的FillRate从小到大排序，然后选一批chunk出来重写，并且这批chunk重写后的总长度不能超过一个chunk的容量
+    // 刷脏页时只会访问脏页的子page，所以被重写的leaf page的父节点必须是脏页，
+    // 被重写的node page直接标记为脏页，调用markDirtyPage时它们之上的node page也会被标记为脏页
+    private void markParentsDirty(Page p) {
+        if (!p.isNode())
+            return;
+        PageReference[] children = p.getChildren();
+        for (int i = 0; i < children.length; i++) {
+            PageReference ref = children[i];
+            long pos = ref.getPageInfo().pos;
+            boolean rewrite = pos != 0 && rewritePages.contains(pos);
+            if (ref.isNodePage()) {
+                Page child = p.getChildPage(i);
+                if (rewrite)
+                    markDirty(child);
+                markParentsDirty(child);
+            } else if (rewrite) {
+                markDirty(p);
+            }
+        }
+    }
+
+    // 标记为脏页的page刷脏页时会写到新的chunk中，相当于已经重写了
+    private void markDirty(Page p) {
+        long pos = p.getRef().getPageInfo().pos;
+        p.getRef().markDirtyPage();
+        if (pos != 0)
+            pageRewritten(pos);
+    }
+
+    // 按chunk的FillRate从小到大排序，FillRate相同时老的chunk优先，
+    // 然后选一批chunk出来重写，并且这批chunk重写后的总长度不能超过一个chunk的容量和压缩预算
     private List<Chunk> getRewritableChunks(List<Chunk> chunks) {
+        long maxBytesToWrite = getMaxBytesToWrite();
+        if (maxBytesToWrite <= 0)
+            return Collections.emptyList();
         int minFillRate = btreeStorage.getMinFillRate();
         List<Chunk> old = new ArrayList<>();
         for (Chunk c : chunks) {
@@ -152,20 +282,33 @@ public class ChunkCompactor {
         Collections.sort(old, (o1, o2) -> {
             long comp = o1.getFillRate() - o2.getFillRate();
             if (comp == 0) {
-                comp = o1.sumOfLivePageLength - o2.sumOfLivePageLength;
+                comp = ChunkManager.getSeq(o1.fileName) - ChunkManager.getSeq(o2.fileName);
             }
             return Long.signum(comp);
         });
 
+        List<Chunk> list = new ArrayList<>();
         long bytes = 0;
-        int index = 0;
-        int size = old.size();
-        long maxBytesToWrite = Chunk.MAX_SIZE;
-        for (; index < size; index++) {
-            bytes += old.get(index).sumOfLivePageLength;
-            if (bytes > maxBytesToWrite) // 不能超过chunk的最大容量
+        for (Chunk c : old) {
+            // 至少重写一个chunk，超出的预算下一次再补回来
+            if (!list.isEmpty() && bytes + c.sumOfLivePageLength > maxBytesToWrite)
                 break;
+            bytes += c.sumOfLivePageLength;
+            list.add(c);
         }
-        return index == size ? old : old.subList(0, index + 1);
+        if (compactRate > 0)
+            compactBudget -= bytes;
+        return list;
+    }
+
+    private long getMaxBytesToWrite() {
+        if (compactRate <= 0)
+            return Chunk.MAX_SIZE;
+        long now = System.currentTimeMillis();
+        // 最多积累一秒的预算
+        long millis = Math.min(1000, now - lastBudgetTime);
+        compactBudget = Math.min(compactRate, compactBudget + compactRate * millis / 1000);
+        lastBudgetTime = now;
+        return compactBudget;
     }
 }
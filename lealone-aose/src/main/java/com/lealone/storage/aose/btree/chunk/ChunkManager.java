@@ -7,10 +7,12 @@ package com.lealone.storage.aose.btree.chunk;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -18,15 +20,18 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import com.lealone.common.exceptions.DbException;
 import com.lealone.common.util.BitField;
 import com.lealone.common.util.DataUtils;
+import com.lealone.storage.FormatVersion;
 import com.lealone.storage.aose.AOStorage;
 import com.lealone.storage.aose.btree.BTreeStorage;
 import com.lealone.storage.aose.btree.page.PageUtils;
 import com.lealone.storage.fs.FilePath;
+import com.lealone.storage.fs.FileStorage;
 import com.lealone.storage.fs.FileUtils;
 
 public class ChunkManager {
 
     private final BTreeStorage btreeStorage;
+    private final boolean mmapRead;
     private final ConcurrentSkipListSet<Long> removedPages = new ConcurrentSkipListSet<>();
     private final ConcurrentHashMap<Integer, String> idToChunkFileNameMap = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Long, Integer> seqToIdMap = new ConcurrentHashMap<>();
@@ -35,9 +40,33 @@ public class ChunkManager {
 
     private Chunk lastChunk;
     private long maxSeq;
+    private int formatVersion = FormatVersion.FORMAT_VERSION;
 
-    public ChunkManager(BTreeStorage bTreeStorage) {
+    public ChunkManager(BTreeStorage bTreeStorage, boolean mmapRead) {
         btreeStorage = bTreeStorage;
+        this.mmapRead = mmapRead;
+    }
+
+    public boolean isMmapRead() {
+        return mmapRead;
+    }
+
+    // chunk中page的数据写完后就不会再修改了，所以除了最后一个chunk，其他chunk中的page都可以用mmap的方式读取，
+    // 如果page不在映射区域内(比如append模式下追加的page)，依然直接读文件
+    public ByteBuffer readPageBuffer(Chunk c, long filePos, int pageLength) {
+        FileStorage fileStorage = c.fileStorage;
+        if (mmapRead && c != lastChunk) {
+            ByteBuffer buff = fileStorage.readMapped(filePos, pageLength);
+            if (buff != null)
+                return buff;
+            // 只映射page所在的区域，后面的redo log可能会被truncate
+            if (fileStorage.map(c.getPagesEndPos())) {
+                buff = fileStorage.readMapped(filePos, pageLength);
+                if (buff != null)
+                    return buff;
+            }
+        }
+        return fileStorage.readFully(filePos, pageLength);
     }
 
     public void init(String mapBaseDir) {
@@ -144,6 +173,14 @@ public class ChunkManager {
                 c.fileStorage.delete();
             }
         }
+        // 还没有读过的chunk文件也要删除，否则chunk id和seq复用时会打开老的文件
+        for (Entry<Integer, String> e : idToChunkFileNameMap.entrySet()) {
+            if (!chunks.containsKey(e.getKey())) {
+                FileStorage fileStorage = btreeStorage.getFileStorage(e.getValue());
+                fileStorage.close();
+                fileStorage.delete();
+            }
+        }
         for (Integer id : idToChunkFileNameMap.keySet()) {
             chunkIds.clear(id);
         }
@@ -179,10 +216,26 @@ public class ChunkManager {
         return c;
     }
 
+    // 仅用于测试，模拟老版本写的chunk
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    // chunk被删除后，它的Chunk对象就不再是当前的了，即使chunk id被复用
+    public boolean isLive(Chunk c) {
+        return chunks.get(c.id) == c;
+    }
+
+    // 不从硬盘读，chunk不在内存中时返回null
+    public Chunk getChunkIfLoaded(long pos) {
+        return chunks.get(PageUtils.getPageChunkId(pos));
+    }
+
     public Chunk createChunk() {
         int id = chunkIds.nextClearBit(1);
         chunkIds.set(id);
         Chunk c = new Chunk(id);
+        c.formatVersion = formatVersion;
         c.fileName = createChunkFileName(id);
         // chunks.put(id, c);
         return c;
@@ -196,13 +249,15 @@ public class ChunkManager {
     }
 
     public synchronized void removeUnusedChunk(Chunk c) {
-        c.fileStorage.close();
+        c.fileStorage.close(); // 也会释放mmap映射的区域
         c.fileStorage.delete();
         chunkIds.clear(c.id);
         chunks.remove(c.id);
         idToChunkFileNameMap.remove(c.id);
         seqToIdMap.remove(getSeq(c.fileName));
         removedPages.removeAll(c.pagePositionToLengthMap.keySet());
+        // 及早释放page缓存占用的内存
+        btreeStorage.getPageCache().remove(btreeStorage, c, c.pagePositionToLengthMap.keySet());
         if (c == lastChunk)
             lastChunk = null;
     }
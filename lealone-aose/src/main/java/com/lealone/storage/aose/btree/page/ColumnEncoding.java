@@ -0,0 +1,564 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree.page;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.common.util.DataUtils;
+import com.lealone.db.DataBuffer;
+import com.lealone.db.value.CompareMode;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueBoolean;
+import com.lealone.db.value.ValueByte;
+import com.lealone.db.value.ValueDate;
+import com.lealone.db.value.ValueInt;
+import com.lealone.db.value.ValueLong;
+import com.lealone.db.value.ValueNull;
+import com.lealone.db.value.ValueShort;
+import com.lealone.db.value.ValueTime;
+import com.lealone.db.value.ValueTimestamp;
+
+/**
+ * ColumnPage中一列的编码，写page时根据这一列的值选出编码后最小的那种。
+ *
+ * <p>
+ * 第一个字节是编码方式:
+ * <ul>
+ * <li>PLAIN: 逐个写值，跟没有编码时一样</li>
+ * <li>DICTIONARY: 先写不同的值，然后每一行只写值的下标，下标按bit写，适合基数小的列</li>
+ * <li>RLE: 连续相同的值只写一次，再加上重复的次数，适合排好序或者聚集在一起的列</li>
+ * <li>PACKED: 整数、布尔、日期和时间类型转成long，
+ * 再用frame-of-reference(减去最小值)或delta(减去前一个值)编码，然后按bit写</li>
+ * </ul>
+ * 判断条件时可以直接在编码后的数据上进行，比如字典编码只需要对每个不同的值判断一次。
+ */
+public class ColumnEncoding {
+
+    public static final int PLAIN = 0;
+    public static final int DICTIONARY = 1;
+    public static final int RLE = 2;
+    public static final int PACKED = 3;
+
+    // 比较类型，跟Comparison中的值一样
+    public static final int EQUAL = 0;
+    public static final int BIGGER_EQUAL = 1;
+    public static final int BIGGER = 2;
+    public static final int SMALLER_EQUAL = 3;
+    public static final int SMALLER = 4;
+    public static final int NOT_EQUAL = 5;
+
+    private ColumnEncoding() {
+    }
+
+    /**
+     * 把一列的值编码后写到buff中，所有的值都不能是java的null，SQL的NULL用ValueNull表示。
+     *
+     * @param buff the target buffer
+     * @param values the values of the column
+     * @return the encoding
+     */
+    public static int write(DataBuffer buff, Value[] values) {
+        int rowCount = values.length;
+        int start = buff.position();
+        // 先按PLAIN写，同时得到每个值写出来的位置和长度，其他编码的大小都可以由此算出来
+        buff.put((byte) PLAIN);
+        int[] offsets = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            offsets[row] = buff.position();
+            buff.writeValue(values[row]);
+        }
+        int end = buff.position();
+        int plainSize = end - start;
+        if (rowCount == 0)
+            return PLAIN;
+
+        // 用写出来的字节来判断值是否相同，这样不会把忽略大小写时相等的字符串当成一样的
+        ByteBuffer bytes = buff.getBuffer();
+        HashMap<ByteBuffer, Integer> dict = new HashMap<>();
+        int[] ids = new int[rowCount];
+        int dictValueSize = 0;
+        int runCount = 0;
+        int rleSize = 0;
+        for (int row = 0, runStart = 0; row < rowCount; row++) {
+            ByteBuffer key = getKey(bytes, offsets, end, row);
+            int len = key.remaining();
+            Integer id = dict.get(key);
+            if (id == null) {
+                id = dict.size();
+                dict.put(key, id);
+                dictValueSize += len;
+            }
+            ids[row] = id;
+            if (row + 1 == rowCount || !key.equals(getKey(bytes, offsets, end, row + 1))) {
+                runCount++;
+                rleSize += DataUtils.getVarIntLen(row + 1 - runStart) + len;
+                runStart = row + 1;
+            }
+        }
+        int dictSize = dict.size();
+        int idBits = getBits(dictSize - 1);
+        dictSize = 1 + DataUtils.getVarIntLen(dictSize) + dictValueSize + 1
+                + getPackedLength(rowCount, idBits);
+        rleSize += 1 + DataUtils.getVarIntLen(runCount);
+
+        int type = getPackedType(values);
+        LongPacker[] packers = null;
+        int packedSize = Integer.MAX_VALUE;
+        if (type != Value.UNKNOWN) {
+            packers = getPackers(values, type);
+            if (packers != null) {
+                packedSize = 2;
+                for (LongPacker p : packers)
+                    packedSize += p.size;
+            }
+        }
+
+        int min = Math.min(Math.min(plainSize, dictSize), Math.min(rleSize, packedSize));
+        if (min == plainSize)
+            return PLAIN;
+        buff.position(start);
+        if (min == packedSize) {
+            buff.put((byte) PACKED).put((byte) type);
+            for (LongPacker p : packers)
+                p.write(buff);
+            return PACKED;
+        } else if (min == dictSize) {
+            buff.put((byte) DICTIONARY).putVarInt(dict.size());
+            for (int row = 0, next = 0; row < rowCount; row++) {
+                if (ids[row] == next) {
+                    buff.writeValue(values[row]);
+                    next++;
+                }
+            }
+            buff.put((byte) idBits);
+            BitWriter w = new BitWriter(buff);
+            for (int row = 0; row < rowCount; row++)
+                w.write(ids[row], idBits);
+            w.flush();
+            return DICTIONARY;
+        } else {
+            buff.put((byte) RLE).putVarInt(runCount);
+            for (int row = 0, runStart = 0; row < rowCount; row++) {
+                if (row + 1 == rowCount || ids[row] != ids[row + 1]) {
+                    buff.putVarInt(row + 1 - runStart).writeValue(values[row]);
+                    runStart = row + 1;
+                }
+            }
+            return RLE;
+        }
+    }
+
+    private static ByteBuffer getKey(ByteBuffer bytes, int[] offsets, int end, int row) {
+        int len = (row + 1 < offsets.length ? offsets[row + 1] : end) - offsets[row];
+        ByteBuffer key = bytes.duplicate();
+        key.limit(offsets[row] + len).position(offsets[row]);
+        return key;
+    }
+
+    /**
+     * 解码一列的值。
+     *
+     * @param buff the source buffer
+     * @param rowCount the number of rows
+     * @return the values of the column
+     */
+    public static Value[] read(ByteBuffer buff, int rowCount) {
+        Value[] values = new Value[rowCount];
+        int encoding = buff.get();
+        switch (encoding) {
+        case PLAIN:
+            for (int row = 0; row < rowCount; row++)
+                values[row] = DataBuffer.readValue(buff);
+            break;
+        case DICTIONARY: {
+            Value[] dict = readDictionary(buff);
+            BitReader r = new BitReader(buff, buff.get());
+            for (int row = 0; row < rowCount; row++)
+                values[row] = dict[(int) r.read()];
+            break;
+        }
+        case RLE: {
+            int runCount = DataUtils.readVarInt(buff);
+            for (int i = 0, row = 0; i < runCount; i++) {
+                int runLength = DataUtils.readVarInt(buff);
+                Value v = DataBuffer.readValue(buff);
+                for (int end = row + runLength; row < end; row++)
+                    values[row] = v;
+            }
+            break;
+        }
+        case PACKED: {
+            int type = buff.get();
+            long[] a = LongPacker.read(buff, rowCount);
+            long[] b = type == Value.TIMESTAMP ? LongPacker.read(buff, rowCount) : null;
+            for (int row = 0; row < rowCount; row++)
+                values[row] = toValue(type, a[row], b == null ? 0 : b[row]);
+            break;
+        }
+        default:
+            throw DbException.getInternalError("encoding: " + encoding);
+        }
+        return values;
+    }
+
+    private static Value[] readDictionary(ByteBuffer buff) {
+        int dictSize = DataUtils.readVarInt(buff);
+        Value[] dict = new Value[dictSize];
+        for (int i = 0; i < dictSize; i++)
+            dict[i] = DataBuffer.readValue(buff);
+        return dict;
+    }
+
+    /**
+     * 在编码后的数据上判断每一行的值跟指定的值比较后是否满足条件，满足的行在result中设置为true，
+     * 跟SQL一样，NULL跟任何值比较都不满足条件。
+     *
+     * @param buff the source buffer
+     * @param rowCount the number of rows
+     * @param compareType the compare type (EQUAL, BIGGER_EQUAL, ...)
+     * @param value the value to compare with
+     * @param mode the compare mode
+     * @param result the rows that match
+     */
+    public static void evaluate(ByteBuffer buff, int rowCount, int compareType, Value value,
+            CompareMode mode, BitSet result) {
+        if (value == ValueNull.INSTANCE)
+            return;
+        int encoding = buff.get(buff.position());
+        switch (encoding) {
+        case DICTIONARY: {
+            buff.get();
+            // 每个不同的值只比较一次
+            Value[] dict = readDictionary(buff);
+            boolean[] matches = new boolean[dict.length];
+            for (int i = 0; i < dict.length; i++)
+                matches[i] = test(dict[i], compareType, value, mode);
+            BitReader r = new BitReader(buff, buff.get());
+            for (int row = 0; row < rowCount; row++) {
+                if (matches[(int) r.read()])
+                    result.set(row);
+            }
+            break;
+        }
+        case RLE: {
+            buff.get();
+            int runCount = DataUtils.readVarInt(buff);
+            for (int i = 0, row = 0; i < runCount; i++) {
+                int runLength = DataUtils.readVarInt(buff);
+                if (test(DataBuffer.readValue(buff), compareType, value, mode))
+                    result.set(row, row + runLength);
+                row += runLength;
+            }
+            break;
+        }
+        case PACKED: {
+            int type = buff.get(buff.position() + 1);
+            // 同样类型的值直接比较long，不需要创建Value
+            if (type == value.getType() && type != Value.TIMESTAMP) {
+                buff.position(buff.position() + 2);
+                long v = toLong(value);
+                long[] a = LongPacker.read(buff, rowCount);
+                for (int row = 0; row < rowCount; row++) {
+                    if (test(Long.compare(a[row], v), compareType))
+                        result.set(row);
+                }
+            } else {
+                // 否则跟PLAIN一样
+                evaluate(read(buff, rowCount), compareType, value, mode, result);
+            }
+            break;
+        }
+        default:
+            evaluate(read(buff, rowCount), compareType, value, mode, result);
+            break;
+        }
+    }
+
+    /**
+     * 判断没有编码的值，用于还没有写到硬盘的page。
+     *
+     * @param values the values of the column
+     * @param compareType the compare type (EQUAL, BIGGER_EQUAL, ...)
+     * @param value the value to compare with
+     * @param mode the compare mode
+     * @param result the rows that match
+     */
+    public static void evaluate(Value[] values, int compareType, Value value, CompareMode mode,
+            BitSet result) {
+        if (value == ValueNull.INSTANCE)
+            return;
+        for (int row = 0; row < values.length; row++) {
+            if (test(values[row], compareType, value, mode))
+                result.set(row);
+        }
+    }
+
+    private static boolean test(Value v, int compareType, Value value, CompareMode mode) {
+        if (v == ValueNull.INSTANCE)
+            return false;
+        return test(v.compareTo(value, mode), compareType);
+    }
+
+    private static boolean test(int compareResult, int compareType) {
+        switch (compareType) {
+        case EQUAL:
+            return compareResult == 0;
+        case BIGGER_EQUAL:
+            return compareResult >= 0;
+        case BIGGER:
+            return compareResult > 0;
+        case SMALLER_EQUAL:
+            return compareResult <= 0;
+        case SMALLER:
+            return compareResult < 0;
+        case NOT_EQUAL:
+            return compareResult != 0;
+        default:
+            throw DbException.getInternalError("compareType: " + compareType);
+        }
+    }
+
+    // 所有的值都是同一种可以转成long的类型并且不是NULL时才能用PACKED
+    private static int getPackedType(Value[] values) {
+        int type = values.length > 0 ? values[0].getType() : Value.UNKNOWN;
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+            break;
+        default:
+            return Value.UNKNOWN;
+        }
+        for (Value v : values) {
+            if (v.getType() != type)
+                return Value.UNKNOWN;
+        }
+        return type;
+    }
+
+    private static LongPacker[] getPackers(Value[] values, int type) {
+        int rowCount = values.length;
+        long[] a = new long[rowCount];
+        for (int row = 0; row < rowCount; row++)
+            a[row] = toLong(values[row]);
+        LongPacker p = LongPacker.create(a);
+        if (p == null)
+            return null;
+        if (type != Value.TIMESTAMP)
+            return new LongPacker[] { p };
+        long[] b = new long[rowCount];
+        for (int row = 0; row < rowCount; row++)
+            b[row] = ((ValueTimestamp) values[row]).getNanos();
+        LongPacker p2 = LongPacker.create(b);
+        if (p2 == null)
+            return null;
+        return new LongPacker[] { p, p2 };
+    }
+
+    private static long toLong(Value v) {
+        switch (v.getType()) {
+        case Value.BOOLEAN:
+            return v.getBoolean() ? 1 : 0;
+        case Value.DATE:
+            return ((ValueDate) v).getDateValue();
+        case Value.TIME:
+            return ((ValueTime) v).getNanos();
+        case Value.TIMESTAMP:
+            return ((ValueTimestamp) v).getDateValue();
+        default:
+            return v.getLong();
+        }
+    }
+
+    private static Value toValue(int type, long a, long b) {
+        switch (type) {
+        case Value.BOOLEAN:
+            return ValueBoolean.get(a != 0);
+        case Value.BYTE:
+            return ValueByte.get((byte) a);
+        case Value.SHORT:
+            return ValueShort.get((short) a);
+        case Value.INT:
+            return ValueInt.get((int) a);
+        case Value.LONG:
+            return ValueLong.get(a);
+        case Value.DATE:
+            return ValueDate.fromDateValue(a);
+        case Value.TIME:
+            return ValueTime.fromNanos(a);
+        case Value.TIMESTAMP:
+            return ValueTimestamp.fromDateValueAndNanos(a, b);
+        default:
+            throw DbException.getInternalError("type: " + type);
+        }
+    }
+
+    // 表示0到x之间的无符号数需要的位数
+    private static int getBits(long x) {
+        return 64 - Long.numberOfLeadingZeros(x);
+    }
+
+    private static int getPackedLength(int count, int bits) {
+        return (int) (((long) count * bits + 7) / 8);
+    }
+
+    // 把一组long用frame-of-reference或delta编码，哪种小用哪种
+    private static class LongPacker {
+
+        private static final int FOR = 0;
+        private static final int DELTA = 1;
+        private static final int MAX_BITS = 56; // 超过56位就不编码了，读写时一个long就能放下
+
+        private final long[] values;
+        private final int mode;
+        private final long base;
+        private final long minDelta;
+        private final int bits;
+        private final int size;
+
+        private LongPacker(long[] values, int mode, long base, long minDelta, int bits) {
+            this.values = values;
+            this.mode = mode;
+            this.base = base;
+            this.minDelta = minDelta;
+            this.bits = bits;
+            if (mode == FOR)
+                size = 2 + DataUtils.getVarLongLen(base) + getPackedLength(values.length, bits);
+            else
+                size = 2 + DataUtils.getVarLongLen(base) + DataUtils.getVarLongLen(minDelta)
+                        + getPackedLength(values.length - 1, bits);
+        }
+
+        static LongPacker create(long[] values) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            boolean small = true; // 值都比较小时相减不会溢出
+            for (long v : values) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                if ((v >> 61) != 0 && (v >> 61) != -1)
+                    small = false;
+            }
+            LongPacker p = null;
+            int bits = getBits(max - min);
+            if (bits <= MAX_BITS)
+                p = new LongPacker(values, FOR, min, 0, bits);
+            if (small && values.length > 1) {
+                long minDelta = Long.MAX_VALUE;
+                long maxDelta = Long.MIN_VALUE;
+                for (int i = 1; i < values.length; i++) {
+                    long d = values[i] - values[i - 1];
+                    minDelta = Math.min(minDelta, d);
+                    maxDelta = Math.max(maxDelta, d);
+                }
+                bits = getBits(maxDelta - minDelta);
+                if (bits <= MAX_BITS) {
+                    LongPacker p2 = new LongPacker(values, DELTA, values[0], minDelta, bits);
+                    if (p == null || p2.size < p.size)
+                        p = p2;
+                }
+            }
+            return p;
+        }
+
+        void write(DataBuffer buff) {
+            buff.put((byte) mode).putVarLong(base);
+            if (mode == DELTA)
+                buff.putVarLong(minDelta);
+            buff.put((byte) bits);
+            BitWriter w = new BitWriter(buff);
+            if (mode == FOR) {
+                for (long v : values)
+                    w.write(v - base, bits);
+            } else {
+                for (int i = 1; i < values.length; i++)
+                    w.write(values[i] - values[i - 1] - minDelta, bits);
+            }
+            w.flush();
+        }
+
+        static long[] read(ByteBuffer buff, int count) {
+            int mode = buff.get();
+            long base = DataUtils.readVarLong(buff);
+            long minDelta = mode == DELTA ? DataUtils.readVarLong(buff) : 0;
+            BitReader r = new BitReader(buff, buff.get());
+            long[] values = new long[count];
+            if (mode == FOR) {
+                for (int i = 0; i < count; i++)
+                    values[i] = base + r.read();
+            } else if (count > 0) {
+                values[0] = base;
+                for (int i = 1; i < count; i++)
+                    values[i] = values[i - 1] + minDelta + r.read();
+            }
+            return values;
+        }
+    }
+
+    // 按bit从低位到高位写，每个值最多56位
+    private static class BitWriter {
+
+        private final DataBuffer buff;
+        private long bitBuff;
+        private int count;
+
+        BitWriter(DataBuffer buff) {
+            this.buff = buff;
+        }
+
+        void write(long value, int bits) {
+            if (bits == 0)
+                return;
+            bitBuff |= (value & ((1L << bits) - 1)) << count;
+            count += bits;
+            while (count >= 8) {
+                buff.put((byte) bitBuff);
+                bitBuff >>>= 8;
+                count -= 8;
+            }
+        }
+
+        void flush() {
+            if (count > 0)
+                buff.put((byte) bitBuff);
+        }
+    }
+
+    // 只读需要的字节，读完后buff刚好在编码数据的结尾
+    private static class BitReader {
+
+        private final ByteBuffer buff;
+        private final int bits;
+        private final long mask;
+        private long bitBuff;
+        private int count;
+
+        BitReader(ByteBuffer buff, int bits) {
+            this.buff = buff;
+            this.bits = bits;
+            mask = (1L << bits) - 1;
+        }
+
+        long read() {
+            while (count < bits) {
+                bitBuff |= (buff.get() & 0xffL) << count;
+                count += 8;
+            }
+            long value = bitBuff & mask;
+            bitBuff >>>= bits;
+            count -= bits;
+            return value;
+        }
+    }
+}
@@ -6,9 +6,12 @@
 package com.lealone.storage.aose.btree.page;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.lealone.db.DataBuffer;
+import com.lealone.db.value.CompareMode;
+import com.lealone.db.value.Value;
 import com.lealone.storage.aose.btree.BTreeMap;
 import com.lealone.storage.aose.btree.BTreeStorage;
 import com.lealone.storage.aose.btree.chunk.Chunk;
@@ -18,6 +21,7 @@ public class ColumnPage extends Page {
 
     private final AtomicInteger memory = new AtomicInteger(0);
     private ByteBuffer buff;
+    private boolean encoded; // 是否用ColumnEncoding编码过，老的page没有编码
 
     ColumnPage(BTreeMap<?, ?> map) {
         super(map);
@@ -35,7 +39,8 @@ public class ColumnPage extends Page {
         checkPageLength(chunkId, pageLength, expectedPageLength);
 
         readCheckValue(buff, chunkId, offset, pageLength);
-        buff.get(); // page type;
+        int type = buff.get();
+        encoded = (type & PageUtils.PAGE_COLUMN_ENCODED) != 0;
         int compressType = buff.get();
 
         // 解压完之后就结束了，因为还不知道具体的行，所以延迟对列进行反序列化
@@ -48,9 +53,17 @@ public class ColumnPage extends Page {
         int memory = 0;
         ByteBuffer buff = this.buff.slice(); // 要支持多线程同时读，所以直接用slice
         StorageDataType valueType = map.getValueType();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.readColumn(buff, values[row], columnIndex, formatVersion);
-            memory += valueType.getMemory(values[row], columnIndex);
+        if (encoded) {
+            Value[] columns = ColumnEncoding.read(buff, values.length);
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.setColumn(values[row], columnIndex, columns[row]);
+                memory += valueType.getMemory(values[row], columnIndex);
+            }
+        } else {
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.readColumn(buff, values[row], columnIndex, formatVersion);
+                memory += valueType.getMemory(values[row], columnIndex);
+            }
         }
         if (this.memory.compareAndSet(0, memory)) {
             // buff内存大小在getOrReadPage中加了，这里只加列占用的内存大小
@@ -58,6 +71,17 @@ public class ColumnPage extends Page {
         }
     }
 
+    boolean isEncoded() {
+        return encoded;
+    }
+
+    // 直接在编码后的数据上判断条件，不需要把列解析到每一行中
+    BitSet filter(int rowCount, int compareType, Value value, CompareMode mode) {
+        BitSet result = new BitSet(rowCount);
+        ColumnEncoding.evaluate(buff.slice(), rowCount, compareType, value, mode, result);
+        return result;
+    }
+
     long write(Chunk chunk, DataBuffer buff, Object[] values, int columnIndex) {
         PageInfo pInfoOld = getRef().getPageInfo();
         beforeWrite(pInfoOld);
@@ -68,13 +92,18 @@ public class ColumnPage extends Page {
         StorageDataType valueType = map.getValueType();
         int checkPos = buff.position();
         buff.putShort((short) 0);
-        buff.put((byte) type);
+        Value[] columns = getColumns(valueType, values, columnIndex);
+        buff.put((byte) (columns == null ? type : type | PageUtils.PAGE_COLUMN_ENCODED));
         int compressTypePos = buff.position();
         int compressType = 0;
         buff.put((byte) compressType); // 调用compressPage时会回填
         int compressStart = buff.position();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.writeColumn(buff, values[row], columnIndex, chunk.formatVersion);
+        if (columns != null) {
+            ColumnEncoding.write(buff, columns);
+        } else {
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.writeColumn(buff, values[row], columnIndex, chunk.formatVersion);
+            }
         }
         compressPage(buff, compressStart, compressType, compressTypePos);
         int pageLength = buff.position() - start;
@@ -84,6 +113,18 @@ public class ColumnPage extends Page {
         return updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, true, false);
     }
 
+    // 只有每一行都有这一列时才编码，否则返回null，还是逐个写
+    private static Value[] getColumns(StorageDataType valueType, Object[] values,
+            int columnIndex) {
+        Value[] columns = new Value[values.length];
+        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+            columns[row] = valueType.getColumn(values[row], columnIndex);
+            if (columns[row] == null)
+                return null;
+        }
+        return columns;
+    }
+
     // 重写ColumnPage，只需要修改CheckValue即可
     public static long rewrite(BTreeStorage bs, Chunk chunk, DataBuffer buff, long pos) {
         ByteBuffer pageBuff = bs.readPageBuffer(pos);
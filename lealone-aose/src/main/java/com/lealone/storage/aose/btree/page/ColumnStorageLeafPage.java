@@ -6,10 +6,14 @@
 package com.lealone.storage.aose.btree.page;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.lealone.common.util.DataUtils;
 import com.lealone.db.DataBuffer;
+import com.lealone.db.value.CompareMode;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueNull;
 import com.lealone.storage.aose.btree.BTreeMap;
 import com.lealone.storage.aose.btree.BTreeStorage;
 import com.lealone.storage.aose.btree.chunk.Chunk;
@@ -76,6 +80,37 @@ public abstract class ColumnStorageLeafPage extends LeafPage {
             page.readColumn(getValues(), columnIndex, formatVersionForRead);
     }
 
+    /**
+     * Find the rows whose column value matches the condition. Encoded column pages are
+     * evaluated without reading the column into the rows.
+     *
+     * @param columnIndex the column index
+     * @param compareType the compare type (ColumnEncoding.EQUAL, ...)
+     * @param value the value to compare with
+     * @param mode the compare mode
+     * @return the indexes of the matched rows
+     */
+    public BitSet filter(int columnIndex, int compareType, Value value, CompareMode mode) {
+        if (columnPages != null && columnIndex >= 0 && columnIndex < columnPages.length) {
+            ColumnPage page = (ColumnPage) columnPages[columnIndex].getOrReadPage();
+            if (page.isEncoded())
+                return page.filter(getKeyCount(), compareType, value, mode);
+        }
+        // 还没有写到硬盘的page或者没有编码的老page，用行中的值判断
+        if (columnPages != null)
+            readColumnPage(columnIndex);
+        Object[] values = getValues();
+        StorageDataType valueType = map.getValueType();
+        Value[] columns = new Value[values.length];
+        for (int row = 0; row < values.length; row++) {
+            Value v = valueType.getColumn(values[row], columnIndex);
+            columns[row] = v == null ? ValueNull.INSTANCE : v;
+        }
+        BitSet result = new BitSet(values.length);
+        ColumnEncoding.evaluate(columns, compareType, value, mode, result);
+        return result;
+    }
+
     void markAllColumnPagesDirty() {
         if (columnPages != null) {
             if (!isAllColumnPagesRead) {
@@ -186,7 +221,10 @@ public abstract class ColumnStorageLeafPage extends LeafPage {
         }
         writeColumnPagePositions(buff, columnPageStartPos, columnCount, posArray);
 
-        return updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, true, isLockedPage);
+        long pos = updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, true,
+                isLockedPage);
+        createKeyFilter(keys, pos);
+        return pos;
     }
 
     private static void writeColumnPagePositions(DataBuffer buff, int columnPageStartPos,
@@ -44,6 +44,7 @@ public class KeyColumnsPage extends ColumnStorageLeafPage {
     @Override
     public LeafPage split(int at) { // 小于split key的放在左边，大于等于split key放在右边
         int a = at, b = keys.length - a;
+        long[] longKeys = getCachedLongKeys();
         Object[] bKeys = splitKeys(a, b);
 
         Object[][] array = split(values, a, b);
@@ -51,6 +52,7 @@ public class KeyColumnsPage extends ColumnStorageLeafPage {
         Object[] bValues = array[1];
 
         LeafPage newPage = create(map, bKeys, bValues, 0, getPageType());
+        splitLongKeys(longKeys, newPage, a, a);
         recalculateMemory();
         return newPage;
     }
@@ -60,6 +62,11 @@ public class KeyColumnsPage extends ColumnStorageLeafPage {
         return copyAndInsertLeaf(index, key, value, values);
     }
 
+    @Override
+    public Page copyAndInsertLeaf(int[] indexes, Object[] newKeys, Object[] newValues, int count) {
+        return copyAndInsertLeaf(indexes, newKeys, newValues, count, values);
+    }
+
     @Override
     public void remove(int index) {
         removeKey(index);
@@ -63,6 +63,8 @@ public class KeyPage extends RowStorageLeafPage {
 
     @Override
     public Object getSplitKey(int index) {
+        if (index > 0)
+            return map.getKeyType().getSplitKey(getKey(index - 1), getKey(index));
         return map.getKeyType().getSplitKey(getKey(index));
     }
 }
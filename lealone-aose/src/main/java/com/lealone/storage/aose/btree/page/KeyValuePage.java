@@ -45,6 +45,7 @@ public class KeyValuePage extends RowStorageLeafPage {
     @Override
     public LeafPage split(int at) { // 小于split key的放在左边，大于等于split key放在右边
         int a = at, b = keys.length - a;
+        long[] longKeys = getCachedLongKeys();
         Object[] bKeys = splitKeys(a, b);
 
         Object[][] array = split(values, a, b);
@@ -52,6 +53,7 @@ public class KeyValuePage extends RowStorageLeafPage {
         Object[] bValues = array[1];
 
         LeafPage newPage = create(map, bKeys, bValues, 0, getPageType());
+        splitLongKeys(longKeys, newPage, a, a);
         recalculateMemory();
         return newPage;
     }
@@ -61,6 +63,11 @@ public class KeyValuePage extends RowStorageLeafPage {
         return copyAndInsertLeaf(index, key, value, values);
     }
 
+    @Override
+    public Page copyAndInsertLeaf(int[] indexes, Object[] newKeys, Object[] newValues, int count) {
+        return copyAndInsertLeaf(indexes, newKeys, newValues, count, values);
+    }
+
     @Override
     public void remove(int index) {
         removeKey(index);
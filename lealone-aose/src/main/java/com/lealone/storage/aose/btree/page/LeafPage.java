@@ -66,9 +66,18 @@ public abstract class LeafPage extends LocalPage {
         return newValues;
     }
 
+    // 只为写到硬盘的key创建过滤器，父节点写page时会把过滤器跟leaf page的pos一起写出去
+    protected void createKeyFilter(Object[] keys, long pos) {
+        int bitsPerKey = map.getBTreeStorage().getBloomFilterBitsPerKey();
+        if (bitsPerKey > 0)
+            getRef().setKeyFilter(PageKeyFilter.create(keys, pos, bitsPerKey));
+    }
+
     @Override
     public LeafPage split(int at) { // 小于split key的放在左边，大于等于split key放在右边
+        long[] longKeys = getCachedLongKeys();
         LeafPage newPage = create(map, splitKeys(at), 0, getPageType());
+        splitLongKeys(longKeys, newPage, at, at);
         recalculateMemory();
         return newPage;
     }
@@ -99,8 +108,9 @@ public abstract class LeafPage extends LocalPage {
         DataUtils.copyWithGap(keys, newKeys, len - 1, index);
         newKeys[index] = value; // 只有keys没有values的page只存放value
         LeafPage p = copyLeaf(newKeys, null);
+        insertLongKey(p, index, value);
         StorageDataType valueType = map.getValueType();
-        p.addMemory(valueType.getMemory(value));
+        p.addMemory(valueType.getMemory(value) + getLongKeyMemory(1));
         map.incrementSize();// 累加全局计数器
         setPageListener(valueType, value);
         return p;
@@ -115,13 +125,68 @@ public abstract class LeafPage extends LocalPage {
         newKeys[index] = key;
         newValues[index] = value;
         LeafPage p = copyLeaf(newKeys, newValues);
+        insertLongKey(p, index, key);
         StorageDataType valueType = map.getValueType();
-        p.addMemory(map.getKeyType().getMemory(key) + valueType.getMemory(value));
+        p.addMemory(map.getKeyType().getMemory(key) + valueType.getMemory(value)
+                + getLongKeyMemory(1));
         map.incrementSize();// 累加全局计数器
         setPageListener(valueType, value);
         return p;
     }
 
+    @Override
+    public Page copyAndInsertLeaf(int[] indexes, Object[] newKeys, Object[] newValues, int count) {
+        return copyAndInsertLeaf(indexes, newKeys, newValues, count, null);
+    }
+
+    // 多个key一起插入，只copy一次，values为null时keys中只存放value
+    protected Page copyAndInsertLeaf(int[] indexes, Object[] newKeys, Object[] newValues, int count,
+            Object[] values) {
+        int len = keys.length + count;
+        Object[] keys2 = new Object[len];
+        Object[] values2 = values == null ? null : new Object[len];
+        StorageDataType keyType = map.getKeyType();
+        StorageDataType valueType = map.getValueType();
+        long[] longKeys = getCachedLongKeys();
+        long[] longKeys2 = longKeys == null ? null : new long[len];
+        int memory = getLongKeyMemory(count);
+        int from = 0;
+        for (int i = 0; i < count; i++) {
+            int n = indexes[i] - from;
+            System.arraycopy(keys, from, keys2, from + i, n);
+            if (longKeys != null) {
+                System.arraycopy(longKeys, from, longKeys2, from + i, n);
+                // values为null时keys中存放的是value
+                longKeys2[indexes[i] + i] = keyType
+                        .getLongKey(values != null ? newKeys[i] : newValues[i]);
+            }
+            if (values != null) {
+                System.arraycopy(values, from, values2, from + i, n);
+                keys2[indexes[i] + i] = newKeys[i];
+                values2[indexes[i] + i] = newValues[i];
+                memory += keyType.getMemory(newKeys[i]);
+            } else {
+                keys2[indexes[i] + i] = newValues[i];
+            }
+            memory += valueType.getMemory(newValues[i]);
+            from = indexes[i];
+        }
+        System.arraycopy(keys, from, keys2, from + count, keys.length - from);
+        if (values != null)
+            System.arraycopy(values, from, values2, from + count, keys.length - from);
+        LeafPage p = copyLeaf(keys2, values2);
+        if (longKeys != null) {
+            System.arraycopy(longKeys, from, longKeys2, from + count, keys.length - from);
+            p.setLongKeys(longKeys2);
+        }
+        p.addMemory(memory);
+        for (int i = 0; i < count; i++) {
+            map.incrementSize(); // 累加全局计数器
+            setPageListener(valueType, newValues[i]);
+        }
+        return p;
+    }
+
     protected void setPageListener(StorageDataType type, Object value) {
         if (type.isLockable()) {
             Lockable lockable = (Lockable) value;
@@ -173,22 +238,24 @@ public abstract class LeafPage extends LocalPage {
         return newPage;
     }
 
-    public static LeafPage createEmpty(BTreeMap<?, ?> map, boolean addToUsedMemory) {
-        int pageType;
+    static int getPageType(BTreeMap<?, ?> map) {
         if (map.getKeyType().isKeyOnly()) {
-            pageType = 0;
+            return 0;
         } else if (map.getValueType().isRowOnly()) {
             if (map.getPageStorageMode() == PageStorageMode.ROW_STORAGE)
-                pageType = 1;
+                return 1;
             else
-                pageType = 2;
+                return 2;
         } else {
             if (map.getPageStorageMode() == PageStorageMode.ROW_STORAGE)
-                pageType = 3;
+                return 3;
             else
-                pageType = 4;
+                return 4;
         }
-        LeafPage p = create(map, pageType);
+    }
+
+    public static LeafPage createEmpty(BTreeMap<?, ?> map, boolean addToUsedMemory) {
+        LeafPage p = create(map, getPageType(map));
         int memory = p.getEmptyPageMemory();
         if (addToUsedMemory)
             map.getBTreeStorage().getBTreeGC().addUsedMemory(memory);
@@ -5,6 +5,8 @@
  */
 package com.lealone.storage.aose.btree.page;
 
+import java.util.Arrays;
+
 import com.lealone.common.util.DataUtils;
 import com.lealone.storage.aose.btree.BTreeMap;
 import com.lealone.storage.type.StorageDataType;
@@ -28,6 +30,15 @@ public abstract class LocalPage extends Page {
      */
     protected Object[] keys;
 
+    /**
+     * The keys as primitive longs, only used if the key type is a long key type.
+     * <p>
+     * It is created lazily and is invalid once the keys array is replaced.
+     * Pages created by copy-on-write, remove and split copy the array of the
+     * old page instead of converting all keys again.
+     */
+    private LongKeys longKeys;
+
     protected LocalPage(BTreeMap<?, ?> map) {
         super(map);
     }
@@ -55,6 +66,9 @@ public abstract class LocalPage extends Page {
      */
     @Override
     public int binarySearch(Object key) {
+        StorageDataType keyType = map.getKeyType();
+        if (keyType.isLongKey())
+            return binarySearch(keyType.getLongKey(key), getLongKeys(keyType));
         int low = 0, high = keys.length - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -64,7 +78,6 @@ public abstract class LocalPage extends Page {
             x = high >>> 1;
         }
         Object[] k = keys;
-        StorageDataType keyType = map.getKeyType();
         while (low <= high) {
             int compare = keyType.compare(key, k[x]);
             if (compare > 0) {
@@ -81,6 +94,89 @@ public abstract class LocalPage extends Page {
         return -(low + 1);
     }
 
+    // 跟上面的一样，只是直接比较long，不需要调用keyType.compare
+    private int binarySearch(long key, long[] k) {
+        int low = 0, high = k.length - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = high >>> 1;
+        }
+        while (low <= high) {
+            long v = k[x];
+            if (key > v) {
+                low = x + 1;
+            } else if (key < v) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
+    private long[] getLongKeys(StorageDataType keyType) {
+        // keys数组是copy-on-write的，只要还是同一个数组，里面的key就不会变
+        LongKeys lk = longKeys;
+        Object[] k = keys;
+        if (lk == null || lk.source != k) {
+            long[] a = new long[k.length];
+            for (int i = 0; i < a.length; i++)
+                a[i] = keyType.getLongKey(k[i]);
+            lk = new LongKeys(k, a);
+            longKeys = lk; // 多个线程并发创建也没关系，LongKeys的字段都是final的
+        }
+        return lk.keys;
+    }
+
+    // 还没有创建或者keys数组已经换了时返回null
+    protected long[] getCachedLongKeys() {
+        LongKeys lk = longKeys;
+        return lk != null && lk.source == keys ? lk.keys : null;
+    }
+
+    // 必须跟当前的keys数组一一对应
+    protected void setLongKeys(long[] a) {
+        longKeys = new LongKeys(keys, a);
+    }
+
+    // 在新page的index处插入一个key，其他的long key直接复制
+    protected void insertLongKey(LocalPage newPage, int index, Object key) {
+        long[] a = getCachedLongKeys();
+        if (a != null) {
+            long[] b = new long[a.length + 1];
+            DataUtils.copyWithGap(a, b, a.length, index);
+            b[index] = map.getKeyType().getLongKey(key);
+            newPage.setLongKeys(b);
+        }
+    }
+
+    // 分裂后两个page各自复制自己那一段，a是分裂前的long key
+    protected void splitLongKeys(long[] a, LocalPage newPage, int aLength, int bStart) {
+        if (a != null) {
+            setLongKeys(Arrays.copyOf(a, aLength));
+            newPage.setLongKeys(Arrays.copyOfRange(a, bStart, a.length));
+        }
+    }
+
+    // 不管long[]有没有创建都按已经创建来算，这样page的内存不会因为查找而变化
+    protected int getLongKeyMemory(int keyCount) {
+        return map.getKeyType().isLongKey() ? keyCount * 8 : 0;
+    }
+
+    private static class LongKeys {
+
+        final Object[] source;
+        final long[] keys;
+
+        LongKeys(Object[] source, long[] keys) {
+            this.source = source;
+            this.keys = keys;
+        }
+    }
+
     @Override
     public boolean needSplit() {
         return memory > map.getBTreeStorage().getPageSize() && keys.length > 1;
@@ -90,10 +186,16 @@ public abstract class LocalPage extends Page {
         int keyLength = keys.length;
         int keyIndex = index >= keyLength ? index - 1 : index;
         Object old = keys[keyIndex];
-        addMemory(-getKeyMemory(old));
+        addMemory(-getKeyMemory(old) - getLongKeyMemory(1));
+        long[] a = getCachedLongKeys();
         Object[] newKeys = new Object[keyLength - 1];
         DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
         keys = newKeys;
+        if (a != null) {
+            long[] b = new long[keyLength - 1];
+            DataUtils.copyExcept(a, b, keyLength, keyIndex);
+            setLongKeys(b);
+        }
     }
 
     protected int getKeyMemory(Object old) {
@@ -116,7 +218,7 @@ public abstract class LocalPage extends Page {
             // mem += 4; // 数组元素占4个字节
             mem += keyType.getMemory(keys[i]);
         }
-        return mem;
+        return mem + getLongKeyMemory(keys.length);
     }
 
     @Override
@@ -137,6 +239,7 @@ public abstract class LocalPage extends Page {
 
     protected void copy(LocalPage newPage) {
         newPage.cachedCompare = cachedCompare;
+        newPage.longKeys = longKeys; // keys数组一样时可以共用
         newPage.setRef(getRef());
     }
 
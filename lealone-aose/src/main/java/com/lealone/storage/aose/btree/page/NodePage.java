@@ -10,6 +10,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.lealone.common.util.DataUtils;
 import com.lealone.db.DataBuffer;
+import com.lealone.storage.FormatVersion;
 import com.lealone.storage.aose.btree.BTreeGC;
 import com.lealone.storage.aose.btree.BTreeMap;
 import com.lealone.storage.aose.btree.BTreeStorage;
@@ -21,6 +22,11 @@ public class NodePage extends LocalPage {
     // 内存占用40+48+56=144字节
     public static final int PAGE_MEMORY = 144;
 
+    // 子page的类型，写在子page的pos之后
+    private static final int CHILD_LEAF = 0;
+    private static final int CHILD_NODE = 1;
+    private static final int CHILD_LEAF_WITH_KEY_FILTER = 2;
+
     // 对子page的引用，数组长度比keys的长度多一个
     private PageReference[] children;
 
@@ -64,6 +70,7 @@ public class NodePage extends LocalPage {
     @Override
     public NodePage split(int at) { // at对应的key只放在父节点中
         int a = at, b = keys.length - a;
+        long[] longKeys = getCachedLongKeys();
         Object[] aKeys = new Object[a];
         Object[] bKeys = new Object[b - 1];
         System.arraycopy(keys, 0, aKeys, 0, a);
@@ -78,6 +85,7 @@ public class NodePage extends LocalPage {
         children = aChildren;
 
         NodePage newPage = create(map, bKeys, bChildren, 0);
+        splitLongKeys(longKeys, newPage, a, a + 1);
         recalculateMemory();
         return newPage;
     }
@@ -89,7 +97,8 @@ public class NodePage extends LocalPage {
         BTreeGC bgc = map.getBTreeStorage().getBTreeGC();
         bgc.addUsedMemory(-children[index].getPageInfo().getTotalMemory());
         // key + node
-        int mem = map.getKeyType().getMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD;
+        int mem = map.getKeyType().getMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD
+                + getLongKeyMemory(1);
         bgc.addUsedMemory(mem);
         bgc.addUsedMemory(tmpNodePage.left.getPageInfo().getTotalMemory());
         bgc.addUsedMemory(tmpNodePage.right.getPageInfo().getTotalMemory());
@@ -106,6 +115,7 @@ public class NodePage extends LocalPage {
         tmpNodePage.left.setParentRef(getRef());
         tmpNodePage.right.setParentRef(getRef());
         NodePage p = copy(newKeys, newChildren);
+        insertLongKey(p, index, tmpNodePage.key);
         p.addMemory(mem, false);
         return p;
     }
@@ -141,10 +151,12 @@ public class NodePage extends LocalPage {
         }
         for (int i = 0; i <= keyLength; i++) {
             int pageType = buff.get();
-            if (pageType == 0)
+            if (pageType != CHILD_NODE)
                 buff.getInt(); // replicationHostIds
             children[i] = new PageReference(map.getBTreeStorage(), p[i]);
             children[i].setParentRef(getRef());
+            if (pageType == CHILD_LEAF_WITH_KEY_FILTER)
+                children[i].setKeyFilter(PageKeyFilter.read(buff, p[i]));
         }
         buff = expandPage(buff, type, start, pageLength);
 
@@ -157,6 +169,12 @@ public class NodePage extends LocalPage {
     @Override
     public long write(PageInfo pInfoOld, Chunk chunk, DataBuffer buff, AtomicBoolean isLocked) {
         beforeWrite(pInfoOld);
+        // 先写子page，这样就能知道子page的pos，leaf page的过滤器也要跟pos一起写到当前page
+        AtomicBoolean isChildrenLocked = new AtomicBoolean(false);
+        long[] positions = writeChildren(chunk, buff, isChildrenLocked);
+        if (isChildrenLocked.get())
+            isLocked.set(true);
+
         int start = buff.position();
         int keyLength = keys.length;
         buff.putInt(0);
@@ -165,13 +183,22 @@ public class NodePage extends LocalPage {
         int typePos = buff.position();
         int type = PageUtils.PAGE_TYPE_NODE;
         buff.put((byte) type);
-        writeChildrenPositions(buff, null);
+        writeChildrenPositions(buff, positions);
         for (int i = 0; i <= keyLength; i++) {
             if (children[i].isLeafPage()) {
-                buff.put((byte) 0);
-                buff.putInt(0); // replicationHostIds
+                PageKeyFilter filter = children[i].getKeyFilter();
+                // 老格式的chunk不能写过滤器，否则老版本读不了
+                if (filter != null && filter.getPos() == positions[i]
+                        && FormatVersion.isKeyFilterFormatVersion(chunk.formatVersion)) {
+                    buff.put((byte) CHILD_LEAF_WITH_KEY_FILTER);
+                    buff.putInt(0); // replicationHostIds
+                    filter.write(buff);
+                } else {
+                    buff.put((byte) CHILD_LEAF);
+                    buff.putInt(0); // replicationHostIds
+                }
             } else {
-                buff.put((byte) 1);
+                buff.put((byte) CHILD_NODE);
             }
         }
         int compressStart = buff.position();
@@ -184,16 +211,11 @@ public class NodePage extends LocalPage {
 
         writeCheckValue(buff, chunk, start, pageLength, checkPos);
         long pos = updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, false, false);
-        int patch = typePos + 1;
-        AtomicBoolean isChildrenLocked = new AtomicBoolean(false);
-        writeChildren(chunk, buff, patch, isChildrenLocked);
-        if (isChildrenLocked.get())
-            isLocked.set(true);
         getRef().updatePage(pos, pInfoOld, isLocked.get());
         return pos;
     }
 
-    private void writeChildren(Chunk chunk, DataBuffer buff, int patch, AtomicBoolean isLocked) {
+    private long[] writeChildren(Chunk chunk, DataBuffer buff, AtomicBoolean isLocked) {
         BTreeStorage bs = map.getBTreeStorage();
         long[] positions = new long[children.length];
         for (int i = 0, len = children.length; i < len; i++) {
@@ -206,41 +228,48 @@ public class NodePage extends LocalPage {
                 // 看看是否是需要重写的page
                 if (bs.getChunkCompactor().isRewritePage(pInfo.pos)) {
                     long pos;
-                    if (PageUtils.isLeafPage(pInfo.pos)) {
+                    if (PageUtils.isLeafPage(pInfo.pos) && isSameFormatVersion(bs, chunk, pInfo.pos)) {
                         int start = buff.position();
                         // 如果是leaf page直接写原始数据，不需要把记录反序列化后读到内存
                         pos = LeafPage.rewrite(bs, chunk, buff, pInfo.pos);
                         ByteBuffer newPageBuff = null;
                         if (p == null)
                             newPageBuff = buff.getBuffer(start, buff.position()).getBuffer();
+                        // key没有变，过滤器也不用重建
+                        PageKeyFilter filter = children[i].getKeyFilter();
+                        if (filter != null && filter.getPos() == pInfo.pos)
+                            children[i].setKeyFilter(filter.copy(pos));
                         // 替换掉旧的pos并指向新的PageBuff，如果此时有读取操作就直接读新的PageBuff
                         children[i].updatePage(pos, pInfo, false, newPageBuff);
                     } else {
+                        // node page和老格式的leaf page要读出来按新chunk的格式重新写
                         bs.readPage(children[i], pInfo.pos);
                         children[i].markDirtyPage();
-                        pos = children[i].getPage().write(pInfo, chunk, buff, isLocked);
+                        Page child = children[i].getPage();
+                        if (child instanceof ColumnStorageLeafPage)
+                            ((ColumnStorageLeafPage) child).markAllColumnPagesDirty();
+                        pos = child.write(pInfo, chunk, buff, isLocked);
                     }
+                    bs.getChunkCompactor().pageRewritten(pInfo.pos);
                     positions[i] = pos;
                 } else {
                     positions[i] = pInfo.pos;
                 }
             }
         }
-        int old = buff.position();
-        buff.position(patch);
-        writeChildrenPositions(buff, positions);
-        buff.position(old);
+        return positions;
+    }
+
+    // key和value的编码方式跟page所在chunk的格式版本有关，版本一样时才能直接复制原始数据
+    private static boolean isSameFormatVersion(BTreeStorage bs, Chunk chunk, long pos) {
+        int formatVersion = bs.getChunkManager().getChunk(pos).formatVersion;
+        return FormatVersion.getKeyValueFormatVersion(formatVersion) == FormatVersion
+                .getKeyValueFormatVersion(chunk.formatVersion);
     }
 
     private void writeChildrenPositions(DataBuffer buff, long[] positions) {
-        if (positions == null) {
-            for (int i = 0, len = keys.length; i <= len; i++) {
-                buff.putLong(0);
-            }
-        } else {
-            for (int i = 0, len = keys.length; i <= len; i++) {
-                buff.putLong(positions[i]); // pos通常是个很大的long，所以不值得用VarLong
-            }
+        for (int i = 0, len = keys.length; i <= len; i++) {
+            buff.putLong(positions[i]); // pos通常是个很大的long，所以不值得用VarLong
         }
     }
 
@@ -253,6 +282,11 @@ public class NodePage extends LocalPage {
     protected void recalculateMemory() {
         int mem = recalculateKeysMemory();
         mem += this.getRawChildPageCount() * PageUtils.PAGE_MEMORY_CHILD;
+        for (PageReference ref : children) {
+            PageKeyFilter filter = ref.getKeyFilter();
+            if (filter != null)
+                mem += filter.getMemory();
+        }
         addMemory(mem - memory, false);
     }
 
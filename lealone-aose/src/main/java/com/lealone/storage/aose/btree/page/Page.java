@@ -206,6 +206,19 @@ public class Page {
         throw ie();
     }
 
+    /**
+     * Copy the leaf page and insert count new keys at one time.
+     *
+     * @param indexes the insertion points in the current page, in ascending order
+     * @param newKeys the new keys
+     * @param newValues the new values
+     * @param count the number of the new keys
+     * @return the new page
+     */
+    public Page copyAndInsertLeaf(int[] indexes, Object[] newKeys, Object[] newValues, int count) {
+        throw ie();
+    }
+
     /**
      * Remove the key and value (or child) at the given index.
      * 
@@ -279,6 +292,18 @@ public class Page {
         return p;
     }
 
+    // 跟gotoLeafPage一样，但是如果leaf page的过滤器能确定key不存在就返回null，不用从硬盘读leaf page
+    public Page findLeafPage(Object key) {
+        Page p = this;
+        while (p.isNode()) {
+            int index = p.getPageIndex(key);
+            if (!p.getChildPageReference(index).mayContain(key))
+                return null;
+            p = p.getChildPage(index);
+        }
+        return p;
+    }
+
     static void readCheckValue(ByteBuffer buff, int chunkId, int offset, int pageLength) {
         short check = buff.getShort();
         int checkTest = DataUtils.getCheckValue(chunkId) ^ DataUtils.getCheckValue(offset)
@@ -311,15 +336,9 @@ public class Page {
             BTreeStorage storage = map.getBTreeStorage();
             int compressionLevel = storage.getCompressionLevel();
             if (compressionLevel > 0) {
-                Compressor compressor;
-                int compressType;
-                if (compressionLevel == 1) {
-                    compressor = storage.getCompressorFast();
-                    compressType = PageUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = storage.getCompressorHigh();
-                    compressType = PageUtils.PAGE_COMPRESSED_HIGH;
-                }
+                Compressor compressor = storage.getCompressor(compressionLevel);
+                // 压缩算法记录在page的type中，这样修改COMPRESS参数后老的chunk依然能读
+                int compressType = PageUtils.getCompressType(compressionLevel);
                 byte[] exp = new byte[expLen];
                 buff.position(compressStart).get(exp);
                 byte[] comp = new byte[expLen * 2];
@@ -334,14 +353,9 @@ public class Page {
     }
 
     ByteBuffer expandPage(ByteBuffer buff, int type, int start, int pageLength) {
-        boolean compressed = (type & PageUtils.PAGE_COMPRESSED) != 0;
-        if (compressed) {
-            Compressor compressor;
-            if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = map.getBTreeStorage().getCompressorHigh();
-            } else {
-                compressor = map.getBTreeStorage().getCompressorFast();
-            }
+        int algorithm = PageUtils.getCompressAlgorithm(type);
+        if (algorithm != Compressor.NO) {
+            Compressor compressor = map.getBTreeStorage().getCompressor(algorithm);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
             byte[] comp = DataUtils.newBytes(compLen);
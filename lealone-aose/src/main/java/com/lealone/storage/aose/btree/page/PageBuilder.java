@@ -0,0 +1,234 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree.page;
+
+import java.util.ArrayList;
+
+import com.lealone.common.util.DataUtils;
+import com.lealone.storage.aose.btree.BTreeGC;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.BTreeStorage;
+import com.lealone.storage.type.StorageDataType;
+
+/**
+ * 给bulk load用的，按key的顺序自底向上构建btree，不走PageOperations，也不需要切割page。
+ *
+ * <p>
+ * leaf page写满了就生成一个新的，再把它加到上一层的node page中，node page写满了也按同样的方式往上加。
+ * 未保存的page占用的内存超过限制时，会把当前已经构建好的部分作为root page保存到硬盘，
+ * 保存后的leaf page就可以被GC回收了，所以导入大量记录时内存占用是有上限的。
+ */
+public class PageBuilder {
+
+    private final BTreeMap<?, ?> map;
+    private final BTreeStorage bs;
+    private final BTreeGC bgc;
+    private final StorageDataType keyType;
+    private final StorageDataType valueType;
+    private final int pageType;
+    private final int pageSize;
+    private final long maxUnsavedMemory;
+
+    // 当前leaf page，pageType小于3时keys中放的是value
+    private final ArrayList<Object> keys = new ArrayList<>();
+    private final ArrayList<Object> values = new ArrayList<>();
+    private int leafMemory;
+    private Object leafSplitKey; // 当前leaf page跟它左边的page之间的分割key
+    private Object lastKey;
+    private Object[] lastLeafValues;
+
+    private final ArrayList<Level> levels = new ArrayList<>();
+    private final ArrayList<PageReference> spineRefs = new ArrayList<>(); // 上次保存时临时生成的node page
+    private long unsavedMemory;
+
+    // 每一层只有最右边的node page还没有写满
+    private static class Level {
+        final ArrayList<Object> keys = new ArrayList<>();
+        final ArrayList<PageReference> children = new ArrayList<>();
+        int memory;
+        Object splitKey; // 当前node page跟它左边的page之间的分割key
+    }
+
+    public PageBuilder(BTreeMap<?, ?> map) {
+        this.map = map;
+        bs = map.getBTreeStorage();
+        bgc = bs.getBTreeGC();
+        keyType = map.getKeyType();
+        valueType = map.getValueType();
+        pageType = LeafPage.getPageType(map);
+        pageSize = bs.getPageSize();
+        maxUnsavedMemory = map.isInMemory() ? Long.MAX_VALUE : Math.max(pageSize, bs.getCacheSize() / 2);
+    }
+
+    public void add(Object key, Object value) {
+        if (lastKey != null) {
+            int result = keyType.compare(lastKey, key);
+            if (result > 0) {
+                throw DataUtils.newIllegalArgumentException("The keys are not sorted: {0} > {1}",
+                        lastKey, key);
+            } else if (result == 0) { // 相同的key只保留最后一条
+                int index = keys.size() - 1;
+                leafMemory += getMemory(key, value) - getMemory(keys.get(index), values.get(index));
+                keys.set(index, pageType < 3 ? value : key);
+                values.set(index, value);
+                lastKey = key;
+                return;
+            }
+        }
+        int memory = getMemory(key, value);
+        if (!keys.isEmpty() && leafMemory + memory > pageSize) {
+            Object splitKey = keyType.getSplitKey(lastKey, key);
+            addLeafPage();
+            leafSplitKey = splitKey;
+            if (unsavedMemory > maxUnsavedMemory)
+                save();
+        }
+        keys.add(pageType < 3 ? value : key);
+        values.add(value);
+        leafMemory += memory;
+        lastKey = key;
+        map.incrementSize();
+    }
+
+    private int getMemory(Object key, Object value) {
+        switch (pageType) {
+        case 0:
+            return keyType.getMemory(key);
+        case 1:
+        case 2:
+            return valueType.getMemory(value);
+        default:
+            return keyType.getMemory(key) + valueType.getMemory(value);
+        }
+    }
+
+    private void addLeafPage() {
+        Object[] leafValues = values.toArray();
+        Object[] leafKeys = pageType < 3 ? leafValues : keys.toArray();
+        LeafPage page = LeafPage.create(map, leafKeys, pageType < 3 ? null : leafValues, 0, pageType);
+        PageReference ref = new PageReference(bs, page);
+        page.setRef(ref);
+        page.setPageListener(valueType, leafValues);
+        addUsedMemory(page.getMemory());
+        addChild(0, ref, leafSplitKey);
+        keys.clear();
+        values.clear();
+        leafMemory = 0;
+        lastLeafValues = leafValues;
+    }
+
+    private void addChild(int level, PageReference ref, Object splitKey) {
+        if (levels.size() == level)
+            levels.add(new Level());
+        Level node = levels.get(level);
+        if (node.children.isEmpty()) {
+            node.splitKey = splitKey;
+        } else {
+            int memory = keyType.getMemory(splitKey) + PageUtils.PAGE_MEMORY_CHILD;
+            if (node.memory + memory > pageSize && node.children.size() > 2) {
+                PageReference nodeRef = createNodePage(node.keys, node.children, null).getRef();
+                Object nodeSplitKey = node.splitKey;
+                node.keys.clear();
+                node.children.clear();
+                node.memory = 0;
+                node.splitKey = splitKey;
+                addChild(level + 1, nodeRef, nodeSplitKey);
+            } else {
+                node.keys.add(splitKey);
+                node.memory += memory;
+            }
+        }
+        node.children.add(ref);
+    }
+
+    // parentRef为null时创建一个新的PageReference
+    private NodePage createNodePage(ArrayList<Object> keys, ArrayList<PageReference> children,
+            PageReference parentRef) {
+        PageReference[] refs = children.toArray(new PageReference[0]);
+        NodePage page = NodePage.create(map, keys.toArray(), refs, 0);
+        if (parentRef == null) {
+            parentRef = new PageReference(bs, page);
+            page.setRef(parentRef);
+        }
+        for (PageReference ref : refs) {
+            ref.setParentRef(parentRef);
+        }
+        addUsedMemory(page.getMemory());
+        return page;
+    }
+
+    private void addUsedMemory(int memory) {
+        bgc.addUsedMemory(memory);
+        unsavedMemory += memory;
+    }
+
+    // 每一层最右边的node page还没有写满，为它们临时生成node page，然后从下往上串起来得到root page
+    private Page buildRootPage() {
+        Page page = null;
+        Object splitKey = null;
+        int top = levels.size() - 1;
+        for (int i = 0; i <= top; i++) {
+            Level node = levels.get(i);
+            ArrayList<Object> nodeKeys = new ArrayList<>(node.keys);
+            ArrayList<PageReference> children = new ArrayList<>(node.children);
+            if (page != null) {
+                nodeKeys.add(splitKey);
+                children.add(page.getRef());
+            }
+            if (i == top && children.size() == 1)
+                return children.get(0).getPage();
+            // 最顶层的node page直接挂到rootRef上
+            page = createNodePage(nodeKeys, children, i == top ? map.getRootPageRef() : null);
+            if (i < top)
+                spineRefs.add(page.getRef());
+            splitKey = node.splitKey;
+        }
+        return page;
+    }
+
+    private void setRootPage() {
+        ArrayList<PageReference> oldSpineRefs = new ArrayList<>(spineRefs);
+        spineRefs.clear();
+        Page root = buildRootPage();
+        // 老的root page是最开始的空page或上次保存时临时生成的node page，都已经没用了
+        Page oldRoot = map.getRootPage();
+        map.getRootPageRef().markDirtyPage();
+        map.newRoot(root);
+        // newRoot给rootRef换了新的PageLock，子page的PageListener要指向新的，否则写操作标记脏页时会一直重试
+        if (root.isNode()) {
+            for (PageReference ref : root.getChildren())
+                ref.setParentRef(map.getRootPageRef());
+        }
+        bgc.addUsedMemory(-oldRoot.getMemory());
+        for (PageReference ref : oldSpineRefs) {
+            PageInfo pInfo = ref.getPageInfo();
+            if (pInfo.getPos() != 0)
+                bs.getChunkManager().addRemovedPage(pInfo.getPos());
+            ref.gcPage(pInfo, 1);
+        }
+    }
+
+    private void save() {
+        // 只有一个leaf page时不保存，否则它的PageReference会变成rootRef
+        if (levels.size() == 1 && levels.get(0).children.size() == 1)
+            return;
+        setRootPage();
+        map.save(false, true, map.collectDirtyMemory());
+        map.gc();
+        unsavedMemory = 0;
+    }
+
+    public void finish() {
+        if (!keys.isEmpty())
+            addLeafPage();
+        if (levels.isEmpty())
+            return;
+        setRootPage();
+        Page root = map.getRootPage();
+        if (root.isLeaf()) // 只有一个leaf page时，它的PageReference变成了rootRef
+            ((LeafPage) root).setPageListener(valueType, lastLeafValues);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree.page;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.lealone.storage.aose.btree.BTreeStorage;
+
+/**
+ * 把可以回收的PageReference串成一个环形的队列，是近似LRU的CLOCK算法的实现。
+ *
+ * <p>
+ * 队列是侵入式的，链表指针直接放在PageReference中，入队时不需要分配节点。
+ * 读page的线程都可以入队，只有GC线程出队(多生产者单消费者)，
+ * 出队的page如果在上一轮之后又被访问过了，就再给一次机会，重新放到队尾。
+ */
+public class PageClock {
+
+    private static final AtomicReferenceFieldUpdater<PageClock, PageReference> //
+    tailUpdater = AtomicReferenceFieldUpdater.newUpdater(PageClock.class, PageReference.class,
+            "tail");
+
+    private static final AtomicIntegerFieldUpdater<PageReference> //
+    queuedUpdater = AtomicIntegerFieldUpdater.newUpdater(PageReference.class, "gcQueued");
+
+    private final PageReference stub;
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile PageReference tail;
+    private PageReference head; // 只有GC线程读写
+
+    public PageClock(BTreeStorage bs) {
+        stub = new PageReference(bs);
+        head = tail = stub;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * page变成可回收的状态时调用，已经在队列中的page不会重复入队
+     */
+    public void add(PageReference ref) {
+        if (ref.gcQueued == 0 && queuedUpdater.compareAndSet(ref, 0, 1)) {
+            size.incrementAndGet();
+            offer(ref);
+        }
+    }
+
+    /**
+     * 由GC线程调用，page继续留在队列中，放到队尾
+     */
+    public void requeue(PageReference ref) {
+        offer(ref);
+    }
+
+    /**
+     * 由GC线程调用，page出队后不再放回队列
+     *
+     * <p>
+     * 清除标记后page可能又变成可回收的状态了，此时别的线程入队可能失败，所以需要再检查一次
+     */
+    public void leave(PageReference ref) {
+        size.decrementAndGet();
+        ref.gcQueued = 0;
+        if (ref.canGc() && !ref.isDataStructureChanged())
+            add(ref);
+    }
+
+    /**
+     * 由GC线程调用，page在上一轮之后被访问过了就返回true，并且更新它的时间
+     */
+    public boolean secondChance(PageReference ref, PageInfo pInfo) {
+        long lastTime = pInfo.getLastTime();
+        if (lastTime > ref.gcTime) {
+            ref.gcTime = lastTime;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 由GC线程调用，清空队列
+     */
+    public void clear() {
+        PageReference ref;
+        while ((ref = poll()) != null) {
+            size.decrementAndGet();
+            ref.gcQueued = 0;
+        }
+    }
+
+    private void offer(PageReference ref) {
+        ref.gcNext = null;
+        PageReference prev = tailUpdater.getAndSet(this, ref);
+        prev.gcNext = ref;
+    }
+
+    /**
+     * 由GC线程调用，队列为空或者入队的线程还没有完成链接时返回null
+     */
+    public PageReference poll() {
+        PageReference h = head;
+        PageReference next = h.gcNext;
+        if (h == stub) {
+            if (next == null)
+                return null;
+            head = next;
+            h = next;
+            next = next.gcNext;
+        }
+        if (next != null) {
+            head = next;
+            return h;
+        }
+        if (h != tail)
+            return null;
+        offer(stub);
+        next = h.gcNext;
+        if (next != null) {
+            head = next;
+            return h;
+        }
+        return null;
+    }
+}
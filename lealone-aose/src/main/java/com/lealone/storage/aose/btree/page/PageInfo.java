@@ -25,6 +25,8 @@ public class PageInfo {
 
     public int metaVersion;
 
+    public boolean readAhead; // buff是否是预读的，copy时不复制
+
     public PageInfo() {
     }
 
@@ -73,8 +75,9 @@ public class PageInfo {
         return page == null ? 0 : page.getMemory();
     }
 
+    // mmap得到的buff在操作系统的page cache中，不占用java堆内存
     public int getBuffMemory() {
-        return buff == null ? 0 : buff.limit();
+        return buff == null || buff.isDirect() ? 0 : buff.limit();
     }
 
     public int getTotalMemory() {
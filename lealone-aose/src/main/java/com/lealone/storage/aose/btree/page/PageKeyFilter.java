@@ -0,0 +1,142 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.storage.aose.btree.page;
+
+import java.nio.ByteBuffer;
+
+import com.lealone.common.util.DataUtils;
+import com.lealone.db.DataBuffer;
+import com.lealone.db.value.ValueByte;
+import com.lealone.db.value.ValueDataType.PrimaryKey;
+import com.lealone.db.value.ValueInt;
+import com.lealone.db.value.ValueShort;
+
+/**
+ * leaf page中所有key的Bloom过滤器，在刷脏页时创建，跟leaf page的pos放在父节点中，
+ * 查找一个不存在的key时，如果leaf page不在内存中，先查过滤器，这样大多数情况下不用从硬盘读page。
+ *
+ * <p>
+ * key的比较是按compare而不是equals，比较相等的key必须得到相同的hash，否则查找时会漏掉存在的key，
+ * 所以只支持整数类型和主键(包括Row)，它们都转成long再计算hash。
+ * DECIMAL(1.0和1.00的hashCode不同)、带排序规则的字符串以及索引key都不创建过滤器。
+ * 唯一索引的key比较时忽略rowId，列值还可能要从数据map中读出，没法得到跟compare一致的hash，
+ * 所以唯一性检查也用不上过滤器。
+ *
+ * <p>
+ * 过滤器存放在node page中，只有FORMAT_VERSION_5及以上的chunk才写，老格式的chunk照常读leaf page。
+ */
+public class PageKeyFilter {
+
+    private final long pos; // 对应的leaf page的位置，page的位置变了过滤器就失效了
+    private final long[] bits;
+    private final int hashCount;
+
+    private PageKeyFilter(long pos, long[] bits, int hashCount) {
+        this.pos = pos;
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    public long getPos() {
+        return pos;
+    }
+
+    public int getMemory() {
+        return 24 + 16 + bits.length * 8;
+    }
+
+    // compact重写page时只是位置变了，key没有变
+    public PageKeyFilter copy(long newPos) {
+        return new PageKeyFilter(newPos, bits, hashCount);
+    }
+
+    public boolean mayContain(Object key) {
+        if (!isSupported(key))
+            return true;
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int bitCount = bits.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[index >>> 6] & (1L << index)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void write(DataBuffer buff) {
+        buff.putVarInt(bits.length).put((byte) hashCount);
+        for (long b : bits)
+            buff.putLong(b);
+    }
+
+    static PageKeyFilter read(ByteBuffer buff, long pos) {
+        long[] bits = new long[DataUtils.readVarInt(buff)];
+        int hashCount = buff.get();
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = buff.getLong();
+        return new PageKeyFilter(pos, bits, hashCount);
+    }
+
+    /**
+     * Create a filter for the keys of a leaf page.
+     *
+     * @param keys the keys
+     * @param pos the position of the leaf page
+     * @param bitsPerKey the number of bits per key
+     * @return the filter, or null if some keys are not supported
+     */
+    static PageKeyFilter create(Object[] keys, long pos, int bitsPerKey) {
+        for (Object key : keys) {
+            if (!isSupported(key))
+                return null;
+        }
+        int bitCount = Math.max(64, keys.length * bitsPerKey);
+        // 最优的hash函数个数是bitsPerKey * ln2
+        int hashCount = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * 0.69)));
+        long[] bits = new long[(bitCount + 63) / 64];
+        bitCount = bits.length * 64;
+        for (Object key : keys) {
+            long h = hash(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                bits[index >>> 6] |= 1L << index;
+            }
+        }
+        return new PageKeyFilter(pos, bits, hashCount);
+    }
+
+    private static boolean isSupported(Object key) {
+        return key instanceof PrimaryKey || key instanceof ValueInt || key instanceof ValueShort
+                || key instanceof ValueByte || key instanceof Long || key instanceof Integer
+                || key instanceof Short || key instanceof Byte;
+    }
+
+    private static long toLong(Object key) {
+        if (key instanceof PrimaryKey)
+            return ((PrimaryKey) key).getKey();
+        else if (key instanceof Number)
+            return ((Number) key).longValue();
+        else if (key instanceof ValueInt)
+            return ((ValueInt) key).getInt();
+        else if (key instanceof ValueShort)
+            return ((ValueShort) key).getShort();
+        else
+            return ((ValueByte) key).getByte();
+    }
+
+    // 把long扩展成64位的hash，高低32位分别作为两个hash函数
+    private static long hash(Object key) {
+        long h = toLong(key) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return h;
+    }
+}
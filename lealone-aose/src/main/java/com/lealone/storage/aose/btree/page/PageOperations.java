@@ -5,7 +5,11 @@
  */
 package com.lealone.storage.aose.btree.page;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import com.lealone.common.exceptions.DbException;
+import com.lealone.common.util.DataUtils;
 import com.lealone.db.async.AsyncResultHandler;
 import com.lealone.db.scheduler.InternalScheduler;
 import com.lealone.db.session.InternalSession;
@@ -16,14 +20,15 @@ import com.lealone.storage.aose.btree.page.PageInfo.SplittedPageInfo;
 import com.lealone.storage.page.PageListener;
 import com.lealone.storage.page.PageOperation;
 import com.lealone.storage.page.PageOperation.PageOperationResult;
+import com.lealone.storage.type.StorageDataType;
 
 public abstract class PageOperations {
 
     private PageOperations() {
     }
 
-    // 只针对单Key的写操作，包括: Put、PutIfAbsent、Remove、Append
-    public static abstract class WriteOperation<K, V, R> implements PageOperation {
+    // 写操作的公共部分，单Key的写操作和PutBatch都基于它
+    public static abstract class WriteOperationBase<K, V, R> implements PageOperation {
 
         final BTreeMap<K, V> map;
         K key; // 允许append操作设置
@@ -40,7 +45,7 @@ public abstract class PageOperations {
 
         InternalSession currentSession;
 
-        public WriteOperation(BTreeMap<K, V> map, K key, AsyncResultHandler<R> resultHandler) {
+        public WriteOperationBase(BTreeMap<K, V> map, K key, AsyncResultHandler<R> resultHandler) {
             this.map = map;
             this.key = key;
             this.resultHandler = resultHandler;
@@ -73,11 +78,32 @@ public abstract class PageOperations {
             return result;
         }
 
-        private boolean isPageChanged() {
+        boolean isPageChanged() {
             // leaf page被切割了或者root page从leaf page变成node page
             return pRef.isDataStructureChanged() || pRef.isNodePage();
         }
 
+        PageOperationResult retry(boolean unlock) {
+            if (unlock)
+                pRef.unlock();
+            pRef = null;
+            map.incrementWriteRetryCount();
+            return PageOperationResult.RETRY; // 不用递归调用，让调度器重试
+        }
+
+        // 允许子类覆盖，比如Append操作可以做自己的特殊优化
+        protected Page gotoLeafPage() {
+            return map.gotoLeafPageForWrite(key);
+        }
+    }
+
+    // 只针对单Key的写操作，包括: Put、PutIfAbsent、Remove、Append
+    public static abstract class WriteOperation<K, V, R> extends WriteOperationBase<K, V, R> {
+
+        public WriteOperation(BTreeMap<K, V> map, K key, AsyncResultHandler<R> resultHandler) {
+            super(map, key, resultHandler);
+        }
+
         @Override
         public PageOperationResult run(InternalScheduler scheduler, boolean waitingIfLocked) {
             if (pRef == null) {
@@ -85,16 +111,21 @@ public abstract class PageOperations {
                 pRef = gotoLeafPage().getRef();
                 pListener = pRef.getPageListener();
             }
-            // 页面发生了结构性变动，也要重新从root定位leaf page
+            // 页面发生了结构性变动，顺着切割或删除时留下的引用重新定位leaf page
             if (isPageChanged())
-                return retry(false);
+                relocate();
 
             if (pRef.tryLock(scheduler, waitingIfLocked)) {
                 p = pRef.getPage(); // 使用最新的
                 // 如果被GC线程回收了需要重试
                 // 这一步检查是必需的，不能在一个不再使用的page上面进行写操作
-                if (p == null || isPageChanged())
+                if (p == null)
                     return retry(true);
+                if (isPageChanged()) {
+                    pRef.unlock();
+                    relocate();
+                    return PageOperationResult.RETRY;
+                }
 
                 try {
                     return writeLocal(scheduler);
@@ -112,11 +143,18 @@ public abstract class PageOperations {
             }
         }
 
-        private PageOperationResult retry(boolean unlock) {
-            if (unlock)
-                pRef.unlock();
-            pRef = null;
-            return PageOperationResult.RETRY; // 不用递归调用，让调度器重试
+        // 类似B-link tree的right-link，被切割或删除的page会留下一个指向父节点的引用，
+        // 顺着它找到还没有变动的父节点，再从父节点往下定位leaf page，不用每次都从root开始
+        private void relocate() {
+            PageReference ref = pRef;
+            PageInfo pInfo = ref.getPageInfo();
+            while (pInfo.isDataStructureChanged()) {
+                ref = pInfo.getNewRef();
+                pInfo = ref.getPageInfo();
+            }
+            pRef = gotoLeafPage(ref.getOrReadPage()).getRef();
+            pListener = pRef.getPageListener();
+            map.incrementWriteRelocateCount();
         }
 
         @SuppressWarnings("unchecked")
@@ -168,9 +206,9 @@ public abstract class PageOperations {
             pRef.replacePage(p);
         }
 
-        // 以下两个API允许子类覆盖，比如Append操作可以做自己的特殊优化
-        protected Page gotoLeafPage() {
-            return map.gotoLeafPage(key);
+        // 以下两个API允许子类覆盖
+        protected Page gotoLeafPage(Page from) {
+            return from.gotoLeafPage(key);
         }
 
         protected int getKeyIndex() {
@@ -228,13 +266,12 @@ public abstract class PageOperations {
 
         @Override
         protected Page gotoLeafPage() { // 直接定位到最后一页
-            Page p = map.getRootPage();
-            while (true) {
-                if (p.isLeaf()) {
-                    return p;
-                }
-                p = p.getChildPage(map.getChildPageCount(p) - 1);
-            }
+            return map.gotoLastLeafPage();
+        }
+
+        @Override
+        protected Page gotoLeafPage(Page from) {
+            return map.gotoLastLeafPage(from);
         }
 
         @Override
@@ -252,6 +289,190 @@ public abstract class PageOperations {
         }
     }
 
+    // 批量Put，先按key排序，落到同一个leaf page的key只需要定位和加锁一次，
+    // 切割操作也推迟到这个leaf page上的所有key都写完之后再执行。
+    // 每个key的旧值通过它自己的AsyncResultHandler返回，整个操作的结果是新增key的个数
+    public static class PutBatch<K, V> extends WriteOperationBase<K, V, Integer> {
+
+        private static class Entry<K, V> {
+            final K key;
+            final V value;
+            final AsyncResultHandler<V> resultHandler;
+
+            Entry(K key, V value, AsyncResultHandler<V> resultHandler) {
+                this.key = key;
+                this.value = value;
+                this.resultHandler = resultHandler;
+            }
+        }
+
+        private final ArrayList<Entry<K, V>> entries = new ArrayList<>();
+        private boolean sorted;
+        private int next; // 下一个要写的key，加锁失败后再次运行时从这里继续
+        private int inserted;
+        private Object upperKey; // 当前leaf page中的key都小于upperKey，为null时表示没有上限
+
+        public PutBatch(BTreeMap<K, V> map, AsyncResultHandler<Integer> resultHandler) {
+            super(map, null, resultHandler);
+        }
+
+        public void add(K key, V value, AsyncResultHandler<V> resultHandler) {
+            DataUtils.checkNotNull(value, "value");
+            entries.add(new Entry<>(key, value, resultHandler));
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public PageOperationResult run(InternalScheduler scheduler, boolean waitingIfLocked) {
+            if (!sorted) {
+                // List.sort是稳定排序，相同的key按加入的顺序写，后面的覆盖前面的
+                StorageDataType keyType = map.getKeyType();
+                entries.sort((e1, e2) -> keyType.compare(e1.key, e2.key));
+                sorted = true;
+            }
+            while (next < entries.size()) {
+                if (pRef == null) {
+                    key = entries.get(next).key;
+                    pRef = gotoLeafPage().getRef();
+                    pListener = pRef.getPageListener();
+                }
+                if (isPageChanged())
+                    return retry(false);
+                if (!pRef.tryLock(scheduler, waitingIfLocked))
+                    return PageOperationResult.LOCKED;
+                p = pRef.getPage();
+                if (p == null || isPageChanged())
+                    return retry(true);
+                PageOperationResult res = writeLeaf(scheduler);
+                if (res != PageOperationResult.SUCCEEDED)
+                    return res;
+            }
+            result = inserted;
+            if (resultHandler != null) {
+                resultHandler.handleResult(result);
+            }
+            return PageOperationResult.SUCCEEDED;
+        }
+
+        // 从root开始定位leaf page，顺便记下leaf page的上限
+        @Override
+        protected Page gotoLeafPage() {
+            upperKey = null;
+            Page p = map.getRootPage();
+            while (p.isNode()) {
+                int index = p.getPageIndex(key);
+                if (index < p.getKeyCount())
+                    upperKey = p.getKey(index);
+                p = p.getChildPage(index);
+            }
+            return p;
+        }
+
+        // 把落在当前leaf page的key都写完，新增的key最后一起插入，只copy一次page
+        @SuppressWarnings("unchecked")
+        private PageOperationResult writeLeaf(InternalScheduler scheduler) {
+            currentSession = scheduler.getCurrentSession();
+            if (!map.isInMemory() && !pRef.markDirtyPage(pListener))
+                return retry(true);
+            StorageDataType keyType = map.getKeyType();
+            StorageDataType valueType = map.getValueType();
+            int maxMemory = 2 * map.getBTreeStorage().getPageSize();
+            int memory = p.getMemory();
+            int start = next;
+            Object[] results = new Object[0];
+            int[] indexes = new int[0];
+            Object[] newKeys = new Object[0];
+            Object[] newValues = new Object[0];
+            int count = 0;
+            int lastIndex = 0; // 上一个key在page中的位置，小于0时表示它是新增的key
+            try {
+                while (next < entries.size()) {
+                    Entry<K, V> e = entries.get(next);
+                    if (upperKey != null && keyType.compare(e.key, upperKey) >= 0)
+                        break;
+                    int i = next - start;
+                    if (results.length == i)
+                        results = Arrays.copyOf(results, Math.max(8, results.length * 2));
+                    if (i > 0 && keyType.compare(key, e.key) == 0) {
+                        // 跟上一个key相同，后面的覆盖前面的
+                        if (lastIndex < 0) {
+                            results[i] = newValues[count - 1];
+                            newValues[count - 1] = e.value;
+                        } else {
+                            results[i] = p.setValue(lastIndex, e.value);
+                        }
+                    } else {
+                        key = e.key;
+                        lastIndex = p.binarySearch(key);
+                        if (lastIndex < 0) {
+                            if (indexes.length == count) {
+                                int len = Math.max(8, count * 2);
+                                indexes = Arrays.copyOf(indexes, len);
+                                newKeys = Arrays.copyOf(newKeys, len);
+                                newValues = Arrays.copyOf(newValues, len);
+                            }
+                            indexes[count] = -lastIndex - 1;
+                            newKeys[count] = key;
+                            newValues[count] = e.value;
+                            count++;
+                            memory += keyType.getMemory(key) + valueType.getMemory(e.value);
+                        } else {
+                            results[i] = p.setValue(lastIndex, e.value);
+                        }
+                    }
+                    next++;
+                    // 超过page size太多时先结束，切割后再写后面的key
+                    if (memory > maxMemory)
+                        break;
+                }
+                if (count > 0) {
+                    p = p.copyAndInsertLeaf(indexes, newKeys, newValues, count); // copy之后Ref还是一样的
+                    map.setMaxKey((K) newKeys[count - 1]);
+                    pRef.replacePage(p);
+                    inserted += count;
+                    if (p.needSplit()) {
+                        asyncSplitPage(scheduler, true, currentSession, pRef);
+                    }
+                }
+            } catch (Throwable t) {
+                pRef.unlock();
+                pRef = null;
+                handleException(start, t);
+                return PageOperationResult.FAILED;
+            }
+            pRef.unlock();
+            pRef = null;
+            handleResults(start, results);
+            return PageOperationResult.SUCCEEDED;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handleResults(int start, Object[] results) {
+            for (int i = start; i < next; i++) {
+                AsyncResultHandler<V> handler = entries.get(i).resultHandler;
+                if (handler != null)
+                    handler.handleResult((V) results[i - start]);
+            }
+        }
+
+        private void handleException(int start, Throwable t) {
+            for (int i = start, size = entries.size(); i < size; i++) {
+                AsyncResultHandler<V> handler = entries.get(i).resultHandler;
+                if (handler != null)
+                    handler.handleException(t);
+            }
+            next = entries.size();
+            if (resultHandler != null) {
+                resultHandler.handleException(t);
+            } else {
+                throw DbException.convert(t);
+            }
+        }
+    }
+
     public static class Remove<K, V> extends WriteOperation<K, V, V> {
 
         public Remove(BTreeMap<K, V> map, K key, AsyncResultHandler<V> resultHandler) {
@@ -17,7 +17,7 @@ import com.lealone.storage.aose.btree.BTreeStorage;
 import com.lealone.storage.page.IPageReference;
 import com.lealone.storage.page.PageListener;
 
-//内存占用32+16=48字节
+//内存占用40+16+16=72字节
 public class PageReference implements IPageReference {
 
     private static final AtomicReferenceFieldUpdater<PageReference, PageInfo> //
@@ -30,6 +30,13 @@ public class PageReference implements IPageReference {
     private final BTreeStorage bs;
     private final SchedulerLock schedulerLock = new SchedulerLock();
 
+    // 以下字段由PageClock使用
+    volatile PageReference gcNext;
+    volatile int gcQueued;
+    long gcTime; // 只有GC线程读写
+
+    private volatile PageKeyFilter keyFilter; // 只有leaf page才有
+
     public PageReference(BTreeStorage bs) {
         this.bs = bs;
         pInfo = new PageInfo();
@@ -157,6 +164,26 @@ public class PageReference implements IPageReference {
         return parentRef;
     }
 
+    public PageKeyFilter getKeyFilter() {
+        return keyFilter;
+    }
+
+    public void setKeyFilter(PageKeyFilter keyFilter) {
+        this.keyFilter = keyFilter;
+    }
+
+    // 只有leaf page不在内存中并且过滤器对应的还是当前的pos时才用过滤器，
+    // 在内存中的page可能已经被修改了，而且直接查page也更快，被切割或删除的page也不能用
+    public boolean mayContain(Object key) {
+        PageKeyFilter filter = keyFilter;
+        if (filter == null)
+            return true;
+        PageInfo pInfo = this.pInfo;
+        if (pInfo.page != null || pInfo.pos != filter.getPos() || pInfo.isDataStructureChanged())
+            return true;
+        return filter.mayContain(key);
+    }
+
     public boolean tryLock(InternalScheduler newLockOwner, boolean waitingIfLocked) {
         return schedulerLock.tryLock(newLockOwner, waitingIfLocked);
     }
@@ -192,6 +219,8 @@ public class PageReference implements IPageReference {
         ByteBuffer buff = pInfoOld.buff; // 先取出来，GC线程可能把pInfo.buff置null
         if (buff != null) {
             pInfoNew = bs.readPage(this, pInfoOld.pos, buff, pInfoOld.pageLength);
+            if (pInfoOld.readAhead)
+                bs.getReadAhead().hit();
         } else {
             try {
                 pInfoNew = bs.readPage(this, pInfoOld.pos);
@@ -212,12 +241,29 @@ public class PageReference implements IPageReference {
             if (buff == null)
                 memory += pInfoNew.getBuffMemory();
             addUsedMemory(memory);
+            addToPageClock();
             return p;
         } else {
             return getOrReadPage();
         }
     }
 
+    // 预读线程读完page后调用，只有page还未被读取时才设置buff
+    public boolean setReadAheadBuff(PageInfo pInfoOld, ByteBuffer buff) {
+        if (pInfoOld.page != null || pInfoOld.buff != null)
+            return false;
+        PageInfo pInfoNew = pInfoOld.copy(false);
+        pInfoNew.buff = buff;
+        pInfoNew.pageLength = buff.limit();
+        pInfoNew.readAhead = true;
+        if (replacePage(pInfoOld, pInfoNew)) {
+            addUsedMemory(pInfoNew.getBuffMemory());
+            addToPageClock();
+            return true;
+        }
+        return false;
+    }
+
     public boolean replacePage(PageInfo expect, PageInfo update) {
         return pageInfoUpdater.compareAndSet(this, expect, update);
     }
@@ -347,6 +393,11 @@ public class PageReference implements IPageReference {
         }
     }
 
+    // page已经在内存中并且不是脏页了，可以被增量GC回收
+    private void addToPageClock() {
+        bs.getBTreeGC().getPageClock().add(this);
+    }
+
     private void addRemovedPage(long pos) {
         bs.getChunkManager().addRemovedPage(pos);
     }
@@ -377,6 +428,7 @@ public class PageReference implements IPageReference {
             }
             if (newPageBuff == null)
                 addUsedMemory(-pInfoOld.getBuffMemory());
+            addToPageClock();
         } else {
             // 当前page又被标记为脏页了，此时把写完的page标记为删除
             addRemovedPage(newPos);
@@ -427,6 +479,8 @@ public class PageReference implements IPageReference {
                     checkPageInfo(pInfoNew);
                 }
                 addUsedMemory(-memory);
+                if (gcType != 1) // 释放的buff还可以放到共享的page缓存中
+                    bs.cachePageBuffer(pInfoOld.pos, buff);
                 if (gcType == 1)
                     return pInfoNew;
                 else
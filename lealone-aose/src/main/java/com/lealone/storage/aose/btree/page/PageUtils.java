@@ -5,6 +5,8 @@
  */
 package com.lealone.storage.aose.btree.page;
 
+import com.lealone.common.compress.Compressor;
+
 public class PageUtils {
 
     /**
@@ -22,6 +24,11 @@ public class PageUtils {
      */
     public static final int PAGE_TYPE_COLUMN = 2;
 
+    /**
+     * The bit mask for column pages whose values are encoded by ColumnEncoding.
+     */
+    public static final int PAGE_COLUMN_ENCODED = 16;
+
     /**
      * The bit mask for compressed pages (compression level fast).
      */
@@ -32,6 +39,49 @@ public class PageUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages whose compression algorithm is stored in the high 4 bits
+     * of the type.
+     */
+    public static final int PAGE_COMPRESSED_CODEC = 2 + 8;
+
+    /**
+     * Get the compression type bits for the page type.
+     *
+     * <p>
+     * LZF and DEFLATE still use the old bits so that chunks can be read by old versions.
+     *
+     * @param algorithm the compression algorithm
+     * @return the compression type bits
+     */
+    public static int getCompressType(int algorithm) {
+        switch (algorithm) {
+        case Compressor.LZF:
+            return PAGE_COMPRESSED;
+        case Compressor.DEFLATE:
+            return PAGE_COMPRESSED_HIGH;
+        default:
+            return PAGE_COMPRESSED_CODEC | (algorithm << 4);
+        }
+    }
+
+    /**
+     * Get the compression algorithm from the page type.
+     *
+     * @param type the page type
+     * @return the compression algorithm, or Compressor.NO
+     */
+    public static int getCompressAlgorithm(int type) {
+        if ((type & PAGE_COMPRESSED) == 0)
+            return Compressor.NO;
+        else if ((type & PAGE_COMPRESSED_CODEC) == PAGE_COMPRESSED_CODEC)
+            return (type >>> 4) & 0xF;
+        else if ((type & PAGE_COMPRESSED_HIGH) == PAGE_COMPRESSED_HIGH)
+            return Compressor.DEFLATE;
+        else
+            return Compressor.LZF;
+    }
+
     /**
      * The estimated number of bytes used per child entry.
      */
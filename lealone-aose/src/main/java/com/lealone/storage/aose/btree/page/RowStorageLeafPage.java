@@ -104,7 +104,10 @@ public abstract class RowStorageLeafPage extends LeafPage {
 
         writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
-        return updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, true, isLockedPage);
+        long pos = updateChunkAndPage(pInfoOld, chunk, start, pageLength, type, true,
+                isLockedPage);
+        createKeyFilter(keys, pos);
+        return pos;
     }
 
     // 重写所有的RowStorageLeafPage，只需要修改CheckValue即可
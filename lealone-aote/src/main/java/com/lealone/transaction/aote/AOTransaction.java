@@ -57,6 +57,7 @@ public class AOTransaction implements Transaction {
     // 仅用于测试
     private LinkedList<RowLock> locks; // 行锁
     private int maxCommittedLogId = -1;
+    private boolean rowCountsCommitted;
 
     public AOTransaction(AOTransactionEngine engine, long tid, RunMode runMode, int level) {
         this(engine, tid, runMode, level, null);
@@ -251,6 +252,9 @@ public class AOTransaction implements Transaction {
     public void onSynced() {
         if (commitTimestamp > 0)
             return;
+        // 要在生成commitTimestamp之前把记录数的变化加到已提交的记录数中，
+        // 否则可重复读的事务可能看到了新的commitTimestamp，但是已提交的记录数还没有变
+        commitRowCounts();
         // 这一步很重要！！！
         // 生成commitTimestamp的时机很严格，需要等到redo log sync完成后才能生成，
         // checkpoint线程和可重复读的事务都依赖它
@@ -296,10 +300,20 @@ public class AOTransaction implements Transaction {
         if (t == null)
             return;
 
+        t.commitRowCounts(); // 不写redo log时不会调用onSynced
         maxCommittedLogId = t.undoLog.commit(transactionEngine); // 先提交，事务变成结束状态再解锁
         t.endTransaction(false);
     }
 
+    private synchronized void commitRowCounts() {
+        if (rowCountsCommitted)
+            return;
+        rowCountsCommitted = true;
+        UndoLog ul = undoLog;
+        if (ul != null)
+            ul.forEachSizeDelta((map, delta) -> transactionEngine.commitRowCount(this, map, delta));
+    }
+
     private void endTransaction(boolean remove) {
         savepoints = null;
         undoLog = null;
@@ -10,12 +10,17 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import com.lealone.common.util.ShutdownHookUtils;
 import com.lealone.db.RunMode;
 import com.lealone.db.SysProperties;
+import com.lealone.db.lock.Lockable;
 import com.lealone.db.plugin.PluginManager;
 import com.lealone.db.scheduler.EmbeddedScheduler;
 import com.lealone.db.scheduler.InternalScheduler;
@@ -25,9 +30,12 @@ import com.lealone.db.scheduler.SchedulerThread;
 import com.lealone.storage.Storage;
 import com.lealone.storage.StorageEventListener;
 import com.lealone.storage.StorageMap;
+import com.lealone.transaction.Transaction;
 import com.lealone.transaction.TransactionEngine;
 import com.lealone.transaction.TransactionEngineBase;
+import com.lealone.transaction.aote.TransactionalValue.OldValue;
 import com.lealone.transaction.aote.log.LogSyncService;
+import com.lealone.transaction.aote.log.WriteAheadLog;
 import com.lealone.transaction.aote.tm.TransactionManager;
 
 //Async adaptive Optimization Transaction Engine
@@ -40,11 +48,25 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
 
     // repeatable read 事务数
     private final AtomicInteger rrtCount = new AtomicInteger();
+    // 可重复读事务开始和结束时都加1
+    private final AtomicLong rrtVersion = new AtomicLong();
+    // 缓存的可重复读事务中最小的tid，rrtVersion变了才需要重新计算，
+    // 并发计算时缓存的值只会偏小，偏小时只是晚一点回收旧版本
+    private volatile long minRrtId;
+    private volatile long minRrtIdVersion = -1;
 
     private TransactionManager[] transactionManagers;
 
+    // 每个map已提交的记录数，事务读取记录数时不用遍历map
+    private final ConcurrentHashMap<StorageMap<?, ?>, RowCount> rowCounts = new ConcurrentHashMap<>();
+    // 每个map等待回收的旧版本
+    private final ConcurrentHashMap<StorageMap<?, ?>, OldValues> oldValues = new ConcurrentHashMap<>();
+    // 等待执行redo log的map名，打开后在recover完成前不能压缩和刷脏页
+    private final Set<String> recoveringMaps = ConcurrentHashMap.newKeySet();
+
     private LogSyncService logSyncService; // 实际上就是logSyncServices[0]
     private LogSyncService[] logSyncServices;
+    private ExecutorService checkpointExecutor; // 所有CheckpointService共用
     private SchedulerFactory schedulerFactory;
 
     public AOTransactionEngine() {
@@ -76,6 +98,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
     }
 
     public void decrementRrtCount() {
+        rrtVersion.incrementAndGet();
         rrtCount.decrementAndGet();
     }
 
@@ -84,13 +107,33 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         return rrtCount.get() > 0;
     }
 
-    public long getMaxRepeatableReadTransactionId() {
-        long maxTid = -1;
-        for (AOTransaction t : currentTransactions()) {
-            if (t.isRepeatableRead() && t.getTransactionId() > maxTid)
-                maxTid = t.getTransactionId();
+    // 提交时间戳不大于它的修改对所有现有的和以后的可重复读事务都是可见的，它之前的旧版本可以回收了
+    public long getLowWatermark() {
+        // 先取lastTransactionId再找可重复读事务，之后开始的可重复读事务的tid一定更大
+        long minTid = lastTransactionId.get() + 1;
+        if (!containsRepeatableReadTransactions() || transactionManagers == null)
+            return minTid;
+        // 先取版本号，计算过程中又有可重复读事务结束时下次再算
+        long version = rrtVersion.get();
+        if (version != minRrtIdVersion) {
+            for (int i = 0; i < transactionManagers.length; i++) {
+                minTid = transactionManagers[i].getMinRepeatableReadTransactionId(minTid);
+            }
+            minRrtId = minTid;
+            minRrtIdVersion = version;
         }
-        return maxTid;
+        return minRrtId;
+    }
+
+    // 遍历时不用复制事务列表
+    public boolean anyTransactionMatch(Predicate<AOTransaction> predicate) {
+        if (transactionManagers == null)
+            return false;
+        for (int i = 0; i < transactionManagers.length; i++) {
+            if (transactionManagers[i].anyMatch(predicate))
+                return true;
+        }
+        return false;
     }
 
     @Override
@@ -129,23 +172,88 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
     public void afterStorageMapOpen(StorageMap<?, ?> map) {
         if (logSyncService == null)
             return;
+        rowCounts.put(map, new RowCount(this, map.size()));
+        // 要在加到CheckpointService之前设置，否则后台压缩可能会丢弃chunk中还没有执行的redo log
+        if (recoveringMaps.contains(map.getName()))
+            map.setRecovering(true);
         // 内存表刷脏页时已经被过滤了
         int index = nextLogSyncServiceIndex();
         logSyncServices[index].getCheckpointService().addMap(map);
 
         // 内存表和索引不需要写redo log
         if (!map.isInMemory() && !map.getKeyType().isKeyOnly()) {
+            // 使用预写日志时所有map的redo log都由第一个LogSyncService来写，事务涉及多个map也只需要一次fsync
+            if (getWriteAheadLog() != null)
+                index = 0;
             logSyncServices[index].getRedoLog().addMap(map);
         }
     }
 
     public void removeStorageMap(StorageMap<?, ?> map) {
+        recoveringMaps.remove(map.getName());
+        rowCounts.remove(map);
+        oldValues.remove(map);
         for (int i = 0; i < logSyncServices.length; i++) {
             logSyncServices[i].getCheckpointService().removeMap(map);
             logSyncServices[i].getRedoLog().removeMap(map.getName());
         }
     }
 
+    // 跟removeStorageMap不同，map被删除了，它的redo log也不再需要
+    public void dropStorageMap(StorageMap<?, ?> map, String mapName) {
+        if (logSyncService == null)
+            return;
+        removeStorageMap(map);
+        WriteAheadLog wal = getWriteAheadLog();
+        if (wal != null)
+            wal.appendDroppedMap(mapName);
+    }
+
+    // 清空map不会写redo log，使用预写日志时要告诉它这个map之前的记录都不再需要了
+    void clearStorageMap(StorageMap<?, ?> map) {
+        resetRowCount(map);
+        if (logSyncService == null)
+            return;
+        WriteAheadLog wal = getWriteAheadLog();
+        if (wal != null && !map.isInMemory() && !map.getKeyType().isKeyOnly())
+            wal.appendClearedMap(map.getName());
+    }
+
+    RowCount getRowCount(StorageMap<?, ?> map) {
+        return rowCounts.get(map);
+    }
+
+    void commitRowCount(AOTransaction t, StorageMap<?, ?> map, long delta) {
+        RowCount rowCount = rowCounts.get(map);
+        if (rowCount != null)
+            rowCount.commit(t, delta);
+    }
+
+    // 不通过事务修改了map的记录后要重新设置已提交的记录数，例如redo和clear
+    void resetRowCount(StorageMap<?, ?> map) {
+        RowCount rowCount = rowCounts.get(map);
+        if (rowCount != null)
+            rowCount.reset(map.size());
+    }
+
+    void addOldValue(StorageMap<?, ?> map, Object key, Lockable lockable, OldValue oldValue) {
+        OldValues values = oldValues.get(map);
+        if (values == null) {
+            if (map.isClosed())
+                return;
+            values = oldValues.computeIfAbsent(map, k -> new OldValues());
+        }
+        values.add(key, lockable, oldValue);
+    }
+
+    OldValues getOldValues(StorageMap<?, ?> map) {
+        return oldValues.get(map);
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return logSyncService.getRedoLog().getWriteAheadLog();
+    }
+
     ///////////////////// 实现TransactionEngine接口 /////////////////////
 
     @Override
@@ -184,6 +292,8 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
             }
         } catch (Exception e) {
         }
+        // 最后的检查点已经在关闭logSyncService时执行完了
+        checkpointExecutor.shutdown();
         if (stopScheduler) {
             try {
                 schedulerFactory.stop();
@@ -192,6 +302,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         }
         logSyncService = null;
         logSyncServices = null;
+        checkpointExecutor = null;
         schedulerFactory = null;
         super.close();
     }
@@ -207,10 +318,11 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
             // 直接抛异常对上层很不友好，还不如用默认配置初始化
             init(getDefaultConfig());
         }
+        // 先增加可重复读事务数再生成tid，RowCount在清理时依赖这个顺序
+        if (isolationLevel >= Transaction.IL_REPEATABLE_READ)
+            rrtCount.incrementAndGet();
         long tid = nextTransactionId();
         AOTransaction t = createTransaction(tid, runMode, isolationLevel);
-        if (t.isRepeatableRead())
-            rrtCount.incrementAndGet();
 
         if (scheduler == null) {
             // 如果当前线程不是调度线程就给事务绑定一个Scheduler
@@ -225,6 +337,9 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         }
         t.setTransactionManager(tm);
         tm.addTransaction(t);
+        // 加到TransactionManager之后再改版本号，之前计算的最小tid可能没有包含它
+        if (t.isRepeatableRead())
+            rrtVersion.incrementAndGet();
         return t;
     }
 
@@ -253,13 +368,27 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         }
     }
 
+    @Override
+    public void prepareRecover(String mapName) {
+        if (logSyncService != null)
+            recoveringMaps.add(mapName);
+    }
+
     @Override
     public void recover(StorageMap<?, ?> map, List<StorageMap<?, ?>> indexMaps) {
         if (logSyncService == null)
             return;
         if (!map.isInMemory()) {
             logSyncService.getRedoLog().redo(map, indexMaps);
+            resetRowCount(map);
+            if (indexMaps != null) {
+                for (StorageMap<?, ?> indexMap : indexMaps)
+                    resetRowCount(indexMap);
+            }
         }
+        // redo失败时不清除，这样chunk中的redo log一直保留着
+        recoveringMaps.remove(map.getName());
+        map.setRecovering(false);
     }
 
     @Override
@@ -286,10 +415,13 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
 
     private void initLogSyncServices(int schedulerCount) {
         config.put("scheduler_count", schedulerCount + "");
+        checkpointExecutor = CheckpointService.createExecutor(config);
         logSyncService = LogSyncService.create(config);
-        logSyncService.setCheckpointService(new CheckpointService(this, config, logSyncService));
+        logSyncService.setCheckpointService(
+                new CheckpointService(this, config, logSyncService, checkpointExecutor));
         logSyncService.getRedoLog().setSyncServiceIndex(0);
         logSyncService.getRedoLog().init(); // 兼容老版本的redo log
+        logSyncService.getRedoLog().initWriteAheadLog();
 
         // 嵌入式场景需要启动logSyncService
         if (RunMode.isEmbedded(config)) {
@@ -304,7 +436,8 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
             logSyncServices[i] = LogSyncService.create(config);
             logSyncServices[i].setName("FsyncService-" + i);
             logSyncServices[i]
-                    .setCheckpointService(new CheckpointService(this, config, logSyncServices[i]));
+                    .setCheckpointService(new CheckpointService(this, config, logSyncServices[i],
+                            checkpointExecutor));
             logSyncServices[i].getRedoLog().setSyncServiceIndex(i);
             logSyncServices[i].start();
         }
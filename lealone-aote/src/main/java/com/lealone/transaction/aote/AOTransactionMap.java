@@ -5,10 +5,12 @@
  */
 package com.lealone.transaction.aote;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
+import com.lealone.common.exceptions.DbException;
 import com.lealone.common.util.DataUtils;
+import com.lealone.db.api.ErrorCode;
 import com.lealone.db.async.AsyncResultHandler;
 import com.lealone.db.lock.Lockable;
 import com.lealone.db.scheduler.SchedulerListener;
@@ -149,16 +151,25 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
      * @return the size
      */
     // 最初的实现方案是遍历UndoLog的记录来确定size，但是UndoLog是为单线程设计的，所以存在并发bug，
-    // 新的方案当存在多个事务时虽然慢了一些，但是实现不用搞得很复杂，能减少错误
+    // 现在每个map都有一个已提交的记录数，事务提交时才把UndoLog中累计的变化加进去，
+    // 读已提交的事务是O(1)，可重复读的事务只需要遍历还没有清理的那些提交
     @Override
     public long size() {
-        long undoLogSize = 0;
-        for (AOTransaction t : transaction.transactionEngine.currentTransactions()) {
-            UndoLog ul = t.undoLog;
-            if (ul != null)
-                undoLogSize += ul.size();
-        }
-        if (undoLogSize == 0)
+        RowCount rowCount = transaction.transactionEngine.getRowCount(map);
+        if (rowCount == null || transaction.getParentTransaction() != null
+                || transaction.getIsolationLevel() == Transaction.IL_READ_UNCOMMITTED)
+            return scanSize();
+
+        UndoLog ul = transaction.undoLog;
+        long delta = ul != null ? ul.getSizeDelta(map) : 0;
+        if (transaction.isUpdateCommand() || !transaction.isRepeatableRead())
+            return rowCount.get() + delta;
+        else
+            return rowCount.get(transaction) + delta;
+    }
+
+    private long scanSize() {
+        if (!transaction.transactionEngine.anyTransactionMatch(AOTransactionMap::containsUndoLog))
             return map.size(); // 存在的多个事务都是只读操作时可以安全返回原表的size
 
         long size = 0;
@@ -169,6 +180,11 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         return size;
     }
 
+    private static boolean containsUndoLog(AOTransaction t) {
+        UndoLog ul = t.undoLog;
+        return ul != null && ul.size() > 0;
+    }
+
     @Override
     public void decrementSize() {
         map.decrementSize();
@@ -188,11 +204,12 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
     public TransactionMapCursor<K, V> cursor(CursorParameters<K> parameters) {
         return new TransactionMapCursor<K, V>() {
             final StorageMapCursor<K, Lockable> cursor = map.cursor(parameters);
+            K key;
             V value;
 
             @Override
             public K getKey() {
-                return cursor.getKey();
+                return key;
             }
 
             @Override
@@ -205,12 +222,34 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
             public boolean next() {
                 while (cursor.next()) {
                     // 过滤掉已标记为删除的记录
-                    value = (V) AOTransactionMap.this.getValue(cursor.getKey(), cursor.getValue());
+                    key = cursor.getKey();
+                    value = (V) AOTransactionMap.this.getValue(key, cursor.getValue());
                     if (value != null)
                         return true;
                 }
                 return false;
             }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public int next(int maxRows, BiConsumer<? super K, ? super V> action) {
+                int[] rows = new int[1];
+                // 底层cursor返回的记录可能都被过滤掉了，所以要一直读到有可见的记录或者没有记录为止
+                while (rows[0] == 0 && maxRows > 0) {
+                    int n = cursor.next(maxRows, (k, lockable) -> {
+                        V v = (V) AOTransactionMap.this.getValue(k, lockable);
+                        if (v != null) {
+                            key = k;
+                            value = v;
+                            action.accept(k, v);
+                            rows[0]++;
+                        }
+                    });
+                    if (n == 0)
+                        break;
+                }
+                return rows[0];
+            }
         };
     }
 
@@ -220,7 +259,7 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         String mapName = map.getName();
         if (mapName != null) {
             map.remove();
-            transaction.transactionEngine.removeStorageMap(map);
+            transaction.transactionEngine.dropStorageMap(map, mapName);
         }
     }
 
@@ -229,6 +268,7 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override
     public void clear() {
         map.clear();
+        transaction.transactionEngine.clearStorageMap(map);
     }
 
     @Override
@@ -274,6 +314,7 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override
     public void repair() {
         map.repair();
+        transaction.transactionEngine.resetRowCount(map);
     }
 
     @Override
@@ -286,6 +327,21 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         return map.getMemorySpaceUsed();
     }
 
+    @Override
+    public long getSavedPages() {
+        return map.getSavedPages();
+    }
+
+    @Override
+    public long getSavedBytes() {
+        return map.getSavedBytes();
+    }
+
+    @Override
+    public long getLastSaveTime() {
+        return map.getLastSaveTime();
+    }
+
     @Override
     public boolean hasUnsavedChanges() {
         return map.hasUnsavedChanges();
@@ -301,6 +357,11 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         map.fullGc();
     }
 
+    @Override
+    public void compact() {
+        map.compact();
+    }
+
     @Override
     public long collectDirtyMemory() {
         return map.collectDirtyMemory();
@@ -365,13 +426,14 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
                     if (vRef != null)
                         vRef.set((V) old.getLockedValue());
                     if (ifAbsent) {
-                        // 在提交或回滚时直接忽略即可
-                        r.setUndone(true);
                         // 同一个事务，先删除再更新，因为删除记录时只是打了一个删除标记，存储层并没有真实删除
                         if (old.getLockedValue() == null) {
+                            // 在提交或回滚时直接忽略即可，但是记录数还是要加1
+                            r.setUndone(true);
                             old.setLockedValue(lockable.getLockedValue());
                             addUndoLog(key, old, lockable.getLockedValue());
                         } else {
+                            transaction.undoLog.cancel(r);
                             topHandler.handleResult(Transaction.OPERATION_DATA_DUPLICATE);
                             return;
                         }
@@ -379,7 +441,7 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
                 }
                 topHandler.handleResult(Transaction.OPERATION_COMPLETE);
             } else {
-                r.setUndone(true);
+                transaction.undoLog.cancel(r);
                 topHandler.handleException(ar.getCause());
             }
         };
@@ -410,6 +472,8 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
             // 当前行已经被其他事务锁住了
             return Transaction.OPERATION_NEED_WAIT;
         }
+        if (!isLockedBySelf)
+            checkWriteConflict(lockable);
         if (lockable.isNoneLock()) {
             TransactionalValue.setTransaction(transaction, lockable); // 二级索引需要设置
             if (markDirtyPage(key, lockable) != null)
@@ -428,6 +492,7 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         transaction.checkNotClosed();
         int ret = TransactionalValue.tryLock(lockable, transaction);
         if (ret > 0) {
+            checkWriteConflict(lockable);
             Lockable value = markDirtyPage(key, lockable);
             if (value != null) {
                 lockable.getLock().setLockable(value);
@@ -437,6 +502,14 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         return ret;
     }
 
+    // 可串行化的事务按快照隔离执行，加锁成功后如果发现记录在当前事务开始之后被其他事务修改并提交了，
+    // 再修改它就会覆盖当前事务看不到的修改，所以只能让当前事务失败(first-updater-wins)
+    private void checkWriteConflict(Lockable lockable) {
+        if (transaction.getIsolationLevel() == Transaction.IL_SERIALIZABLE
+                && TransactionalValue.isCommittedAfter(lockable, transaction.getTransactionId()))
+            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, map.getName());
+    }
+
     private static Lockable markDirtyPage(Object key, Lockable lockable) {
         PageListener oldPageListener = lockable.getPageListener();
         return oldPageListener.getPageReference().markDirtyPage(key, oldPageListener);
@@ -459,13 +532,8 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
 
     @Override
     public Object getOldValue(Lockable lockable) {
-        ConcurrentHashMap<Lockable, Object> cache = map.getOldValueCache();
-        if (cache != null) {
-            OldValue v = (OldValue) cache.get(lockable);
-            if (v != null)
-                return v.value;
-        }
-        return null;
+        OldValue v = (OldValue) lockable.getOldVersion();
+        return v != null ? v.value : null;
     }
 
     //////////////////// 以下是StorageMap与写操作相关的同步和异步API的实现 ////////////////////////////////
@@ -5,30 +5,62 @@
  */
 package com.lealone.transaction.aote;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.lealone.common.logging.Logger;
 import com.lealone.common.logging.LoggerFactory;
 import com.lealone.common.util.MapUtils;
-import com.lealone.db.lock.Lockable;
 import com.lealone.storage.StorageMap;
-import com.lealone.storage.page.IPageReference;
 import com.lealone.transaction.TransactionEngine.GcTask;
-import com.lealone.transaction.aote.TransactionalValue.OldValue;
 import com.lealone.transaction.aote.log.LogSyncService;
+import com.lealone.transaction.aote.log.WriteAheadLog;
 
 public class CheckpointService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(CheckpointService.class);
 
+    // 同一个事务引擎的所有CheckpointService共用，多个map的脏页并行刷到硬盘，空闲的线程会自动退出，
+    // 由事务引擎创建，关闭事务引擎时关闭
+    static ExecutorService createExecutor(Map<String, String> config) {
+        int threads = getSaveThreads(config);
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "CheckpointThread-" + index.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
+    }
+
+    // 默认最多4个线程，NVMe这类支持深队列的设备可以调大
+    private static int getSaveThreads(Map<String, String> config) {
+        int saveThreads = MapUtils.getInt(config, "checkpoint_save_threads",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return Math.max(1, saveThreads);
+    }
+
     private final AOTransactionEngine aote;
     private final LogSyncService logSyncService;
+    private final ExecutorService executor;
     private final long checkpointPeriod;
     private final long loopInterval;
+    private final int saveThreads; // 为1时在当前线程中逐个刷脏页
+    private final long compactInterval;
 
     // 以下三个字段都是低频场景使用，会有多个线程执行add和remove
     private final CopyOnWriteArrayList<Runnable> forceCheckpointTasks = new CopyOnWriteArrayList<>();
@@ -36,13 +68,19 @@ public class CheckpointService implements Runnable {
     private final ConcurrentHashMap<StorageMap<?, ?>, AtomicLong> maps = new ConcurrentHashMap<>();
 
     private long lastSavedAt = System.currentTimeMillis();
+    private volatile long lastCompactedAt = System.currentTimeMillis();
+    private volatile boolean compacting;
     private volatile boolean isClosed;
     private volatile Thread workingThread; // 正在执行刷脏页或fullGc的线程
 
+    private volatile long checkpointCount;
+    private volatile long lastCheckpointTime; // 毫秒
+
     public CheckpointService(AOTransactionEngine aote, Map<String, String> config,
-            LogSyncService logSyncService) {
+            LogSyncService logSyncService, ExecutorService executor) {
         this.aote = aote;
         this.logSyncService = logSyncService;
+        this.executor = executor;
 
         // 默认12小时
         checkpointPeriod = MapUtils.getLong(config, "checkpoint_period", 12 * 60 * 60 * 1000);
@@ -52,12 +90,25 @@ public class CheckpointService implements Runnable {
         if (checkpointPeriod < loopInterval)
             loopInterval = checkpointPeriod;
         this.loopInterval = loopInterval;
+
+        saveThreads = getSaveThreads(config);
+
+        // 默认30秒，小于等于0时不在后台压缩，只在刷脏页时压缩
+        compactInterval = MapUtils.getLong(config, "compact_interval", 30 * 1000);
     }
 
     public long getLoopInterval() {
         return loopInterval;
     }
 
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    public long getLastCheckpointTime() {
+        return lastCheckpointTime;
+    }
+
     public boolean hasForceCheckpoint() {
         return !forceCheckpointTasks.isEmpty();
     }
@@ -109,9 +160,32 @@ public class CheckpointService implements Runnable {
             } catch (Throwable t) {
                 logger.error("Failed to execute checkpoint", t);
             }
+            compactMaps();
         }
     }
 
+    // 在检查点线程池中执行，不阻塞sync redo log的线程
+    private void compactMaps() {
+        if (compactInterval <= 0 || compacting || workingThread != null || maps.isEmpty())
+            return;
+        if (lastCompactedAt + compactInterval > System.currentTimeMillis())
+            return;
+        compacting = true;
+        executor.execute(() -> {
+            try {
+                for (StorageMap<?, ?> map : maps.keySet()) {
+                    if (!map.isClosed() && !isClosed && !map.isRecovering())
+                        map.compact();
+                }
+            } catch (Throwable t) {
+                logger.error("Failed to compact", t);
+            } finally {
+                lastCompactedAt = System.currentTimeMillis();
+                compacting = false;
+            }
+        });
+    }
+
     public void fullGc() {
         if (workingThread != null || maps.isEmpty())
             return;
@@ -136,65 +210,17 @@ public class CheckpointService implements Runnable {
     private void gcTValues() {
         if (maps.isEmpty())
             return;
+        long minTid = -1; // 有需要回收的旧版本时才计算
         for (StorageMap<?, ?> map : maps.keySet()) {
-            if (!map.isClosed()) {
-                gcTValues(map);
-            }
-        }
-    }
-
-    private void gcTValues(StorageMap<?, ?> map) {
-        ConcurrentHashMap<Lockable, Object> tValues = map.getOldValueCache();
-        if (tValues.isEmpty())
-            return;
-        if (!aote.containsRepeatableReadTransactions()) {
-            removeTValues(map, tValues);
-            return;
-        }
-        long minTid = Long.MAX_VALUE;
-        for (AOTransaction t : aote.currentTransactions()) {
-            if (t.isRepeatableRead() && t.getTransactionId() < minTid)
-                minTid = t.getTransactionId();
-        }
-        if (minTid != Long.MAX_VALUE) {
-            for (Entry<Lockable, Object> e : tValues.entrySet()) {
-                OldValue oldValue = (OldValue) e.getValue();
-                if (oldValue != null && oldValue.tid < minTid) {
-                    removeTValue(map, tValues, e.getKey(), oldValue);
-                    continue;
-                }
-                while (oldValue != null) {
-                    if (oldValue.tid < minTid) {
-                        oldValue.next = null;
-                        break;
-                    }
-                    oldValue = oldValue.next;
-                }
-            }
-        } else {
-            removeTValues(map, tValues);
+            OldValues oldValues = aote.getOldValues(map);
+            if (oldValues == null || oldValues.isEmpty() || map.isClosed())
+                continue;
+            if (minTid < 0)
+                minTid = aote.getLowWatermark();
+            oldValues.gc(map, minTid);
         }
     }
 
-    private void removeTValues(StorageMap<?, ?> map, ConcurrentHashMap<Lockable, Object> tValues) {
-        for (Entry<Lockable, Object> e : tValues.entrySet()) {
-            removeTValue(map, tValues, e.getKey(), (OldValue) e.getValue());
-        }
-    }
-
-    private void removeTValue(StorageMap<?, ?> map, ConcurrentHashMap<Lockable, Object> tValues,
-            Lockable lockable, OldValue oldValue) {
-        if (lockable.getLockedValue() == null) {
-            IPageReference ref = lockable.getPageListener().getPageReference();
-            // 删除记录时会把lockable中的列置null，这里需要减去所有列占用的内存
-            int memory = map.getValueType().getColumnsMemory(oldValue.value);
-            if (memory != 0)
-                ref.addPageUsedMemory(-memory);
-            ref.remove(oldValue.key);
-        }
-        tValues.remove(lockable, oldValue); // 如果不是原来的就不删除
-    }
-
     private void executeGcTasks() {
         if (gcTasks.isEmpty())
             return;
@@ -262,31 +288,72 @@ public class CheckpointService implements Runnable {
     }
 
     private void save(boolean force, boolean isClosing) {
+        long t1 = System.currentTimeMillis();
         long lastTransactionId = logSyncService.getRedoLog().getLastTransactionId();
+        WriteAheadLog wal = aote.getWriteAheadLog();
+        long checkpointLsn = wal != null ? wal.getLsn() : -1;
+        // 刷完脏页或者没有脏页的map，在checkpointLsn之前写的预写日志不再需要
+        List<StorageMap<?, ?>> savedMaps = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Entry<StorageMap<?, ?>, AtomicLong> e : maps.entrySet()) {
+            StorageMap<?, ?> map = e.getKey();
+            long size = e.getValue().get();
+            // 还没有执行完redo log的map不能刷脏页，新的chunk会让下次打开时读不到chunk中的redo log
+            if (map.isRecovering())
+                continue;
+            // 准备耍刷页前如果表被删除了那就直接忽略
+            if (size > 0 && !map.isClosed() && (force || size > map.getCacheSize())) {
+                tasks.add(() -> {
+                    save(map, size, lastTransactionId);
+                    return null;
+                });
+                savedMaps.add(map);
+            } else if (size == 0 && !map.isClosed()) {
+                savedMaps.add(map);
+            }
+        }
         try {
-            for (Entry<StorageMap<?, ?>, AtomicLong> e : maps.entrySet()) {
-                StorageMap<?, ?> map = e.getKey();
-                long size = e.getValue().get();
-                // 准备耍刷页前如果表被删除了那就直接忽略
-                if (size > 0 && !map.isClosed() && (force || size > map.getCacheSize())) {
-                    long t1 = System.currentTimeMillis();
-                    if (!isClosing)
-                        workingThread.setName("Saving-" + map.getName());
-                    map.setLastTransactionId(lastTransactionId);
-                    try {
-                        map.save(size);
-                    } finally {
-                        map.setLastTransactionId(-1);
-                    }
-                    if (logger.isDebugEnabled()) {
-                        long time = System.currentTimeMillis() - t1;
-                        logger.debug("Save {}, size: {}, time: {} ms", map.getName(), size, time);
-                    }
-                }
+            if (saveThreads == 1 || tasks.size() <= 1) {
+                for (Callable<Void> task : tasks)
+                    task.call();
+            } else {
+                // 每个map的刷脏页操作互不影响，所以可以并行执行，等全部完成后才算执行完检查点
+                for (Future<Void> f : executor.invokeAll(tasks))
+                    f.get();
             }
             lastSavedAt = System.currentTimeMillis();
+            if (wal != null) {
+                for (StorageMap<?, ?> map : savedMaps)
+                    wal.onCheckpoint(map.getName(), checkpointLsn);
+                wal.truncate();
+            }
         } catch (Throwable t) {
             logger.error("Failed to execute save", t);
         }
+        lastCheckpointTime = System.currentTimeMillis() - t1;
+        checkpointCount++;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Checkpoint, maps: {}, time: {} ms", tasks.size(), lastCheckpointTime);
+        }
+    }
+
+    private void save(StorageMap<?, ?> map, long size, long lastTransactionId) {
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName("Saving-" + map.getName());
+        long pages = map.getSavedPages();
+        long bytes = map.getSavedBytes();
+        map.setLastTransactionId(lastTransactionId);
+        try {
+            map.save(size);
+        } finally {
+            map.setLastTransactionId(-1);
+            thread.setName(threadName);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Save {}, size: {}, pages: {}, bytes: {}, time: {} ms", map.getName(),
+                    size, map.getSavedPages() - pages, map.getSavedBytes() - bytes,
+                    map.getLastSaveTime());
+        }
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.transaction.aote;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.lealone.db.lock.Lockable;
+import com.lealone.storage.StorageMap;
+import com.lealone.storage.page.IPageReference;
+import com.lealone.transaction.aote.TransactionalValue.OldValue;
+
+// 旧版本直接挂在记录上，这里只是按提交的先后顺序把一个map新增的旧版本排队，
+// 回收时从队头开始处理，只要遇到还有可重复读事务需要的旧版本就停下来，所以只跟垃圾的数量有关
+class OldValues {
+
+    private static class Entry {
+        final Object key;
+        final Lockable lockable;
+        final OldValue oldValue;
+
+        Entry(Object key, Lockable lockable, OldValue oldValue) {
+            this.key = key;
+            this.lockable = lockable;
+            this.oldValue = oldValue;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    void add(Object key, Lockable lockable, OldValue oldValue) {
+        queue.add(new Entry(key, lockable, oldValue));
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    // tid不小于minTid的可重复读事务都能看到提交时间戳小于等于minTid的新版本，它们之前的旧版本就不再需要了
+    int gc(StorageMap<?, ?> map, long minTid) {
+        int count = 0;
+        while (true) {
+            Entry e = queue.peek();
+            if (e == null || e.oldValue.tid > minTid)
+                break;
+            queue.poll();
+            Lockable lockable = e.lockable;
+            OldValue head = (OldValue) lockable.getOldVersion();
+            if (head == e.oldValue && lockable.compareAndSetOldVersion(head, null)) {
+                removeIfDeleted(map, e);
+            } else {
+                // 后面又有新的旧版本加进来了，把它和更老的版本从链表上截断即可
+                for (OldValue v = (OldValue) lockable.getOldVersion(); v != null; v = v.next) {
+                    if (v.next == e.oldValue) {
+                        v.next = null;
+                        break;
+                    }
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // 删除记录时只打了删除标记，没有事务需要旧版本后才能从page中真正删除
+    private static void removeIfDeleted(StorageMap<?, ?> map, Entry e) {
+        Lockable lockable = e.lockable;
+        if (lockable.getLockedValue() == null && lockable.isNoneLock()
+                && lockable.getLock() != null) {
+            IPageReference ref = lockable.getPageListener().getPageReference();
+            // 删除记录时会把lockable中的列置null，这里需要减去所有列占用的内存
+            if (e.oldValue.value != null) {
+                int memory = map.getValueType().getColumnsMemory(e.oldValue.value);
+                if (memory != 0)
+                    ref.addPageUsedMemory(-memory);
+            }
+            ref.remove(e.key);
+        }
+    }
+}
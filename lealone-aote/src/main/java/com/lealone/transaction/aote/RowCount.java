@@ -0,0 +1,92 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.transaction.aote;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// 记录一个map已提交的记录数，事务提交时把它在UndoLog中累计的记录数变化加进来，
+// 读已提交的事务直接用committed，可重复读的事务再减去它看不到的那些事务的变化
+class RowCount {
+
+    private static final int MIN_PRUNE_SIZE = 32;
+
+    private final AOTransactionEngine te;
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private volatile long committed;
+    private int pruneSize = MIN_PRUNE_SIZE;
+
+    RowCount(AOTransactionEngine te, long committed) {
+        this.te = te;
+        this.committed = committed;
+    }
+
+    private static class Change {
+        final AOTransaction t;
+        final long delta;
+
+        Change(AOTransaction t, long delta) {
+            this.t = t;
+            this.delta = delta;
+        }
+
+        // 还没有生成commitTimestamp的事务对所有可重复读的事务都不可见，
+        // 不写redo log的事务没有commitTimestamp，结束后就当成对所有事务可见
+        boolean isVisible(AOTransaction transaction) {
+            if (t == transaction)
+                return true;
+            long commitTimestamp = t.commitTimestamp;
+            if (commitTimestamp > 0)
+                return transaction.transactionId >= commitTimestamp;
+            return t.isClosed();
+        }
+
+        boolean isVisible(long tid) {
+            long commitTimestamp = t.commitTimestamp;
+            if (commitTimestamp > 0)
+                return tid >= commitTimestamp;
+            return t.isClosed();
+        }
+    }
+
+    long get() {
+        return committed;
+    }
+
+    // 只需要遍历还没有被清理的变化，它们的个数跟并发提交的事务数和最老的可重复读事务有关，跟记录数无关
+    synchronized long get(AOTransaction transaction) {
+        long count = committed;
+        for (Change c : changes) {
+            if (!c.isVisible(transaction))
+                count -= c.delta;
+        }
+        return count;
+    }
+
+    synchronized void commit(AOTransaction t, long delta) {
+        committed += delta;
+        changes.add(new Change(t, delta));
+        if (changes.size() >= pruneSize) {
+            prune();
+            pruneSize = Math.max(MIN_PRUNE_SIZE, changes.size() * 2);
+        }
+    }
+
+    // 对所有现有的和以后的可重复读事务都可见的变化就不用再保留了
+    private void prune() {
+        long minTid = te.getLowWatermark();
+        for (Iterator<Change> it = changes.iterator(); it.hasNext();) {
+            if (it.next().isVisible(minTid))
+                it.remove();
+        }
+    }
+
+    synchronized void reset(long committed) {
+        this.committed = committed;
+        changes.clear();
+        pruneSize = MIN_PRUNE_SIZE;
+    }
+}
@@ -7,7 +7,6 @@ package com.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.lealone.common.exceptions.DbException;
@@ -26,16 +25,15 @@ import com.lealone.transaction.aote.lock.RowLock;
 //每个表的每一条记录都对应这个类的一个实例，所以不能随意在这个类中加新的字段，否则会占用很多内存
 public class TransactionalValue extends LockableBase {
 
+    // 记录的旧版本，从新到旧串成一个链表直接挂在记录上，
+    // 提交时间戳为tid的事务修改了记录之后，只有比tid小的可重复读事务才需要看到value
     public static class OldValue {
         final long tid;
-        final Object key;
-        final Object value;
-        OldValue next;
-        boolean useLast;
+        final Object value; // 为null时说明记录是被这个事务insert的
+        volatile OldValue next;
 
-        public OldValue(long tid, Object key, Object value) {
+        public OldValue(long tid, Object value) {
             this.tid = tid;
-            this.key = key;
             this.value = value;
         }
     }
@@ -131,6 +129,8 @@ public class TransactionalValue extends LockableBase {
                 : transaction.getIsolationLevel();
 
         Lock lock = lockable.getLock();
+        if (isolationLevel >= Transaction.IL_REPEATABLE_READ && (lock == null || lock.isPageLock()))
+            return getSnapshotValue(lockable, lock, transaction.getTransactionId());
         LockOwner lockOwner;
         AOTransaction t;
         if (lock == null) { // 如果没有锁了也不能立刻返回，要考虑可重复读的场景
@@ -168,31 +168,19 @@ public class TransactionalValue extends LockableBase {
             if (t != null && t.commitTimestamp > 0 && tid >= t.commitTimestamp) {
                 return getValue(lockable);
             }
-            ConcurrentHashMap<Lockable, Object> oldValueCache = map.getOldValueCache();
-            OldValue oldValue = (OldValue) oldValueCache.get(lockable);
-            if (oldValue != null) {
-                if (tid >= oldValue.tid) {
-                    if (t != null && lockOwner.getOldValue() != null) {
+            OldValue oldValue = (OldValue) lockable.getOldVersion();
+            // 没有旧版本或者最近一次提交的版本就能看到
+            if (oldValue == null || tid >= oldValue.tid) {
+                if (t != null) {
+                    if (lockOwner.getOldValue() != null)
                         return lockable.copy(lockOwner.getOldValue(), lock);
-                    } else {
-                        return maybeDeleted(lockable);
-                    }
-                }
-                while (oldValue != null) {
-                    if (tid >= oldValue.tid)
-                        return lockable.copy(oldValue.value, lock);
-                    oldValue = oldValue.next;
+                    else
+                        return SIGHTLESS; // 刚刚insert但是还没有提交的记录
+                } else {
+                    return getValue(lockable);
                 }
-                return SIGHTLESS; // insert成功后的记录，旧事务看不到
-            }
-            if (t != null) {
-                if (lockOwner.getOldValue() != null)
-                    return lockable.copy(lockOwner.getOldValue(), lock);
-                else
-                    return SIGHTLESS; // 刚刚insert但是还没有提交的记录
-            } else {
-                return getValue(lockable);
             }
+            return getOldValue(lockable, lock, oldValue, tid);
         }
         case Transaction.IL_READ_UNCOMMITTED: {
             return getValue(lockable);
@@ -202,6 +190,32 @@ public class TransactionalValue extends LockableBase {
         }
     }
 
+    // 没有行锁时记录的当前值一定是已经提交的，它的提交时间戳就是最新的那个旧版本的tid，
+    // 没有旧版本时对所有事务都可见，所以大多数记录只需要比较一次，不用再检查锁的拥有者和它的提交时间戳
+    private static Object getSnapshotValue(Lockable lockable, Lock lock, long tid) {
+        OldValue oldValue = (OldValue) lockable.getOldVersion();
+        if (oldValue == null || tid >= oldValue.tid)
+            return getValue(lockable);
+        return getOldValue(lockable, lock, oldValue, tid);
+    }
+
+    private static Object getOldValue(Lockable lockable, Lock lock, OldValue oldValue, long tid) {
+        while (oldValue.next != null && tid < oldValue.next.tid) {
+            oldValue = oldValue.next;
+        }
+        if (oldValue.value != null)
+            return lockable.copy(oldValue.value, lock);
+        else
+            return SIGHTLESS; // insert成功后的记录，旧事务看不到
+    }
+
+    // 最近一次提交的版本是不是在tid之后提交的，
+    // 只要还有可重复读的事务，每次提交都会在记录上增加一个带提交时间戳的旧版本
+    public static boolean isCommittedAfter(Lockable lockable, long tid) {
+        OldValue oldValue = (OldValue) lockable.getOldVersion();
+        return oldValue != null && oldValue.tid > tid;
+    }
+
     private static Object getValue(Lockable lockable) {
         // 已经删除
         if (lockable.getLockedValue() == null)
@@ -264,7 +278,7 @@ public class TransactionalValue extends LockableBase {
         return lock.addWaitingTransaction(lockable, lock.getTransaction(), t.getSession());
     }
 
-    public static void commit(boolean isInsert, StorageMap<?, ?> map, Object key, Lockable lockable) {
+    public static void commit(StorageMap<?, ?> map, Object key, Lockable lockable) {
         if (lockable.isNoneLock())
             return;
         RowLock rowLock = (RowLock) lockable.getLock();
@@ -272,36 +286,19 @@ public class TransactionalValue extends LockableBase {
         if (t == null)
             return;
         AOTransactionEngine te = t.transactionEngine;
+        // 没有可重复读的事务时不需要旧版本，之后开始的可重复读事务的tid一定比commitTimestamp大
         if (te.containsRepeatableReadTransactions()) {
             // 如果parent不为null就用parent的commitTimestamp，比如执行异步索引操作时就要用parent的commitTimestamp
             Transaction parent = t.getParentTransaction();
             long commitTimestamp = parent != null ? parent.getCommitTimestamp() : t.commitTimestamp;
-            ConcurrentHashMap<Lockable, Object> oldValueCache = map.getOldValueCache();
-            Object value = lockable.getLockedValue();
-            if (isInsert) {
-                OldValue v = new OldValue(commitTimestamp, key, value);
-                oldValueCache.put(lockable, v);
-            } else {
-                long maxTid = te.getMaxRepeatableReadTransactionId();
-                OldValue old = (OldValue) oldValueCache.get(lockable);
-                // 如果现有的版本已经足够给所有的可重复读事务使用了，那就不再加了
-                if (old != null && old.tid > maxTid) {
-                    old.useLast = true;
-                    return;
-                }
-                OldValue v = new OldValue(commitTimestamp, key, rowLock.getOldValue());
-                if (old == null) {
-                    OldValue ov = new OldValue(0, key, rowLock.getOldValue());
-                    v.next = ov;
-                } else if (old.useLast) {
-                    OldValue ov = new OldValue(old.tid + 1, key, rowLock.getOldValue());
-                    ov.next = old;
-                    v.next = ov;
-                } else {
-                    v.next = old;
-                }
-                oldValueCache.put(lockable, v);
-            }
+            // insert时rowLock中的旧值是null
+            OldValue v = new OldValue(commitTimestamp, rowLock.getOldValue());
+            OldValue head;
+            do {
+                head = (OldValue) lockable.getOldVersion();
+                v.next = head;
+            } while (!lockable.compareAndSetOldVersion(head, v));
+            te.addOldValue(map, key, lockable, v);
         }
     }
 
@@ -10,6 +10,7 @@ import java.nio.ByteBuffer;
 import com.lealone.db.DataBuffer;
 import com.lealone.db.lock.Lock;
 import com.lealone.db.lock.Lockable;
+import com.lealone.db.value.Value;
 import com.lealone.db.value.ValueArray;
 import com.lealone.storage.type.StorageDataType;
 
@@ -105,6 +106,18 @@ public class TransactionalValueType implements StorageDataType {
         valueType.readColumn(buff, v.getValue(), columnIndex, formatVersion);
     }
 
+    @Override
+    public Value getColumn(Object obj, int columnIndex) {
+        Lockable v = (Lockable) obj;
+        return valueType.getColumn(v.getValue(), columnIndex);
+    }
+
+    @Override
+    public void setColumn(Object obj, int columnIndex, Value value) {
+        Lockable v = (Lockable) obj;
+        valueType.setColumn(v.getValue(), columnIndex, value);
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         valueType.setColumns(oldObj, newObj, columnIndexes);
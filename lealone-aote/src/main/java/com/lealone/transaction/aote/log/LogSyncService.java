@@ -9,6 +9,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import com.lealone.common.exceptions.DbException;
 import com.lealone.common.logging.Logger;
@@ -29,11 +32,22 @@ public abstract class LogSyncService extends Thread {
     public static final String LOG_SYNC_TYPE_PERIODIC = "periodic";
     public static final String LOG_SYNC_TYPE_INSTANT = "instant";
     public static final String LOG_SYNC_TYPE_NO_SYNC = "no_sync";
+    public static final String LOG_SYNC_TYPE_GROUP = "group";
+
+    // 第0个桶是小于1微秒的，第i个桶是[2^(i-1), 2^i)微秒，最后一个桶包含更大的
+    public static final int SYNC_LATENCY_BUCKETS = 24;
 
     private final Awaiter awaiter = new Awaiter(logger);
     private final AtomicLong redoLogRecordCount = new AtomicLong();
     private final AtomicLong lastLogId = new AtomicLong();
 
+    // fsync的统计信息
+    private final LongAdder addedRecordCount = new LongAdder();
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder syncedRecordCount = new LongAdder();
+    private final LongAdder totalSyncNanos = new LongAdder();
+    private final AtomicLongArray syncLatencyHistogram = new AtomicLongArray(SYNC_LATENCY_BUCKETS);
+
     private final InternalScheduler[] waitingSchedulers;
     private final RedoLog redoLog;
     private final long loopInterval;
@@ -100,6 +114,50 @@ public abstract class LogSyncService extends Thread {
         return running;
     }
 
+    public long getAddedRecordCount() {
+        return addedRecordCount.sum();
+    }
+
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    public long getSyncedRecordCount() {
+        return syncedRecordCount.sum();
+    }
+
+    public long getTotalSyncNanos() {
+        return totalSyncNanos.sum();
+    }
+
+    // 平均每次fsync提交了多少个事务
+    public double getCommitsPerSync() {
+        long count = syncCount.sum();
+        return count == 0 ? 0 : (double) syncedRecordCount.sum() / count;
+    }
+
+    public long[] getSyncLatencyHistogram() {
+        long[] histogram = new long[SYNC_LATENCY_BUCKETS];
+        for (int i = 0; i < SYNC_LATENCY_BUCKETS; i++) {
+            histogram[i] = syncLatencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    // 由RedoLog在每次fsync之后调用
+    void onSynced(int recordCount, long latencyNanos) {
+        syncCount.increment();
+        syncedRecordCount.add(recordCount);
+        totalSyncNanos.add(latencyNanos);
+        long micros = latencyNanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        syncLatencyHistogram.incrementAndGet(Math.min(bucket, SYNC_LATENCY_BUCKETS - 1));
+    }
+
+    // 在写redo log之前调用，子类可以等待更多的事务一起fsync
+    protected void beforeSave() {
+    }
+
     @Override
     public void run() {
         running = true;
@@ -107,8 +165,10 @@ public abstract class LogSyncService extends Thread {
         long cpLoopInterval = checkpointService.getLoopInterval();
         while (running) {
             try {
-                if (redoLogRecordCount.get() > 0)
+                if (redoLogRecordCount.get() > 0) {
+                    beforeSave();
                     redoLog.save();
+                }
                 redoLog.runPendingTransactions();
                 if (MemoryManager.needFullGc())
                     checkpointService.fullGc();
@@ -133,6 +193,7 @@ public abstract class LogSyncService extends Thread {
             redoLog.runPendingTransactions();
             if (!redoLog.hasPendingTransactions())
                 checkpointService.run();
+            redoLog.close();
         } finally {
             if (latchOnClose != null)
                 latchOnClose.countDown();
@@ -159,6 +220,7 @@ public abstract class LogSyncService extends Thread {
     private void wakeUp(InternalScheduler scheduler) {
         waitingSchedulers[scheduler.getId()] = scheduler;
         redoLogRecordCount.getAndIncrement();
+        addedRecordCount.increment();
         wakeUp();
     }
 
@@ -200,6 +262,8 @@ public abstract class LogSyncService extends Thread {
             logSyncService = new Periodic(config);
         else if (LOG_SYNC_TYPE_INSTANT.equalsIgnoreCase(logSyncType))
             logSyncService = new Instant(config);
+        else if (LOG_SYNC_TYPE_GROUP.equalsIgnoreCase(logSyncType))
+            logSyncService = new Group(config);
         else if (LOG_SYNC_TYPE_NO_SYNC.equalsIgnoreCase(logSyncType))
             logSyncService = new NoSync(config);
         else
@@ -296,4 +360,76 @@ public abstract class LogSyncService extends Thread {
                 t.asyncCommitComplete();
         }
     }
+
+    // 跟Instant一样事务要等到fsync完成，但是会根据fsync的耗时和事务的到达速度自适应地等待一小段时间，
+    // 让更多的事务在一次fsync中完成
+    private static class Group extends Instant {
+
+        private static final double EWMA_ALPHA = 0.2;
+        private static final long PARK_NANOS = 20 * 1000;
+
+        private final long maxWaitNanos;
+        private final long maxRecords;
+
+        private double syncNanos; // fsync耗时的移动平均值
+        private double arrivalRate; // 平均每纳秒到达多少个事务
+        private long lastSyncCount;
+        private long lastTotalSyncNanos;
+        private long lastAddedRecordCount;
+        private long lastCheckedAt;
+
+        Group(Map<String, String> config) {
+            super(config);
+            // 单位是微秒
+            maxWaitNanos = MapUtils.getLong(config, "log_sync_group_max_wait", 2000) * 1000;
+            maxRecords = MapUtils.getLong(config, "log_sync_group_max_records", 1024);
+            lastCheckedAt = System.nanoTime();
+        }
+
+        @Override
+        protected void beforeSave() {
+            updateStats();
+            long window = Math.min(maxWaitNanos, (long) syncNanos);
+            AtomicLong count = getRedoLogRecordCount();
+            long pending = count.get();
+            // 到达速度太慢时等不到新事务，直接fsync
+            double expected = arrivalRate * window;
+            if (pending >= maxRecords || expected < 1)
+                return;
+            long target = Math.min(maxRecords, pending + (long) expected);
+            long deadline = System.nanoTime() + window;
+            while (count.get() < target && isRunning()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(Math.min(remaining, PARK_NANOS));
+            }
+        }
+
+        private void updateStats() {
+            long now = System.nanoTime();
+            long added = getAddedRecordCount();
+            long elapsed = now - lastCheckedAt;
+            if (elapsed > 0) {
+                double rate = (double) (added - lastAddedRecordCount) / elapsed;
+                arrivalRate = arrivalRate == 0 ? rate : ewma(arrivalRate, rate);
+            }
+            lastAddedRecordCount = added;
+            lastCheckedAt = now;
+
+            long syncCount = getSyncCount();
+            if (syncCount > lastSyncCount) {
+                long totalSyncNanos = getTotalSyncNanos();
+                double latency = (double) (totalSyncNanos - lastTotalSyncNanos)
+                        / (syncCount - lastSyncCount);
+                syncNanos = syncNanos == 0 ? latency : ewma(syncNanos, latency);
+                lastSyncCount = syncCount;
+                lastTotalSyncNanos = totalSyncNanos;
+            }
+        }
+
+        private static double ewma(double avg, double sample) {
+            return avg + EWMA_ALPHA * (sample - avg);
+        }
+    }
 }
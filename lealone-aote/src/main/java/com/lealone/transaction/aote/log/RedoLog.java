@@ -57,6 +57,7 @@ public class RedoLog {
             = new LinkedHashMap<>();
     private long lastTransactionId;
     private int syncServiceIndex;
+    private WriteAheadLog wal; // 为null时redo log写到每个map自己的chunk中
 
     public RedoLog(Map<String, String> config, LogSyncService logSyncService) {
         this.config = config;
@@ -88,6 +89,23 @@ public class RedoLog {
         this.syncServiceIndex = syncServiceIndex;
     }
 
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    // 只有第一个LogSyncService会调用，所有map的redo log都由它来写
+    public void initWriteAheadLog() {
+        if (WriteAheadLog.isEnabled(config)) {
+            wal = new WriteAheadLog(config);
+            wal.init();
+        }
+    }
+
+    public void close() {
+        if (wal != null)
+            wal.close();
+    }
+
     // 兼容老版本的redo log
     public void init() {
         String logDir = getLogDir();
@@ -181,7 +199,7 @@ public class RedoLog {
             }
             if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
                 for (ByteBuffer kv : pendingKeyValues) {
-                    redo(map, indexMaps, kt, vt, kv, handler, FormatVersion.FORMAT_VERSION_1);
+                    redo(map, indexMaps, kt, vt, kv, handler, FormatVersion.FORMAT_VERSION_1, true);
                 }
                 map.save();
             }
@@ -196,14 +214,27 @@ public class RedoLog {
         ByteBuffer log = map.readRedoLog();
         if (log != null) {
             while (log.hasRemaining()) {
-                redo(map, indexMaps, kt, vt, log, handler, FormatVersion.FORMAT_VERSION);
+                redo(map, indexMaps, kt, vt, log, handler, FormatVersion.FORMAT_VERSION, true);
+            }
+        }
+
+        // 预写日志中一个事务只有一条记录，要么完整要么被丢弃，所以涉及多个map的事务不需要再验证
+        if (wal != null) {
+            List<ByteBuffer> logs = wal.removePendingRedoLog(map.getName());
+            if (logs != null) {
+                for (ByteBuffer buff : logs) {
+                    while (buff.hasRemaining()) {
+                        redo(map, indexMaps, kt, vt, buff, handler, FormatVersion.FORMAT_VERSION,
+                                false);
+                    }
+                }
             }
         }
     }
 
     private void redo(StorageMap<Object, Object> map, List<StorageMap<Object, Object>> indexMaps,
             StorageDataType kt, StorageDataType vt, ByteBuffer kv, AsyncResultHandler<Object> handler,
-            int formatVersion) {
+            int formatVersion, boolean validate) {
         Object key;
         byte type;
         int metaVersion = 0;
@@ -220,7 +251,7 @@ public class RedoLog {
                 metaVersion = DataUtils.readVarInt(kv);
             } else if (type > 1) {
                 long transactionId = DataUtils.readVarLong(kv);
-                if (!readMapNames(map, kv, transactionId)) {
+                if (!readMapNames(map, kv, transactionId, validate)) {
                     kv.position(pos + len); // 无效的事务直接忽略
                     return;
                 }
@@ -268,11 +299,12 @@ public class RedoLog {
         }
     }
 
-    private boolean readMapNames(StorageMap<Object, Object> map, ByteBuffer buff, long transactionId) {
+    private boolean readMapNames(StorageMap<Object, Object> map, ByteBuffer buff, long transactionId,
+            boolean validate) {
         int size = DataUtils.readVarInt(buff);
         for (int i = 0; i < size; i++) {
             String mapName = ValueString.type.read(buff);
-            if (!map.getName().equalsIgnoreCase(mapName)) {
+            if (validate && !map.getName().equalsIgnoreCase(mapName)) {
                 // 如果事务涉及的多张表中有系统表，恢复时从其他表验证事务的完整性，因为此时其他表还没有加载
                 StorageMap<?, ?> m = map.getStorage().getMap(mapName);
                 if (m != null && !m.validateRedoLog(transactionId))
@@ -295,6 +327,7 @@ public class RedoLog {
         AtomicLong redoLogRecordCount = logSyncService.getRedoLogRecordCount();
         long logLength = 0;
         int writeCount = 0;
+        int syncRecordCount = 0; // 下一次fsync会提交的事务个数
         while (redoLogRecordCount.get() > 0) {
             // Instant的场景会在while循环内调用sync，所以重新创建，避免重复执行
             if (!isPeriodic) {
@@ -331,12 +364,20 @@ public class RedoLog {
                     }
                     lastTransactionId = pt.getTransaction().getTransactionId();
 
-                    buffLength += r.write(logs, syncServiceIndex);
+                    if (wal != null) {
+                        // 每个事务单独写一条记录
+                        HashMap<String, RedoLogBuffer> rLogs = new HashMap<>();
+                        r.write(rLogs, syncServiceIndex);
+                        buffLength += wal.append(rLogs);
+                    } else {
+                        buffLength += r.write(logs, syncServiceIndex);
+                    }
                     if (buffLength > BUFF_SIZE) {
                         buffLength = 0;
                         logLength += write(logs);
                     }
                     redoLogRecordCount.decrementAndGet();
+                    syncRecordCount++;
                     // 提前设置已经同步完成，让调度线程及时回收PendingTransaction
                     if (isPeriodic) {
                         setSynced(pt);
@@ -358,7 +399,8 @@ public class RedoLog {
 
             if (logLength > 0 && !isPeriodic) {
                 logLength = 0;
-                sync(logs);
+                sync(logs, syncRecordCount);
+                syncRecordCount = 0;
             }
             for (int i = 0; i < waitingSchedulerCount; i++) {
                 InternalScheduler scheduler = waitingSchedulers[i];
@@ -378,7 +420,7 @@ public class RedoLog {
             }
         }
         if (logLength > 0 && isPeriodic) {
-            sync(logs);
+            sync(logs, syncRecordCount);
         }
     }
 
@@ -431,6 +473,8 @@ public class RedoLog {
     }
 
     private int write(Map<String, RedoLogBuffer> logs) {
+        if (wal != null)
+            return wal.write();
         int length = 0;
         for (RedoLogBuffer logBuffer : logs.values()) {
             length += logBuffer.writeRedoLog();
@@ -438,10 +482,16 @@ public class RedoLog {
         return length;
     }
 
-    private void sync(Map<String, RedoLogBuffer> logs) {
-        for (RedoLogBuffer logBuffer : logs.values()) {
-            logBuffer.sync();
+    private void sync(Map<String, RedoLogBuffer> logs, int recordCount) {
+        long start = System.nanoTime();
+        if (wal != null) {
+            wal.sync();
+        } else {
+            for (RedoLogBuffer logBuffer : logs.values()) {
+                logBuffer.sync();
+            }
         }
+        logSyncService.onSynced(recordCount, System.nanoTime() - start);
         runPendingTransactions();
     }
 
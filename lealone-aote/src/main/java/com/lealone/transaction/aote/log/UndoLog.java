@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.ObjLongConsumer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -36,6 +37,11 @@ public class UndoLog {
     private Set<Integer> redoLogServiceIndexs;
     private int lastLogServiceIndex = -1;
 
+    // 事务对每个map的记录数的影响，跟maps字段一样，只涉及一个map时不用HashMap
+    private StorageMap<?, ?> lastSizeMap;
+    private long lastSizeDelta;
+    private HashMap<StorageMap<?, ?>, long[]> sizeDeltas;
+
     public UndoLog(AOTransaction t) {
         this.t = t;
     }
@@ -128,6 +134,7 @@ public class UndoLog {
     }
 
     private UndoLogRecord add(UndoLogRecord r) {
+        addSizeDelta(r.map, r.sizeDelta);
         if (first == null) {
             first = last = r;
         } else {
@@ -149,10 +156,57 @@ public class UndoLog {
                 first = null;
             }
             --logId;
+            addSizeDelta(r.map, -r.sizeDelta);
         }
         return r;
     }
 
+    // 插入失败或重复时撤销这条记录，它对记录数的影响也要去掉
+    public void cancel(UndoLogRecord r) {
+        r.setUndone(true);
+        addSizeDelta(r.map, -r.sizeDelta);
+        r.sizeDelta = 0;
+    }
+
+    private void addSizeDelta(StorageMap<?, ?> map, int delta) {
+        if (delta == 0)
+            return;
+        if (sizeDeltas == null) {
+            if (lastSizeMap == null || lastSizeMap == map) {
+                lastSizeMap = map;
+                lastSizeDelta += delta;
+                return;
+            }
+            sizeDeltas = new HashMap<>();
+            sizeDeltas.put(lastSizeMap, new long[] { lastSizeDelta });
+        }
+        long[] d = sizeDeltas.get(map);
+        if (d == null)
+            sizeDeltas.put(map, new long[] { delta });
+        else
+            d[0] += delta;
+    }
+
+    // 当前事务还没有提交的insert和delete让map的记录数增加或减少了多少
+    public long getSizeDelta(StorageMap<?, ?> map) {
+        if (sizeDeltas == null)
+            return lastSizeMap == map ? lastSizeDelta : 0;
+        long[] d = sizeDeltas.get(map);
+        return d == null ? 0 : d[0];
+    }
+
+    public void forEachSizeDelta(ObjLongConsumer<StorageMap<?, ?>> action) {
+        if (sizeDeltas == null) {
+            if (lastSizeMap != null && lastSizeDelta != 0)
+                action.accept(lastSizeMap, lastSizeDelta);
+        } else {
+            for (Map.Entry<StorageMap<?, ?>, long[]> e : sizeDeltas.entrySet()) {
+                if (e.getValue()[0] != 0)
+                    action.accept(e.getKey(), e.getValue()[0]);
+            }
+        }
+    }
+
     public int commit(AOTransactionEngine te) {
         UndoLogRecord r = first;
         while (r != null) {
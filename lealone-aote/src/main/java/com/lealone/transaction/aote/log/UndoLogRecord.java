@@ -27,6 +27,7 @@ public abstract class UndoLogRecord {
     protected final Lockable lockable;
     protected final Object oldValue;
     protected boolean undone;
+    int sizeDelta; // 对map的记录数的影响，insert是1，delete是-1，update是0
 
     UndoLogRecord next;
     UndoLogRecord prev;
@@ -37,6 +38,7 @@ public abstract class UndoLogRecord {
         this.key = key;
         this.lockable = lockable;
         this.oldValue = oldValue;
+        sizeDelta = (lockable.getLockedValue() != null ? 1 : 0) - (oldValue != null ? 1 : 0);
     }
 
     public void setUndone(boolean undone) {
@@ -56,13 +58,13 @@ public abstract class UndoLogRecord {
             return;
 
         if (oldValue == null) { // insert
-            TransactionalValue.commit(true, map, key, lockable);
+            TransactionalValue.commit(map, key, lockable);
         } else if (lockable.getLockedValue() == null) { // delete
             if (!te.containsRepeatableReadTransactions()) {
                 lockable.getPageListener().getPageReference().remove(key);
             } else {
                 map.decrementSize(); // 要减去1
-                TransactionalValue.commit(false, map, key, lockable);
+                TransactionalValue.commit(map, key, lockable);
             }
         } else { // update
             commitUpdate();
@@ -125,7 +127,7 @@ public abstract class UndoLogRecord {
             if (memory != 0)
                 lockable.getPageListener().getPageReference().addPageUsedMemory(memory);
 
-            TransactionalValue.commit(false, map, key, lockable);
+            TransactionalValue.commit(map, key, lockable);
         }
 
         @Override // 写redo log时，不关心oldValue
@@ -0,0 +1,482 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.transaction.aote.log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+import com.lealone.common.logging.Logger;
+import com.lealone.common.logging.LoggerFactory;
+import com.lealone.common.util.DataUtils;
+import com.lealone.common.util.MapUtils;
+import com.lealone.db.Constants;
+import com.lealone.db.DataBuffer;
+import com.lealone.db.value.ValueString;
+import com.lealone.storage.StorageMap.RedoLogBuffer;
+import com.lealone.storage.fs.FilePath;
+import com.lealone.storage.fs.FileStorage;
+import com.lealone.storage.fs.FileUtils;
+
+/**
+ * 所有需要写redo log的map共用一个预写日志，一个事务只写一条记录，不管涉及多少个map都只需要一次fsync。
+ *
+ * <p>
+ * 日志按段存放在多个文件中，每个段文件的开头是这个段的起始位置(lsn)，后面是多条记录，
+ * 每条记录的格式: length(int) + checksum(int) + mapCount(varInt) + [mapName + logLength(int) + log]...
+ * 其中log跟写到chunk中的redo log格式一样，logLength为-1表示这个map被删除了，为-2表示这个map被清空了，
+ * 恢复时都会丢弃这个map在它们之前的记录。
+ *
+ * <p>
+ * 执行检查点时，所有map都已经不需要的段会被删除。
+ *
+ * <p>
+ * 默认会预先分配段文件的空间并填0，这样写记录时文件大小不会变，fsync时只需要刷数据不用刷元数据，
+ * 不再需要的段也不删除，改名后留给新的段复用。
+ * 复用的段文件后面还有旧的记录，所以checksum会把记录的lsn也算进去，恢复时旧的记录校验不通过，读到它就结束。
+ */
+public class WriteAheadLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal" + Constants.NAME_SEPARATOR;
+    private static final String FREE_SEGMENT_PREFIX = "free" + Constants.NAME_SEPARATOR;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int DROPPED_MAP = -1;
+    private static final int CLEARED_MAP = -2;
+    private static final int ZERO_BUFFER_SIZE = 256 * 1024;
+
+    public static final String SYNC_MODE_FSYNC = "fsync";
+    public static final String SYNC_MODE_FDATASYNC = "fdatasync";
+    public static final String SYNC_MODE_RWD = "rwd"; // 每次写都同步数据
+    public static final String SYNC_MODE_RWS = "rws"; // 每次写都同步数据和元数据
+
+    private final Map<String, String> config;
+    private final String walDir;
+    private final long segmentSize;
+    private final boolean preallocate;
+    private final int maxFreeSegments;
+    private final String syncMode;
+    private final Map<String, String> segmentConfig; // 打开段文件时用的配置
+
+    // 按lsn从小到大排序，最后一个是正在写的段
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    // 可以复用的段文件
+    private final LinkedList<String> freeSegments = new LinkedList<>();
+    private long nextFreeSeq = 1;
+    private Segment current;
+    private long nextSeq = 1;
+
+    private final DataBuffer buffer = DataBuffer.createDirect(); // 还没有写到文件的记录
+    private volatile long lsn; // 下一条记录的位置
+    private long writtenLsn; // 已经写到文件的位置
+
+    private final ConcurrentHashMap<String, MapState> mapStates = new ConcurrentHashMap<>();
+
+    // 恢复时读出来的每个map的redo log，key: mapName
+    private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
+
+    // 记录每个map还需要哪些日志
+    private static class MapState {
+        long firstLsn = -1; // 还没有刷到硬盘的第一条记录的位置，-1表示都不需要了
+        long lastLsn = -1; // 最后一条记录的位置
+        long lastCheckpointLsn = -1; // 上一次执行检查点时的位置
+    }
+
+    private static class Segment {
+        final long seq;
+        final long startLsn;
+        final String fileName;
+        FileStorage fileStorage;
+        long writePos = SEGMENT_HEADER_SIZE; // 预分配空间后文件大小不再是写的位置
+
+        Segment(long seq, long startLsn, String fileName) {
+            this.seq = seq;
+            this.startLsn = startLsn;
+            this.fileName = fileName;
+        }
+
+        void close() {
+            if (fileStorage != null) {
+                fileStorage.close();
+                fileStorage = null;
+            }
+        }
+    }
+
+    public WriteAheadLog(Map<String, String> config) {
+        this.config = config;
+        walDir = config.get("base_dir") + File.separator + MapUtils.getString(config, "wal_dir", "wal");
+        segmentSize = MapUtils.getLongMB(config, "wal_segment_size", 64 * 1024 * 1024);
+        preallocate = MapUtils.getBoolean(config, "wal_preallocate", true);
+        maxFreeSegments = MapUtils.getInt(config, "wal_max_free_segments", 4);
+        syncMode = MapUtils.getString(config, "wal_sync_mode", SYNC_MODE_FDATASYNC).toLowerCase();
+        switch (syncMode) {
+        case SYNC_MODE_FSYNC:
+        case SYNC_MODE_FDATASYNC:
+        case SYNC_MODE_RWD:
+        case SYNC_MODE_RWS:
+            break;
+        default:
+            throw DataUtils.newIllegalArgumentException("Unsupported wal_sync_mode: {0}", syncMode);
+        }
+        segmentConfig = new HashMap<>(config);
+        if (syncMode.startsWith("rw"))
+            segmentConfig.put("mode", syncMode);
+    }
+
+    public static boolean isEnabled(Map<String, String> config) {
+        return MapUtils.getBoolean(config, "wal_enabled", false);
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized int getFreeSegmentCount() {
+        return freeSegments.size();
+    }
+
+    // 读出所有段中的记录，按map分组，等到map打开时再redo
+    public void init() {
+        if (!FileUtils.exists(walDir)) {
+            FileUtils.createDirectories(walDir);
+            return;
+        }
+        boolean stopped = false;
+        for (long seq : getAllSegmentSeqs()) {
+            String fileName = getFileName(seq);
+            nextSeq = seq + 1;
+            // 前面的段中有损坏的记录，它后面的记录都不能再redo了
+            if (stopped) {
+                FileUtils.tryDelete(fileName);
+                continue;
+            }
+            FileStorage fileStorage = FileStorage.open(fileName, config);
+            long endLsn = -1;
+            try {
+                int size = (int) fileStorage.size();
+                if (size >= SEGMENT_HEADER_SIZE) {
+                    ByteBuffer buff = fileStorage.readFully(0, size);
+                    long startLsn = buff.getLong();
+                    // 上一个段没有读到结尾，说明中间有记录损坏了
+                    if (!segments.isEmpty() && startLsn != writtenLsn) {
+                        logger.warn("Invalid wal record at lsn {}, ignore the records after it",
+                                writtenLsn);
+                        stopped = true;
+                    } else {
+                        read(buff, startLsn);
+                        endLsn = startLsn + buff.position() - SEGMENT_HEADER_SIZE;
+                        segments.add(new Segment(seq, startLsn, fileName));
+                    }
+                }
+            } finally {
+                fileStorage.close();
+            }
+            if (endLsn < 0) // 创建后还没有写完段头或者在损坏的记录之后
+                FileUtils.tryDelete(fileName);
+            else
+                lsn = writtenLsn = endLsn;
+        }
+        for (FilePath fp : FilePath.get(walDir).newDirectoryStream()) {
+            String fullName = fp.getName();
+            if (fullName.startsWith(FREE_SEGMENT_PREFIX)) {
+                String fileName = walDir + File.separator + fullName;
+                if (preallocate && freeSegments.size() < maxFreeSegments) {
+                    freeSegments.add(fileName);
+                    long seq = Long.parseLong(fullName.substring(FREE_SEGMENT_PREFIX.length()));
+                    nextFreeSeq = Math.max(nextFreeSeq, seq + 1);
+                } else {
+                    FileUtils.tryDelete(fileName);
+                }
+            }
+        }
+    }
+
+    // 遇到不完整的记录就结束，它后面的数据都是没有fsync成功的，
+    // 预分配的段读到填充的0就结束，复用的段读到旧的记录也会因为lsn不同校验不通过
+    private void read(ByteBuffer buff, long startLsn) {
+        while (buff.remaining() >= RECORD_HEADER_SIZE) {
+            int pos = buff.position();
+            int len = buff.getInt();
+            int checksum = buff.getInt();
+            if (len <= 0 || len > buff.remaining()) {
+                buff.position(pos);
+                return;
+            }
+            long recordLsn = startLsn + pos - SEGMENT_HEADER_SIZE;
+            ByteBuffer body = buff.slice(buff.position(), len);
+            if (getChecksum(recordLsn, body.duplicate()) != checksum) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Invalid wal record at lsn {}", recordLsn);
+                buff.position(pos);
+                return;
+            }
+            int mapCount = DataUtils.readVarInt(body);
+            for (int i = 0; i < mapCount; i++) {
+                String mapName = ValueString.type.read(body);
+                int logLength = body.getInt();
+                if (logLength == DROPPED_MAP || logLength == CLEARED_MAP) {
+                    pendingRedoLog.remove(mapName);
+                    mapStates.remove(mapName);
+                    continue;
+                }
+                byte[] log = new byte[logLength];
+                body.get(log);
+                pendingRedoLog.computeIfAbsent(mapName, k -> new ArrayList<>()).add(ByteBuffer.wrap(log));
+                updateMapState(mapName, recordLsn);
+            }
+            buff.position(pos + RECORD_HEADER_SIZE + len);
+        }
+    }
+
+    private List<Long> getAllSegmentSeqs() {
+        ArrayList<Long> seqs = new ArrayList<>();
+        int prefixLength = SEGMENT_PREFIX.length();
+        for (FilePath fp : FilePath.get(walDir).newDirectoryStream()) {
+            String fullName = fp.getName();
+            if (fullName.startsWith(SEGMENT_PREFIX)) {
+                seqs.add(Long.parseLong(fullName.substring(prefixLength)));
+            }
+        }
+        Collections.sort(seqs); // 必须按顺序读，才能正确的redo
+        return seqs;
+    }
+
+    private String getFileName(long seq) {
+        return walDir + File.separator + SEGMENT_PREFIX + seq;
+    }
+
+    // 只在打开map时调用一次，取出后就不再保留
+    public synchronized List<ByteBuffer> removePendingRedoLog(String mapName) {
+        return pendingRedoLog.remove(mapName);
+    }
+
+    private void updateMapState(String mapName, long recordLsn) {
+        MapState state = mapStates.computeIfAbsent(mapName, k -> new MapState());
+        synchronized (state) {
+            if (state.firstLsn < 0)
+                state.firstLsn = recordLsn;
+            state.lastLsn = recordLsn;
+        }
+    }
+
+    // 把一个事务在多个map中的redo log合并成一条记录
+    public synchronized int append(Map<String, RedoLogBuffer> logs) {
+        if (logs.isEmpty())
+            return 0;
+        long recordLsn = lsn;
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putVarInt(logs.size());
+        for (RedoLogBuffer logBuffer : logs.values()) {
+            String mapName = logBuffer.getMap().getName();
+            DataBuffer log = logBuffer.getLog();
+            ValueString.type.write(buffer, mapName);
+            buffer.putInt(log.position());
+            buffer.put(log.getAndFlipBuffer());
+            log.clear();
+            updateMapState(mapName, recordLsn);
+        }
+        return endRecord(start);
+    }
+
+    // 删除map时写一条记录，避免恢复时把旧的redo log用到同名的新map上
+    public synchronized void appendDroppedMap(String mapName) {
+        appendMapMarker(mapName, DROPPED_MAP);
+    }
+
+    // 清空map时不会写redo log，所以也写一条记录，避免恢复时把清空前的记录又放回来，
+    // 清空时map的数据已经从硬盘删除了，所以这条记录要马上写到硬盘
+    public synchronized void appendClearedMap(String mapName) {
+        appendMapMarker(mapName, CLEARED_MAP);
+        write();
+        sync();
+    }
+
+    // 这个map之前的记录都不再需要了
+    private void appendMapMarker(String mapName, int marker) {
+        mapStates.remove(mapName);
+        pendingRedoLog.remove(mapName);
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putVarInt(1);
+        ValueString.type.write(buffer, mapName);
+        buffer.putInt(marker);
+        endRecord(start);
+    }
+
+    private int endRecord(int start) {
+        int len = buffer.position() - start - RECORD_HEADER_SIZE;
+        ByteBuffer body = buffer.getBuffer().duplicate();
+        body.limit(start + RECORD_HEADER_SIZE + len).position(start + RECORD_HEADER_SIZE);
+        buffer.putInt(start, len);
+        buffer.putInt(start + 4, getChecksum(lsn, body));
+        lsn += len + RECORD_HEADER_SIZE;
+        return len + RECORD_HEADER_SIZE;
+    }
+
+    private static int getChecksum(long recordLsn, ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < 8; i++)
+            crc.update((int) (recordLsn >>> (i * 8)));
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    // 记录都是完整的写到同一个段中，段写满了再换新的段
+    public synchronized int write() {
+        int len = buffer.position();
+        if (len == 0)
+            return 0;
+        if (current == null || current.writePos + len > segmentSize
+                && current.writePos > SEGMENT_HEADER_SIZE) {
+            switchSegment();
+        }
+        current.fileStorage.writeFully(current.writePos, buffer.getAndFlipBuffer());
+        current.writePos += len;
+        buffer.clear();
+        writtenLsn += len;
+        return len;
+    }
+
+    private void switchSegment() {
+        if (current != null) {
+            sync(current.fileStorage);
+            current.close();
+        }
+        long seq = nextSeq++;
+        Segment s = new Segment(seq, writtenLsn, getFileName(seq));
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putLong(0, s.startLsn);
+        String freeFileName = freeSegments.pollFirst();
+        if (freeFileName != null) {
+            // 先写新的段头再改名，改名前崩溃的话这个文件还是空闲的，改名后旧的记录都校验不通过
+            FileStorage fileStorage = FileStorage.open(freeFileName, segmentConfig);
+            try {
+                fileStorage.writeFully(0, header);
+                fileStorage.sync();
+            } finally {
+                fileStorage.close();
+            }
+            FileUtils.move(freeFileName, s.fileName);
+            s.fileStorage = FileStorage.open(s.fileName, segmentConfig);
+        } else {
+            s.fileStorage = FileStorage.open(s.fileName, segmentConfig);
+            s.fileStorage.writeFully(0, header);
+            if (preallocate) {
+                fillZero(s.fileStorage);
+                s.fileStorage.sync(); // 文件大小只在这里刷一次
+            }
+        }
+        segments.add(s);
+        current = s;
+    }
+
+    // 真正写0，不用setLength，避免文件系统只是生成稀疏文件，写的时候还要分配空间
+    private void fillZero(FileStorage fileStorage) {
+        ByteBuffer zero = ByteBuffer.allocateDirect(ZERO_BUFFER_SIZE);
+        for (long pos = SEGMENT_HEADER_SIZE; pos < segmentSize; pos += ZERO_BUFFER_SIZE) {
+            zero.clear();
+            if (segmentSize - pos < ZERO_BUFFER_SIZE)
+                zero.limit((int) (segmentSize - pos));
+            fileStorage.writeFully(pos, zero);
+        }
+    }
+
+    private void sync(FileStorage fileStorage) {
+        switch (syncMode) {
+        case SYNC_MODE_FSYNC:
+            fileStorage.sync(true);
+            break;
+        case SYNC_MODE_FDATASYNC:
+            // 预分配空间后文件大小不变，不用刷元数据，段写满时才可能超出预分配的大小
+            fileStorage.sync(!preallocate);
+            break;
+        default:
+            // rwd和rws模式下写的时候已经同步了
+        }
+    }
+
+    public synchronized void sync() {
+        if (current != null)
+            sync(current.fileStorage);
+    }
+
+    private synchronized boolean hasPendingRedoLog(String mapName) {
+        return pendingRedoLog.containsKey(mapName);
+    }
+
+    // 执行检查点时调用，checkpointLsn是检查点开始时的位置，跟chunk中的redo log一样，
+    // 延迟到下一次检查点才丢弃，因为检查点开始前写的redo log对应的事务可能还没有在内存中提交
+    public void onCheckpoint(String mapName, long checkpointLsn) {
+        MapState state = mapStates.get(mapName);
+        if (state == null)
+            return;
+        // 延迟恢复的表在第一次访问前没有脏页，但是它的记录只在pendingRedoLog中，还没有redo，
+        // 此时不能丢弃它需要的段，否则还没访问就崩溃的话已经提交的记录就丢了
+        if (hasPendingRedoLog(mapName))
+            return;
+        synchronized (state) {
+            long lastCheckpointLsn = state.lastCheckpointLsn;
+            if (lastCheckpointLsn >= 0) {
+                if (state.lastLsn < lastCheckpointLsn)
+                    state.firstLsn = -1;
+                else if (state.firstLsn < lastCheckpointLsn)
+                    state.firstLsn = lastCheckpointLsn;
+            }
+            state.lastCheckpointLsn = checkpointLsn;
+        }
+    }
+
+    // 删除所有map都不需要的段
+    public synchronized void truncate() {
+        long minLsn = writtenLsn;
+        for (MapState state : mapStates.values()) {
+            synchronized (state) {
+                if (state.firstLsn >= 0 && state.firstLsn < minLsn)
+                    minLsn = state.firstLsn;
+            }
+        }
+        while (segments.size() > 1) {
+            Segment s = segments.getFirst();
+            if (segments.get(1).startLsn > minLsn)
+                break;
+            segments.removeFirst();
+            s.close();
+            if (preallocate && freeSegments.size() < maxFreeSegments) {
+                String freeFileName = walDir + File.separator + FREE_SEGMENT_PREFIX + nextFreeSeq++;
+                FileUtils.move(s.fileName, freeFileName);
+                freeSegments.add(freeFileName);
+            } else {
+                FileUtils.tryDelete(s.fileName);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        write();
+        if (current != null) {
+            sync(current.fileStorage);
+            current.close();
+            current = null;
+        }
+    }
+}
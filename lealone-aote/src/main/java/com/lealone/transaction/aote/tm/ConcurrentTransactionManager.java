@@ -8,15 +8,24 @@ package com.lealone.transaction.aote.tm;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 
 import com.lealone.transaction.aote.AOTransaction;
 import com.lealone.transaction.aote.AOTransactionEngine;
 
 public class ConcurrentTransactionManager extends TransactionManager {
 
+    // 不在调度线程中开始的事务通常不多，用固定大小的槽位数组记录，遍历时不用复制，
+    // 槽位都被占用时才放到overflowTransactions中
+    private static final int SLOT_COUNT = 64;
+
+    private final AtomicReferenceArray<AOTransaction> slots = new AtomicReferenceArray<>(SLOT_COUNT);
     // key: transactionId
-    private final ConcurrentHashMap<Long, AOTransaction> currentTransactions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, AOTransaction> overflowTransactions = new ConcurrentHashMap<>();
     private final AtomicInteger currentTransactionCount = new AtomicInteger();
+    // 下一次从哪个槽位开始找空位，只是一个提示
+    private volatile int nextSlot;
 
     public ConcurrentTransactionManager(AOTransactionEngine te) {
         super(te);
@@ -24,8 +33,19 @@ public class ConcurrentTransactionManager extends TransactionManager {
 
     @Override
     public AOTransaction removeTransaction(long tid, int bitIndex) {
-        currentTransactionCount.decrementAndGet();
-        AOTransaction t = currentTransactions.remove(tid);
+        AOTransaction t;
+        if (bitIndex >= 0) {
+            t = slots.get(bitIndex);
+            // 并发提交时只有一个线程能把槽位置null
+            if (t == null || t.getTransactionId() != tid || !slots.compareAndSet(bitIndex, t, null))
+                t = null;
+            else
+                nextSlot = bitIndex;
+        } else {
+            t = overflowTransactions.remove(tid);
+        }
+        if (t != null)
+            currentTransactionCount.decrementAndGet();
         super.removeTransaction(t);
         return t;
     }
@@ -33,16 +53,68 @@ public class ConcurrentTransactionManager extends TransactionManager {
     @Override
     public void addTransaction(AOTransaction t) {
         currentTransactionCount.incrementAndGet();
-        currentTransactions.put(t.getTransactionId(), t);
+        int start = nextSlot;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            int index = (start + i) % SLOT_COUNT;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, t)) {
+                t.setBitIndex(index);
+                nextSlot = (index + 1) % SLOT_COUNT;
+                return;
+            }
+        }
+        t.setBitIndex(-1);
+        overflowTransactions.put(t.getTransactionId(), t);
     }
 
     @Override
     public void currentTransactions(List<AOTransaction> list) {
-        list.addAll(currentTransactions.values());
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            AOTransaction t = slots.get(i);
+            if (t != null)
+                list.add(t);
+        }
+        if (!overflowTransactions.isEmpty())
+            list.addAll(overflowTransactions.values());
     }
 
     @Override
     public int currentTransactionCount() {
         return currentTransactionCount.get();
     }
+
+    @Override
+    public long getMinRepeatableReadTransactionId(long minTid) {
+        if (currentTransactionCount.get() == 0)
+            return minTid;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            AOTransaction t = slots.get(i);
+            if (t != null && t.isRepeatableRead() && t.getTransactionId() < minTid)
+                minTid = t.getTransactionId();
+        }
+        if (!overflowTransactions.isEmpty()) {
+            for (AOTransaction t : overflowTransactions.values()) {
+                if (t.isRepeatableRead() && t.getTransactionId() < minTid)
+                    minTid = t.getTransactionId();
+            }
+        }
+        return minTid;
+    }
+
+    @Override
+    public boolean anyMatch(Predicate<AOTransaction> predicate) {
+        if (currentTransactionCount.get() == 0)
+            return false;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            AOTransaction t = slots.get(i);
+            if (t != null && predicate.test(t))
+                return true;
+        }
+        if (!overflowTransactions.isEmpty()) {
+            for (AOTransaction t : overflowTransactions.values()) {
+                if (predicate.test(t))
+                    return true;
+            }
+        }
+        return false;
+    }
 }
@@ -6,6 +6,7 @@
 package com.lealone.transaction.aote.tm;
 
 import java.util.List;
+import java.util.function.Predicate;
 
 import com.lealone.common.util.BitField;
 import com.lealone.transaction.aote.AOTransaction;
@@ -60,4 +61,26 @@ public class SingleThreadTransactionManager extends TransactionManager {
     public int currentTransactionCount() {
         return currentTransactionCount;
     }
+
+    @Override
+    public long getMinRepeatableReadTransactionId(long minTid) {
+        AOTransaction[] transactions = this.transactions;
+        for (int i = 0, length = transactions.length; i < length; i++) {
+            AOTransaction t = transactions[i];
+            if (t != null && t.isRepeatableRead() && t.getTransactionId() < minTid)
+                minTid = t.getTransactionId();
+        }
+        return minTid;
+    }
+
+    @Override
+    public boolean anyMatch(Predicate<AOTransaction> predicate) {
+        AOTransaction[] transactions = this.transactions;
+        for (int i = 0, length = transactions.length; i < length; i++) {
+            AOTransaction t = transactions[i];
+            if (t != null && predicate.test(t))
+                return true;
+        }
+        return false;
+    }
 }
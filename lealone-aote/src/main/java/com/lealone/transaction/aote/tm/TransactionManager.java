@@ -6,6 +6,7 @@
 package com.lealone.transaction.aote.tm;
 
 import java.util.List;
+import java.util.function.Predicate;
 
 import com.lealone.transaction.aote.AOTransaction;
 import com.lealone.transaction.aote.AOTransactionEngine;
@@ -31,6 +32,11 @@ public abstract class TransactionManager {
 
     public abstract int currentTransactionCount();
 
+    // 返回minTid和当前所有可重复读事务的tid中最小的那个，不用复制事务列表
+    public abstract long getMinRepeatableReadTransactionId(long minTid);
+
+    public abstract boolean anyMatch(Predicate<AOTransaction> predicate);
+
     public static TransactionManager create(AOTransactionEngine te, boolean isSingleThread) {
         return isSingleThread ? new SingleThreadTransactionManager(te)
                 : new ConcurrentTransactionManager(te);
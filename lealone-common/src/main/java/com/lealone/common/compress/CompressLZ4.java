@@ -0,0 +1,185 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.common.compress;
+
+import java.util.Arrays;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.db.api.ErrorCode;
+
+/**
+ * 纯java实现的LZ4压缩算法，输出的是标准的LZ4 block格式(不包含frame头)。
+ *
+ * <p>
+ * 每个sequence由一个token、literal、2字节的offset和match长度组成，
+ * token的高4位是literal的长度，低4位是match长度减4，等于15时后面还有扩展的长度字节。
+ * 最后一个sequence只有literal，并且最后5个字节一定是literal。
+ *
+ * <p>
+ * 压缩时只用一个hash表找最近的匹配，速度优先；解压只是内存复制，比DEFLATE快很多。
+ */
+public class CompressLZ4 implements Compressor {
+
+    static final int MIN_MATCH = MatchFinder.MIN_MATCH;
+    static final int LAST_LITERALS = 5; // 最后5个字节必须是literal
+    static final int MF_LIMIT = 12; // 最后一个match至少要在结尾前12个字节开始
+    static final int MAX_DISTANCE = MatchFinder.MAX_DISTANCE;
+    static final int ML_MASK = (1 << 4) - 1;
+    static final int RUN_MASK = (1 << 4) - 1;
+
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6; // 连续找不到匹配时加快前进的速度
+
+    private int[] cachedHashTable; // 重复使用，每次压缩前清零
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        if (cachedHashTable == null) {
+            cachedHashTable = new int[1 << HASH_LOG];
+        } else {
+            Arrays.fill(cachedHashTable, 0);
+        }
+        int[] hashTable = cachedHashTable; // 存的是位置+1，0表示没有
+        int anchor = 0;
+        int ip = 0;
+        int mfLimit = inLen - MF_LIMIT;
+        int matchLimit = inLen - LAST_LITERALS;
+        while (ip < mfLimit) {
+            int seq = MatchFinder.readInt(in, ip);
+            int h = hash(seq);
+            int ref = hashTable[h] - 1;
+            hashTable[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || MatchFinder.readInt(in, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            // 向前扩展
+            while (ip > anchor && ref > 0 && in[ip - 1] == in[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH
+                    + MatchFinder.count(in, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit);
+            outPos = writeSequence(in, anchor, ip - anchor, ip - ref, matchLen, out, outPos);
+            ip += matchLen;
+            anchor = ip;
+            // 把match结尾附近的位置也放到hash表中，提高下一个match的命中率
+            if (ip - 2 < mfLimit)
+                hashTable[hash(MatchFinder.readInt(in, ip - 2))] = ip - 2 + 1;
+        }
+        return writeLastLiterals(in, anchor, inLen - anchor, out, outPos);
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        int ip = inPos;
+        int inEnd = inPos + inLen;
+        int op = outPos;
+        int opEnd = outPos + outLen;
+        try {
+            while (true) {
+                int token = in[ip++] & 0xff;
+                int literalLen = token >>> 4;
+                if (literalLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xff;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(in, ip, out, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip >= inEnd) // 最后一个sequence只有literal
+                    break;
+                int offset = (in[ip++] & 0xff) | ((in[ip++] & 0xff) << 8);
+                int matchLen = token & ML_MASK;
+                if (matchLen == ML_MASK) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < outPos)
+                    throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+                if (offset >= matchLen) {
+                    System.arraycopy(out, ref, out, op, matchLen);
+                    op += matchLen;
+                } else { // 有重叠，只能一个字节一个字节复制
+                    for (int end = op + matchLen; op < end;)
+                        out[op++] = out[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR, e);
+        }
+        if (op != opEnd)
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int writeSequence(byte[] in, int literalStart, int literalLen, int offset, int matchLen,
+            byte[] out, int outPos) {
+        int tokenPos = outPos++;
+        int token;
+        if (literalLen >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            outPos = writeLength(literalLen - RUN_MASK, out, outPos);
+        } else {
+            token = literalLen << 4;
+        }
+        System.arraycopy(in, literalStart, out, outPos, literalLen);
+        outPos += literalLen;
+        out[outPos++] = (byte) offset;
+        out[outPos++] = (byte) (offset >>> 8);
+        int len = matchLen - MIN_MATCH;
+        if (len >= ML_MASK) {
+            token |= ML_MASK;
+            outPos = writeLength(len - ML_MASK, out, outPos);
+        } else {
+            token |= len;
+        }
+        out[tokenPos] = (byte) token;
+        return outPos;
+    }
+
+    static int writeLastLiterals(byte[] in, int literalStart, int literalLen, byte[] out,
+            int outPos) {
+        if (literalLen >= RUN_MASK) {
+            out[outPos++] = (byte) (RUN_MASK << 4);
+            outPos = writeLength(literalLen - RUN_MASK, out, outPos);
+        } else {
+            out[outPos++] = (byte) (literalLen << 4);
+        }
+        System.arraycopy(in, literalStart, out, outPos, literalLen);
+        return outPos + literalLen;
+    }
+
+    private static int writeLength(int len, byte[] out, int outPos) {
+        while (len >= 255) {
+            out[outPos++] = (byte) 255;
+            len -= 255;
+        }
+        out[outPos++] = (byte) len;
+        return outPos;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.common.compress;
+
+import java.util.StringTokenizer;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.db.api.ErrorCode;
+
+/**
+ * LZ4的高压缩率版本，输出格式跟CompressLZ4完全一样，所以解压速度也一样。
+ *
+ * <p>
+ * 压缩时用hash链在64K的窗口内找最长的匹配，并且往后多看一个字节(lazy matching)，
+ * 压缩得更慢，压缩率比LZ4略高。
+ * 支持的选项:
+ * <ul>
+ * <li>l或level: 每个位置最多比较多少个候选的匹配，默认是64，越大压缩率越高</li>
+ * </ul>
+ */
+public class CompressLZ4HC extends CompressLZ4 {
+
+    private final MatchFinder matchFinder = new MatchFinder();
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4HC;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        setOptions(matchFinder, options);
+    }
+
+    static void setOptions(MatchFinder matchFinder, String options) {
+        if (options == null) {
+            return;
+        }
+        try {
+            StringTokenizer tokenizer = new StringTokenizer(options);
+            while (tokenizer.hasMoreElements()) {
+                String option = tokenizer.nextToken();
+                if ("level".equals(option) || "l".equals(option)) {
+                    matchFinder.maxAttempts = Math.max(1, Integer.parseInt(tokenizer.nextToken()));
+                }
+            }
+        } catch (Exception e) {
+            throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_OPTIONS_1, options);
+        }
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        matchFinder.reset();
+        int anchor = 0;
+        int ip = 0;
+        int mfLimit = inLen - MF_LIMIT;
+        int matchLimit = inLen - LAST_LITERALS;
+        while (ip < mfLimit) {
+            int matchLen = matchFinder.findLongestMatch(in, ip, matchLimit);
+            if (matchLen < MIN_MATCH) {
+                ip++;
+                continue;
+            }
+            int ref = matchFinder.getMatchRef();
+            // 如果下一个位置的匹配更长，当前字节就作为literal
+            while (ip + 1 < mfLimit) {
+                int matchLen2 = matchFinder.findLongestMatch(in, ip + 1, matchLimit);
+                if (matchLen2 <= matchLen)
+                    break;
+                ip++;
+                matchLen = matchLen2;
+                ref = matchFinder.getMatchRef();
+            }
+            outPos = writeSequence(in, anchor, ip - anchor, ip - ref, matchLen, out, outPos);
+            ip += matchLen;
+            anchor = ip;
+        }
+        return writeLastLiterals(in, anchor, inLen - anchor, out, outPos);
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.common.compress;
+
+import java.util.Arrays;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.db.api.ErrorCode;
+
+/**
+ * 高压缩率的算法，用LZ77找匹配，然后对literal、长度和offset做Huffman编码，思路跟Zstandard一样。
+ *
+ * <p>
+ * 找匹配的方式跟CompressLZ4HC一样，压缩率接近DEFLATE，解压时只需要查表，
+ * 也不像Inflater那样每次都要用native的资源，所以比DEFLATE快，适合不太冷的page。
+ * 支持的选项跟CompressLZ4HC一样。
+ *
+ * <p>
+ * 格式: 第一个字节是模式，0表示没有压缩，后面是原始数据；
+ * 1表示压缩过了，后面依次是4棵Huffman树的码长(连续的0用游程编码)、sequence的个数和每个sequence，
+ * sequence由literal的长度、literal、match的长度和offset组成，最后是剩下的literal。
+ * 所有的数据都是按bit从低位到高位写的。
+ */
+public class CompressLZH implements Compressor {
+
+    private static final int MODE_STORED = 0;
+    private static final int MODE_HUFFMAN = 1;
+
+    private static final int MIN_MATCH = MatchFinder.MIN_MATCH;
+    // 最短的match如果离得太远，编码后的长度可能比直接用literal还长
+    private static final int MAX_MIN_MATCH_DISTANCE = 4096;
+
+    private static final int LITERAL_SYMBOLS = 256;
+    private static final int LENGTH_SYMBOLS = 48; // 长度小于16时就是码值，否则是12+位数，其余的位直接写
+    private static final int OFFSET_SYMBOLS = 16; // 码值是位数，其余的位直接写
+
+    // 码长的上限，解压时的查找表大小就是2的码长次方
+    private static final int LITERAL_MAX_BITS = 9;
+    private static final int LENGTH_MAX_BITS = 9;
+    private static final int OFFSET_MAX_BITS = 8;
+
+    // 写码长时用4位，15表示后面5位是连续的0的个数减3
+    private static final int ZERO_RUN = 15;
+    private static final int MIN_ZERO_RUN = 3;
+    private static final int MAX_ZERO_RUN = MIN_ZERO_RUN + 31;
+
+    private final MatchFinder matchFinder = new MatchFinder();
+
+    // 以下字段在每次压缩时使用
+    private int[] sequences = new int[3 * 64]; // literal长度、match长度、offset
+    private int sequenceCount;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZH;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        CompressLZ4HC.setOptions(matchFinder, options);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int[] literalFreq = new int[LITERAL_SYMBOLS];
+        int[] literalLenFreq = new int[LENGTH_SYMBOLS];
+        int[] matchLenFreq = new int[LENGTH_SYMBOLS];
+        int[] offsetFreq = new int[OFFSET_SYMBOLS];
+        int lastAnchor = parse(in, inLen, literalFreq, literalLenFreq, matchLenFreq, offsetFreq);
+
+        Huffman literal = new Huffman(literalFreq, LITERAL_MAX_BITS);
+        Huffman literalLen = new Huffman(literalLenFreq, LENGTH_MAX_BITS);
+        Huffman matchLen = new Huffman(matchLenFreq, LENGTH_MAX_BITS);
+        Huffman offset = new Huffman(offsetFreq, OFFSET_MAX_BITS);
+
+        // 先算出压缩后的长度，如果没有变小就不压缩了
+        long bits = 32 + literal.getBits(literalFreq) + literalLen.getBits(literalLenFreq)
+                + matchLen.getBits(matchLenFreq) + offset.getBits(offsetFreq);
+        for (int code = 16; code < LENGTH_SYMBOLS; code++)
+            bits += (long) (literalLenFreq[code] + matchLenFreq[code]) * (code - 12);
+        for (int code = 1; code < OFFSET_SYMBOLS; code++)
+            bits += (long) offsetFreq[code] * code;
+        if (1 + (bits + 7) / 8 >= inLen + 1) {
+            out[outPos++] = MODE_STORED;
+            System.arraycopy(in, 0, out, outPos, inLen);
+            return outPos + inLen;
+        }
+        out[outPos++] = MODE_HUFFMAN;
+        BitWriter w = new BitWriter(out, outPos);
+        literal.writeTree(w);
+        literalLen.writeTree(w);
+        matchLen.writeTree(w);
+        offset.writeTree(w);
+        w.write(sequenceCount, 32);
+        int ip = 0;
+        int[] sequences = this.sequences;
+        for (int i = 0, len = sequenceCount * 3; i < len; i += 3) {
+            int literalLength = sequences[i];
+            writeLength(w, literalLen, literalLength);
+            for (int end = ip + literalLength; ip < end; ip++)
+                literal.write(w, in[ip] & 0xff);
+            writeLength(w, matchLen, sequences[i + 1] - MIN_MATCH);
+            writeOffset(w, offset, sequences[i + 2]);
+            ip += sequences[i + 1];
+        }
+        writeLength(w, literalLen, inLen - lastAnchor);
+        for (; ip < inLen; ip++)
+            literal.write(w, in[ip] & 0xff);
+        return w.flush();
+    }
+
+    // 找出所有的sequence并统计各个码值出现的次数，返回最后一段literal的开始位置
+    private int parse(byte[] in, int inLen, int[] literalFreq, int[] literalLenFreq,
+            int[] matchLenFreq, int[] offsetFreq) {
+        matchFinder.reset();
+        sequenceCount = 0;
+        int anchor = 0;
+        int ip = 0;
+        int mfLimit = inLen - MIN_MATCH;
+        while (ip < mfLimit) {
+            int matchLen = findMatch(in, ip, inLen);
+            if (matchLen == 0) {
+                ip++;
+                continue;
+            }
+            int ref = matchFinder.getMatchRef();
+            // 如果下一个位置的匹配更长，当前字节就作为literal
+            while (ip + 1 < mfLimit) {
+                int matchLen2 = findMatch(in, ip + 1, inLen);
+                if (matchLen2 <= matchLen)
+                    break;
+                ip++;
+                matchLen = matchLen2;
+                ref = matchFinder.getMatchRef();
+            }
+            addSequence(ip - anchor, matchLen, ip - ref);
+            for (int i = anchor; i < ip; i++)
+                literalFreq[in[i] & 0xff]++;
+            literalLenFreq[getLengthCode(ip - anchor)]++;
+            matchLenFreq[getLengthCode(matchLen - MIN_MATCH)]++;
+            offsetFreq[getOffsetCode(ip - ref)]++;
+            ip += matchLen;
+            anchor = ip;
+        }
+        for (int i = anchor; i < inLen; i++)
+            literalFreq[in[i] & 0xff]++;
+        literalLenFreq[getLengthCode(inLen - anchor)]++;
+        return anchor;
+    }
+
+    private int findMatch(byte[] in, int ip, int matchLimit) {
+        int matchLen = matchFinder.findLongestMatch(in, ip, matchLimit);
+        if (matchLen < MIN_MATCH || matchLen == MIN_MATCH
+                && ip - matchFinder.getMatchRef() > MAX_MIN_MATCH_DISTANCE)
+            return 0;
+        return matchLen;
+    }
+
+    private void addSequence(int literalLen, int matchLen, int offset) {
+        int index = sequenceCount * 3;
+        if (index + 3 > sequences.length)
+            sequences = Arrays.copyOf(sequences, sequences.length * 2);
+        sequences[index] = literalLen;
+        sequences[index + 1] = matchLen;
+        sequences[index + 2] = offset;
+        sequenceCount++;
+    }
+
+    private static int getLengthCode(int len) {
+        return len < 16 ? len : 12 + 31 - Integer.numberOfLeadingZeros(len);
+    }
+
+    private static int getOffsetCode(int offset) {
+        return 31 - Integer.numberOfLeadingZeros(offset);
+    }
+
+    private static void writeLength(BitWriter w, Huffman huffman, int len) {
+        int code = getLengthCode(len);
+        huffman.write(w, code);
+        if (code >= 16)
+            w.write(len - (1 << (code - 12)), code - 12);
+    }
+
+    private static void writeOffset(BitWriter w, Huffman huffman, int offset) {
+        int code = getOffsetCode(offset);
+        huffman.write(w, code);
+        w.write(offset - (1 << code), code);
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        if (in[inPos] == MODE_STORED) {
+            System.arraycopy(in, inPos + 1, out, outPos, outLen);
+            return;
+        }
+        int op = outPos;
+        try {
+            BitReader r = new BitReader(in, inPos + 1, inPos + inLen);
+            short[] literal = readTree(r, LITERAL_SYMBOLS, LITERAL_MAX_BITS);
+            short[] literalLen = readTree(r, LENGTH_SYMBOLS, LENGTH_MAX_BITS);
+            short[] matchLen = readTree(r, LENGTH_SYMBOLS, LENGTH_MAX_BITS);
+            short[] offset = readTree(r, OFFSET_SYMBOLS, OFFSET_MAX_BITS);
+            int sequenceCount = r.readBits(32);
+            for (int i = 0; i < sequenceCount; i++) {
+                int literalLength = readLength(r, literalLen);
+                for (int end = op + literalLength; op < end; op++)
+                    out[op] = (byte) r.decode(literal);
+                int len = readLength(r, matchLen) + MIN_MATCH;
+                int code = r.decode(offset);
+                int ref = op - ((1 << code) + r.readBits(code));
+                if (ref < outPos)
+                    throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+                if (op - ref >= len) {
+                    System.arraycopy(out, ref, out, op, len);
+                    op += len;
+                } else { // 有重叠，只能一个字节一个字节复制
+                    for (int end = op + len; op < end;)
+                        out[op++] = out[ref++];
+                }
+            }
+            int literalLength = readLength(r, literalLen);
+            for (int end = op + literalLength; op < end; op++)
+                out[op] = (byte) r.decode(literal);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR, e);
+        }
+        if (op != outPos + outLen)
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+    }
+
+    private static int readLength(BitReader r, short[] table) {
+        int code = r.decode(table);
+        if (code < 16)
+            return code;
+        int extraBits = code - 12;
+        return (1 << extraBits) + r.readBits(extraBits);
+    }
+
+    // 读出码长后生成解码用的查找表，每一项的高位是符号，低4位是码长，
+    // 查找表的大小由实际的最大码长决定，page通常很小，这样能少填很多项
+    private static short[] readTree(BitReader r, int symbols, int maxBits) {
+        int n = r.readBits(9);
+        if (n > symbols)
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+        int[] lengths = new int[n];
+        int tableBits = 0;
+        for (int i = 0; i < n;) {
+            int len = r.readBits(4);
+            if (len == ZERO_RUN) {
+                i += r.readBits(5) + MIN_ZERO_RUN;
+                if (i > n)
+                    throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+                continue;
+            }
+            if (len > maxBits)
+                throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+            lengths[i++] = len;
+            if (len > tableBits)
+                tableBits = len;
+        }
+        int[] codes = Huffman.getCodes(lengths, tableBits);
+        int tableSize = 1 << tableBits;
+        short[] table = new short[tableSize];
+        for (int sym = 0; sym < n; sym++) {
+            int len = lengths[sym];
+            if (len > 0) {
+                short entry = (short) (sym << 4 | len);
+                for (int i = codes[sym]; i < tableSize; i += 1 << len)
+                    table[i] = entry;
+            }
+        }
+        return table;
+    }
+
+    private static class Huffman {
+
+        private final int[] lengths;
+        private final int[] codes; // 已经反转过了，因为是按bit从低位到高位写的
+        private final int symbols; // 最后一个出现过的符号+1
+
+        Huffman(int[] freq, int maxBits) {
+            lengths = getLengths(freq, maxBits);
+            codes = getCodes(lengths, maxBits);
+            int n = lengths.length;
+            while (n > 0 && lengths[n - 1] == 0)
+                n--;
+            symbols = n;
+        }
+
+        // 码长和编码后的数据需要的位数，不包括直接写的位
+        long getBits(int[] freq) {
+            long bits = writeTree(null);
+            for (int sym = 0; sym < symbols; sym++)
+                bits += (long) freq[sym] * lengths[sym];
+            return bits;
+        }
+
+        // w为null时只计算需要的位数
+        int writeTree(BitWriter w) {
+            int bits = 9;
+            if (w != null)
+                w.write(symbols, 9);
+            for (int sym = 0; sym < symbols;) {
+                int run = 0;
+                while (sym + run < symbols && lengths[sym + run] == 0 && run < MAX_ZERO_RUN)
+                    run++;
+                if (run >= MIN_ZERO_RUN) {
+                    bits += 9;
+                    if (w != null) {
+                        w.write(ZERO_RUN, 4);
+                        w.write(run - MIN_ZERO_RUN, 5);
+                    }
+                    sym += run;
+                } else {
+                    bits += 4;
+                    if (w != null)
+                        w.write(lengths[sym], 4);
+                    sym++;
+                }
+            }
+            return bits;
+        }
+
+        void write(BitWriter w, int sym) {
+            w.write(codes[sym], lengths[sym]);
+        }
+
+        // 码长超过上限时把频率减半再重新构建，直到满足为止
+        private static int[] getLengths(int[] freq, int maxBits) {
+            int n = freq.length;
+            int[] lengths = new int[n];
+            long[] weights = new long[n];
+            int count = 0;
+            for (int sym = 0; sym < n; sym++) {
+                if (freq[sym] > 0)
+                    weights[count++] = ((long) freq[sym] << 16) | sym;
+            }
+            if (count == 0)
+                return lengths;
+            if (count == 1) {
+                lengths[(int) (weights[0] & 0xFFFF)] = 1;
+                return lengths;
+            }
+            weights = Arrays.copyOf(weights, count);
+            while (true) {
+                Arrays.sort(weights);
+                if (buildLengths(weights, count, lengths) <= maxBits)
+                    return lengths;
+                for (int i = 0; i < count; i++) {
+                    long w = weights[i];
+                    weights[i] = ((((w >>> 16) >>> 1) | 1) << 16) | (w & 0xFFFF);
+                }
+            }
+        }
+
+        // 两个队列的Huffman算法，叶子节点已经按频率排好序了，返回最大的码长
+        private static int buildLengths(long[] weights, int count, int[] lengths) {
+            int size = 2 * count - 1;
+            long[] w = new long[size];
+            int[] parent = new int[size];
+            for (int i = 0; i < count; i++)
+                w[i] = weights[i] >>> 16;
+            int leaf = 0;
+            int node = count;
+            for (int next = count; next < size; next++) {
+                int a = leaf < count && (node >= next || w[leaf] <= w[node]) ? leaf++ : node++;
+                int b = leaf < count && (node >= next || w[leaf] <= w[node]) ? leaf++ : node++;
+                w[next] = w[a] + w[b];
+                parent[a] = parent[b] = next;
+            }
+            int[] depth = new int[size];
+            int maxDepth = 0;
+            for (int i = size - 2; i >= 0; i--) {
+                depth[i] = depth[parent[i]] + 1;
+                if (i < count) {
+                    lengths[(int) (weights[i] & 0xFFFF)] = depth[i];
+                    if (depth[i] > maxDepth)
+                        maxDepth = depth[i];
+                }
+            }
+            return maxDepth;
+        }
+
+        // 范式Huffman编码，只需要码长就能得到码值
+        static int[] getCodes(int[] lengths, int maxBits) {
+            int[] lengthCount = new int[maxBits + 1];
+            for (int len : lengths)
+                lengthCount[len]++;
+            lengthCount[0] = 0;
+            int[] nextCode = new int[maxBits + 1];
+            int code = 0;
+            for (int bits = 1; bits <= maxBits; bits++) {
+                code = (code + lengthCount[bits - 1]) << 1;
+                nextCode[bits] = code;
+            }
+            int[] codes = new int[lengths.length];
+            for (int sym = 0; sym < lengths.length; sym++) {
+                int len = lengths[sym];
+                if (len > 0)
+                    codes[sym] = Integer.reverse(nextCode[len]++) >>> (32 - len);
+            }
+            return codes;
+        }
+    }
+
+    private static class BitWriter {
+
+        private final byte[] out;
+        private int pos;
+        private long buff;
+        private int count;
+
+        BitWriter(byte[] out, int pos) {
+            this.out = out;
+            this.pos = pos;
+        }
+
+        void write(int value, int bits) {
+            buff |= (value & ((1L << bits) - 1)) << count;
+            count += bits;
+            while (count >= 8) {
+                out[pos++] = (byte) buff;
+                buff >>>= 8;
+                count -= 8;
+            }
+        }
+
+        int flush() {
+            if (count > 0)
+                out[pos++] = (byte) buff;
+            return pos;
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] in;
+        private final int end;
+        private int pos;
+        private long buff;
+        private int count;
+
+        BitReader(byte[] in, int pos, int end) {
+            this.in = in;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        // 读到结尾后补0，数据是否正确由解压后的长度来检查
+        private void fill() {
+            while (count <= 56) {
+                if (pos < end)
+                    buff |= (in[pos] & 0xffL) << count;
+                else if (pos > end + 8)
+                    throw DbException.get(ErrorCode.COMPRESSION_ERROR);
+                pos++;
+                count += 8;
+            }
+        }
+
+        int readBits(int bits) {
+            if (count < bits)
+                fill();
+            int value = (int) (buff & ((1L << bits) - 1));
+            buff >>>= bits;
+            count -= bits;
+            return value;
+        }
+
+        // 码长用4位表示，所以不会超过15位
+        int decode(short[] table) {
+            if (count < 15)
+                fill();
+            int entry = table[(int) buff & (table.length - 1)];
+            int len = entry & 0xF;
+            buff >>>= len;
+            count -= len;
+            return entry >>> 4;
+        }
+    }
+}
@@ -60,7 +60,7 @@ public class CompressTool {
      * supplied, LZF is used
      *
      * @param in the byte array with the original data
-     * @param algorithm the algorithm (LZF, DEFLATE)
+     * @param algorithm the algorithm (LZF, DEFLATE, LZ4, LZ4HC, LZH)
      * @return the compressed data
      */
     public byte[] compress(byte[] in, String algorithm) {
@@ -245,12 +245,21 @@ public class CompressTool {
             return Compressor.LZF;
         } else if ("DEFLATE".equals(algorithm)) {
             return Compressor.DEFLATE;
+        } else if ("LZ4".equals(algorithm)) {
+            return Compressor.LZ4;
+        } else if ("LZ4HC".equals(algorithm)) {
+            return Compressor.LZ4HC;
+        } else if ("LZH".equals(algorithm)) {
+            return Compressor.LZH;
         } else {
             throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, algorithm);
         }
     }
 
-    private static Compressor getCompressor(int algorithm) {
+    /**
+     * INTERNAL
+     */
+    public static Compressor getCompressor(int algorithm) {
         switch (algorithm) {
         case Compressor.NO:
             return new CompressNo();
@@ -258,6 +267,12 @@ public class CompressTool {
             return new CompressLZF();
         case Compressor.DEFLATE:
             return new CompressDeflate();
+        case Compressor.LZ4:
+            return new CompressLZ4();
+        case Compressor.LZ4HC:
+            return new CompressLZ4HC();
+        case Compressor.LZH:
+            return new CompressLZH();
         default:
             throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, "" + algorithm);
         }
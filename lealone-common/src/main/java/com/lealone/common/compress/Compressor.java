@@ -25,6 +25,21 @@ public interface Compressor {
      */
     int DEFLATE = 2;
 
+    /**
+     * The LZ4 compression algorithm is used.
+     */
+    int LZ4 = 3;
+
+    /**
+     * The LZ4 high compression algorithm is used.
+     */
+    int LZ4HC = 4;
+
+    /**
+     * The LZ77 and Huffman coding compression algorithm is used.
+     */
+    int LZH = 5;
+
     /**
      * Get the compression algorithm type.
      *
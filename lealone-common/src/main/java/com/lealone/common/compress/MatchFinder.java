@@ -0,0 +1,97 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.common.compress;
+
+import java.util.Arrays;
+
+/**
+ * 用hash链在64K的窗口内找最长的匹配，CompressLZ4HC和CompressLZH共用。
+ */
+class MatchFinder {
+
+    static final int MIN_MATCH = 4;
+    static final int MAX_DISTANCE = (1 << 16) - 1;
+
+    private static final int HASH_LOG = 15;
+    private static final int CHAIN_SIZE = 1 << 16;
+    private static final int CHAIN_MASK = CHAIN_SIZE - 1;
+
+    int maxAttempts = 64; // 每个位置最多比较多少个候选的匹配
+
+    private int[] hashTable; // 存的是位置+1，0表示没有
+    private int[] chainTable; // 同一个hash值的前一个位置+1
+    private int nextToUpdate;
+    private int matchRef;
+
+    // 每次压缩前调用，hash表重复使用
+    void reset() {
+        if (hashTable == null) {
+            hashTable = new int[1 << HASH_LOG];
+            chainTable = new int[CHAIN_SIZE];
+        } else {
+            Arrays.fill(hashTable, 0);
+        }
+        nextToUpdate = 0;
+    }
+
+    // 上一次findLongestMatch找到的匹配的位置
+    int getMatchRef() {
+        return matchRef;
+    }
+
+    /**
+     * 返回最长的匹配长度，小于MIN_MATCH时表示没有找到，ip + 4不能超过输入的长度
+     */
+    int findLongestMatch(byte[] in, int ip, int matchLimit) {
+        // 把ip之前的位置都加到hash链中
+        while (nextToUpdate < ip) {
+            int h = hash(readInt(in, nextToUpdate));
+            chainTable[nextToUpdate & CHAIN_MASK] = hashTable[h];
+            hashTable[h] = nextToUpdate + 1;
+            nextToUpdate++;
+        }
+        int seq = readInt(in, ip);
+        int ref = hashTable[hash(seq)] - 1;
+        int bestLen = 0;
+        for (int attempts = maxAttempts; ref >= 0 && ip - ref <= MAX_DISTANCE
+                && attempts > 0; attempts--) {
+            // 先比较当前最长匹配之后的那个字节，不相等就不可能更长
+            if (in[ref + bestLen] == in[ip + bestLen] && readInt(in, ref) == seq) {
+                int len = MIN_MATCH + count(in, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit);
+                if (len > bestLen) {
+                    bestLen = len;
+                    matchRef = ref;
+                    if (ip + len >= matchLimit)
+                        break;
+                }
+            }
+            int next = chainTable[ref & CHAIN_MASK] - 1;
+            if (next >= ref) // 超出窗口后链表的位置被覆盖了
+                break;
+            ref = next;
+        }
+        return bestLen;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int readInt(byte[] in, int pos) {
+        return (in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8) | ((in[pos + 2] & 0xff) << 16)
+                | ((in[pos + 3] & 0xff) << 24);
+    }
+
+    // 返回从两个位置开始相同的字节数，不超过limit
+    static int count(byte[] in, int ip, int ref, int limit) {
+        int start = ip;
+        while (ip < limit && in[ip] == in[ref]) {
+            ip++;
+            ref++;
+        }
+        return ip - start;
+    }
+}
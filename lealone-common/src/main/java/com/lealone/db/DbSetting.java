@@ -64,6 +64,10 @@ public enum DbSetting {
     TRACE_LEVEL_SYSTEM_OUT,
     TRACE_LEVEL_FILE,
     TRACE_MAX_FILE_SIZE,
+    RECOVER_THREADS,
+    LAZY_RECOVER,
+    DEADLOCK_DETECTION,
+    DEADLOCK_VICTIM,
 
     // 在存储层也可用的参数
     ENCRYPTION_KEY,
@@ -8,9 +8,30 @@ package com.lealone.storage;
 public interface FormatVersion {
 
     public static final int FORMAT_VERSION_1 = 1;
-    public static final int FORMAT_VERSION = 2;
+    public static final int FORMAT_VERSION_2 = 2;
+    public static final int FORMAT_VERSION_3 = 3; // 主键按delta + varint编码
+    public static final int FORMAT_VERSION_4 = 4; // 索引key按前缀压缩
+    public static final int FORMAT_VERSION_5 = 5; // node page中存放leaf page的key过滤器
+    public static final int FORMAT_VERSION = FORMAT_VERSION_5;
 
     public static boolean isOldFormatVersion(int formatVersion) {
         return formatVersion == FORMAT_VERSION_1;
     }
+
+    public static boolean isDeltaKeyFormatVersion(int formatVersion) {
+        return formatVersion >= FORMAT_VERSION_3;
+    }
+
+    public static boolean isPrefixKeyFormatVersion(int formatVersion) {
+        return formatVersion >= FORMAT_VERSION_4;
+    }
+
+    public static boolean isKeyFilterFormatVersion(int formatVersion) {
+        return formatVersion >= FORMAT_VERSION_5;
+    }
+
+    // FORMAT_VERSION_5只改了node page的格式，key和value的编码方式跟FORMAT_VERSION_4一样
+    public static int getKeyValueFormatVersion(int formatVersion) {
+        return formatVersion == FORMAT_VERSION_5 ? FORMAT_VERSION_4 : formatVersion;
+    }
 }
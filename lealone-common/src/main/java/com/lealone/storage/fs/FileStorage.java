@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
@@ -141,6 +142,21 @@ public class FileStorage {
      */
     private FileLock fileLock;
 
+    /**
+     * The read only memory mapped region of the file, starting at position 0.
+     */
+    private volatile MappedByteBuffer mappedBuffer;
+
+    /**
+     * Whether the file can not be memory mapped (for example if encryption is used).
+     */
+    private boolean mapUnsupported;
+
+    /**
+     * The number of reads served by the memory mapped region.
+     */
+    private long mappedReadCount;
+
     protected FileStorage(String fileName, Map<String, ?> config) {
         this.fileName = fileName;
         Object encryptionKey = config.get(DbSetting.ENCRYPTION_KEY.name());
@@ -166,7 +182,9 @@ public class FileStorage {
         }
         this.readOnly = readOnly;
         try {
-            file = f.open(readOnly ? "r" : "rw");
+            // rws和rwd模式下每次写都会同步到硬盘，不需要再调用sync
+            boolean syncMode = "rws".equals(mode) || "rwd".equals(mode);
+            file = f.open(readOnly ? "r" : (syncMode ? mode : "rw"));
             if (encryptionKey != null) {
                 byte[] key;
                 if (encryptionKey instanceof char[])
@@ -419,6 +437,7 @@ public class FileStorage {
                 fileLock.release();
                 fileLock = null;
             }
+            unmap();
             if (file != null)
                 file.close();
         } catch (Exception e) {
@@ -432,10 +451,19 @@ public class FileStorage {
      * Flush all changes.
      */
     public void sync() {
+        sync(true);
+    }
+
+    /**
+     * Flush all changes.
+     *
+     * @param metaData whether the file metadata (for example the file size) also needs to be flushed
+     */
+    public void sync(boolean metaData) {
         try {
             FileChannel file = this.file;
             if (file != null && file.isOpen())
-                file.force(true);
+                file.force(metaData);
         } catch (IOException e) {
             closeFileSilently();
             throw newISE(DataUtils.ERROR_WRITING_FAILED, "Could not sync file {0}", fileName, e);
@@ -480,6 +508,66 @@ public class FileStorage {
         return dst;
     }
 
+    /**
+     * Map the first size bytes of the file into memory (read only).
+     * <p>
+     * Only the part of the file that is never modified again should be mapped. If the file was
+     * already mapped with the same or a larger size, nothing is done.
+     *
+     * @param size the number of bytes to map
+     * @return true if the region is mapped
+     */
+    public synchronized boolean map(long size) {
+        MappedByteBuffer buff = mappedBuffer;
+        if (buff != null && buff.capacity() >= size)
+            return true;
+        if (mapUnsupported || encryptedFile != null || file == null) {
+            mapUnsupported = true;
+            return false;
+        }
+        size = Math.min(size, fileSize);
+        if (size <= 0 || size > Integer.MAX_VALUE)
+            return false;
+        try {
+            mappedBuffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            mapUnsupported = true;
+            return false;
+        }
+    }
+
+    /**
+     * Get a read only slice of the memory mapped region without copying.
+     *
+     * @param pos the read position
+     * @param len the number of bytes to read
+     * @return the byte buffer, or null if the range is not mapped
+     */
+    public ByteBuffer readMapped(long pos, int len) {
+        MappedByteBuffer buff = mappedBuffer;
+        if (buff == null || pos + len > buff.capacity())
+            return null;
+        mappedReadCount++;
+        readBytes += len;
+        return buff.slice((int) pos, len).asReadOnlyBuffer();
+    }
+
+    public boolean isMapped() {
+        return mappedBuffer != null;
+    }
+
+    /**
+     * Release the memory mapped region.
+     * <p>
+     * The region is not unmapped forcibly, because other threads may still hold slices of it.
+     * It is unmapped by the JVM once the buffer and all its slices are unreachable,
+     * so reading an old slice never touches memory that is no longer mapped.
+     */
+    public void unmap() {
+        mappedBuffer = null;
+    }
+
     /**
      * Write to the file.
      *
@@ -584,6 +672,15 @@ public class FileStorage {
         return readCount;
     }
 
+    /**
+     * Get the number of reads served by the memory mapped region since this storage was opened.
+     *
+     * @return the number of memory mapped reads
+     */
+    public long getMappedReadCount() {
+        return mappedReadCount;
+    }
+
     /**
      * Get the number of read bytes since this storage was opened.
      *
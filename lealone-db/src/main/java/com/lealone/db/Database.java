@@ -40,6 +40,7 @@ import com.lealone.db.index.Index;
 import com.lealone.db.index.IndexColumn;
 import com.lealone.db.index.IndexType;
 import com.lealone.db.lock.DbObjectLock;
+import com.lealone.db.lock.DeadlockDetector;
 import com.lealone.db.plugin.PluggableEngine;
 import com.lealone.db.plugin.PluginObject;
 import com.lealone.db.row.Row;
@@ -57,8 +58,10 @@ import com.lealone.db.table.Column;
 import com.lealone.db.table.CreateTableData;
 import com.lealone.db.table.InfoMetaTable;
 import com.lealone.db.table.PerfMetaTable;
+import com.lealone.db.table.StandardTable;
 import com.lealone.db.table.Table;
 import com.lealone.db.table.TableAlterHistory;
+import com.lealone.db.table.TableRecovery;
 import com.lealone.db.table.TableView;
 import com.lealone.db.util.SourceCompiler;
 import com.lealone.db.value.CompareMode;
@@ -153,6 +156,8 @@ public class Database extends DbObjectBase implements DataHandler {
     private volatile boolean infoSchemaMetaTablesInitialized;
 
     private int nextSessionId;
+    private volatile TableRecovery tableRecovery;
+    private final DeadlockDetector deadlockDetector = new DeadlockDetector();
 
     private final BitField objectIds = new BitField();
 
@@ -468,10 +473,40 @@ public class Database extends DbObjectBase implements DataHandler {
     }
 
     private void recover(Table exclude) {
+        ArrayList<StandardTable> tables = new ArrayList<>();
         for (Table table : getAllTablesAndViews(false)) {
-            if (table != meta && table != exclude)
+            if (table != meta && table != exclude) {
+                if (table instanceof StandardTable)
+                    tables.add((StandardTable) table);
+                else
+                    table.recover();
+            }
+        }
+        if (tables.size() <= 1 || dbSettings.recoverThreads <= 1 && !dbSettings.lazyRecover) {
+            for (StandardTable table : tables)
                 table.recover();
+            return;
         }
+        TableRecovery recovery = new TableRecovery(this, trace, tables, dbSettings.recoverThreads);
+        tableRecovery = recovery;
+        recovery.start();
+        if (!dbSettings.lazyRecover)
+            recovery.awaitAll();
+    }
+
+    public TableRecovery getTableRecovery() {
+        return tableRecovery;
+    }
+
+    public DeadlockDetector getDeadlockDetector() {
+        return deadlockDetector;
+    }
+
+    // 不加到userSessions中，也不用关闭
+    public synchronized ServerSession createSystemSession() {
+        ServerSession session = new ServerSession(this, systemUser, ++nextSessionId);
+        session.setScheduler(systemSession.getScheduler());
+        return session;
     }
 
     private void openDatabase() {
@@ -1191,6 +1226,15 @@ public class Database extends DbObjectBase implements DataHandler {
                 }
             }
         }
+        // 后台还没有恢复完的表要先恢复完再关闭
+        TableRecovery recovery = tableRecovery;
+        if (recovery != null && !recovery.isCompleted()) {
+            try {
+                recovery.awaitAll();
+            } catch (DbException e) {
+                trace.error(e, "close");
+            }
+        }
         try {
             if (systemSession != null) {
                 for (Table table : getAllTablesAndViews(false)) {
@@ -13,6 +13,7 @@ import com.lealone.common.trace.TraceSystem;
 import com.lealone.common.util.StringUtils;
 import com.lealone.common.util.Utils;
 import com.lealone.db.api.ErrorCode;
+import com.lealone.db.lock.DeadlockDetector;
 import com.lealone.db.table.Table;
 
 /**
@@ -309,6 +310,18 @@ public class DbSettings extends SettingsBase {
     public final int queryStatisticsMaxEntries = get(DbSetting.QUERY_STATISTICS_MAX_ENTRIES,
             Constants.QUERY_STATISTICS_MAX_ENTRIES);
 
+    // 打开数据库时并行执行redo log的线程数，为1时在打开数据库的线程中逐个恢复
+    public final int recoverThreads = get(DbSetting.RECOVER_THREADS,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // 为true时不等所有表都恢复完就可以接受连接，还没有恢复的表在第一次访问时恢复
+    public final boolean lazyRecover = get(DbSetting.LAZY_RECOVER, false);
+
+    // 为true时事务等待行锁或数据库对象锁时马上检测死锁，不用等到锁超时
+    public final boolean deadlockDetection = get(DbSetting.DEADLOCK_DETECTION, true);
+    // 出现死锁时回滚哪个事务，取值：youngest(最晚开始的事务)，least_work(undo log最少的事务)
+    public final String deadlockVictim = get(DbSetting.DEADLOCK_VICTIM,
+            DeadlockDetector.VICTIM_YOUNGEST);
+
     /**
      * Get the setting for the given key.
      *
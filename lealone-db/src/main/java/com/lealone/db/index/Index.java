@@ -292,4 +292,15 @@ public interface Index extends SchemaObject {
     default boolean isBuilding() {
         return false;
     }
+
+    /**
+     * Build a new empty index from all the rows of the cursor in one pass.
+     *
+     * @param session the session
+     * @param cursor the cursor over all the rows of the table
+     * @return false if the index can not be bulk loaded, the cursor is not used in this case
+     */
+    default boolean bulkLoad(ServerSession session, Cursor cursor) {
+        return false;
+    }
 }
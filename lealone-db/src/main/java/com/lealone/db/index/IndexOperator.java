@@ -57,6 +57,16 @@ public class IndexOperator implements Runnable, SchedulerTaskManager {
         return indexOperationSize.get() > 0;
     }
 
+    // 批量构建索引时先锁住，并发的索引操作会留在队列中，等构建完成后再执行
+    public boolean tryLock(ServerSession session) {
+        return lock.tryExclusiveLock(session);
+    }
+
+    public void unlock(ServerSession session) {
+        session.removeLock(lock);
+        lock.unlockFast();
+    }
+
     private void addIndexOperation(InternalScheduler currentScheduler, IndexOperation io) {
         LinkableList<IndexOperation> pendingIos = pendingIosArray[currentScheduler.getId()];
         if (pendingIos == null) {
@@ -40,6 +40,17 @@ public class IndexRebuilder implements Runnable {
         Index scan = table.getScanIndex(session);
         rowCount = MathUtils.convertLongToInt(table.getRowCount(session));
         cursor = scan.find(session, null, null);
+        // 这时索引还没有加到表的索引列表中，查询用不到它，可以一次性构建完
+        try {
+            if (index.bulkLoad(session, cursor)) {
+                table.getDatabase().setProgress(DatabaseEventListener.STATE_CREATE_INDEX,
+                        table.getName() + ":" + index.getName(), rowCount, rowCount);
+                onComplete();
+                return;
+            }
+        } catch (DbException e) {
+            onException(e);
+        }
         task = new AsyncPeriodicTask(0, 100, this);
         session.getScheduler().addPeriodicTask(task);
     }
@@ -47,8 +58,10 @@ public class IndexRebuilder implements Runnable {
     private void onComplete() {
         index.setBuilding(false);
         index.setLastIndexedRowKey(null);
-        task.cancel();
-        session.getScheduler().removePeriodicTask(task);
+        if (task != null) {
+            task.cancel();
+            session.getScheduler().removePeriodicTask(task);
+        }
         session.close();
     }
 
@@ -71,18 +84,22 @@ public class IndexRebuilder implements Runnable {
             }
             onComplete();
         } catch (DbException e) {
-            onComplete();
-            table.getSchema().freeUniqueName(index.getName());
-            try {
-                index.remove(session);
-            } catch (DbException e2) {
-                // this could happen, for example on failure in the storage
-                // but if that is not the case it means
-                // there is something wrong with the database
-                session.getTrace().setType(TraceModuleType.TABLE).error(e2, "could not remove index");
-                throw e2;
-            }
-            throw e;
+            onException(e);
+        }
+    }
+
+    private void onException(DbException e) {
+        onComplete();
+        table.getSchema().freeUniqueName(index.getName());
+        try {
+            index.remove(session);
+        } catch (DbException e2) {
+            // this could happen, for example on failure in the storage
+            // but if that is not the case it means
+            // there is something wrong with the database
+            session.getTrace().setType(TraceModuleType.TABLE).error(e2, "could not remove index");
+            throw e2;
         }
+        throw e;
     }
 }
@@ -9,6 +9,7 @@ import java.nio.ByteBuffer;
 
 import com.lealone.common.util.DataUtils;
 import com.lealone.db.DataBuffer;
+import com.lealone.db.index.standard.IndexKey.CompoundIndexKey;
 import com.lealone.db.index.standard.IndexKey.SingleIndexKey;
 import com.lealone.db.lock.Lock;
 import com.lealone.db.row.Row;
@@ -67,18 +68,27 @@ public abstract class IndexKeyType extends StandardDataType {
         } else {
             key = DataUtils.readVarLong(buff);
         }
+        return createIndexKey(key, columns);
+    }
+
+    protected IndexKey createIndexKey(long key, Value[] columns) {
         return IndexKey.create(key, columns);
     }
 
-    @Override
-    public void write(DataBuffer buff, Object obj, int formatVersion) {
-        IndexKey iKey = (IndexKey) obj;
+    private Value[] getColumns(IndexKey iKey) {
         Value[] columns = iKey.getColumns();
         if (columns == null) {
             columns = (Value[]) index.getDataMap().getOldValue(iKey);
             if (columns == null)
                 columns = new Value[0];
         }
+        return columns;
+    }
+
+    @Override
+    public void write(DataBuffer buff, Object obj, int formatVersion) {
+        IndexKey iKey = (IndexKey) obj;
+        Value[] columns = getColumns(iKey);
         if (FormatVersion.isOldFormatVersion(formatVersion)) {
             Value[] newColumns = new Value[columns.length + 1];
             System.arraycopy(columns, 0, newColumns, 0, columns.length);
@@ -93,6 +103,83 @@ public abstract class IndexKeyType extends StandardDataType {
         }
     }
 
+    // 从FORMAT_VERSION_4开始，每个key只写跟前一个key不同的列，格式是:
+    // 相同的列数、剩下的列数、剩下的列、row key
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, int formatVersion) {
+        if (!FormatVersion.isPrefixKeyFormatVersion(formatVersion)) {
+            super.read(buff, obj, len, formatVersion);
+            return;
+        }
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            int prefix = DataUtils.readVarInt(buff);
+            Value[] columns = new Value[prefix + DataUtils.readVarInt(buff)];
+            if (prefix > 0)
+                System.arraycopy(last, 0, columns, 0, prefix); // 相同的列共用一个Value
+            for (int j = prefix; j < columns.length; j++)
+                columns[j] = DataBuffer.readValue(buff);
+            obj[i] = createIndexKey(DataUtils.readVarLong(buff),
+                    columns.length == 0 ? null : columns);
+            last = columns;
+        }
+    }
+
+    @Override
+    public void write(DataBuffer buff, Object[] obj, int len, int formatVersion) {
+        if (!FormatVersion.isPrefixKeyFormatVersion(formatVersion)) {
+            super.write(buff, obj, len, formatVersion);
+            return;
+        }
+        // 用写出来的字节来判断列值是否相同，这样不会把忽略大小写时相等的字符串当成一样的
+        DataBuffer lastBuff = DataBuffer.createHeap();
+        DataBuffer columnsBuff = DataBuffer.createHeap();
+        int[] lastOffsets = new int[1];
+        for (int i = 0; i < len; i++) {
+            IndexKey iKey = (IndexKey) obj[i];
+            Value[] columns = getColumns(iKey);
+            int[] offsets = new int[columns.length + 1];
+            columnsBuff.clear();
+            for (int j = 0; j < columns.length; j++) {
+                offsets[j] = columnsBuff.position();
+                columnsBuff.writeValue(columns[j]);
+            }
+            offsets[columns.length] = columnsBuff.position();
+            int prefix = 0;
+            int max = Math.min(columns.length, lastOffsets.length - 1);
+            ByteBuffer columnsBytes = columnsBuff.getBuffer();
+            ByteBuffer lastBytes = lastBuff.getBuffer();
+            while (prefix < max
+                    && isSameColumn(columnsBytes, offsets, lastBytes, lastOffsets, prefix)) {
+                prefix++;
+            }
+            buff.putVarInt(prefix).putVarInt(columns.length - prefix);
+            ByteBuffer b = columnsBytes.duplicate();
+            b.limit(offsets[columns.length]).position(offsets[prefix]);
+            buff.put(b);
+            buff.putVarLong(iKey.getKey());
+
+            DataBuffer tmp = lastBuff;
+            lastBuff = columnsBuff;
+            columnsBuff = tmp;
+            lastOffsets = offsets;
+        }
+    }
+
+    private static boolean isSameColumn(ByteBuffer a, int[] aOffsets, ByteBuffer b, int[] bOffsets,
+            int column) {
+        int aStart = aOffsets[column];
+        int bStart = bOffsets[column];
+        int len = aOffsets[column + 1] - aStart;
+        if (len != bOffsets[column + 1] - bStart)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (a.get(aStart + i) != b.get(bStart + i))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public Object convertToIndexKey(Object key, Object value) {
         return index.convertToKey((Row) value);
@@ -205,6 +292,31 @@ public abstract class IndexKeyType extends StandardDataType {
                 return Long.signum(comp);
         }
 
+        @Override
+        protected IndexKey createIndexKey(long key, Value[] columns) {
+            // 截短后的split key可能只有一列，也要用CompoundIndexKey
+            return new CompoundIndexKey(key, columns);
+        }
+
+        // 只保留左边最后一个key的前几列，到第一个跟右边第一个key不同的列为止，
+        // 因为列数少的key比前几列相同的key都大，所以它大于左边的所有key，又小于右边的第一个key
+        @Override
+        public Object getSplitKey(Object prevKeyObj, Object keyObj) {
+            Value[] ax = Lock.getLockedValue((IndexKey) prevKeyObj);
+            Value[] bx = Lock.getLockedValue((IndexKey) keyObj);
+            if (ax != null && bx != null) {
+                int len = Math.min(ax.length, bx.length);
+                for (int i = 0; i < len - 1; i++) {
+                    if (compareValue(ax[i], bx[i], sortTypes[i]) != 0) {
+                        Value[] columns = new Value[i + 1];
+                        System.arraycopy(ax, 0, columns, 0, i + 1);
+                        return new CompoundIndexKey(((IndexKey) keyObj).getKey(), columns);
+                    }
+                }
+            }
+            return getSplitKey(keyObj);
+        }
+
         @Override
         public int getMemory(Object obj) {
             IndexKey k = (IndexKey) obj;
@@ -57,6 +57,34 @@ public class PrimaryKeyType extends StandardDataType {
             buff.putVarLong(x.getLong());
     }
 
+    // page中的key是递增的，从FORMAT_VERSION_3开始第一个key之后只写跟前一个key的差值
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, int formatVersion) {
+        if (!FormatVersion.isDeltaKeyFormatVersion(formatVersion)) {
+            super.read(buff, obj, len, formatVersion);
+            return;
+        }
+        long key = 0;
+        for (int i = 0; i < len; i++) {
+            key += DataUtils.readVarLong(buff);
+            obj[i] = ValueLong.get(key);
+        }
+    }
+
+    @Override
+    public void write(DataBuffer buff, Object[] obj, int len, int formatVersion) {
+        if (!FormatVersion.isDeltaKeyFormatVersion(formatVersion)) {
+            super.write(buff, obj, len, formatVersion);
+            return;
+        }
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            long key = ((PrimaryKey) obj[i]).getKey();
+            buff.putVarLong(key - last);
+            last = key;
+        }
+    }
+
     @Override
     public Object getSplitKey(Object keyObj) {
         return ValueLong.get(((PrimaryKey) keyObj).getKey());
@@ -73,4 +101,14 @@ public class PrimaryKeyType extends StandardDataType {
     public boolean isRowOnly() {
         return true;
     }
+
+    @Override
+    public boolean isLongKey() {
+        return true;
+    }
+
+    @Override
+    public long getLongKey(Object key) {
+        return ((PrimaryKey) key).getKey();
+    }
 }
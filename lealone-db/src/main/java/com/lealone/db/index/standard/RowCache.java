@@ -0,0 +1,135 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.db.index.standard;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.lealone.db.row.Row;
+
+/**
+ * 主键点查的热点记录缓存，只缓存已经提交并且所有字段都读出来了的记录。
+ *
+ * <p>
+ * 占用的内存超过上限后按clock算法淘汰最近没有访问过的记录，add/update/remove会让对应的记录失效。
+ */
+public class RowCache {
+
+    private static class CachedRow {
+        final Row row;
+        final int memory;
+        volatile boolean referenced;
+
+        CachedRow(Row row, int memory) {
+            this.row = row;
+            this.memory = memory;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, CachedRow> rows = new ConcurrentHashMap<>();
+    private final AtomicLong memory = new AtomicLong();
+    // 每次让记录失效时加1，读记录的过程中如果版本变了，读到的记录就不能放入缓存
+    private final AtomicLong version = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final long maxMemory;
+
+    public RowCache(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    public Row get(long key) {
+        CachedRow e = rows.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        e.referenced = true;
+        hits.increment();
+        return e.row;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public void put(long key, Row row, int rowMemory, long expectedVersion) {
+        if (rowMemory > maxMemory / 8) // 太大的记录不缓存
+            return;
+        if (version.get() != expectedVersion)
+            return;
+        CachedRow e = new CachedRow(row, rowMemory);
+        CachedRow old = rows.put(key, e);
+        memory.addAndGet(old == null ? rowMemory : rowMemory - old.memory);
+        // 放入缓存前记录可能已经失效了
+        if (version.get() != expectedVersion) {
+            if (rows.remove(key, e))
+                memory.addAndGet(-rowMemory);
+            return;
+        }
+        if (memory.get() > maxMemory)
+            evict();
+    }
+
+    public void invalidate(long key) {
+        version.incrementAndGet();
+        CachedRow e = rows.remove(key);
+        if (e != null)
+            memory.addAndGet(-e.memory);
+    }
+
+    public void clear() {
+        version.incrementAndGet();
+        rows.clear();
+        memory.set(0);
+    }
+
+    private synchronized void evict() {
+        long target = maxMemory * 3 / 4;
+        // 最多扫描两遍，第一遍清除访问标记，第二遍一定能淘汰
+        for (int i = 0; i < 2 && memory.get() > target; i++) {
+            Iterator<Map.Entry<Long, CachedRow>> iterator = rows.entrySet().iterator();
+            while (iterator.hasNext() && memory.get() > target) {
+                Map.Entry<Long, CachedRow> me = iterator.next();
+                CachedRow e = me.getValue();
+                if (e.referenced) {
+                    e.referenced = false;
+                } else if (rows.remove(me.getKey(), e)) {
+                    memory.addAndGet(-e.memory);
+                }
+            }
+        }
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public long getMemory() {
+        return memory.get();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
@@ -46,6 +46,7 @@ public abstract class StandardDataIndex<K, V> extends IndexBase {
         if (session == null) {
             return dataMap;
         }
+        table.checkRecovered(); // 延迟恢复的表在第一次访问时才执行redo log
         return dataMap.getInstance(session.getTransaction());
     }
 
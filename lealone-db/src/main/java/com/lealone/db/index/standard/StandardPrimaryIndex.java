@@ -6,6 +6,7 @@
 package com.lealone.db.index.standard;
 
 import com.lealone.common.exceptions.DbException;
+import com.lealone.common.util.MapUtils;
 import com.lealone.db.Constants;
 import com.lealone.db.DataHandler;
 import com.lealone.db.RunMode;
@@ -27,6 +28,7 @@ import com.lealone.db.value.ValueLob;
 import com.lealone.db.value.ValueLong;
 import com.lealone.storage.CursorParameters;
 import com.lealone.storage.Storage;
+import com.lealone.storage.StorageSetting;
 import com.lealone.transaction.Transaction;
 import com.lealone.transaction.TransactionEngine;
 import com.lealone.transaction.TransactionMap;
@@ -39,6 +41,7 @@ import com.lealone.transaction.TransactionMapCursor;
 public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
 
     private int mainIndexColumn = -1;
+    private final RowCache rowCache; // 为null时说明没有启用
 
     public StandardPrimaryIndex(ServerSession session, StandardTable table) {
         super(table, table.getId(), table.getName() + "_DATA", IndexType.createScan(),
@@ -57,6 +60,20 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         Transaction t = transactionEngine.beginTransaction(runMode);
         dataMap = t.openMap(mapName, keyType, rowType, storage, table.getParameters());
         t.commit(); // 避免产生内部未提交的事务
+
+        // 单位是MB
+        long rowCacheSize = MapUtils.getLongMB(table.getParameters(),
+                StorageSetting.ROW_CACHE_SIZE.name(), 0);
+        rowCache = rowCacheSize > 0 ? new RowCache(rowCacheSize) : null;
+    }
+
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    private void invalidateRow(long key) {
+        if (rowCache != null)
+            rowCache.invalidate(key);
     }
 
     @Override
@@ -149,6 +166,7 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
             long k = row.getValue(mainIndexColumn).getLong();
             row.setKey(k);
         }
+        invalidateRow(row.getKey());
         TransactionMap<Row, Row> map = getTransactionMap(session);
         if (checkDuplicateKey) {
             map.addIfAbsent(row, row, ar -> {
@@ -193,6 +211,8 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
     @Override
     public void update(ServerSession session, Row oldRow, Row newRow, Value[] oldColumns,
             int[] updateColumns, boolean isLockedBySelf, AsyncResultHandler<Integer> handler) {
+        invalidateRow(oldRow.getKey());
+        invalidateRow(newRow.getKey());
         if (mainIndexColumn != -1 && containsColumn(updateColumns, mainIndexColumn)) {
             Value oldKey = oldRow.getValue(mainIndexColumn);
             Value newKey = newRow.getValue(mainIndexColumn);
@@ -232,6 +252,7 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
     @Override
     public void remove(ServerSession session, Row row, Value[] oldColumns, boolean isLockedBySelf,
             AsyncResultHandler<Integer> handler) {
+        invalidateRow(row.getKey());
         TransactionMap<Row, Row> map = getTransactionMap(session);
 
         if (!isLockedBySelf && map.isLocked(row)) {
@@ -252,6 +273,13 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         return getTransactionMap(session).tryLock(row, row);
     }
 
+    @Override
+    public void truncate(ServerSession session) {
+        super.truncate(session);
+        if (rowCache != null)
+            rowCache.clear();
+    }
+
     @Override
     public Cursor find(ServerSession session, SearchRow first, SearchRow last) {
         return find(session, CursorParameters.create(first, last));
@@ -262,8 +290,9 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         Row from = getPK(parameters.from);
         Row to = getPK(parameters.to);
         CursorParameters<Row> newParameters = parameters.copy(from, to);
+        // 底层的cursor读到to之后就会停止，不需要在StandardPrimaryIndexCursor中再比较
         return new StandardPrimaryIndexCursor(session, table,
-                getTransactionMap(session).cursor(newParameters), to);
+                getTransactionMap(session).cursor(newParameters));
     }
 
     @Override
@@ -279,6 +308,24 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
     }
 
     public Row getRow(ServerSession session, long key, int[] columnIndexes) {
+        if (rowCache == null)
+            return getRow0(session, key, columnIndexes);
+        Row row = rowCache.get(key);
+        if (row != null && isCommitted(row)) {
+            table.alterRowsIfNeeded(session, row, false);
+            return row;
+        }
+        long version = rowCache.getVersion();
+        row = getRow0(session, key, columnIndexes);
+        // 其他事务还在用旧版本时不放入缓存
+        if (row != null && row.isNoneLock() && isFullyMaterialized(row)
+                && row.getOldVersion() == null) {
+            rowCache.put(key, row, dataMap.getValueType().getMemory(row), version);
+        }
+        return row;
+    }
+
+    private Row getRow0(ServerSession session, long key, int[] columnIndexes) {
         Lockable lockable = getTransactionMap(session).get(new Row(key, null), columnIndexes);
         if (lockable == null || lockable.getLockedValue() == null) // 已经删除了
             return null;
@@ -288,6 +335,23 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         return row;
     }
 
+    // 缓存的记录没有被加行锁，并且没有其他事务需要看到它的旧版本，那么所有事务看到的都是这个已提交的记录
+    private static boolean isCommitted(Row row) {
+        return row.isNoneLock() && row.getLockedValue() != null && row.getOldVersion() == null;
+    }
+
+    // 按列存储时可能只读出了部分字段
+    private static boolean isFullyMaterialized(Row row) {
+        Value[] columns = row.getColumns();
+        if (columns == null)
+            return false;
+        for (Value v : columns) {
+            if (v == null)
+                return false;
+        }
+        return true;
+    }
+
     public Row getRow(Lockable lockable, long key) {
         if (lockable.getLockedValue() == null) // 已经删除了
             return null;
@@ -366,15 +430,13 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         private final ServerSession session;
         private final StandardTable table;
         private final TransactionMapCursor<Row, Row> cursor;
-        private final Row last;
         private Row row;
 
         public StandardPrimaryIndexCursor(ServerSession session, StandardTable table,
-                TransactionMapCursor<Row, Row> cursor, Row last) {
+                TransactionMapCursor<Row, Row> cursor) {
             this.session = session;
             this.table = table;
             this.cursor = cursor;
-            this.last = last;
         }
 
         @Override
@@ -385,10 +447,6 @@ public class StandardPrimaryIndex extends StandardDataIndex<Row, Row> {
         @Override
         public boolean next() {
             if (cursor.next()) {
-                if (last != null && cursor.getValue().getKey() > last.getKey()) {
-                    row = null;
-                    return false;
-                }
                 createRow();
                 return true;
             }
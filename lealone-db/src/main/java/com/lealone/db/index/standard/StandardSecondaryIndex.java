@@ -5,8 +5,11 @@
  */
 package com.lealone.db.index.standard;
 
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import com.lealone.common.exceptions.DbException;
 import com.lealone.db.api.ErrorCode;
@@ -27,6 +30,7 @@ import com.lealone.db.value.Value;
 import com.lealone.db.value.ValueEnum;
 import com.lealone.db.value.ValueLong;
 import com.lealone.db.value.ValueNull;
+import com.lealone.storage.CursorParameters;
 import com.lealone.storage.Storage;
 import com.lealone.storage.StorageMap;
 import com.lealone.storage.StorageSetting;
@@ -162,6 +166,49 @@ public class StandardSecondaryIndex extends StandardDataIndex<IndexKey, IndexKey
             onComplete(handler, map.tryRemove(key, lockable, isLockedBySelf));
     }
 
+    // 新建的索引直接用存储层的bulkLoad按key的顺序自底向上构建page，不用一条条put
+    // 构建期间锁住IndexOperator，并发的索引操作等构建完成后再执行，重复执行add和remove都没有问题
+    // 唯一索引没有IndexOperator，写操作是同步的，所以不走这条路径
+    @Override
+    public boolean bulkLoad(ServerSession session, Cursor cursor) {
+        IndexOperator indexOperator = getIndexOperator();
+        if (indexOperator == null || !indexOperator.tryLock(session))
+            return false;
+        try {
+            // 加锁前已经执行过的索引操作会让map不为空，这时存储层会改用批量put
+            getStorageMap().bulkLoad(new BulkLoadIterator(cursor), false);
+            return true;
+        } finally {
+            indexOperator.unlock(session);
+        }
+    }
+
+    private class BulkLoadIterator implements Iterator<Map.Entry<IndexKey, IndexKey>> {
+
+        private final Cursor cursor;
+        private IndexKey next;
+
+        BulkLoadIterator(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !isClosed() && cursor.next())
+                next = convertToKey(cursor.get());
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<IndexKey, IndexKey> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            IndexKey key = next;
+            next = null;
+            return new AbstractMap.SimpleImmutableEntry<>(key, key);
+        }
+    }
+
     private void runIndexOperations(ServerSession session) {
         IndexOperator indexOperator = getIndexOperator();
         if (indexOperator != null && indexOperator.hasPendingIndexOperation()) {
@@ -176,6 +223,8 @@ public class StandardSecondaryIndex extends StandardDataIndex<IndexKey, IndexKey
         if (min != null) {
             min.setKey(Long.MIN_VALUE);
         }
+        // 把上界下推到底层的cursor，超过上界后就不用再读后续的page了
+        CursorParameters<IndexKey> parameters = CursorParameters.create(min, convertToMaxKey(last));
         TransactionMap<IndexKey, IndexKey> map = getTransactionMap(session);
         if (isBuilding()) {
             TransactionMapCursor<IndexKey, IndexKey> tmCursor;
@@ -183,7 +232,7 @@ public class StandardSecondaryIndex extends StandardDataIndex<IndexKey, IndexKey
             // 这个循环确保tmCursor的快照跟lastIndexedRowKey一致，
             // 也就是tmCursor中的最rowKey就是lastIndexedRowKey
             while (true) {
-                tmCursor = map.cursor(min);
+                tmCursor = map.cursor(parameters);
                 if (lastKey != lastIndexedRowKey) {
                     lastKey = lastIndexedRowKey;
                 } else {
@@ -199,8 +248,30 @@ public class StandardSecondaryIndex extends StandardDataIndex<IndexKey, IndexKey
             } else
                 return new SsiRegularCursor(session, tmCursor, last);
         } else {
-            return new SsiRegularCursor(session, map.cursor(min), last);
+            return new SsiRegularCursor(session, map.cursor(parameters), last);
+        }
+    }
+
+    // 只用last中第一个null值之前的字段作为上界，跟compareRows的语义一致
+    private IndexKey convertToMaxKey(SearchRow last) {
+        IndexKey key = convertToKey(last);
+        if (key == null)
+            return null;
+        Value[] array = key.getColumns();
+        int len = 0;
+        while (len < array.length && array[len] != null)
+            len++;
+        if (len == 0)
+            return null;
+        if (columns.length == 1)
+            return new IndexKey.SingleIndexKey(Long.MAX_VALUE, array[0]);
+        if (len < array.length) {
+            Value[] prefix = new Value[len];
+            System.arraycopy(array, 0, prefix, 0, len);
+            array = prefix;
         }
+        // 多字段索引的key类型总是CompoundIndexKeyType，所以不能用IndexKey.create
+        return new IndexKey.CompoundIndexKey(Long.MAX_VALUE, array);
     }
 
     public IndexKey convertToKey(SearchRow r) {
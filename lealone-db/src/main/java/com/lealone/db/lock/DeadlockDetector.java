@@ -0,0 +1,155 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.db.lock;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lealone.common.exceptions.DbException;
+import com.lealone.common.trace.Trace;
+import com.lealone.common.trace.TraceModuleType;
+import com.lealone.db.Database;
+import com.lealone.db.DbSettings;
+import com.lealone.db.api.ErrorCode;
+import com.lealone.db.session.InternalSession;
+import com.lealone.db.session.ServerSession;
+import com.lealone.transaction.Transaction;
+
+/**
+ * 行锁和数据库对象锁的等待关系都记在session上(session.lockedByTransaction)，
+ * 这些边合起来就是一个wait-for图，每个session最多只有一条出边，所以不需要单独维护图结构。
+ *
+ * <p>
+ * 当前session申请锁失败被挂起时，沿着它的出边一直往下找，如果又回到了当前session就说明出现了死锁，
+ * 然后按策略从环上选一个事务作为牺牲者，由牺牲者所在session的调度线程在重试语句时抛出死锁异常并回滚事务。
+ * 只有新增边时才可能产生新的环，所以只在挂起时检测一次就够了，不需要等到锁超时。
+ */
+public class DeadlockDetector {
+
+    // 回滚最晚开始的事务
+    public static final String VICTIM_YOUNGEST = "youngest";
+    // 回滚undo log最少的事务，它要撤销的工作最少
+    public static final String VICTIM_LEAST_WORK = "least_work";
+
+    private final AtomicLong deadlockCount = new AtomicLong();
+    private final AtomicLong victimCount = new AtomicLong();
+    // 从开始检测到牺牲者的事务被回滚经过的时间，单位纳秒
+    private final AtomicLong totalDetectionTime = new AtomicLong();
+    private final AtomicLong maxDetectionTime = new AtomicLong();
+
+    public long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+
+    public long getVictimCount() {
+        return victimCount.get();
+    }
+
+    public long getTotalDetectionTime() {
+        return totalDetectionTime.get();
+    }
+
+    public long getMaxDetectionTime() {
+        return maxDetectionTime.get();
+    }
+
+    public void check(ServerSession session, Transaction lockedBy) {
+        Database database = session.getDatabase();
+        DbSettings settings = database.getSettings();
+        if (!settings.deadlockDetection)
+            return;
+        long startTime = System.nanoTime();
+        // sessions.get(i)在等待transactions.get(i)，transactions.get(i)属于sessions.get(i + 1)
+        ArrayList<ServerSession> sessions = new ArrayList<>();
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        ServerSession s = session;
+        Transaction t = lockedBy;
+        while (true) {
+            if (t == null || t.isClosed())
+                return;
+            sessions.add(s);
+            transactions.add(t);
+            InternalSession next = t.getSession();
+            if (next == session)
+                break;
+            // 遇到不包含当前session的环时由形成那个环的session自己处理
+            if (!(next instanceof ServerSession) || sessions.contains(next))
+                return;
+            s = (ServerSession) next;
+            t = s.getLockedByTransaction();
+        }
+        // 环上已经有牺牲者了，它回滚后环就断开了
+        for (ServerSession ss : sessions) {
+            if (ss.isDeadlockVictim())
+                return;
+        }
+
+        Transaction victim = selectVictim(transactions, settings.deadlockVictim);
+        ServerSession victimSession = (ServerSession) victim.getSession();
+        String msg = getMsg(sessions, transactions, session.getLockedObject());
+        DbException e = DbException.get(ErrorCode.DEADLOCK_1, msg);
+        if (!victimSession.setDeadlockException(e, startTime))
+            return;
+        deadlockCount.incrementAndGet();
+        Trace trace = database.getTrace(TraceModuleType.LOCK);
+        if (trace.isInfoEnabled()) {
+            trace.info("deadlock detected, rollback transaction #{0}: {1}", victim.getTransactionId(),
+                    msg);
+        }
+        // 牺牲者是别的session时，它正在等锁，需要唤醒它的调度线程
+        if (victimSession != session && victimSession.getScheduler() != null)
+            victimSession.getScheduler().wakeUp();
+    }
+
+    private static Transaction selectVictim(ArrayList<Transaction> transactions, String policy) {
+        boolean leastWork = VICTIM_LEAST_WORK.equalsIgnoreCase(policy);
+        Transaction victim = null;
+        for (Transaction t : transactions) {
+            if (victim == null) {
+                victim = t;
+                continue;
+            }
+            if (leastWork) {
+                int work = t.getSavepointId();
+                int victimWork = victim.getSavepointId();
+                if (work < victimWork || work == victimWork
+                        && t.getTransactionId() > victim.getTransactionId())
+                    victim = t;
+            } else if (t.getTransactionId() > victim.getTransactionId()) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    private static String getMsg(ArrayList<ServerSession> sessions,
+            ArrayList<Transaction> transactions, Object lockedObject) {
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0, size = sessions.size(); i < size; i++) {
+            Transaction t = transactions.get(i);
+            Transaction waiting = transactions.get(i == 0 ? size - 1 : i - 1);
+            if (i > 0)
+                buff.append("\r\n");
+            buff.append("transaction #").append(waiting.getTransactionId()).append(" in session ")
+                    .append(sessions.get(i)).append(" wait for transaction #")
+                    .append(t.getTransactionId()).append(" in session ").append(t.getSession());
+        }
+        buff.append(", the locked object: ").append(lockedObject);
+        return buff.toString();
+    }
+
+    // 由牺牲者所在session的调度线程在抛出死锁异常时调用
+    public void onVictimAborted(long startTime) {
+        victimCount.incrementAndGet();
+        long time = System.nanoTime() - startTime;
+        totalDetectionTime.addAndGet(time);
+        while (true) {
+            long max = maxDetectionTime.get();
+            if (time <= max || maxDetectionTime.compareAndSet(max, time))
+                break;
+        }
+    }
+}
@@ -99,6 +99,8 @@ public class Row extends LockableBase implements SearchRow, PrimaryKey, Comparab
     public Object copy(Object oldLockedValue, Lock lock) {
         Row row = new Row(getKey(), (Value[]) oldLockedValue);
         row.setLock(lock);
+        // 读出来的是旧版本时要带上版本链表，这样就不会被当成最新的已提交记录放入缓存
+        row.compareAndSetOldVersion(null, getOldVersion());
         return row;
     }
 
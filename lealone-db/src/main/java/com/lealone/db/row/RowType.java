@@ -198,6 +198,25 @@ public class RowType extends StandardDataType {
         }
     }
 
+    @Override
+    public Value getColumn(Object obj, int columnIndex) {
+        Value[] columns = ((Row) obj).getColumns();
+        if (columnIndex >= 0 && columnIndex < columns.length)
+            return columns[columnIndex];
+        else
+            return null;
+    }
+
+    @Override
+    public void setColumn(Object obj, int columnIndex, Value value) {
+        Value[] columns = ((Row) obj).getColumns();
+        if (columnIndex >= 0 && columnIndex < columns.length) {
+            columns[columnIndex] = value;
+            if (enumColumns != null)
+                setEnumColumn(value, columnIndex);
+        }
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         if (columnIndexes != null) {
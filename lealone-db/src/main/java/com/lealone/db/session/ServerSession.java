@@ -1350,12 +1350,53 @@ public class ServerSession extends SessionBase implements InternalSession {
         if (lockedByTransaction != null) {
             lockStartTime = System.currentTimeMillis();
             lockedBy = (ServerSession) lockedByTransaction.getSession();
+            database.getDeadlockDetector().check(this, lockedByTransaction);
         } else {
             lockStartTime = 0;
             lockedBy = null;
         }
     }
 
+    public Transaction getLockedByTransaction() {
+        return lockedByTransaction;
+    }
+
+    public Object getLockedObject() {
+        return lockedObject;
+    }
+
+    // 被死锁检测选为牺牲者时由其他session设置，等当前session的调度线程重试语句时再抛出异常回滚事务
+    private volatile DbException deadlockException;
+    private long deadlockDetectTime;
+
+    public boolean isDeadlockVictim() {
+        return deadlockException != null;
+    }
+
+    public synchronized boolean setDeadlockException(DbException e, long detectTime) {
+        if (deadlockException != null)
+            return false;
+        deadlockDetectTime = detectTime;
+        deadlockException = e;
+        return true;
+    }
+
+    public void checkDeadlock() {
+        if (deadlockException == null)
+            return;
+        DbException e;
+        long detectTime;
+        synchronized (this) {
+            e = deadlockException;
+            detectTime = deadlockDetectTime;
+            deadlockException = null;
+        }
+        if (e != null) {
+            database.getDeadlockDetector().onVictimAborted(detectTime);
+            throw e;
+        }
+    }
+
     private InternalScheduler scheduler;
 
     @Override
@@ -1461,6 +1502,9 @@ public class ServerSession extends SessionBase implements InternalSession {
         if (yieldableCommand == null)
             return null;
         wakeUpIfNeeded();
+        // 被选为死锁的牺牲者了，让语句重新执行，在YieldableBase.run中抛出死锁异常
+        if (deadlockException != null && sessionStatus == SessionStatus.WAITING)
+            reset(SessionStatus.RETRYING_RETURN_ACK);
         // session处于以下状态时不会被当成候选的对象
         switch (sessionStatus) {
         case WAITING:
@@ -1542,6 +1586,7 @@ public class ServerSession extends SessionBase implements InternalSession {
 
     private void clean() {
         reset();
+        deadlockException = null;
     }
 
     @Override
@@ -9,6 +9,8 @@ import java.util.ArrayList;
 
 import com.lealone.common.exceptions.DbException;
 import com.lealone.common.util.Utils;
+import com.lealone.db.index.standard.RowCache;
+import com.lealone.db.lock.DeadlockDetector;
 import com.lealone.db.row.Row;
 import com.lealone.db.row.SearchRow;
 import com.lealone.db.schema.Schema;
@@ -21,9 +23,11 @@ import com.lealone.db.stats.QueryStatisticsData;
 public class PerfMetaTable extends MetaTable {
 
     private static final int QUERY_STATISTICS = 0;
+    private static final int ROW_CACHE = 1;
+    private static final int DEADLOCKS = 2;
 
     public static int getMetaTableTypeCount() {
-        return QUERY_STATISTICS + 1;
+        return DEADLOCKS + 1;
     }
 
     public PerfMetaTable(Schema schema, int id, int type) {
@@ -44,6 +48,19 @@ public class PerfMetaTable extends MetaTable {
                     "AVERAGE_ROW_COUNT DOUBLE", "STD_DEV_ROW_COUNT DOUBLE");
             break;
         }
+        case ROW_CACHE: {
+            setObjectName("ROW_CACHE");
+            cols = createColumns("TABLE_SCHEMA", "TABLE_NAME", "MAX_MEMORY LONG", "MEMORY_USED LONG",
+                    "ROW_COUNT INT", "HITS LONG", "MISSES LONG", "HIT_RATIO DOUBLE");
+            break;
+        }
+        case DEADLOCKS: {
+            setObjectName("DEADLOCKS");
+            cols = createColumns("DEADLOCK_COUNT LONG", "VICTIM_COUNT LONG",
+                    "CUMULATIVE_DETECTION_TIME DOUBLE", "AVERAGE_DETECTION_TIME DOUBLE",
+                    "MAX_DETECTION_TIME DOUBLE");
+            break;
+        }
         default:
             throw DbException.getInternalError("type=" + type);
         }
@@ -88,6 +105,50 @@ public class PerfMetaTable extends MetaTable {
             }
             break;
         }
+        case ROW_CACHE: {
+            for (Table table : database.getAllTablesAndViews(true)) {
+                if (!(table instanceof StandardTable))
+                    continue;
+                RowCache rowCache = ((StandardTable) table).getScanIndex(session).getRowCache();
+                if (rowCache == null)
+                    continue;
+                add(rows,
+                        // TABLE_SCHEMA
+                        table.getSchema().getName(),
+                        // TABLE_NAME
+                        table.getName(),
+                        // MAX_MEMORY
+                        "" + rowCache.getMaxMemory(),
+                        // MEMORY_USED
+                        "" + rowCache.getMemory(),
+                        // ROW_COUNT
+                        "" + rowCache.size(),
+                        // HITS
+                        "" + rowCache.getHits(),
+                        // MISSES
+                        "" + rowCache.getMisses(),
+                        // HIT_RATIO
+                        "" + rowCache.getHitRatio());
+            }
+            break;
+        }
+        case DEADLOCKS: {
+            DeadlockDetector detector = database.getDeadlockDetector();
+            long victimCount = detector.getVictimCount();
+            double totalTime = detector.getTotalDetectionTime() / 1000d / 1000;
+            add(rows,
+                    // DEADLOCK_COUNT
+                    "" + detector.getDeadlockCount(),
+                    // VICTIM_COUNT
+                    "" + victimCount,
+                    // CUMULATIVE_DETECTION_TIME
+                    "" + totalTime,
+                    // AVERAGE_DETECTION_TIME
+                    "" + (victimCount == 0 ? 0 : totalTime / victimCount),
+                    // MAX_DETECTION_TIME
+                    "" + detector.getMaxDetectionTime() / 1000d / 1000);
+            break;
+        }
         default:
             throw DbException.getInternalError("type=" + type);
         }
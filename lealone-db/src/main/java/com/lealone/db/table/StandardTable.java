@@ -8,8 +8,11 @@ package com.lealone.db.table;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import com.lealone.common.exceptions.DbException;
 import com.lealone.common.util.CaseInsensitiveMap;
@@ -81,6 +84,11 @@ public class StandardTable extends Table {
 
     private final ArrayList<IndexOperator> indexOperators = Utils.newSmallArrayList();
 
+    // 并行恢复时还没有执行完redo log的表不为null
+    private volatile FutureTask<Void> recoverTask;
+    private volatile Thread recoverThread;
+    private ServerSession redoSession; // 执行redo log时用的session
+
     public StandardTable(CreateTableData data, StorageEngine storageEngine) {
         super(data.schema, data.id, data.tableName, data.persistIndexes, data.persistData);
         this.storageEngine = storageEngine;
@@ -105,6 +113,9 @@ public class StandardTable extends Table {
 
         setTemporary(data.temporary);
         setColumns(data.columns.toArray(new Column[0]));
+        // 打开数据库时创建的表都要执行redo log，要在打开map之前告诉事务引擎
+        if (database.isStarting())
+            database.getTransactionEngine().prepareRecover(getMapNameForTable(getId()));
         primaryIndex = new StandardPrimaryIndex(data.session, this);
         indexes.add(primaryIndex);
         indexesSync.add(primaryIndex);
@@ -550,6 +561,19 @@ public class StandardTable extends Table {
 
     @Override
     public void recover() {
+        recover(database.getSystemSession());
+    }
+
+    private void recover(ServerSession session) {
+        redoSession = session;
+        try {
+            recover0();
+        } finally {
+            redoSession = null;
+        }
+    }
+
+    private void recover0() {
         ArrayList<StorageMap<?, ?>> indexMaps = null;
         ArrayList<Index> indexes = this.indexes;
         int size = indexes.size();
@@ -565,6 +589,38 @@ public class StandardTable extends Table {
         transactionEngine.recover(primaryIndex.getDataMap().getRawMap(), indexMaps);
     }
 
+    // 由恢复线程或第一个访问这个表的线程执行，只会执行一次
+    public FutureTask<Void> prepareRecover(ServerSession session, Consumer<StandardTable> listener) {
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            recoverThread = Thread.currentThread();
+            try {
+                recover(session);
+                recoverTask = null; // 失败时保留，后续访问会抛出同样的异常
+            } finally {
+                recoverThread = null;
+                listener.accept(this);
+            }
+            return null;
+        });
+        recoverTask = task;
+        return task;
+    }
+
+    public void checkRecovered() {
+        FutureTask<Void> task = recoverTask;
+        // 执行redo log时也会访问索引，不需要等待
+        if (task == null || recoverThread == Thread.currentThread())
+            return;
+        task.run(); // 还没有开始恢复就在当前线程中恢复
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        }
+    }
+
     @Override
     public void checkSupportAlter() {
         // ok
@@ -863,7 +919,7 @@ public class StandardTable extends Table {
     @SuppressWarnings("unchecked")
     public void redo(Row row, int metaVersion) {
         Value[] oldValues = row.getColumns();
-        ServerSession session = getDatabase().getSystemSession();
+        ServerSession session = redoSession != null ? redoSession : getDatabase().getSystemSession();
         if (metaVersion < getVersion()) {
             ArrayList<TableAlterHistoryRecord> records = getTableAlterHistoryRecords(session,
                     metaVersion);
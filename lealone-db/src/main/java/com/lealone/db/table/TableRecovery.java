@@ -0,0 +1,108 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.db.table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.lealone.common.trace.Trace;
+import com.lealone.db.Database;
+
+/**
+ * 打开数据库时用多个线程并行执行各个表的redo log，每个表只会被一个线程恢复。
+ *
+ * <p>
+ * 延迟恢复时数据库不用等所有表都恢复完就可以接受连接，还没有恢复的表在第一次访问时由访问线程自己恢复，
+ * 如果正在被其他线程恢复就等它结束。
+ */
+public class TableRecovery {
+
+    private final Database database;
+    private final Trace trace;
+    private final List<StandardTable> tables;
+    private final int threads;
+    private final ArrayList<FutureTask<Void>> tasks;
+    private final AtomicInteger recoveredCount = new AtomicInteger();
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+
+    public TableRecovery(Database database, Trace trace, List<StandardTable> tables, int threads) {
+        this.database = database;
+        this.trace = trace;
+        this.tables = tables;
+        this.threads = Math.max(1, Math.min(threads, tables.size()));
+        tasks = new ArrayList<>(tables.size());
+    }
+
+    public int getTableCount() {
+        return tables.size();
+    }
+
+    public int getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    public boolean isCompleted() {
+        return recoveredCount.get() == tables.size();
+    }
+
+    public void start() {
+        trace.info("recovering {0} tables of {1} with {2} threads", tables.size(), database.getName(),
+                threads);
+        // 每个表用单独的session执行redo，多个线程不能共用系统session
+        for (StandardTable table : tables) {
+            FutureTask<Void> task = table.prepareRecover(database.createSystemSession(),
+                    this::onRecovered);
+            tasks.add(task);
+        }
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(tasks), r -> {
+                    Thread t = new Thread(r, "RecoverThread-" + index.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.prestartAllCoreThreads();
+        executor.shutdown(); // 执行完队列中的任务后线程就退出
+    }
+
+    private void onRecovered(StandardTable table) {
+        int count = recoveredCount.incrementAndGet();
+        int total = tables.size();
+        // 大概每完成10%输出一次进度
+        if (count == total || count % Math.max(1, total / 10) == 0) {
+            if (count == total)
+                endTime = System.currentTimeMillis();
+            trace.info("recovered {0}/{1} tables of {2} in {3} ms", count, total, database.getName(),
+                    System.currentTimeMillis() - startTime);
+        }
+    }
+
+    public long getElapsedTime() {
+        long end = endTime;
+        return (end > 0 ? end : System.currentTimeMillis()) - startTime;
+    }
+
+    // 还没有恢复的表由当前线程恢复，正在恢复的表等它结束
+    public void awaitAll() {
+        RuntimeException first = null;
+        for (StandardTable table : tables) {
+            try {
+                table.checkRecovered();
+            } catch (RuntimeException e) {
+                if (first == null)
+                    first = e;
+            }
+        }
+        if (first != null)
+            throw first;
+    }
+}
@@ -38,4 +38,13 @@ public interface Lockable {
     public int getMetaVersion();
 
     public void setMetaVersion(int mv);
+
+    // 可重复读的事务需要看到的旧版本链表，由事务引擎负责维护，不支持多版本的实现类直接忽略
+    public default Object getOldVersion() {
+        return null;
+    }
+
+    public default boolean compareAndSetOldVersion(Object expect, Object update) {
+        return false;
+    }
 }
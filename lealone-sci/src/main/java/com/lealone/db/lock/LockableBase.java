@@ -14,7 +14,11 @@ public abstract class LockableBase implements Lockable {
     private static final AtomicReferenceFieldUpdater<LockableBase, Lock> lockUpdater = //
             AtomicReferenceFieldUpdater.newUpdater(LockableBase.class, Lock.class, "lock");
 
+    private static final AtomicReferenceFieldUpdater<LockableBase, Object> oldVersionUpdater = //
+            AtomicReferenceFieldUpdater.newUpdater(LockableBase.class, Object.class, "oldVersion");
+
     private volatile Lock lock;
+    private volatile Object oldVersion;
 
     @Override
     public Lock getLock() {
@@ -64,4 +68,14 @@ public abstract class LockableBase implements Lockable {
                 lock.getPageListener().getPageReference().setMetaVersion(mv);
         }
     }
+
+    @Override
+    public Object getOldVersion() {
+        return oldVersion;
+    }
+
+    @Override
+    public boolean compareAndSetOldVersion(Object expect, Object update) {
+        return oldVersionUpdater.compareAndSet(this, expect, update);
+    }
 }
@@ -127,6 +127,21 @@ public abstract class StorageBuilder {
         return set(DbSetting.COMPRESS, 2);
     }
 
+    /**
+     * Compress data before writing using the given algorithm (NO, LZF,
+     * DEFLATE, LZ4, LZ4HC or LZH). LZ4 and LZ4HC decompress fastest; LZH
+     * saves almost as much disk space as Deflate and decompresses faster.
+     * <p>
+     * The algorithm is stored in each page, so pages written with another
+     * algorithm can still be read.
+     *
+     * @param algorithm the compression algorithm
+     * @return this
+     */
+    public StorageBuilder compress(String algorithm) {
+        return set(DbSetting.COMPRESS, algorithm);
+    }
+
     /**
      * Set the amount of memory a page should contain at most, in bytes,
      * before it is split. The default is 16 KB for persistent stores and 4
@@ -145,6 +160,64 @@ public abstract class StorageBuilder {
         return set(StorageSetting.MIN_FILL_RATE, minFillRate);
     }
 
+    /**
+     * Set the maximum number of sibling leaf pages that a sequential cursor scan
+     * reads ahead in the background. The default is 0 (read-ahead disabled).
+     * 
+     * @param pages the maximum number of pages to read ahead
+     * @return this
+     */
+    public StorageBuilder readAheadPages(int pages) {
+        return set(StorageSetting.READ_AHEAD_PAGES, pages);
+    }
+
+    /**
+     * Read pages of sealed chunk files through memory mapped files instead of
+     * reading them into heap buffers. The default is false.
+     * 
+     * @param mmapRead whether to use memory mapped reads
+     * @return this
+     */
+    public StorageBuilder mmapRead(boolean mmapRead) {
+        return set(StorageSetting.MMAP_READ, mmapRead);
+    }
+
+    /**
+     * Set the size of the off-heap page cache shared by all maps of the storage.
+     * The default is 0 (disabled).
+     * 
+     * @param bytes the cache size in bytes
+     * @return this
+     */
+    public StorageBuilder pageCacheSize(long bytes) {
+        return set(StorageSetting.PAGE_CACHE_SIZE, bytes);
+    }
+
+    /**
+     * Set the number of bits per key of the Bloom filters that are built for
+     * leaf pages when they are written. Point lookups of missing keys can then
+     * skip reading the leaf page. The default is 0 (disabled), 10 gives a false
+     * positive rate of about 1%.
+     * 
+     * @param bitsPerKey the number of bits per key
+     * @return this
+     */
+    public StorageBuilder bloomFilterBitsPerKey(int bitsPerKey) {
+        return set(StorageSetting.BLOOM_FILTER_BITS_PER_KEY, bitsPerKey);
+    }
+
+    /**
+     * Set the maximum number of live bytes per second that chunk compaction
+     * re-writes. Compaction runs when dirty pages are saved and periodically in
+     * the background. The default is 0 (unlimited).
+     * 
+     * @param bytesPerSecond the maximum number of bytes per second
+     * @return this
+     */
+    public StorageBuilder compactRate(long bytesPerSecond) {
+        return set(StorageSetting.COMPACT_RATE, bytesPerSecond);
+    }
+
     @Override
     public String toString() {
         return DataUtils.appendMap(new StringBuilder(), config).toString();
@@ -6,13 +6,13 @@
 package com.lealone.storage;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import com.lealone.db.Constants;
 import com.lealone.db.DataBuffer;
 import com.lealone.db.async.AsyncResultHandler;
 import com.lealone.db.async.Future;
-import com.lealone.db.lock.Lockable;
 import com.lealone.db.session.InternalSession;
 import com.lealone.storage.type.StorageDataType;
 
@@ -86,6 +86,20 @@ public interface StorageMap<K, V> {
 
     K append(V value);
 
+    /**
+     * Add a batch of key-value pairs.
+     * If the map is empty, the storage engine may build the pages directly from the entries.
+     *
+     * @param entries the key-value pairs (keys and values may not be null)
+     * @param sorted whether the entries are already sorted by key
+     */
+    default void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, boolean sorted) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            put(e.getKey(), e.getValue());
+        }
+    }
+
     void setMaxKey(K key);
 
     long getAndAddKey(long delta);
@@ -226,6 +240,19 @@ public interface StorageMap<K, V> {
         return 0;
     }
 
+    // 以下三个是刷脏页的统计信息，page数和字节数是累计值
+    default long getSavedPages() {
+        return 0;
+    }
+
+    default long getSavedBytes() {
+        return 0;
+    }
+
+    default long getLastSaveTime() {
+        return 0;
+    }
+
     default boolean hasUnsavedChanges() {
         return false;
     }
@@ -236,6 +263,10 @@ public interface StorageMap<K, V> {
     default void fullGc() {
     }
 
+    // 在后台重写填充率低的chunk
+    default void compact() {
+    }
+
     default long collectDirtyMemory() {
         return 0;
     }
@@ -296,10 +327,6 @@ public interface StorageMap<K, V> {
         handler.handleResult(result);
     }
 
-    default ConcurrentHashMap<Lockable, Object> getOldValueCache() {
-        return null;
-    }
-
     //////////////////// 以下是RedoLog相关API ////////////////////////////////
 
     default void writeRedoLog(ByteBuffer log) {
@@ -337,6 +364,14 @@ public interface StorageMap<K, V> {
         return true;
     }
 
+    // 打开后还没有执行完chunk中的redo log时为true
+    default boolean isRecovering() {
+        return false;
+    }
+
+    default void setRecovering(boolean recovering) {
+    }
+
     // 只有一个线程访问
     public static class RedoLogBuffer {
 
@@ -5,11 +5,9 @@
  */
 package com.lealone.storage;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.lealone.common.util.DataUtils;
-import com.lealone.db.lock.Lockable;
 import com.lealone.db.value.ValueDataType.PrimaryKey;
 import com.lealone.db.value.ValueLong;
 import com.lealone.storage.type.StorageDataType;
@@ -96,11 +94,4 @@ public abstract class StorageMapBase<K, V> implements StorageMap<K, V> {
     public long incrementAndGetMaxKey() {
         return maxKey.incrementAndGet();
     }
-
-    private final ConcurrentHashMap<Lockable, Object> oldValueCache = new ConcurrentHashMap<>(1);
-
-    @Override
-    public ConcurrentHashMap<Lockable, Object> getOldValueCache() {
-        return oldValueCache;
-    }
 }
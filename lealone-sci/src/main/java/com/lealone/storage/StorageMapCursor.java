@@ -6,6 +6,7 @@
 package com.lealone.storage;
 
 import java.util.Objects;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public interface StorageMapCursor<K, V> {
@@ -26,6 +27,26 @@ public interface StorageMapCursor<K, V> {
 
     boolean next();
 
+    /**
+     * Read up to maxRows entries and pass them to the action.
+     * <p>
+     * Implementations may return fewer rows than maxRows (for example only the rows of the current
+     * page), so the caller should keep calling until 0 is returned.
+     *
+     * @param maxRows the maximum number of entries to read
+     * @param action the action for each entry
+     * @return the number of entries passed to the action, 0 if there are no more entries
+     */
+    default int next(int maxRows, BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        int rows = 0;
+        while (rows < maxRows && next()) {
+            action.accept(getKey(), getValue());
+            rows++;
+        }
+        return rows;
+    }
+
     default void forEachRemaining(Consumer<? super K> action) {
         Objects.requireNonNull(action);
         while (next())
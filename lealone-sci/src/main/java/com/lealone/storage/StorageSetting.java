@@ -13,6 +13,12 @@ public enum StorageSetting {
     MAP_TYPE,
     USE_TABLE_LOB_STORAGE,
     MAX_CHUNK_SIZE,
+    READ_AHEAD_PAGES,
+    MMAP_READ,
+    PAGE_CACHE_SIZE,
+    BLOOM_FILTER_BITS_PER_KEY,
+    COMPACT_RATE,
+    ROW_CACHE_SIZE,
 
     RUN_MODE
 }
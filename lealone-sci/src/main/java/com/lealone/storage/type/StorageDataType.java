@@ -7,7 +7,9 @@ package com.lealone.storage.type;
 
 import java.nio.ByteBuffer;
 
+import com.lealone.common.exceptions.DbException;
 import com.lealone.db.DataBuffer;
+import com.lealone.db.value.Value;
 import com.lealone.db.value.ValueArray;
 import com.lealone.db.value.ValueDataType;
 
@@ -38,6 +40,15 @@ public interface StorageDataType extends ValueDataType {
         // do nothing
     }
 
+    // 返回null表示没有这一列，ColumnPage只有在每一行都有这一列时才对列编码
+    default Value getColumn(Object obj, int columnIndex) {
+        return null;
+    }
+
+    default void setColumn(Object obj, int columnIndex, Value value) {
+        // do nothing
+    }
+
     default void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         // do nothing
     }
@@ -75,6 +86,15 @@ public interface StorageDataType extends ValueDataType {
         return false;
     }
 
+    // key能否转成long，比如表的row id，这样的key在page中可以用long[]做二分查找
+    default boolean isLongKey() {
+        return false;
+    }
+
+    default long getLongKey(Object key) {
+        throw DbException.getUnsupportedException("getLongKey");
+    }
+
     default void setRowOnly(boolean rowOnly) {
     }
 
@@ -90,6 +110,12 @@ public interface StorageDataType extends ValueDataType {
         return keyObj;
     }
 
+    // 切割leaf page时左边的最后一个key是prevKeyObj，只要返回的key大于它并且不大于keyObj就可以，
+    // 越短越好，node page能放更多的key
+    default Object getSplitKey(Object prevKeyObj, Object keyObj) {
+        return getSplitKey(keyObj);
+    }
+
     default Object getAppendKey(long key, Object valueObj) {
         return Long.valueOf(key);
     }
@@ -43,6 +43,10 @@ public interface TransactionEngine extends PluggableEngine {
 
     void checkpoint();
 
+    // 在打开需要执行redo log的map之前调用，recover完成前这个map不能压缩和刷脏页
+    default void prepareRecover(String mapName) {
+    }
+
     default void recover(StorageMap<?, ?> map, List<StorageMap<?, ?>> indexMaps) {
     }
 
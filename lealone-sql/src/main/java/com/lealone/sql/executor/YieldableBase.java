@@ -99,6 +99,7 @@ public abstract class YieldableBase<T> implements Yieldable<T> {
             }
 
             session.getDatabase().checkPowerOff();
+            session.checkDeadlock();
             executeInternal();
         } catch (Throwable t) {
             pendingException = t;
@@ -9,6 +9,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 
+import org.junit.Test;
+
 import com.lealone.db.index.standard.PrimaryKeyType;
 import com.lealone.db.row.Row;
 import com.lealone.db.row.RowType;
@@ -16,6 +18,7 @@ import com.lealone.db.value.Value;
 import com.lealone.db.value.ValueString;
 import com.lealone.storage.StorageMapCursor;
 import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.btree.BTreeGC;
 import com.lealone.storage.aose.btree.BTreeMap;
 import com.lealone.storage.type.StorageDataTypeFactory;
 
@@ -40,6 +43,46 @@ public class BTreeGCTest extends AoseTestBase {
         testFullGc();
     }
 
+    @Test
+    public void testIncrementalGc() {
+        openMap();
+        map.clear();
+        int count = 20000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        map.fullGc();
+        // 读到内存中的page都会进入PageClock
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        BTreeGC bgc = map.getBTreeStorage().getBTreeGC();
+        assertTrue(bgc.getPageClock().size() > 0);
+        long usedMemory = bgc.getUsedMemory();
+        bgc.setMaxMemory(1); // 1M，超过512K就需要GC
+        assertTrue(usedMemory > bgc.getMaxMemory() / 2);
+        assertTrue(bgc.needGc());
+
+        long gcCount = bgc.getGcCount();
+        // 每次GC的时间有限制，一次可能回收不完
+        for (int i = 0; i < 100 && bgc.needGc(); i++) {
+            map.gc();
+        }
+        assertFalse(bgc.needGc());
+        assertTrue(bgc.getGcCount() > gcCount);
+        assertTrue(bgc.getTotalReclaimedBytes() > 0);
+        assertTrue(bgc.getTotalPauseNanos() > 0);
+        assertTrue(bgc.getMaxPauseNanos() >= bgc.getLastPauseNanos());
+        // 只回收降到阈值以下需要的内存，不会把所有page都回收掉
+        assertTrue(bgc.getUsedMemory() > 0);
+
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
     public void testConcurrent() {
         openMap();
         map.clear();
@@ -9,6 +9,7 @@ import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import com.lealone.storage.CursorParameters;
 import com.lealone.storage.StorageMapCursor;
 import com.lealone.storage.aose.btree.BTreeMap;
 
@@ -25,6 +26,7 @@ public class BTreeMapTest extends AoseTestBase {
         testRemove();
         testSave();
         testAppend();
+        testBoundedCursor();
         // }
     }
 
@@ -275,4 +277,53 @@ public class BTreeMapTest extends AoseTestBase {
         }
         assertEquals(count, map.getMaxKey());
     }
+
+    void testBoundedCursor() {
+        openMap();
+        map.clear();
+        int count = 10000;
+        for (int i = 1; i <= count; i += 2) {
+            map.put(i, "value-" + i);
+        }
+
+        // to刚好是一个key
+        StorageMapCursor<Integer, String> cursor = map.cursor(createParameters(101, 2001));
+        int expected = 101;
+        while (cursor.next()) {
+            assertEquals(expected, cursor.getKey().intValue());
+            expected += 2;
+        }
+        assertEquals(2003, expected);
+
+        // to不是一个key
+        cursor = map.cursor(createParameters(100, 3000));
+        int rows = 0;
+        while (cursor.next())
+            rows++;
+        assertEquals(1450, rows);
+
+        // from大于to
+        cursor = map.cursor(createParameters(3000, 100));
+        assertFalse(cursor.next());
+
+        // 批量读取
+        cursor = map.cursor(createParameters(1, 5001));
+        int[] next = { 1 };
+        int n;
+        rows = 0;
+        while ((n = cursor.next(100, (k, v) -> {
+            assertEquals(next[0], k.intValue());
+            assertEquals("value-" + k, v);
+            next[0] += 2;
+        })) > 0) {
+            assertTrue(n <= 100);
+            rows += n;
+        }
+        assertEquals(2501, rows);
+        assertEquals(5001, cursor.getKey().intValue());
+    }
+
+    private static CursorParameters<Integer> createParameters(Integer from, Integer to) {
+        return CursorParameters.create(from, to);
+    }
 }
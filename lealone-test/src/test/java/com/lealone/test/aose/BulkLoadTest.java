@@ -0,0 +1,124 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.lealone.storage.StorageMapCursor;
+import com.lealone.storage.aose.btree.BTreeMap;
+
+public class BulkLoadTest extends AoseTestBase {
+
+    private final int count = 30000;
+
+    @Test
+    public void run() {
+        // cache很小，导入过程中会多次保存，外部排序也会写多个临时文件
+        storage = openStorage(4 * 1024, 1);
+        testSorted();
+        testUnsorted();
+        testNotEmpty();
+        testUnsortedKeys();
+    }
+
+    private BTreeMap<Integer, String> openMap(String name) {
+        BTreeMap<Integer, String> map = storage.openBTreeMap(name);
+        map.clear();
+        return map;
+    }
+
+    private static String value(int i) {
+        return "value-" + i + "-a-long-value-to-fill-the-pages-of-the-bulk-load-test";
+    }
+
+    private void testSorted() {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int i = 1; i <= count; i++)
+            expected.put(i, value(i));
+        BTreeMap<Integer, String> map = openMap("BulkLoadTest_sorted");
+        map.bulkLoad(expected.entrySet().iterator(), true);
+        check(map, expected);
+    }
+
+    private void testUnsorted() {
+        ArrayList<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int i = 1; i <= count; i++) {
+            entries.add(new TreeMap.SimpleEntry<>(i, value(i)));
+            expected.put(i, value(i));
+        }
+        // 有重复的key时保留最后一条
+        for (int i = 1; i <= count; i += 100) {
+            entries.add(new TreeMap.SimpleEntry<>(i, value(-i)));
+            expected.put(i, value(-i));
+        }
+        Collections.shuffle(entries.subList(0, count), new Random(1));
+        BTreeMap<Integer, String> map = openMap("BulkLoadTest_unsorted");
+        map.bulkLoad(entries.iterator(), false);
+        check(map, expected);
+    }
+
+    // 不是空map时跟put一样
+    private void testNotEmpty() {
+        BTreeMap<Integer, String> map = openMap("BulkLoadTest_not_empty");
+        map.put(1, "a");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int i = 1; i <= 100; i++)
+            expected.put(i, value(i));
+        map.bulkLoad(expected.entrySet().iterator(), true);
+        check(map, expected);
+    }
+
+    private void testUnsortedKeys() {
+        TreeMap<Integer, String> entries = new TreeMap<>(Collections.reverseOrder());
+        entries.put(1, "a");
+        entries.put(2, "b");
+        BTreeMap<Integer, String> map = openMap("BulkLoadTest_unsorted_keys");
+        try {
+            map.bulkLoad(entries.entrySet().iterator(), true);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        map.remove();
+    }
+
+    private void check(BTreeMap<Integer, String> map, TreeMap<Integer, String> expected) {
+        String name = map.getName();
+        checkMap(map, expected);
+        map.put(0, "0"); // 导入后马上就可以写
+        assertEquals("0", map.remove(0));
+        map.save();
+        map.fullGc();
+        checkMap(map, expected); // 从硬盘读出来的page
+
+        map.close();
+        map = storage.openBTreeMap(name);
+        checkMap(map, expected);
+        map.put(0, "0"); // 导入后还可以正常写
+        assertEquals("0", map.get(0));
+        map.remove();
+    }
+
+    private void checkMap(BTreeMap<Integer, String> map, TreeMap<Integer, String> expected) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.lastKey(), map.lastKey());
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            assertTrue(cursor.next());
+            assertEquals(e.getKey(), cursor.getKey());
+            assertEquals(e.getValue(), cursor.getValue());
+        }
+        assertFalse(cursor.next());
+        for (int i = 1; i <= expected.size(); i += 97)
+            assertEquals(expected.get(i), map.get(i));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.lealone.db.DataBuffer;
+import com.lealone.db.DbSetting;
+import com.lealone.db.row.Row;
+import com.lealone.db.row.RowType;
+import com.lealone.db.value.CompareMode;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueBoolean;
+import com.lealone.db.value.ValueDate;
+import com.lealone.db.value.ValueInt;
+import com.lealone.db.value.ValueLong;
+import com.lealone.db.value.ValueNull;
+import com.lealone.db.value.ValueString;
+import com.lealone.db.value.ValueStringIgnoreCase;
+import com.lealone.db.value.ValueTimestamp;
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.AOStorage;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.page.ColumnEncoding;
+import com.lealone.storage.aose.btree.page.ColumnStorageLeafPage;
+import com.lealone.storage.aose.btree.page.PageStorageMode;
+
+public class ColumnEncodingTest extends AoseTestBase {
+
+    private static final CompareMode COMPARE_MODE = CompareMode.getInstance(null, 0, false);
+
+    private final int rowCount = 200;
+
+    @Test
+    public void run() {
+        testEncodings();
+        testColumnStorage();
+    }
+
+    private void testEncodings() {
+        Value[] values = new Value[rowCount];
+        // 基数小的字符串用字典
+        for (int i = 0; i < rowCount; i++)
+            values[i] = i % 10 == 0 ? ValueNull.INSTANCE : ValueString.get("city-" + (i % 7));
+        testEncoding(values, ColumnEncoding.DICTIONARY, ValueString.get("city-3"));
+
+        // 聚集在一起的值用RLE
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueString.get("status-" + (i / 50));
+        testEncoding(values, ColumnEncoding.RLE, ValueString.get("status-2"));
+
+        // 递增的整数和时间戳用delta，范围小的整数用frame-of-reference
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueLong.get(1_000_000_000_000L + i * 1000 + i % 3);
+        testEncoding(values, ColumnEncoding.PACKED, ValueLong.get(1_000_000_100_000L));
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueInt.get(-(i * 7919 % 1000));
+        testEncoding(values, ColumnEncoding.PACKED, ValueInt.get(-500));
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueTimestamp.fromDateValueAndNanos(ValueDate.parse("2024-01-01")
+                    .getDateValue() + i / 100, i * 1_000_000_000L);
+        testEncoding(values, ColumnEncoding.PACKED, values[150]);
+
+        // 布尔值每个只用1位
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueBoolean.get(i % 3 == 0);
+        DataBuffer buff = testEncoding(values, ColumnEncoding.PACKED, ValueBoolean.get(true));
+        assertTrue(buff.position() < rowCount / 8 + 16);
+
+        // 各不相同的字符串不编码
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueString.get("name-" + i);
+        testEncoding(values, ColumnEncoding.PLAIN, ValueString.get("name-100"));
+
+        // 忽略大小写时相等的字符串也不能当成同一个值
+        for (int i = 0; i < rowCount; i++)
+            values[i] = ValueStringIgnoreCase.get(i % 2 == 0 ? "abc" : "ABC");
+        testEncoding(values, ColumnEncoding.DICTIONARY, ValueStringIgnoreCase.get("Abc"));
+
+        testEncoding(new Value[0], ColumnEncoding.PLAIN, ValueInt.get(1));
+    }
+
+    private DataBuffer testEncoding(Value[] values, int expectedEncoding, Value value) {
+        DataBuffer buff = DataBuffer.create();
+        assertEquals(expectedEncoding, ColumnEncoding.write(buff, values));
+        ByteBuffer bytes = buff.getAndFlipBuffer();
+        Value[] values2 = ColumnEncoding.read(bytes.slice(), values.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i].getType(), values2[i].getType());
+            assertEquals(values[i].getString(), values2[i].getString());
+        }
+        for (int compareType = ColumnEncoding.EQUAL; compareType <= ColumnEncoding.NOT_EQUAL;
+                compareType++) {
+            BitSet expected = new BitSet();
+            ColumnEncoding.evaluate(values, compareType, value, COMPARE_MODE, expected);
+            BitSet result = new BitSet();
+            ColumnEncoding.evaluate(bytes.slice(), values.length, compareType, value,
+                    COMPARE_MODE, result);
+            assertEquals(expected, result);
+        }
+        return buff;
+    }
+
+    private void testColumnStorage() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.PAGE_STORAGE_MODE.name(),
+                PageStorageMode.COLUMN_STORAGE.name());
+        parameters.put(DbSetting.COMPRESS.name(), "NO");
+        AOStorage storage = openStorage();
+        RowType valueType = new RowType(null, 4);
+        BTreeMap<Integer, Row> map = storage.openBTreeMap("ColumnEncodingTest", null, valueType,
+                parameters);
+        map.clear();
+        int count = 5000;
+        for (int i = 1; i <= count; i++)
+            map.put(i, createRow(i));
+        checkFilter(map, count); // 还在内存中的page
+        map.save();
+        map.fullGc();
+        for (int i = 1; i <= count; i += 97)
+            assertEquals(createRow(i).getColumns()[1].getString(),
+                    map.get(i, new int[] { 1 }).getColumns()[1].getString());
+        checkFilter(map, count); // 从硬盘读出来的page
+        for (int i = 1; i <= count; i++) {
+            Value[] columns = map.get(i).getColumns();
+            Value[] expected = createRow(i).getColumns();
+            for (int col = 0; col < expected.length; col++)
+                assertEquals(expected[col], columns[col]);
+        }
+        map.remove();
+    }
+
+    private void checkFilter(BTreeMap<Integer, Row> map, int count) {
+        int matched = 0;
+        for (int key = 1; key <= count;) {
+            ColumnStorageLeafPage page = (ColumnStorageLeafPage) map.gotoLeafPage(key);
+            BitSet result = page.filter(1, ColumnEncoding.EQUAL, ValueString.get("city-3"),
+                    COMPARE_MODE);
+            for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                assertEquals(3, (Integer) page.getKey(i) % 7);
+                matched++;
+            }
+            key = (Integer) page.getKey(page.getKeyCount() - 1) + 1;
+        }
+        assertEquals(count / 7 + (count % 7 >= 3 ? 1 : 0), matched);
+    }
+
+    private static Row createRow(int i) {
+        Value[] columns = new Value[4];
+        columns[0] = ValueInt.get(i);
+        columns[1] = ValueString.get("city-" + (i % 7));
+        columns[2] = ValueBoolean.get(i % 2 == 0);
+        columns[3] = ValueString.get("name-" + i);
+        return new Row(columns);
+    }
+}
@@ -9,14 +9,19 @@ import java.util.HashMap;
 
 import org.junit.Test;
 
+import com.lealone.db.index.standard.PrimaryKeyType;
 import com.lealone.db.row.Row;
 import com.lealone.db.row.RowType;
 import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueLong;
 import com.lealone.db.value.ValueString;
+import com.lealone.storage.FormatVersion;
 import com.lealone.storage.StorageMap;
 import com.lealone.storage.StorageSetting;
 import com.lealone.storage.aose.AOStorage;
 import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.BTreeStorage;
+import com.lealone.storage.aose.btree.chunk.ChunkManager;
 import com.lealone.storage.aose.btree.page.PageStorageMode;
 
 public class CompactTest extends AoseTestBase {
@@ -24,6 +29,8 @@ public class CompactTest extends AoseTestBase {
     public void run() {
         runRowStorageCompact();
         runColumnStorageCompact();
+        runBackgroundCompact();
+        runUpgradeCompact();
     }
 
     void runRowStorageCompact() {
@@ -93,4 +100,94 @@ public class CompactTest extends AoseTestBase {
 
         assertEquals(2000, map.size());
     }
+
+    // 刷脏页时不压缩，由后台调用compact()重写填充率低的chunk
+    void runBackgroundCompact() {
+        AOStorage storage = openStorage(4 * 1024);
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.MIN_FILL_RATE.name(), "50");
+        BTreeMap<Integer, String> map = storage.openBTreeMap("BackgroundCompact", null, null,
+                parameters);
+        map.clear();
+        int count = 5000;
+        for (int i = 1; i <= count; i++)
+            map.put(i, "value" + i);
+        map.save(false, false, map.collectDirtyMemory());
+        for (int i = 1; i <= count * 4 / 5; i++)
+            map.put(i, "new-value" + i);
+        // 检查点刷脏页时会设置lastTransactionId
+        map.setLastTransactionId(100);
+        map.save(false, false, map.collectDirtyMemory());
+        map.setLastTransactionId(-1);
+
+        BTreeStorage bs = map.getBTreeStorage();
+        double spaceAmplification = bs.getSpaceAmplification();
+        assertTrue(spaceAmplification > 1.5);
+        assertEquals(0, bs.getCompactedBytes());
+
+        map.compact();
+        assertTrue(bs.getCompactedBytes() > 0);
+        assertTrue(bs.getReclaimedBytes() > 0);
+        assertTrue(bs.getSpaceAmplification() < spaceAmplification);
+        assertTrue(bs.getWriteAmplification() > 1);
+        // 重写page生成的chunk沿用上一个chunk的lastTransactionId
+        assertEquals(100, bs.getChunkManager().getLastChunk().getLastTransactionId());
+        assertTrue(map.validateRedoLog(100));
+
+        map.close();
+        map = storage.openBTreeMap("BackgroundCompact", null, null, parameters);
+        for (int i = 1; i <= count; i++)
+            assertEquals((i <= count * 4 / 5 ? "new-value" : "value") + i, map.get(i));
+        map.remove();
+    }
+
+    // 老版本chunk中的page格式不一样，重写到新chunk时不能直接复制原始数据
+    void runUpgradeCompact() {
+        AOStorage storage = openStorage(4 * 1024);
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.MIN_FILL_RATE.name(), "50");
+        RowType valueType = new RowType(null, 1);
+        valueType.setRowOnly(true);
+        BTreeMap<Object, Row> map = storage.openBTreeMap("UpgradeCompact", new PrimaryKeyType(),
+                valueType, parameters);
+        map.clear();
+        ChunkManager chunkManager = map.getBTreeStorage().getChunkManager();
+        // FORMAT_VERSION_2的主键不是按差值写的
+        chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION_2);
+        int count = 5000;
+        putRows(map, 1, count, "value");
+        chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION);
+        putRows(map, 1, count * 4 / 5, "new-value");
+
+        BTreeStorage bs = map.getBTreeStorage();
+        map.compact();
+        assertTrue(bs.getCompactedBytes() > 0);
+        checkRows(map, count);
+        map.fullGc(); // 从硬盘读重写后的page
+        checkRows(map, count);
+
+        map.close();
+        map = storage.openBTreeMap("UpgradeCompact", new PrimaryKeyType(), valueType, parameters);
+        checkRows(map, count);
+        map.remove();
+    }
+
+    private void putRows(BTreeMap<Object, Row> map, int rowStart, int rowEnd, String prefix) {
+        for (int i = rowStart; i <= rowEnd; i++) {
+            Row r = new Row(i, new Value[] { ValueString.get(prefix + i) });
+            map.put(r, r);
+        }
+        map.save(false, false, map.collectDirtyMemory());
+    }
+
+    private void checkRows(BTreeMap<Object, Row> map, int count) {
+        assertEquals(count, map.size());
+        for (int i = 1; i <= count; i++) {
+            Row r = map.get(ValueLong.get(i));
+            assertNotNull(r);
+            assertEquals(i, r.getKey());
+            String prefix = i <= count * 4 / 5 ? "new-value" : "value";
+            assertEquals(prefix + i, r.getColumns()[0].getString());
+        }
+    }
 }
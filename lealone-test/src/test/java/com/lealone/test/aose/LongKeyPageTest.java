@@ -0,0 +1,156 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.lealone.db.DataBuffer;
+import com.lealone.db.index.standard.PrimaryKeyType;
+import com.lealone.db.row.Row;
+import com.lealone.db.row.RowType;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueLong;
+import com.lealone.db.value.ValueString;
+import com.lealone.storage.CursorParameters;
+import com.lealone.storage.FormatVersion;
+import com.lealone.storage.StorageMapCursor;
+import com.lealone.storage.aose.btree.BTreeMap;
+
+public class LongKeyPageTest extends AoseTestBase {
+
+    private final int count = 5000;
+
+    @Test
+    public void run() {
+        testDeltaKeys();
+        testLongKeyMap();
+        testCopyLongKeys();
+    }
+
+    private void testDeltaKeys() {
+        PrimaryKeyType keyType = new PrimaryKeyType();
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = ValueLong.get(1_000_000_000L + i * 3);
+
+        DataBuffer buff = DataBuffer.create();
+        keyType.write(buff, keys, count, FormatVersion.FORMAT_VERSION_2);
+        int oldLength = buff.position();
+        buff = DataBuffer.create();
+        keyType.write(buff, keys, count, FormatVersion.FORMAT_VERSION);
+        // 只有第一个key是完整的，后面的差值都只占1个字节
+        assertTrue(buff.position() < oldLength / 3);
+
+        ByteBuffer bytes = buff.getAndFlipBuffer();
+        Object[] keys2 = new Object[count];
+        keyType.read(bytes, keys2, count, FormatVersion.FORMAT_VERSION);
+        for (int i = 0; i < count; i++)
+            assertEquals(keys[i], keys2[i]);
+    }
+
+    private void testLongKeyMap() {
+        storage = openStorage(4 * 1024);
+        BTreeMap<Object, Row> map = openLongKeyMap();
+        map.clear();
+        for (int i = 1; i <= count; i++) {
+            Row r = createRow(i * 2); // 只放偶数
+            map.put(r, r);
+        }
+        checkMap(map);
+        map.save();
+        map.fullGc();
+        checkMap(map); // 从硬盘读出来的page
+
+        map.close();
+        map = openLongKeyMap();
+        checkMap(map);
+        map.remove();
+    }
+
+    // copy-on-write、删除和分裂产生的新page直接复制原来的long key，不需要重新转换所有的key
+    private void testCopyLongKeys() {
+        storage = openStorage(4 * 1024);
+        CountingKeyType keyType = new CountingKeyType();
+        BTreeMap<Object, Row> map = openLongKeyMap(keyType);
+        map.clear();
+        ArrayList<Long> keys = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++)
+            keys.add(i * 2L);
+        Collections.shuffle(keys, new Random(1));
+        for (long key : keys) {
+            Row r = createRow(key);
+            map.put(r, r);
+        }
+        for (int i = 0; i < count / 2; i++)
+            map.remove(ValueLong.get(keys.get(i)));
+        // 每次put和remove只需要在查找路径上的每一层page各转换一次，每次都重建long[]时会多出一个数量级
+        assertTrue(keyType.count < count * 10);
+        assertEquals(count - count / 2, map.size());
+        for (int i = 0; i < count; i++) {
+            Row r = map.get(ValueLong.get(keys.get(i)));
+            if (i < count / 2) {
+                assertNull(r);
+            } else {
+                assertNotNull(r);
+                assertEquals(keys.get(i).longValue(), r.getKey());
+            }
+        }
+        map.remove();
+    }
+
+    private static class CountingKeyType extends PrimaryKeyType {
+
+        private int count;
+
+        @Override
+        public long getLongKey(Object key) {
+            count++;
+            return super.getLongKey(key);
+        }
+    }
+
+    private BTreeMap<Object, Row> openLongKeyMap() {
+        return openLongKeyMap(new PrimaryKeyType());
+    }
+
+    private BTreeMap<Object, Row> openLongKeyMap(PrimaryKeyType keyType) {
+        RowType valueType = new RowType(null, 1);
+        valueType.setRowOnly(true);
+        return storage.openBTreeMap(LongKeyPageTest.class.getSimpleName(), keyType, valueType, null);
+    }
+
+    private void checkMap(BTreeMap<Object, Row> map) {
+        assertEquals(count, map.size());
+        for (int i = 1; i <= count; i++) {
+            Row r = map.get(ValueLong.get(i * 2));
+            assertNotNull(r);
+            assertEquals(i * 2, r.getKey());
+            assertEquals("value-" + i * 2, r.getColumns()[0].getString());
+            assertNull(map.get(ValueLong.get(i * 2 - 1)));
+        }
+        assertNull(map.get(ValueLong.get(count * 2 + 1)));
+
+        // 范围查询从奇数开始时也要定位到下一个偶数
+        StorageMapCursor<Object, Row> cursor = map
+                .cursor(CursorParameters.create(ValueLong.get(1001)));
+        long expected = 1002;
+        while (cursor.next()) {
+            assertEquals(expected, ((Row) cursor.getKey()).getKey());
+            expected += 2;
+        }
+        assertEquals(count * 2 + 2, expected);
+    }
+
+    private static Row createRow(long key) {
+        Value[] columns = { ValueString.get("value-" + key) };
+        return new Row(key, columns);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.btree.chunk.Chunk;
+import com.lealone.storage.aose.btree.chunk.ChunkManager;
+import com.lealone.storage.fs.FileStorage;
+import com.lealone.storage.fs.FileUtils;
+
+public class MmapReadTest extends AoseTestBase {
+    @Test
+    public void run() {
+        storage = openStorage(pageSize);
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.MMAP_READ.name(), "true");
+        map = storage.openBTreeMap(MmapReadTest.class.getSimpleName(), null, null, parameters);
+        map.clear();
+        ChunkManager chunkManager = map.getBTreeStorage().getChunkManager();
+        assertTrue(chunkManager.isMmapRead());
+
+        int count = 3000;
+        putData(count, "a");
+        Chunk firstChunk = chunkManager.getLastChunk();
+        map.put(1, "b-1");
+        map.save(); // 写一个新的chunk后第一个chunk就不会再变了
+        assertTrue(firstChunk != chunkManager.getLastChunk());
+
+        map.fullGc(); // 让所有page都离线，然后从chunk文件中读
+        assertEquals("b-1", map.get(1));
+        for (int i = 2; i <= count; i++) {
+            assertEquals("a-" + i, map.get(i));
+        }
+        FileStorage fileStorage = firstChunk.fileStorage;
+        assertTrue(fileStorage.isMapped());
+        assertTrue(fileStorage.getMappedReadCount() > 0);
+
+        // 所有page都被重写后第一个chunk就会被删除，同时释放映射的区域
+        String fileName = fileStorage.getFileName();
+        putData(count, "c");
+        putData(count, "d");
+        assertFalse(fileStorage.isMapped());
+        assertFalse(FileUtils.exists(fileName));
+
+        map.fullGc();
+        for (int i = 1; i <= count; i++) {
+            assertEquals("d-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    private void putData(int count, String prefix) {
+        for (int i = 1; i <= count; i++) {
+            map.put(i, prefix + "-" + i);
+        }
+        map.save();
+    }
+}
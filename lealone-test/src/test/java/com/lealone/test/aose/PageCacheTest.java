@@ -0,0 +1,121 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.lealone.storage.aose.AOStorage;
+import com.lealone.storage.aose.AOStorageBuilder;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.BTreePageCache;
+import com.lealone.storage.aose.btree.BTreeStorage;
+import com.lealone.storage.aose.btree.chunk.Chunk;
+
+public class PageCacheTest extends AoseTestBase {
+    @Test
+    public void run() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.pageSize(pageSize).pageCacheSize(4 * 1024 * 1024);
+        storage = openStorage(builder, joinDirs("aose", "PageCacheTest"));
+        testSharedCache();
+        testScanResistance();
+        testRemovedChunk();
+    }
+
+    private void testSharedCache() {
+        BTreePageCache pageCache = storage.getPageCache();
+        assertTrue(pageCache.isEnabled());
+        BTreeMap<Integer, String> map1 = openMap(storage, "PageCacheTest1");
+        BTreeMap<Integer, String> map2 = openMap(storage, "PageCacheTest2");
+        // 两个map共用一个缓存
+        for (int n = 0; n < 2; n++) {
+            read(map1);
+            read(map2);
+        }
+        BTreeStorage bs1 = map1.getBTreeStorage();
+        BTreeStorage bs2 = map2.getBTreeStorage();
+        assertTrue(bs1.getPageCacheHits() > 0);
+        assertTrue(bs2.getPageCacheHits() > 0);
+        assertTrue(bs1.getPageCacheMisses() > 0);
+        assertTrue(pageCache.getUsedMemory() <= pageCache.getMaxMemory());
+
+        map1.remove();
+        map2.remove();
+        assertEquals(0, pageCache.size());
+        assertEquals(0, pageCache.getUsedMemory());
+    }
+
+    private BTreeMap<Integer, String> openMap(AOStorage storage, String name) {
+        BTreeMap<Integer, String> map = storage.openBTreeMap(name);
+        map.clear();
+        for (int i = 1; i <= 2000; i++)
+            map.put(i, "value-" + i);
+        map.save();
+        return map;
+    }
+
+    private void read(BTreeMap<Integer, String> map) {
+        map.fullGc(); // 让所有page都离线
+        for (int i = 1; i <= 2000; i++)
+            assertEquals("value-" + i, map.get(i));
+    }
+
+    private void testScanResistance() {
+        BTreeStorage bs = storage.openBTreeMap("PageCacheTest3").getBTreeStorage();
+        BTreePageCache pageCache = new BTreePageCache(100 * 1024);
+        Chunk c = new Chunk(1);
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        // 热点page被访问多次
+        for (int n = 0; n < 5; n++) {
+            for (long pos = 1; pos <= 50; pos++) {
+                if (pageCache.get(bs, c, pos) == null)
+                    pageCache.put(bs, c, pos, buff);
+            }
+        }
+        // 只访问一次的page不能把热点page挤出去，扫描的page数是缓存容量的5倍，
+        // 再多的话Count-Min Sketch的计数器会因为hash冲突而失真
+        for (long pos = 1000; pos < 1500; pos++) {
+            if (pageCache.get(bs, c, pos) == null)
+                pageCache.put(bs, c, pos, buff);
+        }
+        assertTrue(pageCache.getRejections() > 0);
+        assertTrue(pageCache.getUsedMemory() <= pageCache.getMaxMemory());
+        int hits = 0;
+        for (long pos = 1; pos <= 50; pos++) {
+            if (pageCache.get(bs, c, pos) != null)
+                hits++;
+        }
+        // Count-Min Sketch是近似统计，允许极少数热点page因为hash冲突被淘汰
+        assertTrue(hits >= 45);
+    }
+
+    // 读操作跟删除chunk并发时，旧page可能在chunk的page被清除后才放入缓存，
+    // chunk id复用后同一个pos的新page不能读到它
+    private void testRemovedChunk() {
+        BTreeStorage bs = storage.openBTreeMap("PageCacheTest4").getBTreeStorage();
+        BTreePageCache pageCache = new BTreePageCache(100 * 1024);
+        long pos = 100;
+        Chunk oldChunk = new Chunk(1);
+        pageCache.put(bs, oldChunk, pos, createBuffer(1));
+        pageCache.remove(bs, oldChunk, Collections.singletonList(pos));
+        assertNull(pageCache.get(bs, oldChunk, pos));
+        pageCache.put(bs, oldChunk, pos, createBuffer(1)); // 晚放入的旧page
+
+        Chunk newChunk = new Chunk(1);
+        assertNull(pageCache.get(bs, newChunk, pos));
+        pageCache.put(bs, newChunk, pos, createBuffer(2));
+        assertEquals(2, pageCache.get(bs, newChunk, pos).get(0));
+    }
+
+    private static ByteBuffer createBuffer(int b) {
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        buff.put(0, (byte) b);
+        return buff;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.lealone.common.compress.CompressTool;
+import com.lealone.common.compress.Compressor;
+import com.lealone.db.DbSetting;
+import com.lealone.db.row.Row;
+import com.lealone.db.row.RowType;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueInt;
+import com.lealone.db.value.ValueLong;
+import com.lealone.db.value.ValueString;
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.AOStorage;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.BTreeStorage;
+import com.lealone.storage.aose.btree.chunk.Chunk;
+import com.lealone.storage.aose.btree.chunk.ChunkManager;
+import com.lealone.storage.aose.btree.page.PageStorageMode;
+import com.lealone.storage.aose.btree.page.PageUtils;
+
+// 用真实的RowPage和ColumnPage比较各种压缩算法的压缩率和解压速度
+public class PageCompressBenchmark extends AoseTestBase {
+
+    public static void main(String[] args) {
+        new PageCompressBenchmark().run();
+    }
+
+    private static final String[] ALGORITHMS = { "LZF", "DEFLATE", "LZ4", "LZ4HC", "LZH" };
+
+    private final int rowCount = 100 * 1000;
+    private final int loop = 20;
+
+    public void run() {
+        AOStorage storage = openStorage(16 * 1024);
+        run(storage, PageStorageMode.ROW_STORAGE, PageUtils.PAGE_TYPE_LEAF, "RowPage");
+        run(storage, PageStorageMode.COLUMN_STORAGE, PageUtils.PAGE_TYPE_COLUMN, "ColumnPage");
+        storage.close();
+    }
+
+    private void run(AOStorage storage, PageStorageMode mode, int pageType, String pageName) {
+        ArrayList<byte[]> pages = getPages(storage, mode, pageType);
+        long totalLength = 0;
+        for (byte[] page : pages)
+            totalLength += page.length;
+        System.out.println(pageName + " count: " + pages.size() + ", bytes: " + totalLength);
+        for (String algorithm : ALGORITHMS) {
+            Compressor compressor = CompressTool
+                    .getCompressor(CompressTool.getCompressAlgorithm(algorithm));
+            byte[][] compressed = new byte[pages.size()][];
+            int[] compressedLength = new int[pages.size()];
+            long totalCompressedLength = 0;
+            long t1 = System.nanoTime();
+            for (int i = 0, size = pages.size(); i < size; i++) {
+                byte[] page = pages.get(i);
+                compressed[i] = new byte[page.length * 2];
+                compressedLength[i] = compressor.compress(page, page.length, compressed[i], 0);
+                totalCompressedLength += compressedLength[i];
+            }
+            long compressNanos = System.nanoTime() - t1;
+
+            long expandNanos = Long.MAX_VALUE;
+            for (int n = 0; n < loop; n++) {
+                t1 = System.nanoTime();
+                for (int i = 0, size = pages.size(); i < size; i++) {
+                    byte[] page = pages.get(i);
+                    byte[] out = new byte[page.length];
+                    compressor.expand(compressed[i], 0, compressedLength[i], out, 0, out.length);
+                }
+                expandNanos = Math.min(expandNanos, System.nanoTime() - t1);
+            }
+            System.out.println(String.format(
+                    "  %-8s ratio: %5.2f, compress: %7.1f MB/s, expand: %7.1f MB/s", algorithm,
+                    (double) totalLength / totalCompressedLength, mbPerSecond(totalLength, compressNanos),
+                    mbPerSecond(totalLength, expandNanos)));
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / 1024d / 1024d / (nanos / 1000d / 1000d / 1000d);
+    }
+
+    // 用不压缩的方式写page，然后从chunk中把指定类型的page原样读出来
+    private ArrayList<byte[]> getPages(AOStorage storage, PageStorageMode mode, int pageType) {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.PAGE_STORAGE_MODE.name(), mode.name());
+        parameters.put(DbSetting.COMPRESS.name(), "NO");
+        RowType valueType = new RowType(null, 4);
+        BTreeMap<Integer, Row> map = storage.openBTreeMap("PageCompressBenchmark_" + mode, null,
+                valueType, parameters);
+        map.clear();
+        for (int row = 1; row <= rowCount; row++) {
+            Value[] columns = new Value[4];
+            columns[0] = ValueInt.get(row % 100);
+            columns[1] = ValueLong.get(System.currentTimeMillis() + row);
+            columns[2] = ValueString.get("name-" + row);
+            columns[3] = ValueString.get("city-" + (row % 50));
+            map.put(row, new Row(columns));
+        }
+        map.save();
+
+        ArrayList<byte[]> pages = new ArrayList<>();
+        BTreeStorage bs = map.getBTreeStorage();
+        ChunkManager chunkManager = bs.getChunkManager();
+        for (int chunkId : chunkManager.getAllChunkIds()) {
+            Chunk chunk = chunkManager.getChunk(chunkId);
+            for (long pos : chunk.pagePositionToLengthMap.keySet()) {
+                if (PageUtils.getPageType(pos) != pageType)
+                    continue;
+                ByteBuffer buff = bs.readPageBuffer(pos);
+                byte[] page = new byte[buff.remaining()];
+                buff.get(page);
+                pages.add(page);
+            }
+        }
+        map.remove();
+        return pages;
+    }
+}
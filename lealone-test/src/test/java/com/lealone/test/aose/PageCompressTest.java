@@ -0,0 +1,134 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.lealone.common.compress.CompressTool;
+import com.lealone.db.DbSetting;
+import com.lealone.db.row.Row;
+import com.lealone.db.row.RowType;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueString;
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.AOStorage;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.page.PageStorageMode;
+
+public class PageCompressTest extends AoseTestBase {
+
+    private static final String[] ALGORITHMS = { "NO", "LZF", "DEFLATE", "LZ4", "LZ4HC", "LZH" };
+
+    private final int rowCount = 3000;
+    private final int columnCount = 5;
+
+    @Test
+    public void run() {
+        testCompressTool();
+        for (PageStorageMode mode : PageStorageMode.values()) {
+            for (String algorithm : ALGORITHMS)
+                testPageCompress(mode, algorithm);
+            testChangeAlgorithm(mode);
+        }
+    }
+
+    private void testCompressTool() {
+        CompressTool tool = CompressTool.getInstance();
+        Random random = new Random(100);
+        for (String algorithm : new String[] { "LZ4", "LZ4HC", "LZ4HC level 8", "LZH", "LZH l 8" }) {
+            for (int len = 0; len < 2000; len += len < 40 ? 1 : 97) {
+                byte[] in = new byte[len];
+                // 有随机的数据，也有重叠的重复数据
+                for (int i = 0; i < len; i++)
+                    in[i] = (byte) (i % 7 == 0 ? random.nextInt() : i % 3);
+                byte[] out = tool.expand(tool.compress(in, algorithm));
+                assertArrayEquals(in, out);
+            }
+        }
+        byte[] in = new byte[100000]; // 超过64K的窗口
+        for (int i = 0; i < in.length; i++)
+            in[i] = (byte) (i / 1000);
+        byte[] comp = tool.compress(in, "LZ4");
+        assertTrue(comp.length < in.length / 10);
+        assertArrayEquals(in, tool.expand(comp));
+        assertTrue(tool.compress(in, "LZ4HC").length <= comp.length);
+        assertArrayEquals(in, tool.expand(tool.compress(in, "LZH")));
+    }
+
+    private void testPageCompress(PageStorageMode mode, String algorithm) {
+        String mapName = "PageCompressTest_" + mode + "_" + algorithm;
+        BTreeMap<Integer, Row> map = openMap(mapName, mode, algorithm);
+        map.clear();
+        putData(map, 1, rowCount);
+        map.save();
+        map.fullGc(); // 让所有page都离线，接下来从文件中读
+        checkData(map, 1, rowCount);
+        map.remove();
+    }
+
+    // 修改压缩算法后，老的chunk中的page依然能读
+    private void testChangeAlgorithm(PageStorageMode mode) {
+        String mapName = "PageCompressTest_" + mode;
+        BTreeMap<Integer, Row> map = openMap(mapName, mode, "DEFLATE");
+        map.clear();
+        putData(map, 1, rowCount);
+        map.save();
+        map.close();
+
+        map = openMap(mapName, mode, "LZ4");
+        putData(map, rowCount + 1, rowCount * 2);
+        map.save();
+        map.close();
+
+        map = openMap(mapName, mode, "LZH");
+        putData(map, rowCount * 2 + 1, rowCount * 3);
+        map.save();
+        map.close();
+
+        map = openMap(mapName, mode, "NO");
+        checkData(map, 1, rowCount * 3);
+        map.remove();
+    }
+
+    private BTreeMap<Integer, Row> openMap(String mapName, PageStorageMode mode, String algorithm) {
+        AOStorage storage = openStorage(16 * 1024);
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.PAGE_STORAGE_MODE.name(), mode.name());
+        parameters.put(DbSetting.COMPRESS.name(), algorithm);
+        RowType valueType = new RowType(null, columnCount);
+        return storage.openBTreeMap(mapName, null, valueType, parameters);
+    }
+
+    private void putData(BTreeMap<Integer, Row> map, int from, int to) {
+        for (int row = from; row <= to; row++) {
+            map.put(row, createRow(row));
+        }
+    }
+
+    private void checkData(BTreeMap<Integer, Row> map, int from, int to) {
+        for (int row = from; row <= to; row++) {
+            Value[] columns = map.get(row).getColumns();
+            for (int col = 0; col < columnCount; col++) {
+                assertEquals(getValue(row, col), columns[col].getString());
+            }
+        }
+    }
+
+    private Row createRow(int row) {
+        Value[] columns = new Value[columnCount];
+        for (int col = 0; col < columnCount; col++) {
+            columns[col] = ValueString.get(getValue(row, col));
+        }
+        return new Row(columns);
+    }
+
+    private static String getValue(int row, int col) {
+        return "value-row" + row + "-col" + (col + 1);
+    }
+}
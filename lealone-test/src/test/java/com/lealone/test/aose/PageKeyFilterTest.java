@@ -0,0 +1,144 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.lealone.storage.FormatVersion;
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.chunk.ChunkManager;
+import com.lealone.storage.aose.btree.page.Page;
+import com.lealone.storage.aose.btree.page.PageReference;
+
+public class PageKeyFilterTest extends AoseTestBase {
+
+    private final int count = 10000;
+
+    @Test
+    public void run() {
+        storage = openStorage(4 * 1024);
+        openFilterMap();
+        map.clear();
+        for (int i = 0; i < count; i += 2) // 只放偶数
+            map.put(i, "value-" + i);
+        map.save();
+        map.fullGc(); // 让所有page都离线
+        testMiss();
+        testHit();
+
+        // 重新打开后过滤器从父节点中读出来
+        map.close();
+        openFilterMap();
+        testMiss();
+        testHit();
+
+        // 修改后的page重新创建过滤器
+        map.put(1, "value-1");
+        assertEquals("value-1", map.get(1));
+        map.save();
+        map.fullGc();
+        assertEquals("value-1", map.get(1));
+        map.remove(1);
+        map.save();
+        map.fullGc();
+        testMiss();
+        map.remove();
+
+        testStringKeys();
+        testOldFormatVersion();
+    }
+
+    // 老格式的chunk不写过滤器，这样老版本也能读，查找时照常读leaf page
+    private void testOldFormatVersion() {
+        openFilterMap();
+        map.clear();
+        ChunkManager chunkManager = map.getBTreeStorage().getChunkManager();
+        chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION_4);
+        try {
+            for (int i = 0; i < count; i += 2)
+                map.put(i, "value-" + i);
+            map.save();
+        } finally {
+            chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION);
+        }
+        map.close();
+        openFilterMap();
+        map.fullGc();
+        for (int i = 1; i < count; i += 2)
+            assertNull(map.get(i));
+        int[] counts = new int[2];
+        countLeafPages(map.getRootPage(), counts);
+        assertTrue(counts[0] > 10);
+        assertEquals(counts[0], counts[1]);
+        testHit();
+        map.remove();
+    }
+
+    // 字符串的比较可能带排序规则，跟hashCode不一致，所以不创建过滤器，查找时照常读leaf page
+    private void testStringKeys() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.BLOOM_FILTER_BITS_PER_KEY.name(), "10");
+        BTreeMap<String, String> map = storage.openBTreeMap("PageKeyFilterStringTest", null, null,
+                parameters);
+        map.clear();
+        for (int i = 0; i < count; i += 2)
+            map.put(key(i), "value-" + i);
+        map.save();
+        map.fullGc();
+        for (int i = 1; i < count; i += 2)
+            assertNull(map.get(key(i)));
+        int[] counts = new int[2];
+        countLeafPages(map.getRootPage(), counts);
+        assertTrue(counts[0] > 10);
+        assertEquals(counts[0], counts[1]);
+        for (int i = 0; i < count; i += 2)
+            assertEquals("value-" + i, map.get(key(i)));
+        map.remove();
+    }
+
+    private static String key(int i) {
+        return String.format("key-%05d", i);
+    }
+
+    private void openFilterMap() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.BLOOM_FILTER_BITS_PER_KEY.name(), "10");
+        map = storage.openBTreeMap(PageKeyFilterTest.class.getSimpleName(), null, null,
+                parameters);
+    }
+
+    private void testMiss() {
+        map.fullGc();
+        for (int i = 1; i < count; i += 2)
+            assertNull(map.get(i));
+        // 误判率大约是1%，所以绝大多数leaf page都不用读
+        int[] counts = new int[2];
+        countLeafPages(map.getRootPage(), counts);
+        assertTrue(counts[0] > 10);
+        assertTrue(counts[1] < counts[0] / 2);
+    }
+
+    private void testHit() {
+        for (int i = 0; i < count; i += 2)
+            assertEquals("value-" + i, map.get(i));
+    }
+
+    // counts[0]是leaf page总数，counts[1]是在内存中的leaf page数
+    private static void countLeafPages(Page p, int[] counts) {
+        for (PageReference ref : p.getChildren()) {
+            if (ref.isLeafPage()) {
+                counts[0]++;
+                if (ref.getPage() != null)
+                    counts[1]++;
+            } else {
+                countLeafPages(ref.getOrReadPage(), counts);
+            }
+        }
+    }
+}
@@ -5,10 +5,25 @@
  */
 package com.lealone.test.aose;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
+import com.lealone.db.DataBuffer;
+import com.lealone.db.value.Value;
+import com.lealone.db.value.ValueDataTypeBase;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.page.PageOperations.PutBatch;
+import com.lealone.storage.type.ObjectDataType;
+import com.lealone.storage.type.StorageDataType;
+import com.lealone.storage.type.StorageDataTypeBase;
+
 public class PageOperationTest extends AoseTestBase {
     @Test
     public void run() {
@@ -20,6 +35,10 @@ public class PageOperationTest extends AoseTestBase {
         testAddChild();
         testRemoveChild();
         testConcurrentGetAndRemove();
+        testPutBatch();
+        testPutBatchKeyOnly();
+        testConcurrentAppend();
+        testAppendAfterClear();
     }
 
     private void testConcurrenAddChild() {
@@ -115,4 +134,193 @@ public class PageOperationTest extends AoseTestBase {
         assertEquals(map.cursor(), size);
         assertEquals(size, map.size());
     }
+
+    private void testPutBatch() {
+        map = storage.openBTreeMap("TestPutBatch");
+        map.clear();
+        for (int i = 1; i <= 1000; i += 2) // 先放奇数
+            map.put(i, "old" + i);
+
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(1));
+        keys.add(10); // 重复的key，后面的覆盖前面的
+        keys.add(11); // 已经存在的key也有重复的
+
+        // 另一个线程同时写，让page在批量写的过程中被切割
+        Thread t = new Thread(() -> {
+            for (int i = 1001; i <= 2000; i++)
+                map.put(i, "value" + i);
+        });
+        t.start();
+
+        AtomicInteger oldValues = new AtomicInteger();
+        PutBatch<Integer, String> batch = new PutBatch<>(map, null);
+        for (int i = 0; i < keys.size(); i++) {
+            int key = keys.get(i);
+            boolean duplicate = i >= keys.size() - 2;
+            String value = duplicate ? "last" : "value" + key;
+            batch.add(key, value, ar -> {
+                String old = ar.getResult();
+                if (old != null) {
+                    if (duplicate)
+                        assertEquals("value" + key, old);
+                    else
+                        assertEquals("old" + key, old);
+                    oldValues.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(500, map.put(batch).intValue());
+        assertEquals(502, oldValues.get());
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+        }
+        assertEquals(2000, map.size());
+        for (int i = 1; i <= 2000; i++)
+            assertEquals(i == 10 || i == 11 ? "last" : "value" + i, map.get(i));
+
+        // 异步批量写
+        CountDownLatch latch = new CountDownLatch(1);
+        batch = new PutBatch<>(map, ar -> {
+            assertEquals(100, ar.getResult().intValue());
+            latch.countDown();
+        });
+        for (int i = 2001; i <= 2100; i++)
+            batch.add(i, "value" + i, null);
+        map.put(batch);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+        }
+        assertEquals(2100, map.size());
+        map.remove();
+    }
+
+    // 只有key的page中新增的多个key也是一起插入的
+    private void testPutBatchKeyOnly() {
+        StorageDataType type = new KeyOnlyType();
+        BTreeMap<Integer, Integer> map = storage.openBTreeMap("TestPutBatchKeyOnly", type, type,
+                null);
+        map.clear();
+        for (int i = 1; i <= 1000; i += 2)
+            map.put(i, i);
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(1));
+        keys.add(10);
+        PutBatch<Integer, Integer> batch = new PutBatch<>(map, null);
+        for (int key : keys)
+            batch.add(key, key, null);
+        assertEquals(500, map.put(batch).intValue());
+        assertEquals(1000, map.size());
+        map.save();
+        map.fullGc();
+        for (int i = 1; i <= 1000; i++)
+            assertEquals(i, map.get(i).intValue());
+        map.remove();
+    }
+
+    private static class KeyOnlyType extends StorageDataTypeBase {
+
+        private final ValueDataTypeBase type = ObjectDataType.newType(Value.INT);
+
+        @Override
+        public boolean isKeyOnly() {
+            return true;
+        }
+
+        @Override
+        public int getType() {
+            return type.getType();
+        }
+
+        @Override
+        public int compare(Object aObj, Object bObj) {
+            return type.compare(aObj, bObj);
+        }
+
+        @Override
+        public int getMemory(Object obj) {
+            return type.getMemory(obj);
+        }
+
+        @Override
+        public void write(DataBuffer buff, Object obj, int formatVersion) {
+            type.write(buff, obj, formatVersion);
+        }
+
+        @Override
+        public void writeValue(DataBuffer buff, Value v) {
+            type.writeValue(buff, v);
+        }
+
+        @Override
+        public Object read(ByteBuffer buff, int formatVersion) {
+            return type.read(buff, formatVersion);
+        }
+
+        @Override
+        public Object read(ByteBuffer buff, int tag, int formatVersion) {
+            return type.read(buff, tag, formatVersion);
+        }
+
+        @Override
+        public Value readValue(ByteBuffer buff, int tag) {
+            return type.readValue(buff, tag);
+        }
+    }
+
+    // 多个线程同时往最右边的leaf page写递增的key
+    private void testConcurrentAppend() {
+        map = storage.openBTreeMap("TestConcurrentAppend");
+        map.clear();
+        int threadCount = 4;
+        int count = 3000;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int n = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= count; i++) {
+                    int key = i * threadCount + n;
+                    map.put(key, "value" + key);
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        assertEquals(threadCount * count, map.size());
+        for (int key = threadCount; key < (count + 1) * threadCount; key++)
+            assertEquals("value" + key, map.get(key));
+        assertTrue(map.getWriteRetryCount() >= 0);
+        assertTrue(map.getWriteRelocateCount() >= 0);
+        map.remove();
+    }
+
+    // clear之后最右边的leaf page已经脱离了btree，不能再把写操作定位到它
+    private void testAppendAfterClear() {
+        map = storage.openBTreeMap("TestAppendAfterClear");
+        map.clear();
+        for (int i = 1; i <= 5000; i++)
+            map.put(i, "value" + i);
+        map.put(6000, "value6000");
+        map.clear();
+        map.put(7000, "value7000");
+        assertEquals(1, map.size());
+        assertEquals("value7000", map.get(7000));
+        for (int i = 1; i <= 5000; i++)
+            map.put(i, "value" + i);
+        assertEquals(5001, map.size());
+        assertEquals("value7000", map.get(7000));
+        map.remove();
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aose;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.lealone.storage.StorageMapCursor;
+import com.lealone.storage.StorageSetting;
+import com.lealone.storage.aose.btree.BTreeReadAhead;
+
+public class ReadAheadTest extends AoseTestBase {
+    @Test
+    public void run() {
+        storage = openStorage(pageSize);
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.READ_AHEAD_PAGES.name(), "8");
+        map = storage.openBTreeMap(ReadAheadTest.class.getSimpleName(), null, null, parameters);
+        map.clear();
+
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        map.fullGc(); // 让所有page都离线
+
+        BTreeReadAhead readAhead = map.getBTreeStorage().getReadAhead();
+        assertTrue(readAhead.isEnabled());
+        assertEquals(8, readAhead.getMaxPages());
+
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        int rows = 0;
+        while (cursor.next()) {
+            rows++;
+            assertEquals(rows, cursor.getKey().intValue());
+            assertEquals("value-" + rows, cursor.getValue());
+        }
+        assertEquals(count, rows);
+        assertTrue(readAhead.getReadAheadPages() > 0);
+        assertTrue(readAhead.getReadAheadBytes() > 0);
+        assertTrue(readAhead.getReadAheadHits() <= readAhead.getReadAheadPages());
+        map.remove();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aote;
+
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.lealone.storage.Storage;
+import com.lealone.transaction.Transaction;
+import com.lealone.transaction.TransactionMap;
+import com.lealone.transaction.aote.AOTransactionEngine;
+import com.lealone.transaction.aote.log.LogSyncService;
+
+public class GroupCommitTest extends AoteTestBase {
+
+    private static AOTransactionEngine te;
+    private static Storage storage;
+
+    @BeforeClass
+    public static void beforeClass() { // 不会触发父类的before
+        Map<String, String> config = getDefaultConfig(joinDirs("aote", "GroupCommitTest"));
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_GROUP);
+        config.put("log_sync_group_max_wait", "1000"); // 1ms
+
+        // 避免覆盖存在的TransactionEngine
+        config.put("plugin_name", "GroupCommitTest");
+        te = new AOTransactionEngine();
+        te.init(config);
+        storage = getStorage(0, "GroupCommitTest");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        te.close(false);
+    }
+
+    @Test
+    public void run() throws Exception {
+        Transaction t = te.beginTransaction();
+        TransactionMap<Integer, String> map = t.openMap("GroupCommitTest", storage);
+        map.remove();
+        t.commit();
+
+        int threadCount = 8;
+        int count = 200;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int id = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < count; j++) {
+                    Transaction t2 = te.beginTransaction();
+                    TransactionMap<Integer, String> map2 = t2.openMap("GroupCommitTest", storage);
+                    map2.put(id * count + j, "value" + j);
+                    t2.commit();
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        t = te.beginTransaction();
+        map = t.openMap("GroupCommitTest", storage);
+        assertEquals(threadCount * count, map.size());
+        t.commit();
+
+        long syncCount = 0;
+        long syncedRecordCount = 0;
+        long histogramCount = 0;
+        for (LogSyncService s : te.getLogSyncServices()) {
+            syncCount += s.getSyncCount();
+            syncedRecordCount += s.getSyncedRecordCount();
+            for (long c : s.getSyncLatencyHistogram())
+                histogramCount += c;
+        }
+        // 每个事务的redo log都fsync过，并且多个事务可以共用一次fsync
+        assertTrue(syncCount > 0);
+        assertTrue(syncedRecordCount >= threadCount * count);
+        assertTrue(syncCount <= syncedRecordCount);
+        assertEquals(syncCount, histogramCount);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aote;
+
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.lealone.db.lock.Lockable;
+import com.lealone.storage.Storage;
+import com.lealone.transaction.Transaction;
+import com.lealone.transaction.TransactionMap;
+import com.lealone.transaction.aote.AOTransactionEngine;
+import com.lealone.transaction.aote.log.LogSyncService;
+
+public class OldValueTest extends AoteTestBase {
+
+    private static AOTransactionEngine te;
+    private static Storage storage;
+
+    @BeforeClass
+    public static void beforeClass() { // 不会触发父类的before
+        Map<String, String> config = getDefaultConfig(joinDirs("aote", "OldValueTest"));
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("log_sync_service_loop_interval", "100"); // 100ms
+        config.put("checkpoint_service_loop_interval", "100"); // 100ms
+
+        // 避免覆盖存在的TransactionEngine
+        config.put("plugin_name", "OldValueTest");
+        te = new AOTransactionEngine();
+        te.init(config);
+        storage = getStorage(0, "OldValueTest");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        te.close(false);
+    }
+
+    @Test
+    public void run() throws Exception {
+        Transaction t = te.beginTransaction();
+        TransactionMap<String, String> map = t.openMap("OldValueTest", storage);
+        map.clear();
+        map.put("k1", "v1");
+        map.put("k2", "v1");
+        t.commit();
+
+        Transaction t1 = te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map1 = map.getInstance(t1);
+        assertEquals("v1", map1.get("k1"));
+
+        // 可重复读事务还在时，每次提交都在记录上增加一个旧版本
+        update(map, "k1", "v2");
+        update(map, "k1", "v3");
+        Transaction t2 = te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map2 = map.getInstance(t2);
+        update(map, "k1", "v4");
+        update(map, "k2", null);
+        update(map, "k3", "v1");
+
+        assertEquals("v1", map1.get("k1"));
+        assertEquals("v1", map1.get("k2"));
+        assertNull(map1.get("k3"));
+        assertEquals("v3", map2.get("k1"));
+        assertEquals("v1", map2.get("k2"));
+        assertNull(map2.get("k3"));
+        assertEquals("v4", map.getInstance(te.beginTransaction()).get("k1"));
+        assertNotNull(map.getLockableValue("k1").getOldVersion());
+
+        // t1结束后它需要的旧版本被回收，t2需要的还在
+        t1.commit();
+        waitGc(map, "k1", false);
+        assertEquals("v3", map2.get("k1"));
+        assertEquals("v1", map2.get("k2"));
+        assertNull(map2.get("k3"));
+
+        // 没有可重复读事务后全部回收，删除的记录也从page中真正删除
+        t2.commit();
+        waitGc(map, "k1", true);
+        waitGc(map, "k3", true);
+        for (int i = 0; i < 100 && map.getLockableValue("k2") != null; i++)
+            Thread.sleep(50);
+        assertNull(map.getLockableValue("k2"));
+
+        Transaction t3 = te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map3 = map.getInstance(t3);
+        assertEquals("v4", map3.get("k1"));
+        assertNull(map3.get("k2"));
+        assertEquals("v1", map3.get("k3"));
+        t3.commit();
+    }
+
+    private static void update(TransactionMap<String, String> map, String key, String value) {
+        Transaction t = te.beginTransaction();
+        TransactionMap<String, String> m = map.getInstance(t);
+        if (value == null)
+            m.remove(key);
+        else
+            m.put(key, value);
+        t.commit();
+    }
+
+    private static void waitGc(TransactionMap<String, String> map, String key, boolean reclaimed)
+            throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Lockable lockable = map.getLockableValue(key);
+            if ((lockable.getOldVersion() == null) == reclaimed)
+                break;
+            Thread.sleep(50);
+        }
+        // 多等几次回收，确认还需要的旧版本不会被回收
+        if (!reclaimed)
+            Thread.sleep(300);
+        assertEquals(reclaimed, map.getLockableValue(key).getOldVersion() == null);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aote;
+
+import org.junit.Test;
+
+import com.lealone.db.scheduler.SchedulerListener;
+import com.lealone.transaction.Transaction;
+import com.lealone.transaction.TransactionMap;
+import com.lealone.transaction.TransactionMapCursor;
+import com.lealone.transaction.aote.TransactionalValue;
+
+public class RowCountTest extends AoteTestBase {
+
+    @Test
+    public void run() {
+        Transaction t0 = te.beginTransaction();
+        TransactionMap<String, String> map0 = t0.openMap(mapName, storage);
+        map0.clear();
+        t0.commit();
+
+        // 读已提交的事务只能看到自己的和已提交的insert
+        Transaction t1 = te.beginTransaction(Transaction.IL_READ_COMMITTED);
+        TransactionMap<String, String> map1 = map0.getInstance(t1);
+        map1.put("1", "a");
+        map1.put("2", "b");
+        map1.put("3", "c");
+        Transaction t2 = te.beginTransaction(Transaction.IL_READ_COMMITTED);
+        TransactionMap<String, String> map2 = map0.getInstance(t2);
+        assertEquals(3, map1.size());
+        assertEquals(0, map2.size());
+        t1.commit();
+        assertEquals(3, map2.size());
+
+        // 可重复读的事务看不到它开始之后提交的insert和delete
+        Transaction t3 = te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map3 = map0.getInstance(t3);
+        assertEquals(3, map3.size());
+        Transaction t4 = te.beginTransaction(Transaction.IL_READ_COMMITTED);
+        TransactionMap<String, String> map4 = map0.getInstance(t4);
+        map4.remove("1");
+        map4.put("4", "d");
+        map4.put("5", "e");
+        map4.put("2", "b-new");
+        assertEquals(4, map4.size());
+        assertEquals(3, map2.size());
+        t4.commit();
+        assertEquals(4, map2.size());
+        assertEquals(3, map3.size());
+        assertEquals(count(map3), map3.size());
+
+        // 回滚后记录数不变
+        Transaction t5 = te.beginTransaction();
+        TransactionMap<String, String> map5 = map0.getInstance(t5);
+        map5.put("6", "f");
+        map5.remove("2");
+        map5.put("7", "g");
+        assertEquals(5, map5.size());
+        t5.rollback();
+        assertEquals(4, map2.size());
+
+        // 回滚到保存点后只撤销保存点之后的变化
+        Transaction t6 = te.beginTransaction();
+        TransactionMap<String, String> map6 = map0.getInstance(t6);
+        map6.put("6", "f");
+        t6.addSavepoint("sp");
+        map6.put("7", "g");
+        map6.remove("4");
+        assertEquals(5, map6.size());
+        t6.rollbackToSavepoint("sp");
+        assertEquals(5, map6.size());
+        assertEquals(count(map6), map6.size());
+
+        // 重复的key不会增加记录数，先删除再insert也不会
+        SchedulerListener<Integer> listener = SchedulerListener.createSchedulerListener();
+        map6.addIfAbsent("3", new TransactionalValue("c-dup"), listener);
+        assertEquals(Transaction.OPERATION_DATA_DUPLICATE, listener.await().intValue());
+        assertEquals(5, map6.size());
+        map6.remove("3");
+        assertEquals(4, map6.size());
+        listener = SchedulerListener.createSchedulerListener();
+        map6.addIfAbsent("3", new TransactionalValue("c-new"), listener);
+        assertEquals(Transaction.OPERATION_COMPLETE, listener.await().intValue());
+        assertEquals("c-new", map6.get("3"));
+        assertEquals(5, map6.size());
+        t6.commit();
+        assertEquals(5, map2.size());
+
+        // 可重复读的事务一直存在时，之后的提交都不能被清理掉
+        for (int i = 0; i < 100; i++) {
+            Transaction t = te.beginTransaction();
+            TransactionMap<String, String> map = map0.getInstance(t);
+            map.put("k" + i, "v" + i);
+            if (i % 2 == 0)
+                map.remove("k" + (i - 1));
+            t.commit();
+        }
+        assertEquals(3, map3.size());
+        assertEquals(56, map2.size());
+        assertEquals(count(map2), map2.size());
+        t3.commit();
+
+        Transaction t7 = te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map7 = map0.getInstance(t7);
+        assertEquals(56, map7.size());
+        assertEquals(count(map7), map7.size());
+        t7.commit();
+        t2.commit();
+    }
+
+    private static long count(TransactionMap<String, String> map) {
+        long count = 0;
+        TransactionMapCursor<String, String> cursor = map.cursor();
+        while (cursor.next())
+            count++;
+        return count;
+    }
+}
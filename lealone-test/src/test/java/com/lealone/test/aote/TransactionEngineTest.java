@@ -5,6 +5,8 @@
  */
 package com.lealone.test.aote;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Map;
 
 import org.junit.AfterClass;
@@ -12,6 +14,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.lealone.storage.Storage;
+import com.lealone.storage.StorageMap;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.fs.FileUtils;
 import com.lealone.transaction.Transaction;
 import com.lealone.transaction.TransactionMap;
 import com.lealone.transaction.aote.AOTransactionEngine;
@@ -73,9 +78,125 @@ public class TransactionEngineTest extends AoteTestBase {
         assertTrue(map.collectDirtyMemory() == 0);
     }
 
+    @Test
+    public void testParallelCheckpoint() {
+        // 多个map的脏页在检查点线程池中并行刷到硬盘
+        Transaction t = te.beginTransaction();
+        @SuppressWarnings("unchecked")
+        TransactionMap<String, String>[] maps = new TransactionMap[4];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = t.openMap("testParallelCheckpoint" + i, storage);
+            maps[i].remove();
+            maps[i] = t.openMap("testParallelCheckpoint" + i, storage);
+            for (int j = 1; j <= 1000; j++) {
+                maps[i].put("key" + j, "value" + j);
+            }
+        }
+        t.commit();
+
+        te.checkpoint();
+        for (TransactionMap<String, String> map : maps) {
+            sleep(map, true);
+            assertTrue(map.collectDirtyMemory() == 0);
+            assertTrue(map.getSavedPages() > 0);
+            assertTrue(map.getSavedBytes() > 0);
+            assertEquals(1000, map.size());
+        }
+    }
+
+    // 还没有执行redo log的map被压缩后，chunk中的redo log就读不到了，所以recover之前不能压缩
+    @Test
+    public void testCompactBeforeRecover() throws Exception {
+        String name = "testCompactBeforeRecover";
+        Transaction t = te.beginTransaction();
+        TransactionMap<String, String> map = t.openMap(name, storage);
+        map.remove();
+        map = t.openMap(name, storage);
+        for (int i = 1; i <= 5000; i++)
+            map.put("key" + i, "value" + i);
+        t.commit();
+        save(map);
+
+        // 删除大部分记录，第一个有page的chunk填充率就很低了，可以被压缩
+        t = te.beginTransaction();
+        map = t.openMap(name, storage);
+        for (int i = 1; i <= 4000; i++)
+            map.remove("key" + i);
+        t.commit();
+        save(map);
+
+        // 这些记录只在chunk的redo log中
+        t = te.beginTransaction();
+        map = t.openMap(name, storage);
+        for (int i = 5001; i <= 5100; i++)
+            map.put("key" + i, "value" + i);
+        t.commit();
+        waitSync();
+
+        // 复制map的所有文件，相当于在刷脏页之前崩溃了
+        File from = new File(storage.getStoragePath(), name);
+        Storage storage2 = getStorage(1, "TransactionEngineTest_copy");
+        File to = new File(storage2.getStoragePath(), name);
+        FileUtils.deleteRecursive(to.getAbsolutePath(), true);
+        FileUtils.createDirectories(to.getAbsolutePath());
+        for (File file : from.listFiles())
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+        map.remove();
+
+        // 延迟恢复时打开表后还没有访问，后台压缩先执行了
+        te.prepareRecover(name);
+        t = te.beginTransaction();
+        map = t.openMap(name, storage2);
+        StorageMap<?, ?> raw = map.getRawMap();
+        assertTrue(raw.isRecovering());
+        raw.compact();
+        assertEquals(0, ((BTreeMap<?, ?>) raw).getBTreeStorage().getReclaimedBytes());
+
+        // 第一次访问时执行redo log，一条记录都不能少
+        te.recover(raw, null);
+        assertFalse(raw.isRecovering());
+        assertEquals(1100, map.size());
+        assertNull(map.get("key1"));
+        assertEquals("value5000", map.get("key5000"));
+        assertEquals("value5100", map.get("key5100"));
+        t.commit();
+
+        // redo之后就可以压缩了
+        raw.compact();
+        assertTrue(((BTreeMap<?, ?>) raw).getBTreeStorage().getReclaimedBytes() > 0);
+        map.remove();
+        storage2.close();
+    }
+
+    // 刷脏页时不压缩，这样填充率低的chunk还留着
+    private void save(TransactionMap<String, String> map) {
+        waitSync();
+        BTreeMap<?, ?> raw = (BTreeMap<?, ?>) map.getRawMap();
+        raw.save(false, false, raw.collectDirtyMemory());
+    }
+
+    // 等待redo log写到chunk中
+    private void waitSync() {
+        for (LogSyncService s : te.getLogSyncServices()) {
+            long sleep = 0;
+            while (s.getSyncedRecordCount() < s.getAddedRecordCount() && sleep < 3000) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                }
+                sleep += 10;
+            }
+        }
+    }
+
     private void sleep(TransactionMap<String, String> map) {
+        sleep(map, false);
+    }
+
+    // 脏页的内存先清零，保存的页数和字节数在写完page之后才累加，字节数是最后更新的，所以要等到它大于0
+    private void sleep(TransactionMap<String, String> map, boolean waitSavedBytes) {
         long sleep = 0;
-        while (map.collectDirtyMemory() > 0) {
+        while (map.collectDirtyMemory() > 0 || waitSavedBytes && map.getSavedBytes() == 0) {
             try {
                 Thread.sleep(100); // 等待后端检查点线程完成数据保存
             } catch (InterruptedException e) {
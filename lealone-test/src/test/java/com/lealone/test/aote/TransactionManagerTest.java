@@ -0,0 +1,72 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aote;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.lealone.transaction.Transaction;
+import com.lealone.transaction.aote.AOTransaction;
+import com.lealone.transaction.aote.AOTransactionEngine;
+
+public class TransactionManagerTest extends AoteTestBase {
+
+    private static AOTransactionEngine te;
+
+    @BeforeClass
+    public static void beforeClass() { // 不会触发父类的before
+        Map<String, String> config = getDefaultConfig(joinDirs("aote", "TransactionManagerTest"));
+        // 避免覆盖存在的TransactionEngine
+        config.put("plugin_name", "TransactionManagerTest");
+        te = new AOTransactionEngine();
+        te.init(config);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        te.close(false);
+    }
+
+    @Test
+    public void run() {
+        // 不在调度线程中开始的事务超过槽位数时放到overflow中
+        ArrayList<AOTransaction> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int isolationLevel = i % 3 == 1 ? Transaction.IL_REPEATABLE_READ
+                    : Transaction.IL_READ_COMMITTED;
+            list.add((AOTransaction) te.beginTransaction(isolationLevel));
+        }
+        assertEquals(100, te.currentTransactions().size());
+        assertTrue(te.anyTransactionMatch(t -> t == list.get(99)));
+
+        // 低水位是最老的可重复读事务的tid，它结束后才会变
+        AOTransaction rrt1 = list.get(1);
+        AOTransaction rrt2 = list.get(4);
+        assertEquals(rrt1.getTransactionId(), te.getLowWatermark());
+        list.get(0).commit();
+        list.get(2).commit();
+        assertEquals(rrt1.getTransactionId(), te.getLowWatermark());
+        rrt1.commit();
+        assertEquals(rrt2.getTransactionId(), te.getLowWatermark());
+        assertFalse(te.anyTransactionMatch(t -> t == rrt1));
+
+        // 新开始的可重复读事务能用回收的槽位
+        AOTransaction rrt3 = (AOTransaction) te.beginTransaction(Transaction.IL_REPEATABLE_READ);
+        assertEquals(98, te.currentTransactions().size());
+        assertEquals(rrt2.getTransactionId(), te.getLowWatermark());
+
+        for (int i = 3; i < list.size(); i++)
+            list.get(i).commit();
+        assertEquals(rrt3.getTransactionId(), te.getLowWatermark());
+        rrt3.commit();
+        assertEquals(0, te.currentTransactions().size());
+        assertEquals(te.nextTransactionId() + 1, te.getLowWatermark());
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.aote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.lealone.storage.Storage;
+import com.lealone.storage.StorageMap;
+import com.lealone.storage.StorageMap.RedoLogBuffer;
+import com.lealone.storage.fs.FileStorage;
+import com.lealone.storage.fs.FileUtils;
+import com.lealone.transaction.Transaction;
+import com.lealone.transaction.TransactionMap;
+import com.lealone.transaction.aote.AOTransactionEngine;
+import com.lealone.transaction.aote.log.LogSyncService;
+import com.lealone.transaction.aote.log.WriteAheadLog;
+
+public class WriteAheadLogTest extends AoteTestBase {
+
+    private static AOTransactionEngine te;
+    private static Storage storage;
+
+    @BeforeClass
+    public static void beforeClass() { // 不会触发父类的before
+        Map<String, String> config = getDefaultConfig(joinDirs("aote", "WriteAheadLogTest"));
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("wal_enabled", "true");
+
+        // 避免覆盖存在的TransactionEngine
+        config.put("plugin_name", "WriteAheadLogTest");
+        te = new AOTransactionEngine();
+        te.init(config);
+        storage = getStorage(0, "WriteAheadLogTest");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        te.close(false);
+    }
+
+    // 一个事务涉及多个map时只写一条记录，只需要一次fsync
+    @Test
+    public void testMultiMaps() throws Exception {
+        WriteAheadLog wal = te.getWriteAheadLog();
+        assertNotNull(wal);
+        Transaction t = te.beginTransaction();
+        TransactionMap<String, String> map1 = t.openMap("WriteAheadLogTest_m1", storage);
+        TransactionMap<String, String> map2 = t.openMap("WriteAheadLogTest_m2", storage);
+        t.commit();
+
+        LogSyncService logSyncService = te.getLogSyncService();
+        long syncCount = logSyncService.getSyncCount();
+        long lsn = wal.getLsn();
+        t = te.beginTransaction();
+        map1 = t.openMap("WriteAheadLogTest_m1", storage);
+        map2 = t.openMap("WriteAheadLogTest_m2", storage);
+        map1.put("a", "1");
+        map2.put("b", "2");
+        t.commit();
+        for (int i = 0; i < 100 && logSyncService.getSyncCount() == syncCount; i++)
+            Thread.sleep(10);
+        assertEquals(syncCount + 1, logSyncService.getSyncCount());
+        assertTrue(wal.getLsn() > lsn);
+        // 不再写到chunk中
+        assertNull(map1.getRawMap().readRedoLog());
+        assertNull(map2.getRawMap().readRedoLog());
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String baseDir = joinDirs("aote", "WriteAheadLogTest", "segments");
+        FileUtils.deleteRecursive(baseDir, true);
+        FileUtils.createDirectories(baseDir);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("wal_segment_size", "1"); // 1M
+        config.put("wal_preallocate", "false"); // 在文件末尾追加不完整的记录
+
+        Transaction t = te.beginTransaction();
+        StorageMap<?, ?> m1 = t.openMap("WriteAheadLogTest_s1", storage).getRawMap();
+        StorageMap<?, ?> m2 = t.openMap("WriteAheadLogTest_s2", storage).getRawMap();
+        t.commit();
+        RedoLogBuffer log1 = new RedoLogBuffer(m1);
+        RedoLogBuffer log2 = new RedoLogBuffer(m2);
+        ByteArrayOutputStream expected1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected2 = new ByteArrayOutputStream();
+
+        WriteAheadLog wal = new WriteAheadLog(config);
+        wal.init();
+        for (int i = 0; i < 300; i++) {
+            HashMap<String, RedoLogBuffer> logs = new HashMap<>();
+            byte[] bytes = new byte[10 * 1024];
+            Arrays.fill(bytes, (byte) i);
+            log1.getLog().put(bytes);
+            expected1.write(bytes);
+            logs.put(m1.getName(), log1);
+            if (i % 3 == 0) {
+                log2.getLog().put(bytes, 0, i + 1);
+                expected2.write(bytes, 0, i + 1);
+                logs.put(m2.getName(), log2);
+            }
+            wal.append(logs);
+            if (i % 10 == 0)
+                wal.write();
+        }
+        wal.close();
+        int segmentCount = wal.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        // 最后一个段有不完整的记录
+        String lastSegment = baseDir + File.separator + "wal" + File.separator + "wal_" + segmentCount;
+        FileStorage fs = FileStorage.open(lastSegment, config);
+        ByteBuffer torn = ByteBuffer.allocate(20);
+        torn.putInt(0, 100);
+        fs.writeFully(fs.size(), torn);
+        fs.close();
+
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertEquals(segmentCount, wal.getSegmentCount());
+        assertTrue(Arrays.equals(expected1.toByteArray(), toBytes(wal, m1)));
+        assertTrue(Arrays.equals(expected2.toByteArray(), toBytes(wal, m2)));
+
+        // 连续两次检查点之后前面的段都不再需要了
+        for (int i = 0; i < 2; i++) {
+            wal.onCheckpoint(m1.getName(), wal.getLsn());
+            wal.onCheckpoint(m2.getName(), wal.getLsn());
+        }
+        wal.truncate();
+        assertEquals(1, wal.getSegmentCount());
+
+        // 删除map后不会再redo
+        log1.getLog().put(new byte[] { 1, 2, 3 });
+        HashMap<String, RedoLogBuffer> logs = new HashMap<>();
+        logs.put(m1.getName(), log1);
+        wal.append(logs);
+        wal.appendDroppedMap(m1.getName());
+        wal.close();
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertNull(wal.removePendingRedoLog(m1.getName()));
+        wal.close();
+    }
+
+    @Test
+    public void testPreallocatedSegments() throws Exception {
+        String baseDir = joinDirs("aote", "WriteAheadLogTest", "preallocated");
+        FileUtils.deleteRecursive(baseDir, true);
+        FileUtils.createDirectories(baseDir);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("wal_segment_size", "1"); // 1M
+        config.put("wal_sync_mode", WriteAheadLog.SYNC_MODE_RWD);
+        String walDir = baseDir + File.separator + "wal";
+
+        Transaction t = te.beginTransaction();
+        StorageMap<?, ?> m1 = t.openMap("WriteAheadLogTest_p1", storage).getRawMap();
+        t.commit();
+        RedoLogBuffer log1 = new RedoLogBuffer(m1);
+
+        WriteAheadLog wal = new WriteAheadLog(config);
+        wal.init();
+        writeRecords(wal, log1, 300, null);
+        int segmentCount = wal.getSegmentCount();
+        assertTrue(segmentCount > 2);
+        // 段文件都预先分配好了空间
+        for (int seq = 1; seq <= segmentCount; seq++) {
+            assertEquals(1024 * 1024, FileUtils.size(walDir + File.separator + "wal_" + seq));
+        }
+
+        // 不再需要的段改名后留着复用
+        for (int i = 0; i < 2; i++)
+            wal.onCheckpoint(m1.getName(), wal.getLsn());
+        wal.truncate();
+        assertEquals(1, wal.getSegmentCount());
+        int freeSegmentCount = wal.getFreeSegmentCount();
+        assertTrue(freeSegmentCount > 0);
+
+        // 复用的段里面还有旧的记录，恢复时不能读出来
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeRecords(wal, log1, 20, expected);
+        wal.close();
+        assertTrue(wal.getFreeSegmentCount() < freeSegmentCount);
+        long lsn = wal.getLsn();
+
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertEquals(lsn, wal.getLsn());
+        byte[] bytes = toBytes(wal, m1);
+        // 最后一个段之前的记录也还在
+        assertTrue(bytes.length >= expected.size());
+        byte[] tail = Arrays.copyOfRange(bytes, bytes.length - expected.size(), bytes.length);
+        assertTrue(Arrays.equals(expected.toByteArray(), tail));
+        wal.close();
+    }
+
+    // 延迟恢复的表在访问前执行检查点时没有脏页，它需要的段不能被删除
+    @Test
+    public void testPendingRedoLog() throws Exception {
+        String baseDir = joinDirs("aote", "WriteAheadLogTest", "pending");
+        FileUtils.deleteRecursive(baseDir, true);
+        FileUtils.createDirectories(baseDir);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("wal_segment_size", "1"); // 1M
+
+        Transaction t = te.beginTransaction();
+        StorageMap<?, ?> m1 = t.openMap("WriteAheadLogTest_l1", storage).getRawMap();
+        StorageMap<?, ?> m2 = t.openMap("WriteAheadLogTest_l2", storage).getRawMap();
+        t.commit();
+        RedoLogBuffer log1 = new RedoLogBuffer(m1);
+        RedoLogBuffer log2 = new RedoLogBuffer(m2);
+
+        WriteAheadLog wal = new WriteAheadLog(config);
+        wal.init();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeRecords(wal, log1, 300, expected);
+        wal.close();
+        int segmentCount = wal.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        // 重启后m1还没有被访问，其他map继续写，检查点执行多次
+        wal = new WriteAheadLog(config);
+        wal.init();
+        writeRecords(wal, log2, 10, null);
+        wal.write();
+        for (int i = 0; i < 2; i++) {
+            wal.onCheckpoint(m1.getName(), wal.getLsn());
+            wal.onCheckpoint(m2.getName(), wal.getLsn());
+        }
+        wal.truncate();
+        assertEquals(segmentCount + 1, wal.getSegmentCount());
+
+        // 访问前崩溃，再次重启时m1的记录一条都不能少
+        wal.close();
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertTrue(Arrays.equals(expected.toByteArray(), toBytes(wal, m1)));
+
+        // redo之后再执行两次检查点就不需要了
+        for (int i = 0; i < 2; i++) {
+            wal.onCheckpoint(m1.getName(), wal.getLsn());
+            wal.onCheckpoint(m2.getName(), wal.getLsn());
+        }
+        wal.truncate();
+        assertEquals(1, wal.getSegmentCount());
+        wal.close();
+    }
+
+    // 清空map后恢复时不能把清空前的记录又放回来
+    @Test
+    public void testClearedMap() throws Exception {
+        // 通过事务层清空map时会马上写一条记录
+        WriteAheadLog teWal = te.getWriteAheadLog();
+        Transaction t = te.beginTransaction();
+        TransactionMap<String, String> map = t.openMap("WriteAheadLogTest_c1", storage);
+        map.put("a", "1");
+        t.commit();
+        long lsn = teWal.getLsn();
+        map.clear();
+        assertTrue(teWal.getLsn() > lsn);
+        StorageMap<?, ?> m1 = map.getRawMap();
+
+        String baseDir = joinDirs("aote", "WriteAheadLogTest", "cleared");
+        FileUtils.deleteRecursive(baseDir, true);
+        FileUtils.createDirectories(baseDir);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("wal_segment_size", "1"); // 1M
+
+        RedoLogBuffer log1 = new RedoLogBuffer(m1);
+        WriteAheadLog wal = new WriteAheadLog(config);
+        wal.init();
+        writeRecords(wal, log1, 150, null);
+        wal.appendClearedMap(m1.getName());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeRecords(wal, log1, 10, expected);
+        wal.close();
+        assertTrue(wal.getSegmentCount() > 1);
+
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertTrue(Arrays.equals(expected.toByteArray(), toBytes(wal, m1)));
+        wal.close();
+    }
+
+    // 中间的段有损坏的记录时，后面的段都不再redo
+    @Test
+    public void testCorruptedSegment() throws Exception {
+        String baseDir = joinDirs("aote", "WriteAheadLogTest", "corrupted");
+        FileUtils.deleteRecursive(baseDir, true);
+        FileUtils.createDirectories(baseDir);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("wal_segment_size", "1"); // 1M
+        config.put("wal_preallocate", "false");
+
+        Transaction t = te.beginTransaction();
+        StorageMap<?, ?> m1 = t.openMap("WriteAheadLogTest_x1", storage).getRawMap();
+        t.commit();
+        RedoLogBuffer log1 = new RedoLogBuffer(m1);
+
+        WriteAheadLog wal = new WriteAheadLog(config);
+        wal.init();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeRecords(wal, log1, 300, expected);
+        wal.close();
+        int segmentCount = wal.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        // 破坏第一个段中间的一条记录
+        String firstSegment = baseDir + File.separator + "wal" + File.separator + "wal_1";
+        FileStorage fs = FileStorage.open(firstSegment, config);
+        long pos = fs.size() / 2;
+        ByteBuffer b = fs.readFully(pos, 1);
+        b.put(0, (byte) (b.get(0) + 1));
+        fs.writeFully(pos, b);
+        fs.close();
+
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertEquals(1, wal.getSegmentCount());
+        byte[] bytes = toBytes(wal, m1);
+        assertTrue(bytes.length > 0);
+        assertTrue(bytes.length < fs.size());
+        byte[] head = Arrays.copyOf(expected.toByteArray(), bytes.length);
+        assertTrue(Arrays.equals(head, bytes));
+
+        // 新的记录接在最后一条有效的记录后面
+        long lsn = wal.getLsn();
+        writeRecords(wal, log1, 1, null);
+        wal.close();
+        wal = new WriteAheadLog(config);
+        wal.init();
+        assertTrue(wal.getLsn() > lsn);
+        assertEquals(bytes.length + 10 * 1024, toBytes(wal, m1).length);
+        wal.close();
+    }
+
+    private static void writeRecords(WriteAheadLog wal, RedoLogBuffer log, int count,
+            ByteArrayOutputStream expected) throws Exception {
+        for (int i = 0; i < count; i++) {
+            HashMap<String, RedoLogBuffer> logs = new HashMap<>();
+            byte[] bytes = new byte[10 * 1024];
+            Arrays.fill(bytes, (byte) (i + 1));
+            log.getLog().put(bytes);
+            if (expected != null)
+                expected.write(bytes);
+            logs.put(log.getMap().getName(), log);
+            wal.append(logs);
+            if (i % 10 == 0)
+                wal.write();
+        }
+    }
+
+    private static byte[] toBytes(WriteAheadLog wal, StorageMap<?, ?> map) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buff : wal.removePendingRedoLog(map.getName())) {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.db.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.lealone.db.DataBuffer;
+import com.lealone.db.index.standard.IndexKey;
+import com.lealone.db.index.standard.StandardSecondaryIndex;
+import com.lealone.db.value.Value;
+import com.lealone.storage.FormatVersion;
+import com.lealone.storage.StorageMapCursor;
+import com.lealone.storage.aose.AOStorageEngine;
+import com.lealone.storage.aose.btree.BTreeMap;
+import com.lealone.storage.aose.btree.chunk.ChunkManager;
+import com.lealone.storage.type.StorageDataType;
+
+public class IndexKeyPrefixTest extends IndexTestBase {
+
+    private static final String PREFIX = "a-long-common-prefix-of-the-first-index-column-";
+
+    private final int rowCount = 3000;
+    private boolean deleted;
+
+    @Test
+    public void run() {
+        executeUpdate("DROP TABLE IF EXISTS IndexKeyPrefixTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS IndexKeyPrefixTest"
+                + "(pk int primary key, f1 varchar, f2 varchar, f3 int) ENGINE "
+                + AOStorageEngine.NAME + " PARAMETERS(page_size='4k')");
+        // 前两列有很长的公共前缀，并且大量重复
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexKeyPrefixTest_i1"
+                + " ON IndexKeyPrefixTest(f1, f2, f3)");
+        executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS IndexKeyPrefixTest_i2"
+                + " ON IndexKeyPrefixTest(f1, f3)");
+        for (int row = 1; row <= rowCount; row++) {
+            executeUpdate("INSERT INTO IndexKeyPrefixTest VALUES(" + row + ", '" + PREFIX
+                    + (row % 3) + "', 'f2-" + (row % 10) + "', " + row + ")");
+        }
+        BTreeMap<Object, Object> map1 = getIndexMap("IndexKeyPrefixTest_i1");
+        BTreeMap<Object, Object> map2 = getIndexMap("IndexKeyPrefixTest_i2");
+        waitIndexed(map1);
+        waitIndexed(map2);
+        testPrefixKeys(map1);
+        testPrefixKeys(map2);
+        testSplitKeys(map1);
+        testSplitKeys(map2);
+        check();
+
+        // 回收所有page后再查询，page都从硬盘读
+        gc(map1, map2);
+        check();
+
+        executeUpdate("DELETE FROM IndexKeyPrefixTest WHERE f3 % 7 = 0");
+        deleted = true;
+        gc(map1, map2);
+        check();
+
+        testUpgradeCompact();
+    }
+
+    @SuppressWarnings("unchecked")
+    private BTreeMap<Object, Object> getIndexMap(String indexName) {
+        StandardSecondaryIndex index = (StandardSecondaryIndex) getIndex(indexName);
+        return (BTreeMap<Object, Object>) index.getDataMap().getRawMap();
+    }
+
+    // 二级索引是异步增加记录的，insert语句返回时不一定都放到BTreeMap中了
+    private void waitIndexed(BTreeMap<Object, Object> map) {
+        waitIndexed(map, rowCount);
+    }
+
+    private void waitIndexed(BTreeMap<Object, Object> map, int size) {
+        for (int i = 0; i < 500 && map.size() != size; i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static Object[] getKeys(BTreeMap<Object, Object> map) {
+        ArrayList<Object> list = new ArrayList<>();
+        StorageMapCursor<Object, Object> cursor = map.cursor();
+        while (cursor.next())
+            list.add(cursor.getKey());
+        return list.toArray();
+    }
+
+    private void testPrefixKeys(BTreeMap<Object, Object> map) {
+        StorageDataType keyType = map.getKeyType();
+        Object[] keys = getKeys(map);
+        int len = keys.length;
+        assertEquals(rowCount, len);
+
+        DataBuffer buff = DataBuffer.create();
+        keyType.write(buff, keys, len, FormatVersion.FORMAT_VERSION_3);
+        int oldLength = buff.position();
+        buff = DataBuffer.create();
+        keyType.write(buff, keys, len, FormatVersion.FORMAT_VERSION);
+        // 相同的前缀列只写一次
+        assertTrue(buff.position() < oldLength / 2);
+
+        ByteBuffer bytes = buff.getAndFlipBuffer();
+        Object[] keys2 = new Object[len];
+        keyType.read(bytes, keys2, len, FormatVersion.FORMAT_VERSION);
+        for (int i = 0; i < len; i++) {
+            IndexKey k1 = (IndexKey) keys[i];
+            IndexKey k2 = (IndexKey) keys2[i];
+            assertEquals(k1.getKey(), k2.getKey());
+            assertEquals(0, keyType.compare(k1, k2));
+        }
+    }
+
+    private void testSplitKeys(BTreeMap<Object, Object> map) {
+        StorageDataType keyType = map.getKeyType();
+        Object[] keys = getKeys(map);
+        int truncated = 0;
+        for (int i = 1; i < keys.length; i++) {
+            IndexKey splitKey = (IndexKey) keyType.getSplitKey(keys[i - 1], keys[i]);
+            assertTrue(keyType.compare(keys[i - 1], splitKey) < 0);
+            assertTrue(keyType.compare(splitKey, keys[i]) <= 0);
+            if (splitKey.getColumns().length < ((IndexKey) keys[i]).getColumns().length)
+                truncated++;
+        }
+        // f1变化的地方只需要保留第一列
+        assertTrue(truncated > 0);
+    }
+
+    private static void gc(BTreeMap<?, ?>... maps) {
+        for (BTreeMap<?, ?> map : maps) {
+            map.save();
+            map.fullGc();
+        }
+    }
+
+    private void check() {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 10; j++) {
+                sql = "SELECT count(*) FROM IndexKeyPrefixTest WHERE f1 = '" + PREFIX + i
+                        + "' AND f2 = 'f2-" + j + "'";
+                assertEquals(count(i, j, -1), getInt(sql, 1));
+            }
+            int f3 = rowCount / 2 + i;
+            sql = "SELECT count(*) FROM IndexKeyPrefixTest WHERE f1 = '" + PREFIX + (f3 % 3)
+                    + "' AND f3 = " + f3;
+            assertEquals(count(f3 % 3, f3 % 10, f3), getInt(sql, 1));
+        }
+    }
+
+    private int count(int f1, int f2, int f3) {
+        int count = 0;
+        for (int row = 1; row <= rowCount; row++) {
+            if (row % 3 == f1 && row % 10 == f2 && (f3 < 0 || row == f3)
+                    && !(deleted && row % 7 == 0))
+                count++;
+        }
+        return count;
+    }
+
+    // 老版本chunk中的索引key没有前缀压缩，重写到新chunk时不能直接复制原始数据
+    private void testUpgradeCompact() {
+        executeUpdate("DROP TABLE IF EXISTS IndexKeyUpgradeTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS IndexKeyUpgradeTest"
+                + "(pk int primary key, f1 varchar, f3 int) ENGINE " + AOStorageEngine.NAME
+                + " PARAMETERS(page_size='4k')");
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexKeyUpgradeTest_i1"
+                + " ON IndexKeyUpgradeTest(f1, f3)");
+        BTreeMap<Object, Object> map = getIndexMap("IndexKeyUpgradeTest_i1");
+        ChunkManager chunkManager = map.getBTreeStorage().getChunkManager();
+        chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION_3);
+        for (int row = 1; row <= rowCount; row++) {
+            executeUpdate("INSERT INTO IndexKeyUpgradeTest VALUES(" + row + ", '" + PREFIX
+                    + "', " + row + ")");
+        }
+        waitIndexed(map);
+        map.save();
+
+        // 删除前面的大部分记录，让老chunk的填充率变低
+        chunkManager.setFormatVersion(FormatVersion.FORMAT_VERSION);
+        int deletedCount = rowCount * 4 / 5;
+        executeUpdate("DELETE FROM IndexKeyUpgradeTest WHERE f3 <= " + deletedCount);
+        waitIndexed(map, rowCount - deletedCount);
+        map.save();
+        map.compact();
+        assertTrue(map.getBTreeStorage().getCompactedBytes() > 0);
+        map.fullGc(); // 从硬盘读重写后的page
+
+        Object[] keys = getKeys(map);
+        assertEquals(rowCount - deletedCount, keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            Value[] columns = ((IndexKey) keys[i]).getColumns();
+            assertEquals(PREFIX, columns[0].getString());
+            assertEquals(deletedCount + i + 1, columns[1].getInt());
+        }
+        sql = "SELECT count(*) FROM IndexKeyUpgradeTest WHERE f1 = '" + PREFIX + "' AND f3 > "
+                + (rowCount - 10);
+        assertEquals(10, getInt(sql, 1));
+        executeUpdate("DROP TABLE IndexKeyUpgradeTest");
+    }
+}
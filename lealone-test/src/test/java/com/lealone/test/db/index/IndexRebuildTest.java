@@ -7,6 +7,9 @@ package com.lealone.test.db.index;
 
 import org.junit.Test;
 
+import com.lealone.db.index.Index;
+import com.lealone.db.result.Result;
+
 public class IndexRebuildTest extends IndexTestBase {
     @Test
     public void run() {
@@ -44,4 +47,31 @@ public class IndexRebuildTest extends IndexTestBase {
         // index = getIndex("IndexRebuildTest_StandardIndex1");
         // assertEquals(5, index.getRowCount(session));
     }
+
+    // 新建的普通索引在CREATE INDEX中一次性构建完，不再需要边构建边查询
+    @Test
+    public void testBulkLoad() {
+        executeUpdate("DROP TABLE IF EXISTS IndexBulkLoadTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS IndexBulkLoadTest (f1 int, f2 int)");
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            int f1 = (i * 7919) % count; // 打乱顺序
+            executeUpdate("insert into IndexBulkLoadTest(f1, f2) values(" + f1 + ", " + i + ")");
+        }
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexBulkLoadTest_Index1 ON IndexBulkLoadTest(f1)");
+        Index index = getIndex("IndexBulkLoadTest_Index1");
+        assertFalse(index.isBuilding());
+        assertEquals(count, getInt("select count(*) from IndexBulkLoadTest where f1 >= 0", 1));
+
+        Result result = executeQuery(
+                "select f1 from IndexBulkLoadTest where f1 >= 100 and f1 < 200 order by f1");
+        int f1 = 100;
+        while (result.next())
+            assertEquals(f1++, getInt(result, 1));
+        assertEquals(200, f1);
+
+        executeUpdate("insert into IndexBulkLoadTest(f1, f2) values(-1, -1)");
+        assertEquals(1, getInt("select count(*) from IndexBulkLoadTest where f1 = -1", 1));
+        executeUpdate("DROP TABLE IndexBulkLoadTest");
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.db.index;
+
+import org.junit.Test;
+
+import com.lealone.db.index.standard.RowCache;
+import com.lealone.db.index.standard.StandardPrimaryIndex;
+import com.lealone.db.result.Result;
+import com.lealone.db.row.Row;
+import com.lealone.db.session.ServerSession;
+import com.lealone.db.table.StandardTable;
+
+public class RowCacheTest extends IndexTestBase {
+
+    private final int rowCount = 100;
+    private StandardPrimaryIndex index;
+
+    @Test
+    public void run() {
+        executeUpdate("DROP TABLE IF EXISTS RowCacheTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS RowCacheTest"
+                + "(pk int primary key, f1 int, f2 varchar) PARAMETERS(row_cache_size='1')");
+        // 通过二级索引查询时会按主键读记录
+        executeUpdate("CREATE INDEX IF NOT EXISTS RowCacheTest_i1 ON RowCacheTest(f1)");
+        for (int row = 1; row <= rowCount; row++) {
+            executeUpdate("INSERT INTO RowCacheTest VALUES(" + row + ", " + row + ", 'a" + row + "')");
+        }
+        index = ((StandardTable) findTable("RowCacheTest")).getScanIndex(session);
+        RowCache rowCache = index.getRowCache();
+        assertNotNull(rowCache);
+        assertEquals(1024 * 1024, rowCache.getMaxMemory());
+
+        testHit(rowCache);
+        testUpdate();
+        testDelete();
+        testRepeatableRead();
+        testPerfMetaTable();
+        testTruncate(rowCache);
+    }
+
+    private String getF2(int f1) {
+        return getString("SELECT f2 FROM RowCacheTest WHERE f1 = " + f1, 1);
+    }
+
+    private void testHit(RowCache rowCache) {
+        for (int i = 0; i < 3; i++) {
+            for (int row = 1; row <= rowCount; row++)
+                assertEquals("a" + row, getF2(row));
+        }
+        assertEquals(rowCount, rowCache.size());
+        assertTrue(rowCache.getHits() >= rowCount * 2);
+        assertTrue(rowCache.getMemory() > 0);
+
+        Row row = index.getRow(session, 1, null);
+        assertSame(row, index.getRow(session, 1, null));
+    }
+
+    private void testUpdate() {
+        executeUpdate("UPDATE RowCacheTest SET f2 = 'b1' WHERE pk = 1");
+        assertEquals("b1", getF2(1));
+        assertEquals("b1", getF2(1));
+    }
+
+    private void testDelete() {
+        executeUpdate("DELETE FROM RowCacheTest WHERE pk = 2");
+        assertNull(getF2(2));
+        assertNull(index.getRow(session, 2, null));
+    }
+
+    // 其他事务更新并提交后，可重复读的事务还是读到旧记录
+    private void testRepeatableRead() {
+        ServerSession session2 = createSession();
+        session2.setAutoCommit(false);
+        session2.setTransactionIsolationLevel("REPEATABLE_READ");
+        Result result = session2.executeQueryLocal("SELECT f2 FROM RowCacheTest WHERE f1 = 3", 0,
+                false);
+        assertTrue(result.next());
+        assertEquals("a3", getString(result, 1));
+
+        executeUpdate("UPDATE RowCacheTest SET f2 = 'b3' WHERE pk = 3");
+        assertEquals("b3", getF2(3));
+
+        for (int i = 0; i < 2; i++) {
+            result = session2.executeQueryLocal("SELECT f2 FROM RowCacheTest WHERE f1 = 3", 0, false);
+            assertTrue(result.next());
+            assertEquals("a3", getString(result, 1));
+        }
+        session2.commit();
+        session2.close();
+        assertEquals("b3", getF2(3));
+    }
+
+    private void testPerfMetaTable() {
+        sql = "SELECT ROW_COUNT, HITS, HIT_RATIO FROM PERFORMANCE_SCHEMA.ROW_CACHE"
+                + " WHERE TABLE_NAME = 'RowCacheTest'";
+        Result result = executeQuery(sql);
+        assertTrue(result.next());
+        assertTrue(result.currentRow()[1].getLong() > 0);
+        assertTrue(result.currentRow()[2].getDouble() > 0.5);
+    }
+
+    private void testTruncate(RowCache rowCache) {
+        executeUpdate("TRUNCATE TABLE RowCacheTest");
+        assertEquals(0, rowCache.size());
+        assertNull(getF2(5));
+    }
+}
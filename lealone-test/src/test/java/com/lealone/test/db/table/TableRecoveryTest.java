@@ -0,0 +1,63 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.db.table;
+
+import org.junit.Test;
+
+import com.lealone.db.Database;
+import com.lealone.db.LealoneDatabase;
+import com.lealone.db.result.Result;
+import com.lealone.db.session.ServerSession;
+import com.lealone.db.table.TableRecovery;
+import com.lealone.test.db.DbObjectTestBase;
+
+public class TableRecoveryTest extends DbObjectTestBase {
+
+    private static final String DB = "TableRecoveryTest";
+    private final int tableCount = 8;
+    private final int rowCount = 100;
+
+    public TableRecoveryTest() {
+        super(LealoneDatabase.NAME);
+    }
+
+    @Test
+    public void run() {
+        executeUpdate("CREATE DATABASE IF NOT EXISTS " + DB
+                + " PARAMETERS(RECOVER_THREADS=4, LAZY_RECOVER=true)");
+        ServerSession session = createServerSession(getURL(DB));
+        for (int i = 0; i < tableCount; i++) {
+            session.executeUpdateLocal("DROP TABLE IF EXISTS t" + i);
+            session.executeUpdateLocal("CREATE TABLE t" + i + "(pk int primary key, f1 int)");
+            session.executeUpdateLocal("CREATE INDEX t" + i + "_i1 ON t" + i + "(f1)");
+            for (int row = 0; row < rowCount; row++)
+                session.executeUpdateLocal("INSERT INTO t" + i + " VALUES(" + row + ", " + row + ")");
+        }
+        session.close();
+
+        // 重新初始化数据库会再执行一次redo log，表都交给恢复线程并行恢复
+        Database db = findDatabase(DB).copy();
+        TableRecovery recovery = db.getTableRecovery();
+        assertNotNull(recovery);
+        assertTrue(recovery.getTableCount() >= tableCount);
+
+        // 不用等所有表都恢复完就能访问，还没有恢复的表在访问时恢复
+        session = createServerSession(getURL(DB));
+        for (int i = tableCount - 1; i >= 0; i--) {
+            Result result = session.executeQueryLocal("SELECT count(*) FROM t" + i, 0, false);
+            assertTrue(result.next());
+            assertEquals(rowCount, result.currentRow()[0].getInt());
+            result = session.executeQueryLocal("SELECT pk FROM t" + i + " WHERE f1 = 10", 0, false);
+            assertTrue(result.next());
+            assertEquals(10, result.currentRow()[0].getInt());
+        }
+        session.close();
+
+        recovery.awaitAll();
+        assertTrue(recovery.isCompleted());
+        assertEquals(recovery.getTableCount(), recovery.getRecoveredCount());
+    }
+}
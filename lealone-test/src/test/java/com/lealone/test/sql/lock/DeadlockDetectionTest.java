@@ -0,0 +1,117 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.sql.lock;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import com.lealone.common.util.JdbcUtils;
+import com.lealone.db.ConnectionSetting;
+import com.lealone.db.LealoneDatabase;
+import com.lealone.db.api.ErrorCode;
+import com.lealone.db.lock.DeadlockDetector;
+import com.lealone.test.sql.SqlTestBase;
+
+public class DeadlockDetectionTest extends SqlTestBase {
+
+    private static final String DB = "DEADLOCK_DETECTION_TEST";
+    private static final int LOCK_TIMEOUT = 10000;
+
+    public DeadlockDetectionTest() {
+        super(DB);
+        addConnectionParameter(ConnectionSetting.IS_SHARED, "false");
+    }
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS DeadlockDetectionTest");
+        stmt.executeUpdate("CREATE TABLE DeadlockDetectionTest(pk int primary key, f1 int)");
+        for (int i = 1; i <= 4; i++)
+            stmt.executeUpdate("INSERT INTO DeadlockDetectionTest VALUES(" + i + ", 0)");
+        DeadlockDetector detector = LealoneDatabase.getInstance().findDatabase(DB)
+                .getDeadlockDetector();
+
+        // 默认回滚最晚开始的事务
+        testDeadlock(detector, false);
+
+        // 后开始的事务做的更新更多时回滚先开始的事务
+        Connection conn = getConnection(LealoneDatabase.NAME);
+        conn.createStatement().executeUpdate("ALTER DATABASE " + DB
+                + " PARAMETERS(DEADLOCK_VICTIM='" + DeadlockDetector.VICTIM_LEAST_WORK + "')");
+        conn.close();
+        testDeadlock(detector, true);
+    }
+
+    private void testDeadlock(DeadlockDetector detector, boolean leastWork) throws Exception {
+        long deadlockCount = detector.getDeadlockCount();
+        long victimCount = detector.getVictimCount();
+        Connection conn1 = getConnection(DB);
+        Connection conn2 = getConnection(DB);
+        try {
+            Statement stmt1 = createStatement(conn1);
+            Statement stmt2 = createStatement(conn2);
+            stmt1.executeUpdate(update(1));
+            stmt2.executeUpdate(update(2));
+            if (leastWork) {
+                stmt2.executeUpdate(update(3));
+                stmt2.executeUpdate(update(4));
+            }
+
+            // 事务1等待事务2，事务2再等待事务1就形成了环
+            FutureTask<Integer> task = new FutureTask<>(() -> stmt1.executeUpdate(update(2)));
+            new Thread(task).start();
+            Thread.sleep(300);
+            long start = System.currentTimeMillis();
+            try {
+                stmt2.executeUpdate(update(1));
+                assertTrue(leastWork);
+                conn2.commit();
+            } catch (Exception e) {
+                assertFalse(leastWork);
+                assertErrorCode(e, ErrorCode.DEADLOCK_1);
+            }
+            try {
+                task.get();
+                assertFalse(leastWork);
+                conn1.commit();
+            } catch (Exception e) {
+                assertTrue(leastWork);
+                assertErrorCode(e, ErrorCode.DEADLOCK_1);
+            }
+            // 不需要等到锁超时
+            assertTrue(System.currentTimeMillis() - start < LOCK_TIMEOUT / 2);
+            assertEquals(deadlockCount + 1, detector.getDeadlockCount());
+            assertEquals(victimCount + 1, detector.getVictimCount());
+            assertTrue(detector.getMaxDetectionTime() > 0);
+
+            ResultSet rs = stmt.executeQuery("SELECT DEADLOCK_COUNT, VICTIM_COUNT, MAX_DETECTION_TIME"
+                    + " FROM PERFORMANCE_SCHEMA.DEADLOCKS");
+            assertTrue(rs.next());
+            assertEquals(deadlockCount + 1, rs.getLong(1));
+            assertEquals(victimCount + 1, rs.getLong(2));
+            assertTrue(rs.getDouble(3) > 0);
+            rs.close();
+        } finally {
+            JdbcUtils.closeSilently(conn1);
+            JdbcUtils.closeSilently(conn2);
+        }
+    }
+
+    private static Statement createStatement(Connection conn) throws Exception {
+        conn.setAutoCommit(false);
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("SET LOCK_TIMEOUT " + LOCK_TIMEOUT);
+        return stmt;
+    }
+
+    private static String update(int pk) {
+        return "UPDATE DeadlockDetectionTest SET f1 = f1 + 1 WHERE pk = " + pk;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package com.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.lealone.db.api.ErrorCode;
+import com.lealone.test.sql.SqlTestBase;
+
+public class SerializableTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS SerializableTest");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS SerializableTest (f1 int primary key, f2 int)");
+        testWriteConflict(Connection.TRANSACTION_SERIALIZABLE);
+        testWriteConflict(Connection.TRANSACTION_REPEATABLE_READ);
+    }
+
+    void testWriteConflict(int isolationLevel) throws Exception {
+        stmt.executeUpdate("DELETE FROM SerializableTest");
+        stmt.executeUpdate("INSERT INTO SerializableTest(f1, f2) VALUES(1, 1), (2, 2)");
+
+        Connection conn1 = getConnection();
+        conn1.setAutoCommit(false);
+        conn1.setTransactionIsolation(isolationLevel);
+        Statement stmt1 = conn1.createStatement();
+        assertEquals(1, getF2(stmt1, 1));
+
+        // 其他事务在conn1的事务开始之后修改并提交了f1=1的记录
+        stmt.executeUpdate("UPDATE SerializableTest SET f2 = 10 WHERE f1 = 1");
+        assertEquals(1, getF2(stmt1, 1));
+
+        // 没有被其他事务修改过的记录可以正常修改
+        stmt1.executeUpdate("UPDATE SerializableTest SET f2 = 20 WHERE f1 = 2");
+        try {
+            stmt1.executeUpdate("UPDATE SerializableTest SET f2 = f2 + 1 WHERE f1 = 1");
+            // 可重复读的事务更新的是最新的值
+            assertEquals(Connection.TRANSACTION_REPEATABLE_READ, isolationLevel);
+            conn1.commit();
+            assertEquals(11, getF2(stmt, 1));
+        } catch (Exception e) {
+            assertEquals(Connection.TRANSACTION_SERIALIZABLE, isolationLevel);
+            assertErrorCode(e, ErrorCode.CONCURRENT_UPDATE_1);
+            conn1.rollback();
+            assertEquals(10, getF2(stmt, 1));
+            assertEquals(2, getF2(stmt, 2));
+        }
+        conn1.close();
+    }
+
+    private static int getF2(Statement stmt, int f1) throws Exception {
+        ResultSet rs = stmt.executeQuery("SELECT f2 FROM SerializableTest WHERE f1 = " + f1);
+        assertTrue(rs.next());
+        int f2 = rs.getInt(1);
+        rs.close();
+        return f2;
+    }
+}
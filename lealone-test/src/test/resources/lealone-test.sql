@@ -21,7 +21,9 @@ create config lealone (
         name: 'AOTE',
         enabled: true ,
         redo_log_dir: 'redo_log', -- 会组合成这样的目录: ${base_dir} + "/"+ ${redo_log_dir},
-        log_sync_type: 'periodic' -- 取值：instant,no_sync,periodic，默认是periodic
+        log_sync_type: 'periodic' -- 取值：instant,group,no_sync,periodic，默认是periodic
+        -- , wal_enabled: true -- 所有表共用一个预写日志，会写到这样的目录: ${base_dir} + "/wal"
+        -- , wal_sync_mode: 'fdatasync' -- 取值：fsync,fdatasync,rwd,rws，默认是fdatasync
     ),
     sql_engine: (
         name: 'Lealone',